@@ -194,6 +194,7 @@ CREATE TABLE `schedule_job_log` (
 
 INSERT INTO `schedule_job` (`bean_name`, `method_name`, `params`, `cron_expression`, `status`, `remark`, `create_time`) VALUES ('testTask', 'test', 'renren', '0 0/30 * * * ?', '0', '有参数测试', '2016-12-01 23:16:46');
 INSERT INTO `schedule_job` (`bean_name`, `method_name`, `params`, `cron_expression`, `status`, `remark`, `create_time`) VALUES ('testTask', 'test2', NULL, '0 0/30 * * * ?', '1', '无参数测试', '2016-12-03 14:55:56');
+INSERT INTO `schedule_job` (`bean_name`, `method_name`, `params`, `cron_expression`, `status`, `remark`, `create_time`) VALUES ('regressionTask', 'check', NULL, '0 0 6 * * ?', '1', '每天早上把各脚本最近一次的测试报告和基线对比，标记性能回归。参数可以是逗号分隔的脚本文件ID', '2019-06-01 00:00:00');
 
 
 --  quartz自带表结构
@@ -399,7 +400,9 @@ CREATE TABLE `test_stress_case_file` (
   `report_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：保存测试报告原始文件  1：不需要测试报告',
   `webchart_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：需要前端监控  1：不需要前端监控',
   `debug_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：关闭debug  1：开始debug调试模式',
+  `result_format` tinyint NOT NULL DEFAULT 0 COMMENT '测试结果文件格式  0：csv  1：二进制列式格式',
   `duration` int NOT NULL DEFAULT 3600 COMMENT '期间，执行时间，单位秒，脚本执行多久停止，0代表永远执行',
+  `baseline_report_id` bigint COMMENT '性能回归对比的基线测试报告',
   `add_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `add_by` bigint(20) COMMENT '提交用户id',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '修改时间',
@@ -416,7 +419,10 @@ CREATE TABLE `test_stress_case_reports` (
   `origin_name` varchar(200) NOT NULL COMMENT '测试报告名称',
   `report_name` varchar(200) NOT NULL COMMENT '避免跨系统编码错误，随机化了结果文件名，存储了相对路径',
   `file_size` bigint COMMENT '测试结果文件大小',
-  `status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：初始状态  1：正在运行  2：成功执行  3：运行出现异常',
+  `status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：初始状态  1：正在运行  2：成功执行  3：运行出现异常  4：结果文件不存在  5：排队中  6：已取消',
+  `report_cache` tinyint COMMENT '测试报告缓存  0：重新生成  1：结果文件及配置没有变化，使用已经生成的测试报告',
+  `parsed_size` bigint COMMENT '生成测试报告时已经读取的结果文件大小，和file_size一起显示生成进度',
+  `regression` tinyint COMMENT '和基线对比的结果  0：没有性能回归  1：有性能回归  为空：没有对比过',
   `remark` varchar(300) COMMENT '描述',
   `add_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `add_by` bigint(20) COMMENT '提交用户id',
@@ -442,6 +448,32 @@ CREATE TABLE `test_debug_case_reports` (
   PRIMARY KEY (`report_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='调试/接口测试报告文件表';
 
+-- 性能测试报告汇总统计表
+CREATE TABLE `test_stress_report_stats` (
+  `stat_id` bigint NOT NULL AUTO_INCREMENT,
+  `report_id` bigint NOT NULL COMMENT '所关联的测试报告',
+  `label` text NOT NULL COMMENT '请求名称',
+  `overall` tinyint NOT NULL DEFAULT 0 COMMENT '是否是全部请求的合计  0：单个请求  1：全部请求的合计',
+  `samples` bigint COMMENT '请求数',
+  `errors` bigint COMMENT '失败的请求数',
+  `error_pct` double COMMENT '失败率（%）',
+  `tps` double COMMENT '每秒请求数',
+  `mean` double COMMENT '平均响应时间（ms）',
+  `min_elapsed` bigint COMMENT '最小响应时间（ms）',
+  `max_elapsed` bigint COMMENT '最大响应时间（ms）',
+  `pct50` bigint COMMENT '50%响应时间（ms）',
+  `pct90` bigint COMMENT '90%响应时间（ms）',
+  `pct95` bigint COMMENT '95%响应时间（ms）',
+  `pct99` bigint COMMENT '99%响应时间（ms）',
+  `received_bytes` bigint COMMENT '接收的字节数',
+  `sent_bytes` bigint COMMENT '发送的字节数',
+  `start_time` bigint COMMENT '第一个请求开始的时间（毫秒时间戳）',
+  `end_time` bigint COMMENT '最后一个请求结束的时间（毫秒时间戳）',
+  `add_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '统计的时间',
+  PRIMARY KEY (`stat_id`),
+  INDEX (`report_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='性能测试报告汇总统计表';
+
 -- 性能测试分布式节点表
 CREATE TABLE `test_stress_slave` (
   `slave_id` bigint NOT NULL AUTO_INCREMENT,
@@ -471,4 +503,19 @@ INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('3',
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('4', 'MASTER_JMETER_USE_SCRIPT_KEY', 'false', '1', 'false:在服务器进程内启动Jmeter压测。true:启动Jmeter_home中的命令压测');
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('5', 'MASTER_JMETER_REPLACE_FILE_KEY', 'true', '1', '上传文件时，遇到同名文件是替换还是报错，默认是替换为true');
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('6', 'MASTER_JMETER_GENERATE_REPORT_KEY', 'true', '1', 'true:本地web程序进程生成测试报告，可以多线程并发生成。false:使用Jmeter_home中的命令生成测试报告。');
-INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('7', 'SCRIPT_SCHEDULER_DURATION_KEY', 'true', '1', 'true:脚本限时执行生效，具体时间由脚本单独配置，是默认值 false:取消脚本限时执行');
\ No newline at end of file
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('7', 'SCRIPT_SCHEDULER_DURATION_KEY', 'true', '1', 'true:脚本限时执行生效，具体时间由脚本单独配置，是默认值 false:取消脚本限时执行');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('8', 'MASTER_JMETER_INGEST_BUFFER_SIZE_KEY', '65536', '1', '压测结果异步处理的缓冲大小（条数），每个执行中的脚本一份，向上取整为2的幂');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('9', 'MASTER_JMETER_INGEST_FULL_POLICY_KEY', 'DROP', '1', '缓冲满时的策略 DROP:丢弃前端监控数据，需要写测试报告时仍等待，测试报告数据不丢失 BLOCK:压测请求线程阻塞等待');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('10', 'SLAVE_SAMPLE_SUMMARY_INTERVAL_KEY', '0', '1', '分布式压测时slave节点汇总结果再发送给master的周期（毫秒），如1000。0:不汇总，每个请求的结果都发送给master');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('11', 'MASTER_RESULT_FILE_COMPRESS_KEY', 'false', '1', 'csv测试结果文件是否边写边gzip压缩 true:压缩，分段文件以.gz结尾 false:不压缩');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('12', 'MASTER_RESULT_FILE_ROTATE_SIZE_KEY', '0', '1', 'csv测试结果文件按大小滚动成多个分段（MB），如1024。0:不按大小滚动');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('13', 'MASTER_RESULT_FILE_ROTATE_INTERVAL_KEY', '0', '1', 'csv测试结果文件按时间滚动成多个分段（分钟），如60。0:不按时间滚动');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('14', 'MASTER_ROLLING_REPORT_INTERVAL_KEY', '0', '1', '压测过程中每隔多少分钟刷新一次测试报告（滚动测试报告），如10。0:不生成滚动测试报告。只支持未压缩的csv结果文件');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('15', 'MASTER_REPORT_ZIP_PARALLEL_KEY', 'false', '1', '下载测试报告时zip包中的文件是否多线程并行压缩 true:并行 false:单线程依次压缩。图片、字体等已经压缩过的文件不再压缩');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('16', 'MASTER_REPORT_JOB_PARALLELISM_KEY', '2', '1', '同时生成测试报告的任务数，超出的排队，结果文件小的先生成');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('17', 'MASTER_REPORT_JOB_MEMORY_KEY', '0', '1', '同时生成的测试报告的结果文件大小之和的上限（MB），如2048。0:使用JVM的最大堆内存');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('18', 'MASTER_REGRESSION_TPS_DROP_KEY', '10', '1', '和基线对比时吞吐量下降超过多少百分比算性能回归，如10。0:使用默认值10');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('19', 'MASTER_REGRESSION_LATENCY_RISE_KEY', '20', '1', '和基线对比时平均及百分位响应时间上升超过多少百分比算性能回归，如20。0:使用默认值20');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('20', 'MASTER_REGRESSION_ERROR_RISE_KEY', '1', '1', '和基线对比时失败率上升超过多少个百分点（且统计显著）算性能回归，如1。0:只要统计显著就算');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('21', 'MASTER_REGRESSION_MIN_SAMPLES_KEY', '100', '1', '和基线对比时请求数少于多少的请求名称不做判断，如100。0:都做判断');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('22', 'MASTER_DEBUG_REPORT_BODY_LIMIT_KEY', '100', '1', '调试测试报告中每项请求及响应内容最多显示多少K个字符，超出的完整内容单独保存并在报告中链接，如100。0:使用默认值100');
\ No newline at end of file
@@ -151,7 +151,9 @@ CREATE TABLE test_stress_case_file (
   report_status tinyint NOT NULL DEFAULT 0 ,
   webchart_status tinyint NOT NULL DEFAULT 0 ,
   debug_status tinyint NOT NULL DEFAULT 0 ,
+  result_format tinyint NOT NULL DEFAULT 0 ,
   duration int NOT NULL DEFAULT 3600 ,
+  baseline_report_id bigint ,
   add_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ,
   add_by bigint(20) ,
   update_time timestamp NOT NULL  AS CURRENT_TIMESTAMP ,
@@ -169,6 +171,9 @@ CREATE TABLE test_stress_case_reports (
   report_name varchar(200) NOT NULL ,
   file_size bigint ,
   status tinyint NOT NULL DEFAULT 0 ,
+  report_cache tinyint ,
+  parsed_size bigint ,
+  regression tinyint ,
   remark varchar(300) ,
   add_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ,
   add_by bigint(20) ,
@@ -194,6 +199,32 @@ CREATE TABLE test_debug_case_reports (
   PRIMARY KEY (report_id)
 );
 
+-- 性能测试报告汇总统计表
+CREATE TABLE test_stress_report_stats (
+  stat_id bigint NOT NULL AUTO_INCREMENT,
+  report_id bigint NOT NULL ,
+  label varchar(20000) NOT NULL ,
+  overall tinyint NOT NULL DEFAULT 0 ,
+  samples bigint ,
+  errors bigint ,
+  error_pct double ,
+  tps double ,
+  mean double ,
+  min_elapsed bigint ,
+  max_elapsed bigint ,
+  pct50 bigint ,
+  pct90 bigint ,
+  pct95 bigint ,
+  pct99 bigint ,
+  received_bytes bigint ,
+  sent_bytes bigint ,
+  start_time bigint ,
+  end_time bigint ,
+  add_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ,
+  PRIMARY KEY (stat_id)
+);
+CREATE INDEX idx_report_stats_report_id ON test_stress_report_stats (report_id);
+
 -- 性能测试分布式节点表
 CREATE TABLE test_stress_slave (
   slave_id bigint NOT NULL AUTO_INCREMENT,
@@ -224,3 +255,18 @@ INSERT INTO sys_config (id, key, value, status, remark) VALUES ('4', 'MASTER_JME
 INSERT INTO sys_config (id, key, value, status, remark) VALUES ('5', 'MASTER_JMETER_REPLACE_FILE_KEY', 'true', '1', '上传文件时，遇到同名文件是替换还是报错，默认是替换为true');
 INSERT INTO sys_config (id, key, value, status, remark) VALUES ('6', 'MASTER_JMETER_GENERATE_REPORT_KEY', 'true', '1', 'true:本地web程序进程生成测试报告，可以多线程并发生成。false:使用Jmeter_home中的命令生成测试报告。');
 INSERT INTO sys_config (id, key, value, status, remark) VALUES ('7', 'SCRIPT_SCHEDULER_DURATION_KEY', '3600', '1', '配置大于0:脚本限时执行生效，这里设置的是默认时间1小时；0或者不填:取消强制加入的脚本限时执行');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('8', 'MASTER_JMETER_INGEST_BUFFER_SIZE_KEY', '65536', '1', '压测结果异步处理的缓冲大小（条数），每个执行中的脚本一份，向上取整为2的幂');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('9', 'MASTER_JMETER_INGEST_FULL_POLICY_KEY', 'DROP', '1', '缓冲满时的策略 DROP:丢弃前端监控数据，需要写测试报告时仍等待，测试报告数据不丢失 BLOCK:压测请求线程阻塞等待');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('10', 'SLAVE_SAMPLE_SUMMARY_INTERVAL_KEY', '0', '1', '分布式压测时slave节点汇总结果再发送给master的周期（毫秒），如1000。0:不汇总，每个请求的结果都发送给master');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('11', 'MASTER_RESULT_FILE_COMPRESS_KEY', 'false', '1', 'csv测试结果文件是否边写边gzip压缩 true:压缩，分段文件以.gz结尾 false:不压缩');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('12', 'MASTER_RESULT_FILE_ROTATE_SIZE_KEY', '0', '1', 'csv测试结果文件按大小滚动成多个分段（MB），如1024。0:不按大小滚动');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('13', 'MASTER_RESULT_FILE_ROTATE_INTERVAL_KEY', '0', '1', 'csv测试结果文件按时间滚动成多个分段（分钟），如60。0:不按时间滚动');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('14', 'MASTER_ROLLING_REPORT_INTERVAL_KEY', '0', '1', '压测过程中每隔多少分钟刷新一次测试报告（滚动测试报告），如10。0:不生成滚动测试报告。只支持未压缩的csv结果文件');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('15', 'MASTER_REPORT_ZIP_PARALLEL_KEY', 'false', '1', '下载测试报告时zip包中的文件是否多线程并行压缩 true:并行 false:单线程依次压缩。图片、字体等已经压缩过的文件不再压缩');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('16', 'MASTER_REPORT_JOB_PARALLELISM_KEY', '2', '1', '同时生成测试报告的任务数，超出的排队，结果文件小的先生成');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('17', 'MASTER_REPORT_JOB_MEMORY_KEY', '0', '1', '同时生成的测试报告的结果文件大小之和的上限（MB），如2048。0:使用JVM的最大堆内存');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('18', 'MASTER_REGRESSION_TPS_DROP_KEY', '10', '1', '和基线对比时吞吐量下降超过多少百分比算性能回归，如10。0:使用默认值10');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('19', 'MASTER_REGRESSION_LATENCY_RISE_KEY', '20', '1', '和基线对比时平均及百分位响应时间上升超过多少百分比算性能回归，如20。0:使用默认值20');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('20', 'MASTER_REGRESSION_ERROR_RISE_KEY', '1', '1', '和基线对比时失败率上升超过多少个百分点（且统计显著）算性能回归，如1。0:只要统计显著就算');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('21', 'MASTER_REGRESSION_MIN_SAMPLES_KEY', '100', '1', '和基线对比时请求数少于多少的请求名称不做判断，如100。0:都做判断');
+INSERT INTO sys_config (id, key, value, status, remark) VALUES ('22', 'MASTER_DEBUG_REPORT_BODY_LIMIT_KEY', '100', '1', '调试测试报告中每项请求及响应内容最多显示多少K个字符，超出的完整内容单独保存并在报告中链接，如100。0:使用默认值100');
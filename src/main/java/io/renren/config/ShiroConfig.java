@@ -91,6 +91,8 @@ public class ShiroConfig {
         filterMap.put("/test/debugReports/downloadReport/*?*", "anon");
         filterMap.put("/test/stressFile/downloadFile/*?*", "anon");
         filterMap.put("/test/stressFile/statInfo/*?*", "anon");
+        filterMap.put("/test/stressFile/statSnapshot/*?*", "anon");
+        filterMap.put("/test/stressFile/statStream/*?*", "anon");
         filterMap.put("/webjars/**", "anon");
         filterMap.put("/druid/**", "anon");
         filterMap.put("/app/**", "anon");
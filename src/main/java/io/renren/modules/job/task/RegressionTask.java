@@ -0,0 +1,51 @@
+package io.renren.modules.job.task;
+
+import io.renren.common.exception.RRException;
+import io.renren.modules.test.service.StressTestReportsService;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 性能回归检查定时任务
+ * <p>
+ * 脚本最近一次生成成功的测试报告和脚本的基线对比，保存是否有性能回归，已经对比过的不再对比。
+ * 有性能回归时任务抛出异常，定时任务日志中记录为失败。
+ * regressionTask为spring bean的名称
+ */
+@Component("regressionTask")
+public class RegressionTask {
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StressTestReportsService stressTestReportsService;
+
+    /**
+     * @param params 逗号分隔的脚本文件ID，只检查这些脚本
+     */
+    public void check(String params) {
+        String[] ids = StringUtils.split(params, ',');
+        Long[] fileIds = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            fileIds[i] = Long.valueOf(ids[i].trim());
+        }
+        check(fileIds);
+    }
+
+    /**
+     * 检查所有设置了基线的脚本
+     */
+    public void check() {
+        check((Long[]) null);
+    }
+
+    private void check(Long[] fileIds) {
+        int regressions = stressTestReportsService.checkRegression(fileIds);
+        logger.info("性能回归检查完成，{}个脚本有性能回归", regressions);
+        if (regressions > 0) {
+            throw new RRException(regressions + "个脚本有性能回归！");
+        }
+    }
+}
@@ -41,4 +41,18 @@ public class ExecutorConfig {
         executor.initialize();
         return executor;
     }
+
+    /**
+     * 生成调试测试报告的线程池，全局共用，所有批量生成的请求加起来并发数也不超过CPU核数。
+     */
+    @Bean
+    public Executor debugReportExecutor() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(processors);
+        executor.setMaxPoolSize(processors);
+        executor.setThreadNamePrefix("debug-report-");
+        executor.initialize();
+        return executor;
+    }
 }
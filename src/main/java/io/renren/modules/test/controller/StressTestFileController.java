@@ -7,8 +7,8 @@ import io.renren.common.utils.Query;
 import io.renren.common.utils.R;
 import io.renren.common.validator.ValidatorUtils;
 import io.renren.modules.test.entity.StressTestFileEntity;
-import io.renren.modules.test.jmeter.JmeterStatEntity;
 import io.renren.modules.test.service.StressTestFileService;
+import io.renren.modules.test.service.StressTestStatService;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,6 +18,7 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -33,6 +34,9 @@ public class StressTestFileController {
     @Autowired
     private StressTestFileService stressTestFileService;
 
+    @Autowired
+    private StressTestStatService stressTestStatService;
+
     /**
      * 参数化文件，用例文件列表
      */
@@ -139,11 +143,28 @@ public class StressTestFileController {
      * 只有在本地执行性能测试时，才会被调用。
      * 不要求权限校验了，频繁操作不用每次都调用数据库。
      */
-    @RequestMapping("/statInfo/{fileId}")
-    public R statInfo(@PathVariable("fileId") Long fileId) {
-        // 频率不是特别高，可以是new一个对象。
-        JmeterStatEntity jmeterStatEntity = stressTestFileService.getJmeterStatEntity(fileId);
-        return R.ok().put("statInfo", jmeterStatEntity);
+    @RequestMapping(value = "/statInfo/{fileId}", produces = "application/json;charset=UTF-8")
+    public String statInfo(@PathVariable("fileId") Long fileId) {
+        // 同一个刷新周期内，多个人查看同一个脚本的监控时共用一份数据。
+        return stressTestStatService.getStatInfoJson(fileId);
+    }
+
+    /**
+     * 列式数值格式的实时监控数据，since为前端已有数据的序号，只返回之后有变化的label。
+     */
+    @RequestMapping(value = "/statSnapshot/{fileId}", produces = "application/json;charset=UTF-8")
+    public String statSnapshot(@PathVariable("fileId") Long fileId,
+                               @RequestParam(value = "since", required = false) Long since) {
+        return stressTestStatService.getStatSnapshotJson(fileId, since);
+    }
+
+    /**
+     * 实时监控数据的服务端推送（Server-Sent Events），数据格式和statSnapshot一致。
+     * 多人同时查看同一个脚本的监控时，每个推送周期只计算一次监控数据。
+     */
+    @RequestMapping(value = "/statStream/{fileId}", produces = "text/event-stream")
+    public SseEmitter statStream(@PathVariable("fileId") Long fileId) {
+        return stressTestStatService.subscribe(fileId);
     }
 
     /**
@@ -6,17 +6,17 @@ import io.renren.common.utils.Query;
 import io.renren.common.utils.R;
 import io.renren.common.validator.ValidatorUtils;
 import io.renren.modules.test.entity.StressTestReportsEntity;
+import io.renren.modules.test.jmeter.report.ResultSlice;
+import io.renren.modules.test.jmeter.report.SliceStatistics;
+import io.renren.modules.test.service.StressTestReportStatsService;
 import io.renren.modules.test.service.StressTestReportsService;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -31,6 +31,8 @@ public class StressTestReportsController {
     @Autowired
     private StressTestReportsService stressTestReportsService;
     @Autowired
+    private StressTestReportStatsService stressTestReportStatsService;
+    @Autowired
     private StressTestUtils stressTestUtils;
 
     /**
@@ -100,46 +102,122 @@ public class StressTestReportsController {
     @RequestMapping("/createReport")
     @RequiresPermissions("test:stress:reportCreate")
     public R createReport(@RequestBody Long[] reportIds) {
-        for (Long reportId : reportIds) {
-            StressTestReportsEntity stressTestReport = stressTestReportsService.queryObject(reportId);
-
-            //首先判断，如果file_size为0或者空，说明没有结果文件，直接报错打断。
-//            if (stressTestReport.getFileSize() == 0L || stressTestReport.getFileSize() == null) {
-//                throw new RRException("找不到测试结果文件，无法生成测试报告！");
-//            }
-            //如果测试报告文件目录已经存在，说明生成过测试报告，直接打断
-//            if (StressTestUtils.RUNNING.equals(stressTestReport.getStatus())) {
-//                throw new RRException("请等待测试报告生成结束！");
-//            }
-            stressTestReportsService.createReport(stressTestReport);
-        }
+        // 已经在排队或者生成中的跳过，其余的照常生成。
+        List<String> skipped = stressTestReportsService.createReport(reportIds);
+        return R.ok().put("skipped", skipped);
+    }
+
+    /**
+     * 取消排队中或者正在生成的测试报告
+     */
+    @SysLog("取消生成性能测试报告")
+    @RequestMapping("/cancelReport")
+    @RequiresPermissions("test:stress:reportCreate")
+    public R cancelReport(@RequestBody Long[] reportIds) {
+        stressTestReportsService.cancelReport(reportIds);
         return R.ok();
     }
 
 
+    /**
+     * 生成测试报告时保存的汇总统计，不需要读取结果文件
+     */
+    @RequestMapping("/stats/{reportId}")
+    @RequiresPermissions("test:stress:reportInfo")
+    public R stats(@PathVariable("reportId") Long reportId) {
+        return R.ok().put("stats", stressTestReportStatsService.queryByReportId(reportId));
+    }
+
+    /**
+     * 同一个脚本最近limit次压测的汇总统计趋势，label为空时是全部请求的合计
+     */
+    @RequestMapping("/trend")
+    @RequiresPermissions("test:stress:reportInfo")
+    public R trend(@RequestParam("fileId") Long fileId,
+                   @RequestParam(value = "label", required = false) String label,
+                   @RequestParam(value = "limit", required = false) Integer limit) {
+        return R.ok().put("trend", stressTestReportStatsService.queryTrend(fileId, label, limit));
+    }
+
+    /**
+     * 设置为所属脚本性能回归对比的基线
+     */
+    @SysLog("设置性能回归基线")
+    @RequestMapping("/baseline/{reportId}")
+    @RequiresPermissions("test:stress:reportUpdate")
+    public R baseline(@PathVariable("reportId") Long reportId) {
+        stressTestReportsService.setBaseline(reportId);
+        return R.ok();
+    }
+
+    /**
+     * 和基线对比，不传baselineId时和所属脚本的基线对比并保存是否有性能回归
+     */
+    @RequestMapping("/compare/{reportId}")
+    @RequiresPermissions("test:stress:reportInfo")
+    public R compare(@PathVariable("reportId") Long reportId,
+                     @RequestParam(value = "baselineId", required = false) Long baselineId) {
+        return R.ok().put("comparison", baselineId == null ? stressTestReportsService.compareWithBaseline(reportId)
+                : stressTestReportsService.compare(baselineId, reportId));
+    }
+
+    /**
+     * 测试结果中一个时间段、部分请求的汇总统计，from、to是毫秒时间戳，label可以有多个，都不传时统计全部
+     * 统计时间较长时返回running为true，稍后用同样的参数再次请求
+     */
+    @RequestMapping("/sliceStats/{reportId}")
+    @RequiresPermissions("test:stress:reportInfo")
+    public R sliceStats(@PathVariable("reportId") Long reportId,
+                        @RequestParam(value = "from", required = false) Long from,
+                        @RequestParam(value = "to", required = false) Long to,
+                        @RequestParam(value = "label", required = false) List<String> labels) {
+        StressTestReportsEntity reportsEntity = stressTestReportsService.queryObject(reportId);
+        List<SliceStatistics.Row> stats = stressTestReportsService.sliceStatistics(reportsEntity, new ResultSlice(from, to, labels));
+        if (stats == null) {
+            return R.ok("正在统计，请稍后再次查询！").put("running", true);
+        }
+        return R.ok().put("stats", stats);
+    }
+
+    /**
+     * 使用测试结果中一个时间段、部分请求生成测试报告，参数同sliceStats，返回测试报告的地址
+     * 生成时间较长时返回running为true，稍后用同样的参数再次请求
+     */
+    @SysLog("生成性能测试报告时间段")
+    @RequestMapping("/createSliceReport/{reportId}")
+    @RequiresPermissions("test:stress:reportCreate")
+    public R createSliceReport(@PathVariable("reportId") Long reportId,
+                               @RequestParam(value = "from", required = false) Long from,
+                               @RequestParam(value = "to", required = false) Long to,
+                               @RequestParam(value = "label", required = false) List<String> labels) {
+        StressTestReportsEntity reportsEntity = stressTestReportsService.queryObject(reportId);
+        String slicePath = stressTestReportsService.createSliceReport(reportsEntity, new ResultSlice(from, to, labels));
+        if (slicePath == null) {
+            return R.ok("正在生成，请稍后再次请求！").put("running", true);
+        }
+        return R.ok().put("url", "testReport/" + slicePath + "/index.html");
+    }
+
     /**
      * 下载测试报告zip包
      */
     @SysLog("下载测试报告zip包")
     @RequestMapping("/downloadReport/{reportId}")
     @RequiresPermissions("test:stress:reportDownLoad")
-    public ResponseEntity<InputStreamResource> downloadReport(@PathVariable("reportId") Long reportId) throws IOException {
+    public void downloadReport(@PathVariable("reportId") Long reportId, HttpServletResponse response) throws IOException {
         StressTestReportsEntity reportsEntity = stressTestReportsService.queryObject(reportId);
-        FileSystemResource zipFile = stressTestReportsService.getZipFile(reportsEntity);
+        // 写入响应之前检查，测试报告不存在时还可以返回错误信息
+        File reportDir = stressTestReportsService.getReportDir(reportsEntity);
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Cache-Control", "no-cache,no-store,must-revalidate");
+        // 边打包边写入响应，不知道总长度，不设置Content-Length
+        response.setHeader("Cache-Control", "no-cache,no-store,must-revalidate");
         String fileNameUTF8 = new String(reportsEntity.getOriginName().getBytes(), StandardCharsets.ISO_8859_1);
-        headers.add("Content-Disposition",
+        response.setHeader("Content-Disposition",
                 "attachment;filename=" + fileNameUTF8 + ".zip");
-        headers.add("Pragma", "no-cache");
-        headers.add("Expires", "0");
-        headers.setContentType(MediaType.parseMediaType("application/octet-stream"));
-
-        return ResponseEntity
-                .ok()
-                .headers(headers)
-                .contentLength(zipFile.contentLength())
-                .body(new InputStreamResource(zipFile.getInputStream()));
+        response.setHeader("Pragma", "no-cache");
+        response.setHeader("Expires", "0");
+        response.setContentType("application/octet-stream");
+
+        stressTestReportsService.writeReportZip(reportDir, response.getOutputStream());
     }
 }
\ No newline at end of file
@@ -18,4 +18,6 @@ public interface StressTestFileDao extends BaseDao<StressTestFileEntity> {
 
     int updateStatusBatch(Map<String, Object> map);
 
+    List<StressTestFileEntity> queryListWithBaseline();
+
 }
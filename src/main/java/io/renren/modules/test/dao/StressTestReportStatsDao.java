@@ -0,0 +1,21 @@
+package io.renren.modules.test.dao;
+
+import io.renren.modules.sys.dao.BaseDao;
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
+import org.apache.ibatis.annotations.Mapper;
+
+import java.util.List;
+import java.util.Map;
+
+@Mapper
+public interface StressTestReportStatsDao extends BaseDao<StressTestReportStatsEntity> {
+
+    int deleteBatchByReportIds(Object[] id);
+
+    int deleteBatchByCaseIds(Object[] id);
+
+    /**
+     * 同一个脚本多次压测的统计，按测试报告从新到旧排列
+     */
+    List<StressTestReportStatsEntity> queryTrend(Map<String, Object> map);
+}
@@ -3,9 +3,17 @@ package io.renren.modules.test.dao;
 import io.renren.modules.sys.dao.BaseDao;
 import io.renren.modules.test.entity.StressTestReportsEntity;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 
 @Mapper
 public interface StressTestReportsDao extends BaseDao<StressTestReportsEntity> {
 
     int deleteBatchByCaseIds(Object[] id);
+
+    StressTestReportsEntity queryLatestWithStats(Long fileId);
+
+    /**
+     * 把状态为from中任意一个的测试报告改为to
+     */
+    int updateStatusByStatus(@Param("from") Integer[] from, @Param("to") Integer to);
 }
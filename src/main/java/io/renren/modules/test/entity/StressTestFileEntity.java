@@ -78,11 +78,22 @@ public class StressTestFileEntity implements Serializable {
      */
     private Integer debugStatus;
 
+    /**
+     * 测试结果文件格式 0：csv  1：二进制列式格式
+     * 默认 0
+     */
+    private Integer resultFormat;
+
     /**
      * 脚本定时执行多少秒，默认是3小时
      */
     private Integer duration = StressTestUtils.getScriptSchedulerDuration();
 
+    /**
+     * 性能回归对比的基线测试报告
+     */
+    private Long baselineReportId;
+
     /**
      * 提交的用户
      */
@@ -245,6 +256,14 @@ public class StressTestFileEntity implements Serializable {
         this.fileIdList = fileIdList;
     }
 
+    public Integer getResultFormat() {
+        return resultFormat;
+    }
+
+    public void setResultFormat(Integer resultFormat) {
+        this.resultFormat = resultFormat;
+    }
+
     public Integer getDuration() {
         return duration;
     }
@@ -275,8 +294,17 @@ public class StressTestFileEntity implements Serializable {
         clone.setReportStatus(this.getReportStatus());
         clone.setWebchartStatus(this.getWebchartStatus());
         clone.setDebugStatus(this.getDebugStatus());
+        clone.setResultFormat(this.getResultFormat());
         clone.setSlaveId(this.getSlaveId());
         clone.setFileIdList(this.getFileIdList());
         return clone;
     }
+
+    public Long getBaselineReportId() {
+        return baselineReportId;
+    }
+
+    public void setBaselineReportId(Long baselineReportId) {
+        this.baselineReportId = baselineReportId;
+    }
 }
@@ -0,0 +1,281 @@
+package io.renren.modules.test.entity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * 性能测试报告的汇总统计，每个请求名称一行，另有一行全部请求的合计。
+ * 生成测试报告时保存，测试报告列表及同一脚本多次压测的趋势直接查询，不需要再读取结果文件。
+ */
+public class StressTestReportStatsEntity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键id
+     */
+    private Long statId;
+
+    /**
+     * 测试报告ID
+     */
+    private Long reportId;
+
+    /**
+     * 请求名称
+     */
+    private String label;
+
+    /**
+     * 是否是全部请求的合计  0：单个请求  1：全部请求的合计
+     */
+    private Integer overall;
+
+    /**
+     * 请求数
+     */
+    private Long samples;
+
+    /**
+     * 失败的请求数
+     */
+    private Long errors;
+
+    /**
+     * 失败率（%）
+     */
+    private Double errorPct;
+
+    /**
+     * 每秒请求数
+     */
+    private Double tps;
+
+    /**
+     * 平均响应时间（ms）
+     */
+    private Double mean;
+
+    /**
+     * 最小、最大响应时间（ms）
+     */
+    private Long minElapsed;
+
+    private Long maxElapsed;
+
+    /**
+     * 百分位响应时间（ms）
+     */
+    private Long pct50;
+
+    private Long pct90;
+
+    private Long pct95;
+
+    private Long pct99;
+
+    /**
+     * 接收、发送的字节数
+     */
+    private Long receivedBytes;
+
+    private Long sentBytes;
+
+    /**
+     * 第一个请求开始、最后一个请求结束的时间（毫秒时间戳）
+     */
+    private Long startTime;
+
+    private Long endTime;
+
+    /**
+     * 统计的时间
+     */
+    private Date addTime;
+
+    /**
+     * 测试报告名称，查询趋势时关联测试报告
+     */
+    private String originName;
+
+    /**
+     * 测试报告的创建时间，查询趋势时关联测试报告
+     */
+    private Date reportTime;
+
+    public Long getStatId() {
+        return statId;
+    }
+
+    public void setStatId(Long statId) {
+        this.statId = statId;
+    }
+
+    public Long getReportId() {
+        return reportId;
+    }
+
+    public void setReportId(Long reportId) {
+        this.reportId = reportId;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public Integer getOverall() {
+        return overall;
+    }
+
+    public void setOverall(Integer overall) {
+        this.overall = overall;
+    }
+
+    public Long getSamples() {
+        return samples;
+    }
+
+    public void setSamples(Long samples) {
+        this.samples = samples;
+    }
+
+    public Long getErrors() {
+        return errors;
+    }
+
+    public void setErrors(Long errors) {
+        this.errors = errors;
+    }
+
+    public Double getErrorPct() {
+        return errorPct;
+    }
+
+    public void setErrorPct(Double errorPct) {
+        this.errorPct = errorPct;
+    }
+
+    public Double getTps() {
+        return tps;
+    }
+
+    public void setTps(Double tps) {
+        this.tps = tps;
+    }
+
+    public Double getMean() {
+        return mean;
+    }
+
+    public void setMean(Double mean) {
+        this.mean = mean;
+    }
+
+    public Long getMinElapsed() {
+        return minElapsed;
+    }
+
+    public void setMinElapsed(Long minElapsed) {
+        this.minElapsed = minElapsed;
+    }
+
+    public Long getMaxElapsed() {
+        return maxElapsed;
+    }
+
+    public void setMaxElapsed(Long maxElapsed) {
+        this.maxElapsed = maxElapsed;
+    }
+
+    public Long getPct50() {
+        return pct50;
+    }
+
+    public void setPct50(Long pct50) {
+        this.pct50 = pct50;
+    }
+
+    public Long getPct90() {
+        return pct90;
+    }
+
+    public void setPct90(Long pct90) {
+        this.pct90 = pct90;
+    }
+
+    public Long getPct95() {
+        return pct95;
+    }
+
+    public void setPct95(Long pct95) {
+        this.pct95 = pct95;
+    }
+
+    public Long getPct99() {
+        return pct99;
+    }
+
+    public void setPct99(Long pct99) {
+        this.pct99 = pct99;
+    }
+
+    public Long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public void setReceivedBytes(Long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    public Long getSentBytes() {
+        return sentBytes;
+    }
+
+    public void setSentBytes(Long sentBytes) {
+        this.sentBytes = sentBytes;
+    }
+
+    public Long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Long startTime) {
+        this.startTime = startTime;
+    }
+
+    public Long getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Long endTime) {
+        this.endTime = endTime;
+    }
+
+    public Date getAddTime() {
+        return addTime;
+    }
+
+    public void setAddTime(Date addTime) {
+        this.addTime = addTime;
+    }
+
+    public String getOriginName() {
+        return originName;
+    }
+
+    public void setOriginName(String originName) {
+        this.originName = originName;
+    }
+
+    public Date getReportTime() {
+        return reportTime;
+    }
+
+    public void setReportTime(Date reportTime) {
+        this.reportTime = reportTime;
+    }
+}
@@ -52,6 +52,21 @@ public class StressTestReportsEntity implements Serializable {
      */
     private Integer status;
 
+    /**
+     * 测试报告缓存  0：重新生成  1：结果文件及配置没有变化，使用已经生成的测试报告
+     */
+    private Integer reportCache;
+
+    /**
+     * 生成测试报告时已经读取的结果文件大小，和fileSize一起显示生成进度
+     */
+    private Long parsedSize;
+
+    /**
+     * 和基线对比的结果  0：没有性能回归  1：有性能回归  null：没有对比过
+     */
+    private Integer regression;
+
     /**
      * 描述
      */
@@ -82,6 +97,23 @@ public class StressTestReportsEntity implements Serializable {
      */
     private File file;
 
+    /**
+     * 全部请求合计的每秒请求数、平均及95%响应时间（ms）、失败率（%），
+     * 查询列表时关联汇总统计表，没有生成过测试报告时为null
+     */
+    private Double tps;
+
+    private Double mean;
+
+    private Long pct95;
+
+    private Double errorPct;
+
+    /**
+     * 所属脚本的基线测试报告，查询列表时关联脚本文件表
+     */
+    private Long baselineReportId;
+
     public Long getReportId() {
         return reportId;
     }
@@ -147,6 +179,22 @@ public class StressTestReportsEntity implements Serializable {
         this.status = status;
     }
 
+    public Integer getReportCache() {
+        return reportCache;
+    }
+
+    public void setReportCache(Integer reportCache) {
+        this.reportCache = reportCache;
+    }
+
+    public Long getParsedSize() {
+        return parsedSize;
+    }
+
+    public void setParsedSize(Long parsedSize) {
+        this.parsedSize = parsedSize;
+    }
+
     public File getFile() {
         return file;
     }
@@ -186,4 +234,52 @@ public class StressTestReportsEntity implements Serializable {
     public void setRemark(String remark) {
         this.remark = remark;
     }
+
+    public Double getTps() {
+        return tps;
+    }
+
+    public void setTps(Double tps) {
+        this.tps = tps;
+    }
+
+    public Double getMean() {
+        return mean;
+    }
+
+    public void setMean(Double mean) {
+        this.mean = mean;
+    }
+
+    public Long getPct95() {
+        return pct95;
+    }
+
+    public void setPct95(Long pct95) {
+        this.pct95 = pct95;
+    }
+
+    public Double getErrorPct() {
+        return errorPct;
+    }
+
+    public void setErrorPct(Double errorPct) {
+        this.errorPct = errorPct;
+    }
+
+    public Integer getRegression() {
+        return regression;
+    }
+
+    public void setRegression(Integer regression) {
+        this.regression = regression;
+    }
+
+    public Long getBaselineReportId() {
+        return baselineReportId;
+    }
+
+    public void setBaselineReportId(Long baselineReportId) {
+        this.baselineReportId = baselineReportId;
+    }
 }
@@ -1,6 +1,7 @@
 package io.renren.modules.test.handler;
 
 import io.renren.modules.test.entity.StressTestReportsEntity;
+import io.renren.modules.test.jmeter.report.ReportStamp;
 import io.renren.modules.test.service.StressTestReportsService;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.commons.exec.ExecuteException;
@@ -18,12 +19,20 @@ public class ReportCreateResultHandler extends FileResultHandler {
 
     private StressTestReportsService stressTestReportsService;
 
+    // 生成成功后保存的生成标记
+    private ReportStamp reportStamp;
+
+    private String reportPathDir;
+
     public ReportCreateResultHandler(StressTestReportsEntity stressTestReports,
                                      StressTestReportsService stressTestReportsService,
-                                     ByteArrayOutputStream outputStream, ByteArrayOutputStream errorStream) {
+                                     ByteArrayOutputStream outputStream, ByteArrayOutputStream errorStream,
+                                     ReportStamp reportStamp, String reportPathDir) {
         super(outputStream, errorStream);
         this.stressTestReports = stressTestReports;
         this.stressTestReportsService = stressTestReportsService;
+        this.reportStamp = reportStamp;
+        this.reportPathDir = reportPathDir;
     }
 
     /**
@@ -36,6 +45,8 @@ public class ReportCreateResultHandler extends FileResultHandler {
     public void onProcessComplete(final int exitValue) {
         stressTestReports.setStatus(StressTestUtils.RUN_SUCCESS);
         stressTestReportsService.update(stressTestReports);
+        // 命令行成功但是没有生成测试报告时，标记检查不到index.html，不会被当作缓存使用。
+        stressTestReportsService.saveReportStamp(reportStamp, reportPathDir);
         super.onProcessComplete(exitValue);
         //保存状态，执行完毕
     }
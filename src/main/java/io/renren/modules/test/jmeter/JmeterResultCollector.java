@@ -1,15 +1,19 @@
 package io.renren.modules.test.jmeter;
 
 import io.renren.modules.test.entity.StressTestFileEntity;
-import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
+import io.renren.modules.test.jmeter.ingest.SampleIngestPipeline;
+import io.renren.modules.test.jmeter.report.RollingReportGenerator;
+import io.renren.modules.test.jmeter.writer.ResultFileWriter;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.jmeter.reporters.ResultCollector;
 import org.apache.jmeter.samplers.SampleEvent;
 import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 /**
  * Jmeter执行程序的结果收集类，Jmeter每次执行完都会调用到这里。
@@ -20,17 +24,41 @@ public class JmeterResultCollector extends ResultCollector {
 
     protected static final long serialVersionUID = 240L;
 
+    private static final Logger logger = LoggerFactory.getLogger(JmeterResultCollector.class);
+
+    /**
+     * 本次运行的脚本文件及其测试报告、前端监控的开关，保存为TestElement的属性。
+     * 分布式压测时RMI回调的是克隆出来的对象（本地stressTestFile为null），属性会随着克隆保留下来，
+     * 以此区分同时运行的多个脚本，每个脚本的结果进入自己的统计和结果文件。
+     */
+    private static final String FILE_ID = "JmeterResultCollector.fileId";
+    private static final String NEED_REPORT = "JmeterResultCollector.needReport";
+    private static final String NEED_CHART = "JmeterResultCollector.needChart";
+    private static final String DISTRIBUTED = "JmeterResultCollector.distributed";
+
     /**
-     * 分布式压测时脚本文件共用同一个标识位来标识是否需要测试结果文件或者前端监控。
-     * 所以如果多个脚本文件同时压测这些标识会出现问题。
-     * 因为RMI回调时本地stressTestFile为null。
+     * 测试结果文件路径及是否是二进制格式，设置后测试结果不再写入父类的结果文件(filename为空)。
      */
-    public static final String SLAVE_NEED_REPORT = "slave_need_report";
-    public static final String SLAVE_NEED_CHART = "slave_need_chart";
+    private static final String RESULT_FILENAME = "JmeterResultCollector.resultFilename";
+    private static final String BINARY = "JmeterResultCollector.binary";
 
     private StressTestFileEntity stressTestFile;
 
-    private Map<String, LocalSamplingStatCalculator> samplingStatCalculatorMap;
+    /**
+     * 本次运行的配置，开始时解析一次，之后每个请求结果只读取这个不可变对象。
+     * 克隆时直接共用，克隆对象不需要再查找。
+     */
+    private transient volatile RunConfig runConfig;
+
+    /**
+     * 测试结果文件的写入对象，testStarted时打开。
+     */
+    private transient volatile ResultFileWriter resultWriter;
+
+    /**
+     * 停止脚本时等待缓冲中的结果处理完的最长时间。
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 60 * 1000L;
 
     /**
      * 为分布式反射使用
@@ -39,52 +67,194 @@ public class JmeterResultCollector extends ResultCollector {
     }
 
     public JmeterResultCollector(StressTestFileEntity stressTestFile) {
-        samplingStatCalculatorMap = new HashMap<>();
         this.stressTestFile = stressTestFile;
-        if (StringUtils.isNotEmpty(stressTestFile.getSlaveStr())) {//分布式压测
-            StressTestUtils.jMeterStatuses.put(SLAVE_NEED_REPORT, stressTestFile.getReportStatus().toString());
-            StressTestUtils.jMeterStatuses.put(SLAVE_NEED_CHART, stressTestFile.getWebchartStatus().toString());
-            //对于分布式，不再按照脚本文件来区分前端监控，分布式压测不支持master同时压测多个脚本文件的前端区分监控。
-            StressTestUtils.samplingStatCalculator4File.put(0L, samplingStatCalculatorMap);
-        } else {
-            StressTestUtils.samplingStatCalculator4File.put(stressTestFile.getFileId(), samplingStatCalculatorMap);
+        setProperty(FILE_ID, stressTestFile.getFileId());
+        setProperty(NEED_REPORT, StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus()));
+        setProperty(NEED_CHART, StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus()));
+        setProperty(DISTRIBUTED, StringUtils.isNotEmpty(stressTestFile.getSlaveStr()));
+
+        // 分布式和单机一样，都按照脚本文件来区分前端监控。
+        StressTestUtils.samplingStatCalculator4File.put(stressTestFile.getFileId(), new LabelStatTable());
+        SampleIngestPipeline.start(new SampleIngestPipeline(stressTestFile.getFileId(),
+                StressTestUtils.getIngestBufferSize(), StressTestUtils.getIngestFullPolicy()));
+        runConfig = resolveRunConfig();
+    }
+
+    /**
+     * samplingStatCalculator4File及异步处理管道的key，即脚本文件的fileId
+     */
+    public Long getRunKey() {
+        return getPropertyAsLong(FILE_ID);
+    }
+
+    /**
+     * 测试结果使用批量写入的ResultFileWriter保存，替代父类每行一次加锁写入的PrintWriter。
+     * 调试模式的xml格式仍然使用父类的setFilename。
+     *
+     * @param binary 是否保存为二进制列式格式，否则为csv格式
+     */
+    public void setResultFile(String resultFilename, boolean binary) {
+        setProperty(RESULT_FILENAME, resultFilename);
+        setProperty(BINARY, binary);
+        runConfig = resolveRunConfig();
+    }
+
+    public String getResultFilename() {
+        return getPropertyAsString(RESULT_FILENAME);
+    }
+
+    private RunConfig getRunConfig() {
+        RunConfig config = runConfig;
+        if (config == null) {
+            config = resolveRunConfig();
+            runConfig = config;
         }
+        return config;
+    }
+
+    /**
+     * 根据属性中的fileId找到本次运行的统计和异步处理管道。
+     */
+    private RunConfig resolveRunConfig() {
+        Long runKey = getRunKey();
+        return new RunConfig(getPropertyAsBoolean(NEED_REPORT), getPropertyAsBoolean(NEED_CHART),
+                getPropertyAsBoolean(DISTRIBUTED), StringUtils.trimToNull(getResultFilename()), getPropertyAsBoolean(BINARY),
+                StressTestUtils.samplingStatCalculator4File.getIfPresent(runKey), SampleIngestPipeline.get(runKey));
+    }
+
+    /**
+     * 分布式时每个slave节点都对应一个克隆对象，克隆对象和原对象是同一次运行，直接共用配置。
+     */
+    @Override
+    public Object clone() {
+        JmeterResultCollector clone = (JmeterResultCollector) super.clone();
+        clone.runConfig = runConfig;
+        clone.resultWriter = resultWriter;
+        return clone;
     }
 
     /**
      * 每一次jmeter的请求结束之后都会走到这里，
      * 包括每个用例文件中每个请求。
      * 再乘以各个分布式节点的请求，所以请求量预计会比较大。
+     * 这里只读取本次运行的配置，再放到异步处理的缓冲中，写文件和计算都在消费线程中。
      *
      * @param sampleEvent 监听的事件
      */
     @Override
     public void sampleOccurred(SampleEvent sampleEvent) {
-        if (stressTestFile != null && StringUtils.isEmpty(stressTestFile.getSlaveStr())){ //单节点压测
-            // 使用父类默认的保存csv/xml结果的方法。未来可能会优化，保存到性能更高的地方。
-            // csv最终的实现是来一个结果，使用PrintWriter写一行(有锁)，保证时序性。
-            // 本质是将信息保存到操作系统的文件内存里，默认是不实时刷新操作系统的文件buffer（Jmeter源码写的）。
-            // 保证时序性+性能交给操作系统，性能应该还OK。毕竟造成的压力和实时锁相比不是一个数量级的。
-            if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())) {
-                super.sampleOccurred(sampleEvent);
-            }
+        RunConfig config = getRunConfig();
+        if (!config.report && !config.chart) {
+            return;
+        }
 
-            if (StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
+        SampleIngestPipeline pipeline = config.pipeline;
+        if (pipeline == null || !pipeline.publish(this, sampleEvent, config.report, config.chart)) {
+            // 脚本已经停止，消费线程不再写入，测试报告的数据在当前线程写入。
+            if (config.report) {
+                writeReport(sampleEvent);
+            }
+            if (config.chart && pipeline == null) {
                 addSample(sampleEvent);
             }
-        } else {//分布式压测
-            if (StressTestUtils.NEED_REPORT.toString().
-                    equals(StressTestUtils.jMeterStatuses.getIfPresent(SLAVE_NEED_REPORT))) {
-                super.sampleOccurred(sampleEvent);
+        }
+    }
+
+    /**
+     * 异步处理管道的消费线程调用，写结果文件及前端监控的计算。
+     */
+    public void consumeSample(SampleEvent sampleEvent, boolean report, boolean chart) {
+        if (report) {
+            writeReport(sampleEvent);
+        }
+        if (chart) {
+            addSample(sampleEvent);
+        }
+    }
+
+    /**
+     * 写入测试结果文件。
+     * 结果先进入ResultFileWriter的缓冲，攒够一批才写入文件，只有消费线程在写，保证时序性。
+     * 只保存成功/失败的过滤和父类一样，由ResultFileWriter判断。
+     * 调试模式(xml)使用父类默认的方法，每个结果使用PrintWriter写一次(有锁)。
+     */
+    private void writeReport(SampleEvent sampleEvent) {
+        String resultFilename = getRunConfig().resultFilename;
+        if (resultFilename == null) {
+            super.sampleOccurred(sampleEvent);
+            return;
+        }
+        ResultFileWriter writer = resultWriter;
+        if (writer == null) {
+            // RMI回调的克隆对象可能没有经过testStarted
+            writer = ResultFileWriter.get(resultFilename);
+            resultWriter = writer;
+        }
+        if (writer != null) {
+            writer.write(sampleEvent);
+        }
+    }
+
+    @Override
+    public void testStarted(String host) {
+        super.testStarted(host);
+        RunConfig config = getRunConfig();
+        if (config.resultFilename != null) {
+            try {
+                resultWriter = ResultFileWriter.open(config.resultFilename, config.binary, getSaveConfig(),
+                        StressTestUtils.isResultFileCompress(), StressTestUtils.getResultFileRotateBytes(),
+                        StressTestUtils.getResultFileRotateMillis(), isErrorLogging(), isSuccessOnlyLogging());
+            } catch (IOException e) {
+                logger.error("打开测试结果文件出错！" + config.resultFilename, e);
+            }
+            // 压测过程中定时刷新的测试报告，和压测结束后生成的测试报告在同一个目录。
+            long rollingMillis = StressTestUtils.getRollingReportMillis();
+            if (rollingMillis > 0 && !config.binary && !StressTestUtils.isResultFileCompress()) {
+                String reportPathDir = config.resultFilename.substring(0, config.resultFilename.lastIndexOf("."));
+                RollingReportGenerator.start(config.resultFilename, reportPathDir, rollingMillis,
+                        getSaveConfig().getDelimiter().charAt(0));
             }
-            if (StressTestUtils.NEED_WEB_CHART.toString().
-                    equals(StressTestUtils.jMeterStatuses.getIfPresent(SLAVE_NEED_CHART))) {
+        }
+    }
 
-                samplingStatCalculatorMap = StressTestUtils.samplingStatCalculator4File.getIfPresent(0L);
-                // 全部停止脚本后，samplingStatCalculator4File整个会被清空。
-                addSample(sampleEvent);
+    /**
+     * 父类中最后一个结束的会关闭结果文件，关闭之前先把缓冲中的结果写完。
+     */
+    @Override
+    public void testEnded(String host) {
+        SampleIngestPipeline pipeline = getRunConfig().pipeline;
+        if (pipeline != null) {
+            pipeline.drain(DRAIN_TIMEOUT_MILLIS);
+        }
+        String resultFilename = getRunConfig().resultFilename;
+        if (resultFilename != null) {
+            ResultFileWriter.release(resultFilename);
+            // 最后一个释放的关闭了结果文件，滚动测试报告也停止。
+            if (ResultFileWriter.get(resultFilename) == null) {
+                RollingReportGenerator.stop(resultFilename);
             }
         }
+        super.testEnded(host);
+    }
+
+    /**
+     * 先把异步处理缓冲中的结果处理完，再把写入缓冲写入文件并同步到磁盘。
+     * 返回之后结果文件中包含了目前为止的全部结果，可以用来生成测试报告、统计文件大小。
+     */
+    @Override
+    public void flushFile() {
+        RunConfig config = getRunConfig();
+        if (config.pipeline != null) {
+            config.pipeline.drain(DRAIN_TIMEOUT_MILLIS);
+        }
+        super.flushFile();
+        ResultFileWriter writer = resultWriter;
+        if (writer == null && config.resultFilename != null) {
+            writer = ResultFileWriter.get(config.resultFilename);
+        }
+        if (writer != null) {
+            writer.sync();
+        }
     }
 
     /**
@@ -96,15 +266,54 @@ public class JmeterResultCollector extends ResultCollector {
         SampleResult sampleResult = sampleEvent.getResult();
         String label = sampleResult.getSampleLabel();
 
-        // 全部停止脚本后，samplingStatCalculator4File整个会被清空。
-        if (samplingStatCalculatorMap != null && StringUtils.isNotBlank(label)) {
-            if (samplingStatCalculatorMap.get(label) == null) {
-                samplingStatCalculatorMap.put(label, new LocalSamplingStatCalculator(label));
+        RunConfig config = getRunConfig();
+        LabelStatTable labelStatTable = config.labelStatTable;
+        if (labelStatTable != null && StringUtils.isNotBlank(label)) {
+            // 只做无锁累加，派生数据在前端读取时才计算。
+            // 分布式时RMI回调的事件带有slave节点的hostname，只按节点累加，整体数据读取时由各节点合并。
+            String hostname = sampleEvent.getHostname();
+            if (config.distributed && StringUtils.isNotBlank(hostname)) {
+                labelStatTable.addHostSample(hostname, label, sampleResult);
+            } else {
+                labelStatTable.getOrCreate(label).addSample(sampleResult);
             }
-            LocalSamplingStatCalculator samplingStatCalculator = samplingStatCalculatorMap.get(label);
+        }
+    }
+
+    /**
+     * 一次运行中不会变化的配置。
+     */
+    private static final class RunConfig {
+
+        private final boolean report;
+
+        private final boolean chart;
+
+        private final boolean distributed;
+
+        /**
+         * ResultFileWriter写入的测试结果文件路径，为null时使用父类的结果文件。
+         */
+        private final String resultFilename;
+
+        private final boolean binary;
+
+        /**
+         * 全部停止脚本后，samplingStatCalculator4File整个会被清空，解析时可能为null。
+         */
+        private final LabelStatTable labelStatTable;
+
+        private final SampleIngestPipeline pipeline;
 
-            // 这个计算的过程会消耗CPU，一切为了前端绘图。
-            samplingStatCalculator.addSample(sampleResult);
+        private RunConfig(boolean report, boolean chart, boolean distributed, String resultFilename,
+                          boolean binary, LabelStatTable labelStatTable, SampleIngestPipeline pipeline) {
+            this.report = report;
+            this.chart = chart;
+            this.distributed = distributed;
+            this.resultFilename = resultFilename;
+            this.binary = binary;
+            this.labelStatTable = labelStatTable;
+            this.pipeline = pipeline;
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,8 @@
 package io.renren.modules.test.jmeter;
 
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
 import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+import io.renren.modules.test.jmeter.ingest.SampleIngestPipeline;
 import io.renren.modules.test.utils.StressTestUtils;
 
 import java.util.HashMap;
@@ -22,6 +24,8 @@ public class JmeterStatEntity {
      */
     private Map<String, LocalSamplingStatCalculator> statMap;
 
+    private LabelStatTable statTable;
+
     /**
      * 响应时间相关的监控数据。
      */
@@ -78,16 +82,17 @@ public class JmeterStatEntity {
     private JmeterRunEntity jmeterRunEntity;
 
     /**
-     * 对于分布式场景，取到的statMap是总的，即包含了所有脚本执行的label的数据。
+     * 压测结果异步处理的状态：缓冲容量、积压数量、丢弃的监控数据数量、消费延迟。
      */
-    public JmeterStatEntity(Long fileId, Long fileIdZero) {
-        if (fileIdZero != null) {// 分布式情况下
-            this.fileId = fileIdZero;
-            statMap = StressTestUtils.samplingStatCalculator4File.getIfPresent(fileIdZero);
-        } else {// 单机模式下
-            this.fileId = fileId;
-            statMap = StressTestUtils.samplingStatCalculator4File.getIfPresent(fileId);
-        }
+    private Map<String, Long> ingestMetricsMap = new HashMap<>();
+
+    /**
+     * 分布式和单机一样，取到的都是这个脚本文件自己的数据。
+     */
+    public JmeterStatEntity(Long fileId) {
+        this.fileId = fileId;
+        statTable = StressTestUtils.samplingStatCalculator4File.getIfPresent(fileId);
+        statMap = statTable == null ? null : statTable.asMap();
 
         // StressTestUtils.jMeterEntity4file 中保存的都是真实的脚本文件信息
         jmeterRunEntity = StressTestUtils.jMeterEntity4file.get(fileId);
@@ -99,16 +104,31 @@ public class JmeterStatEntity {
         }
     }
 
+    /**
+     * 给JmeterStatSnapshot使用，不作为前端返回的字段。
+     */
+    LabelStatTable statTable() {
+        return statTable;
+    }
+
     public Map<String, String> getResponseTimesMap() {
         if (statMap != null) {
             statMap.forEach((k, v) -> {
                 /**
-                 * 平均响应时间算法是当前请求总共花费的时间/响应了多少请求。
-                 * 这个时间是正确的。
+                 * 平均响应时间是最近几秒内请求总共花费的时间/响应了多少请求。
+                 * 累计的平均值在压测后期几乎不再变化，不能反映响应时间的突变。
                  */
-                responseTimesMap.put(k + "_Avg(ms)", String.format("%.2f", v.getMean()));
-//                responseTimesMap.put(k + "_Max(ms)", String.valueOf(v.getMax()));
-//                responseTimesMap.put(k + "_Min(ms)", String.valueOf(v.getMin()));
+                responseTimesMap.put(k + "_Avg(ms)",
+                        String.format("%.2f", LocalSamplingStatCalculator.getIntervalMean(v.getIntervalSum())));
+                /**
+                 * 百分位响应时间来自固定内存的直方图，相对误差不超过1%。
+                 */
+                long[] percentiles = v.getPercentiles(50, 90, 95, 99);
+                responseTimesMap.put(k + "_P50(ms)", String.valueOf(percentiles[0]));
+                responseTimesMap.put(k + "_P90(ms)", String.valueOf(percentiles[1]));
+                responseTimesMap.put(k + "_P95(ms)", String.valueOf(percentiles[2]));
+                responseTimesMap.put(k + "_P99(ms)", String.valueOf(percentiles[3]));
+                responseTimesMap.put(k + "_Max(ms)", String.valueOf(v.getMax()));
             });
         }
         return responseTimesMap;
@@ -121,20 +141,16 @@ public class JmeterStatEntity {
     public Map<String, String> getThroughputMap() {
         if (statMap != null) {
             statMap.forEach((k, v) -> {
-                throughputMap.put(k + "_Tps(OK)", String.format("%.2f", v.getRate()));
-//                throughputMap.put(k + "_Tps(OK)", String.valueOf(v.getCountPerSecond()));
-
-                double howLongRunning = 0.0D;
-                double errorTps = 0.0D;
-                if (Double.compare(v.getRate(), 0.0D) == 1) {//double 不等于0
-                    howLongRunning = (1000.0 * v.getCount()) / v.getRate();
-                    errorTps = ((double) v.getErrorCount() / howLongRunning) * 1000.0;
-                }
+                // 最近几秒的真实TPS，而不是总请求数/总时长。
+                long[] intervalSum = v.getIntervalSum();
+                throughputMap.put(k + "_Tps(OK)",
+                        String.format("%.2f", LocalSamplingStatCalculator.getIntervalSuccessRate(intervalSum)));
+
+                double errorTps = LocalSamplingStatCalculator.getIntervalErrorRate(intervalSum);
                 // 对错误的Tps做大于零的过滤
                 if (Double.compare(errorTps, 0.0D) == 1) {
                     throughputMap.put(k + "_Tps(KO)", String.format("%.2f", errorTps));
                 }
-//                throughputMap.put(k + "_Tps(KO)", String.valueOf(v.getErrorCountPerSecond()));
             });
         }
         return throughputMap;
@@ -148,7 +164,8 @@ public class JmeterStatEntity {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
                 LocalSamplingStatCalculator calculator = statMap.get(key);
-                networkSentMap.put(key + "(Sent)", String.format("%.2f", calculator.getSentKBPerSecond()));
+                networkSentMap.put(key + "(Sent)",
+                        String.format("%.2f", LocalSamplingStatCalculator.getIntervalSentKBPerSecond(calculator.getIntervalSum())));
             }
         }
         return networkSentMap;
@@ -162,7 +179,8 @@ public class JmeterStatEntity {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
                 LocalSamplingStatCalculator calculator = statMap.get(key);
-                networkReceiveMap.put(key + "(Received)", String.format("%.2f", calculator.getKBPerSecond()));
+                networkReceiveMap.put(key + "(Received)",
+                        String.format("%.2f", LocalSamplingStatCalculator.getIntervalKBPerSecond(calculator.getIntervalSum())));
             }
         }
         return networkReceiveMap;
@@ -264,6 +282,21 @@ public class JmeterStatEntity {
         this.totalCountsMap = totalCountsMap;
     }
 
+    public Map<String, Long> getIngestMetricsMap() {
+        SampleIngestPipeline pipeline = SampleIngestPipeline.get(fileId);
+        if (pipeline != null) {
+            ingestMetricsMap.put("capacity", (long) pipeline.getCapacity());
+            ingestMetricsMap.put("depth", pipeline.getDepth());
+            ingestMetricsMap.put("dropped", pipeline.getDropped());
+            ingestMetricsMap.put("lagMillis", pipeline.getLagMillis());
+        }
+        return ingestMetricsMap;
+    }
+
+    public void setIngestMetricsMap(Map<String, Long> ingestMetricsMap) {
+        this.ingestMetricsMap = ingestMetricsMap;
+    }
+
     public Integer getRunStatus() {
         return runStatus;
     }
@@ -0,0 +1,183 @@
+package io.renren.modules.test.jmeter;
+
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
+import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+
+import java.util.*;
+
+/**
+ * 一个脚本文件的实时监控数据快照，同一个推送/轮询周期内所有查看者共用。
+ * <p>
+ * 返回给前端的是列式的数值：label字典 + 每个指标一列double数组，格式化交给前端。
+ * label在字典中的下标就是LabelStatTable中的id，只增不减，每次刷新会记录每个label最后一次变化的序号，
+ * 前端带上自己已有的序号(since)时，只返回新增的label和数值有变化的行。
+ * 非线程安全，由调用方保证同一时间只有一个线程刷新。
+ */
+public class JmeterStatSnapshot {
+
+    /**
+     * 每一列的含义，数值的顺序和这里一致。
+     */
+    public static final String[] COLUMNS = {"count", "errorCount", "tps", "errorTps", "avg",
+            "p50", "p90", "p95", "p99", "max", "receivedKB", "sentKB", "errorPercent"};
+
+    private final Long fileId;
+
+    /**
+     * 当前的序号，每刷新一次加一。
+     */
+    private long seq;
+
+    /**
+     * 序号小于这个值的客户端需要全量数据（例如脚本重新执行了，字典被重建）。
+     */
+    private long resetSeq;
+
+    private LabelStatTable statTable;
+
+    private final List<String> labels = new ArrayList<>();
+
+    private final List<double[]> rows = new ArrayList<>();
+
+    private final List<Long> changedSeqs = new ArrayList<>();
+
+    private final List<Long> addedSeqs = new ArrayList<>();
+
+    private Integer runStatus;
+
+    private String howLongRunningFormat;
+
+    private Map<String, String> threadCounts;
+
+    private Map<String, Long> ingestMetrics;
+
+    private JmeterStatEntity statEntity;
+
+    /**
+     * 分布式压测时每个slave节点的汇总，key是hostname。
+     */
+    private Map<String, double[]> slaves = Collections.emptyMap();
+
+    public JmeterStatSnapshot(Long fileId) {
+        this.fileId = fileId;
+    }
+
+    /**
+     * 从最新的监控数据刷新快照。
+     */
+    public void refresh(JmeterStatEntity jmeterStatEntity) {
+        seq++;
+        LabelStatTable currentStatTable = jmeterStatEntity.statTable();
+        if (currentStatTable != statTable) {
+            // 脚本重新执行，统计对象整个换掉了，字典重新开始。
+            statTable = currentStatTable;
+            labels.clear();
+            rows.clear();
+            changedSeqs.clear();
+            addedSeqs.clear();
+            resetSeq = seq;
+        }
+        statEntity = jmeterStatEntity;
+        runStatus = jmeterStatEntity.getRunStatus();
+        howLongRunningFormat = jmeterStatEntity.getHowLongRunningFormat();
+        threadCounts = jmeterStatEntity.getThreadCountsMap();
+        ingestMetrics = jmeterStatEntity.getIngestMetricsMap();
+        if (statTable == null) {
+            slaves = Collections.emptyMap();
+            return;
+        }
+        slaves = SlaveStatSummary.toLiveRows(statTable);
+        LocalSamplingStatCalculator[] calculators = statTable.calculators();
+        for (int id = 0; id < calculators.length; id++) {
+            double[] row = toRow(calculators[id]);
+            if (id >= labels.size()) {
+                labels.add(calculators[id].getLabel());
+                rows.add(row);
+                changedSeqs.add(seq);
+                addedSeqs.add(seq);
+            } else if (!Arrays.equals(rows.get(id), row)) {
+                rows.set(id, row);
+                changedSeqs.set(id, seq);
+            }
+        }
+    }
+
+    private static double[] toRow(LocalSamplingStatCalculator calculator) {
+        long[] intervalSum = calculator.getIntervalSum();
+        long[] percentiles = calculator.getPercentiles(50, 90, 95, 99);
+        return new double[]{
+                calculator.getCount(),
+                calculator.getErrorCount(),
+                round(LocalSamplingStatCalculator.getIntervalSuccessRate(intervalSum)),
+                round(LocalSamplingStatCalculator.getIntervalErrorRate(intervalSum)),
+                round(LocalSamplingStatCalculator.getIntervalMean(intervalSum)),
+                percentiles[0],
+                percentiles[1],
+                percentiles[2],
+                percentiles[3],
+                calculator.getMax(),
+                round(LocalSamplingStatCalculator.getIntervalKBPerSecond(intervalSum)),
+                round(LocalSamplingStatCalculator.getIntervalSentKBPerSecond(intervalSum)),
+                round(calculator.getErrorPercentage())
+        };
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    /**
+     * 生成返回给前端的数据。
+     *
+     * @param since 前端已有数据的序号，为null或者已经过期时返回全量数据
+     */
+    public Map<String, Object> toPayload(Long since) {
+        boolean full = since == null || since < resetSeq || since > seq;
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("fileId", fileId);
+        payload.put("seq", seq);
+        payload.put("full", full);
+        payload.put("runStatus", runStatus);
+        payload.put("howLongRunningFormat", howLongRunningFormat);
+        payload.put("threadCounts", threadCounts);
+        payload.put("ingestMetrics", ingestMetrics);
+        payload.put("columns", COLUMNS);
+
+        int labelBase = labels.size();
+        List<Integer> rowIndexes = new ArrayList<>();
+        for (int i = 0; i < labels.size(); i++) {
+            if (full || addedSeqs.get(i) > since) {
+                labelBase = Math.min(labelBase, i);
+            }
+            if (full || changedSeqs.get(i) > since) {
+                rowIndexes.add(i);
+            }
+        }
+        double[][] values = new double[COLUMNS.length][rowIndexes.size()];
+        for (int r = 0; r < rowIndexes.size(); r++) {
+            double[] row = rows.get(rowIndexes.get(r));
+            for (int c = 0; c < COLUMNS.length; c++) {
+                values[c][r] = row[c];
+            }
+        }
+        payload.put("labelBase", labelBase);
+        payload.put("labels", labels.subList(labelBase, labels.size()).toArray(new String[0]));
+        payload.put("rows", rowIndexes);
+        payload.put("values", values);
+        // 节点数量不多，每次都返回全部。
+        payload.put("slaveColumns", SlaveStatSummary.COLUMNS);
+        payload.put("slaves", slaves);
+        return payload;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * 最近一次刷新时使用的监控数据对象，用于兼容原有的statInfo格式。
+     */
+    public JmeterStatEntity getStatEntity() {
+        return statEntity;
+    }
+}
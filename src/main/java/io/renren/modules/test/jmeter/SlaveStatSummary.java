@@ -0,0 +1,135 @@
+package io.renren.modules.test.jmeter;
+
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
+import io.renren.modules.test.jmeter.calculator.LatencyHistogram;
+import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 分布式压测时每个slave节点的汇总数据。
+ * 前端监控用来找出压力机本身有问题（TPS上不去、响应慢、错误多）的节点，
+ * 脚本停止时再把每个节点每个label的最终数据保存成一个csv文件，和测试结果文件放在一起。
+ */
+public class SlaveStatSummary {
+
+    /**
+     * 前端监控中每个节点一行，每一列的含义，数值的顺序和这里一致。
+     */
+    public static final String[] COLUMNS = {"count", "errorCount", "tps", "errorTps", "avg",
+            "p90", "p99", "max", "errorPercent"};
+
+    /**
+     * 汇总文件的表头
+     */
+    private static final String CSV_HEADER = "hostname,label,samples,errors,errorPercent,avg,p90,p99,max,throughput";
+
+    /**
+     * 汇总文件中一个节点所有label合计的那一行的label
+     */
+    private static final String TOTAL_LABEL = "TOTAL";
+
+    /**
+     * 汇总文件的路径，和测试报告的目录同名。
+     */
+    public static File getSummaryFile(File csvFile) {
+        String csvPath = csvFile.getPath();
+        int index = csvPath.lastIndexOf(".");
+        return new File((index > 0 ? csvPath.substring(0, index) : csvPath) + "_slaves.csv");
+    }
+
+    /**
+     * 每个节点的实时数据，key是hostname，按hostname排序。
+     */
+    public static Map<String, double[]> toLiveRows(LabelStatTable statTable) {
+        Map<String, double[]> liveRows = new TreeMap<>();
+        if (statTable == null) {
+            return liveRows;
+        }
+        statTable.getHostTables().forEach((hostname, hostTable) -> {
+            long count = 0;
+            long errorCount = 0;
+            long max = 0;
+            long[] intervalSum = new long[5];
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (LocalSamplingStatCalculator calculator : hostTable.calculators()) {
+                count += calculator.getCount();
+                errorCount += calculator.getErrorCount();
+                max = Math.max(max, calculator.getMax());
+                long[] labelIntervalSum = calculator.getIntervalSum();
+                for (int i = 0; i < intervalSum.length; i++) {
+                    intervalSum[i] += labelIntervalSum[i];
+                }
+                histogram.add(calculator.getHistogram());
+            }
+            long[] percentiles = histogram.getValuesAtPercentiles(90, 99);
+            liveRows.put(hostname, new double[]{
+                    count,
+                    errorCount,
+                    round(LocalSamplingStatCalculator.getIntervalSuccessRate(intervalSum)),
+                    round(LocalSamplingStatCalculator.getIntervalErrorRate(intervalSum)),
+                    round(LocalSamplingStatCalculator.getIntervalMean(intervalSum)),
+                    percentiles[0],
+                    percentiles[1],
+                    max,
+                    count == 0 ? 0 : round(errorCount * 100.0 / count)
+            });
+        });
+        return liveRows;
+    }
+
+    /**
+     * 保存每个节点每个label的最终数据，以及每个节点的合计。
+     * 不是分布式压测（没有节点数据）时不生成文件。
+     */
+    public static void writeCsv(File summaryFile, LabelStatTable statTable) throws IOException {
+        if (statTable == null || statTable.getHostTables().isEmpty()) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(CSV_HEADER);
+        new TreeMap<>(statTable.getHostTables()).forEach((hostname, hostTable) -> {
+            long count = 0;
+            long errorCount = 0;
+            long elapsedSum = 0;
+            long max = 0;
+            double throughput = 0;
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (LocalSamplingStatCalculator calculator : hostTable.calculators()) {
+                lines.add(toCsvLine(hostname, calculator.getLabel(), calculator.getCount(), calculator.getErrorCount(),
+                        calculator.getMean(), calculator.getPercentiles(90, 99), calculator.getMax(), calculator.getRate()));
+                count += calculator.getCount();
+                errorCount += calculator.getErrorCount();
+                elapsedSum += Math.round(calculator.getMean() * calculator.getCount());
+                max = Math.max(max, calculator.getMax());
+                throughput += calculator.getRate();
+                histogram.add(calculator.getHistogram());
+            }
+            lines.add(toCsvLine(hostname, TOTAL_LABEL, count, errorCount, count == 0 ? 0 : elapsedSum / (double) count,
+                    histogram.getValuesAtPercentiles(90, 99), max, throughput));
+        });
+        FileUtils.writeLines(summaryFile, "UTF-8", lines);
+    }
+
+    private static String toCsvLine(String hostname, String label, long count, long errorCount,
+                                     double mean, long[] percentiles, long max, double throughput) {
+        return String.join(",", hostname, quote(label), String.valueOf(count), String.valueOf(errorCount),
+                String.format("%.2f%%", count == 0 ? 0 : errorCount * 100.0 / count), String.format("%.2f", mean),
+                String.valueOf(percentiles[0]), String.valueOf(percentiles[1]), String.valueOf(max),
+                String.format("%.2f", throughput));
+    }
+
+    private static String quote(String value) {
+        if (value.contains(",") || value.contains("\"")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,222 @@
+package io.renren.modules.test.jmeter.calculator;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个脚本运行期间所有label的统计对象表。
+ * <p>
+ * 每个label第一次出现时分配一个从0开始连续的id，并创建对应的统计对象，之后id不会变化。
+ * 已经存在的label的查找是无锁的（ConcurrentHashMap的get加一次数组读取），
+ * 只有新label注册时才加锁，并以写时复制的方式发布新的数组，读取方永远看到完整的数组。
+ * 替代原来多个RMI线程同时写入的HashMap。
+ * <p>
+ * 分布式压测时每个请求只记录到所在slave节点的统计表中（addHostSample），不再重复记录一份整体数据，
+ * 整体的统计在读取时由各个节点的数据合并得到，最多每DERIVE_INTERVAL_MILLIS合并一次。
+ * 合并用的统计对象每个label只创建一次，两组轮流清空后重新合并，不会每次合并都创建直方图等对象。
+ */
+public class LabelStatTable {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * 以id为下标的统计对象，只增不减，写时复制。
+     */
+    private volatile LocalSamplingStatCalculator[] calculators = new LocalSamplingStatCalculator[0];
+
+    /**
+     * 和原有Map格式兼容的只读视图，给前端监控数据使用。
+     */
+    private final ConcurrentHashMap<String, LocalSamplingStatCalculator> calculatorMap = new ConcurrentHashMap<>();
+
+    private final Map<String, LocalSamplingStatCalculator> mapView = Collections.unmodifiableMap(calculatorMap);
+
+    /**
+     * 分布式时按slave节点(hostname)分开的统计，key是hostname，只在分布式压测时才有数据。
+     */
+    private final ConcurrentHashMap<String, LabelStatTable> hostTables = new ConcurrentHashMap<>();
+
+    /**
+     * 由各个节点合并出的整体统计的缓存时间，前端每秒刷新一次，多个读取方共用一次合并的结果。
+     */
+    private static final long DERIVE_INTERVAL_MILLIS = 500L;
+
+    private volatile Derived derived;
+
+    /**
+     * 合并用的两组统计对象及对应的Map，下标即id，轮流使用：正在合并的一组不是当前发布的那组，
+     * 读取方拿到的统计对象至少DERIVE_INTERVAL_MILLIS之内不会被清空。只在hostTables的锁中访问。
+     */
+    private final LocalSamplingStatCalculator[][] mergeBuffers = {new LocalSamplingStatCalculator[0],
+            new LocalSamplingStatCalculator[0]};
+
+    private final List<Map<String, LocalSamplingStatCalculator>> mergeMaps = Arrays.asList(new HashMap<>(), new HashMap<>());
+
+    private int mergeIndex;
+
+    /**
+     * 获取label的id，不存在则注册。
+     */
+    public int idOf(String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id;
+        }
+        return register(label);
+    }
+
+    /**
+     * 获取label的统计对象，不存在则创建。
+     */
+    public LocalSamplingStatCalculator getOrCreate(String label) {
+        // 先取id再读数组，注册新label时数组会被替换。
+        int id = idOf(label);
+        return calculators[id];
+    }
+
+    private synchronized int register(String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id;
+        }
+        LocalSamplingStatCalculator[] current = calculators;
+        LocalSamplingStatCalculator[] grown = Arrays.copyOf(current, current.length + 1);
+        LocalSamplingStatCalculator calculator = new LocalSamplingStatCalculator(label);
+        grown[current.length] = calculator;
+        // 先发布数组，再发布id，拿到id的线程一定能在数组中找到统计对象。
+        calculators = grown;
+        calculatorMap.put(label, calculator);
+        ids.put(label, current.length);
+        return current.length;
+    }
+
+    /**
+     * 分布式压测时记录一个slave节点的请求，只记录到节点的统计表中，整体统计读取时再合并。
+     * 整体的label也在这里注册，保证整体的id和请求到达的顺序一致。
+     */
+    public void addHostSample(String hostname, String label, SampleResult res) {
+        idOf(label);
+        getHostTable(hostname).getOrCreate(label).addSample(res);
+    }
+
+    /**
+     * 按id获取统计对象，id必须是idOf返回的值。
+     */
+    public LocalSamplingStatCalculator get(int id) {
+        return calculators()[id];
+    }
+
+    /**
+     * 已经注册的label数量，id的范围是[0, size)。
+     */
+    public int size() {
+        return calculators.length;
+    }
+
+    /**
+     * 当前所有的统计对象，下标即id，返回的数组不要修改。
+     * 分布式压测时是由各个节点合并出的只读对象。
+     */
+    public LocalSamplingStatCalculator[] calculators() {
+        if (hostTables.isEmpty()) {
+            return calculators;
+        }
+        return derive().calculators;
+    }
+
+    public Map<String, LocalSamplingStatCalculator> asMap() {
+        if (hostTables.isEmpty()) {
+            return mapView;
+        }
+        return derive().mapView;
+    }
+
+    private Derived derive() {
+        Derived current = derived;
+        LocalSamplingStatCalculator[] own = calculators;
+        if (current != null && current.calculators.length == own.length
+                && System.currentTimeMillis() - current.time < DERIVE_INTERVAL_MILLIS) {
+            return current;
+        }
+        synchronized (hostTables) {
+            current = derived;
+            if (current != null && current.calculators.length == own.length
+                    && System.currentTimeMillis() - current.time < DERIVE_INTERVAL_MILLIS) {
+                return current;
+            }
+            mergeIndex = 1 - mergeIndex;
+            LocalSamplingStatCalculator[] merged = mergeBuffers[mergeIndex];
+            Map<String, LocalSamplingStatCalculator> mergedMap = mergeMaps.get(mergeIndex);
+            if (merged.length < own.length) {
+                // 只为新的label创建统计对象，已有的继续使用。
+                int oldLength = merged.length;
+                merged = Arrays.copyOf(merged, own.length);
+                for (int id = oldLength; id < own.length; id++) {
+                    merged[id] = new LocalSamplingStatCalculator(own[id].getLabel());
+                    mergedMap.put(own[id].getLabel(), merged[id]);
+                }
+                mergeBuffers[mergeIndex] = merged;
+            }
+            for (int id = 0; id < own.length; id++) {
+                LocalSamplingStatCalculator calculator = merged[id];
+                calculator.clear();
+                // 没有hostname的请求仍然记录在自身
+                calculator.add(own[id]);
+                for (LabelStatTable hostTable : hostTables.values()) {
+                    LocalSamplingStatCalculator hostCalculator = hostTable.find(calculator.getLabel());
+                    if (hostCalculator != null) {
+                        calculator.add(hostCalculator);
+                    }
+                }
+            }
+            current = new Derived(System.currentTimeMillis(), merged, Collections.unmodifiableMap(mergedMap));
+            derived = current;
+            return current;
+        }
+    }
+
+    /**
+     * 获取label的统计对象，不存在时返回null，不注册。
+     */
+    private LocalSamplingStatCalculator find(String label) {
+        Integer id = ids.get(label);
+        return id == null ? null : calculators[id];
+    }
+
+    /**
+     * 获取某个slave节点的统计表，不存在则创建。
+     */
+    public LabelStatTable getHostTable(String hostname) {
+        LabelStatTable hostTable = hostTables.get(hostname);
+        if (hostTable != null) {
+            return hostTable;
+        }
+        return hostTables.computeIfAbsent(hostname, k -> new LabelStatTable());
+    }
+
+    public Map<String, LabelStatTable> getHostTables() {
+        return Collections.unmodifiableMap(hostTables);
+    }
+
+    private static final class Derived {
+
+        private final long time;
+
+        private final LocalSamplingStatCalculator[] calculators;
+
+        private final Map<String, LocalSamplingStatCalculator> mapView;
+
+        private Derived(long time, LocalSamplingStatCalculator[] calculators,
+                        Map<String, LocalSamplingStatCalculator> mapView) {
+            this.time = time;
+            this.calculators = calculators;
+            this.mapView = mapView;
+        }
+    }
+}
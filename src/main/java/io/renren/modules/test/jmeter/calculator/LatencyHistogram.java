@@ -0,0 +1,174 @@
+package io.renren.modules.test.jmeter.calculator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的响应时间直方图（HDR思路的对数分桶），用于前端实时展示百分位响应时间。
+ * <p>
+ * 0~255ms每毫秒一个桶，精确记录；之后每翻一倍划分为128个子桶，相对误差不超过1/128（约0.8%）。
+ * 超过MAX_TRACKABLE_VALUE（约70分钟）的值按最大值记录。
+ * 桶的数量固定为2048个，与压测时长和响应时间的分布无关，24小时的稳定性测试内存也不会增长。
+ * 写入只是一次AtomicLongArray的累加，无锁。
+ */
+public class LatencyHistogram {
+
+    /**
+     * 子桶的位数，决定相对误差。
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT << 1;
+
+    /**
+     * 百分位响应时间的最大相对误差，比较两次压测的百分位时小于这个误差的差异没有意义。
+     */
+    public static final double RELATIVE_ERROR = 1.0 / SUB_BUCKET_HALF_COUNT;
+
+    /**
+     * 可以精确到桶的最大响应时间（毫秒），更大的值记在最后一个桶。
+     */
+    public static final long MAX_TRACKABLE_VALUE = (1L << 22) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * 记录一个响应时间（毫秒）
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketIndex(value));
+    }
+
+    /**
+     * 记录多个相同的响应时间。
+     */
+    public void record(long value, long count) {
+        if (count > 0) {
+            counts.addAndGet(bucketIndex(value), count);
+        }
+    }
+
+    /**
+     * 获取百分位的响应时间，percent取值在0~100之间。
+     * 读取时遍历各个桶，不影响写入，并发写入下是近似值。
+     *
+     * @return 百分位对应桶的上界，没有数据时返回0
+     */
+    public long getValueAtPercentile(double percent) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        double p = Math.min(Math.max(percent, 0.0D), 100.0D);
+        long target = Math.max(1L, (long) Math.ceil(p / 100.0D * total));
+        long accumulated = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += snapshot[i];
+            if (accumulated >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return highestEquivalentValue(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * 一次遍历获取多个百分位，percents需要从小到大排列。
+     */
+    public long[] getValuesAtPercentiles(double... percents) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] values = new long[percents.length];
+        if (total == 0L) {
+            return values;
+        }
+        int bucket = 0;
+        long accumulated = snapshot[0];
+        for (int j = 0; j < percents.length; j++) {
+            double p = Math.min(Math.max(percents[j], 0.0D), 100.0D);
+            long target = Math.max(1L, (long) Math.ceil(p / 100.0D * total));
+            while (accumulated < target && bucket < BUCKET_COUNT - 1) {
+                accumulated += snapshot[++bucket];
+            }
+            values[j] = highestEquivalentValue(bucket);
+        }
+        return values;
+    }
+
+    public long getTotalCount() {
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * 合并另一个直方图的数据，用于分布式或多个维度的汇总。
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c != 0L) {
+                counts.addAndGet(i, c);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0L);
+        }
+    }
+
+    /**
+     * 导出各个桶的计数，便于序列化。
+     */
+    public long[] toArray() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        // value >>> shift 落在 [128, 256) 之间
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT
+                + (int) ((value >>> shift) - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /**
+     * 桶内可以表示的最大值。
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
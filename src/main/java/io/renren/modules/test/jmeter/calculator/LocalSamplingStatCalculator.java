@@ -1,40 +1,71 @@
 package io.renren.modules.test.jmeter.calculator;
 
 import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.visualizers.Sample;
-import org.apache.jorphan.math.StatCalculatorLong;
+import org.apache.jmeter.samplers.StatisticalSampleResult;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by zyanycall@gmail.com on 2020/1/9 5:50 下午.
  * 目的是，干掉一些不必要的计算，同时主要是修改TPS的算法，原有Jmeter的算法对定位问题不理想，和测试报告中的也不一样。
  * <p>
+ * 写入路径无锁：所有计数都落在LongAdder/LongAccumulator的分段cell中，
+ * 多个压测线程同时写入同一个label时不再竞争同一把锁。
+ * 平均值、吞吐量、错误率等派生数据只在前端读取（JmeterStatEntity）时计算。
+ * <p>
  * Aggregate sample data container. Just instantiate a new instance of this
  * class, and then call {@link #addSample(SampleResult)} a few times, and pull
  * the stats out with whatever methods you prefer.
  */
 public class LocalSamplingStatCalculator {
-    private final StatCalculatorLong calculator = new StatCalculatorLong();
-
-//    private double maxThroughput;
 
-    private long firstTime;
+    /**
+     * 前端实时监控计算区间TPS、平均响应时间时使用的秒数。
+     */
+    public static final int INTERVAL_SECONDS = 5;
 
     private String label;
 
-    private volatile Sample currentSample;
+    /**
+     * 请求数，对于事务控制器等合并的结果，是其中包含的请求数。
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * 响应时间总和（毫秒），用于计算平均响应时间。
+     */
+    private final LongAdder elapsedSum = new LongAdder();
+
+    private final LongAdder errorCount = new LongAdder();
+
+    private final LongAdder totalBytes = new LongAdder();
+
+    private final LongAdder totalSentBytes = new LongAdder();
+
+    private final LongAccumulator minElapsed = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    private final LongAccumulator maxElapsed = new LongAccumulator(Math::max, Long.MIN_VALUE);
 
     /**
-     * 针对每一秒，存储一个成功请求数的集合。
-     * 使用google的缓存技术，把数据的清理交给缓存。
+     * 响应时间分布，固定内存，用于计算百分位响应时间。
      */
-//    private Cache<Long, Long> successCountMap;
+    private final LatencyHistogram histogram = new LatencyHistogram();
 
     /**
-     * 针对每一秒，存储一个错误请求数的集合。
-     * 使用google的缓存技术，把数据的清理交给缓存。
+     * 最近一段时间每一秒的数据，用于计算区间TPS。
      */
-//    private Cache<Long, Long> errorCountMap;
+    private final SecondBucketRing secondBucketRing = new SecondBucketRing();
 
+    /**
+     * 第一个请求的开始时间。
+     */
+    private final LongAccumulator firstTime = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+    /**
+     * 最后一个请求的结束时间。
+     */
+    private final LongAccumulator endTime = new LongAccumulator(Math::max, 0L);
 
     public LocalSamplingStatCalculator() { // Only for use by test code
         this("");
@@ -42,37 +73,82 @@ public class LocalSamplingStatCalculator {
 
     public LocalSamplingStatCalculator(String label) {
         this.label = label;
-        init();
     }
 
-    private void init() { // WARNING: called from ctor so must not be overridden (i.e. must be private or final)
-        firstTime = Long.MAX_VALUE;
-        calculator.clear();
-//        successCountMap = CacheBuilder.newBuilder()
-//                .maximumSize(50) // 设置缓存的最大容量
-//                .expireAfterAccess(30, TimeUnit.SECONDS) // 设置缓存在写入一分钟后失效
-//                .concurrencyLevel(10) // 设置并发级别为10
-////            .recordStats() // 开启缓存统计
-//                .build();
-//        errorCountMap = CacheBuilder.newBuilder()
-//                .maximumSize(50) // 设置缓存的最大容量
-//                .expireAfterAccess(30, TimeUnit.SECONDS) // 设置缓存在写入一分钟后失效
-//                .concurrencyLevel(10) // 设置并发级别为10
-////            .recordStats() // 开启缓存统计
-//                .build();
-//        maxThroughput = Double.MIN_VALUE;
-        currentSample = new Sample();
+    /**
+     * Clear the counters (useful for differential stats)
+     * 并发写入时清空不是原子的，只用于没有写入的场景。
+     */
+    public void clear() {
+        count.reset();
+        elapsedSum.reset();
+        errorCount.reset();
+        totalBytes.reset();
+        totalSentBytes.reset();
+        minElapsed.reset();
+        maxElapsed.reset();
+        firstTime.reset();
+        endTime.reset();
+        histogram.clear();
+        secondBucketRing.clear();
     }
 
     /**
-     * Clear the counters (useful for differential stats)
+     * Records a sample.
+     * 修改这个方法，并不会影响csv的保存
+     * 每个调用只是几次分段累加，不做任何派生计算。
+     *
+     * @param res the sample to record
      */
-    public synchronized void clear() {
-        init();
+    public void addSample(SampleResult res) {
+        long elapsed = res.getTime();
+        int sampleCount = res.getSampleCount();
+        long bytes = res.getBytesAsLong();
+        long sentBytes = res.getSentBytes();
+        count.add(sampleCount);
+        elapsedSum.add(elapsed);
+        totalBytes.add(bytes);
+        totalSentBytes.add(sentBytes);
+        int errors = res.getErrorCount();
+        if (errors > 0) {
+            errorCount.add(errors);
+        }
+        if (res instanceof StatisticalSampleResult && sampleCount > 1) {
+            // slave节点汇总后发送的结果，getTime()是这段时间内响应时间之和，只能按平均值计入分布和最大最小值。
+            long mean = elapsed / sampleCount;
+            minElapsed.accumulate(mean);
+            maxElapsed.accumulate(mean);
+            histogram.record(mean, sampleCount);
+        } else {
+            minElapsed.accumulate(elapsed);
+            maxElapsed.accumulate(elapsed);
+            histogram.record(elapsed);
+        }
+        firstTime.accumulate(res.getStartTime());
+        endTime.accumulate(res.getEndTime());
+        secondBucketRing.record(res.getEndTime(), sampleCount, errors, bytes, sentBytes, elapsed);
     }
 
-    public Sample getCurrentSample() {
-        return currentSample;
+    /**
+     * 合并另一个统计对象的数据，用于由各个节点的数据汇总出整体数据。
+     * 只在读取时对新创建或者clear过的合并用对象调用，不和写入并发。
+     */
+    public void add(LocalSamplingStatCalculator other) {
+        long otherCount = other.getCount();
+        if (otherCount == 0L && other.endTime.get() == 0L) {
+            return;
+        }
+        count.add(otherCount);
+        elapsedSum.add(other.elapsedSum.sum());
+        errorCount.add(other.errorCount.sum());
+        totalBytes.add(other.totalBytes.sum());
+        totalSentBytes.add(other.totalSentBytes.sum());
+        minElapsed.accumulate(other.minElapsed.get());
+        maxElapsed.accumulate(other.maxElapsed.get());
+        firstTime.accumulate(other.firstTime.get());
+        endTime.accumulate(other.endTime.get());
+        histogram.add(other.histogram);
+        secondBucketRing.add(other.secondBucketRing);
     }
 
     /**
@@ -81,14 +157,15 @@ public class LocalSamplingStatCalculator {
      * @return how long the samples took
      */
     public long getElapsed() {
-        if (getCurrentSample().getEndTime() == 0) {
+        long end = endTime.get();
+        if (end == 0) {
             return 0;// No samples collected ...
         }
-        return getCurrentSample().getEndTime() - firstTime;
+        return end - firstTime.get();
     }
 
     public long getFirstTime() {
-        return firstTime;
+        return firstTime.get();
     }
 
     /**
@@ -100,11 +177,7 @@ public class LocalSamplingStatCalculator {
      * @return throughput associated with this sampler per second
      */
     public double getRate() {
-        if (calculator.getCount() == 0) {
-            return 0.0; // Better behaviour when howLong=0 or lastTime=0
-        }
-
-        return getCurrentSample().getThroughput();
+        return getRatePerSecond(count.sum());
     }
 
     /**
@@ -113,7 +186,7 @@ public class LocalSamplingStatCalculator {
      * @return throughput in bytes/second
      */
     public double getBytesPerSecond() {
-        return getRatePerSecond(calculator.getTotalBytes());
+        return getRatePerSecond(totalBytes.sum());
     }
 
     /**
@@ -131,7 +204,7 @@ public class LocalSamplingStatCalculator {
      * @return sent throughput in bytes/second
      */
     public double getSentBytesPerSecond() {
-        return getRatePerSecond(calculator.getTotalSentBytes());
+        return getRatePerSecond(totalSentBytes.sum());
     }
 
     /**
@@ -140,8 +213,9 @@ public class LocalSamplingStatCalculator {
      */
     private double getRatePerSecond(long value) {
         double rate = 0;
-        if (this.getElapsed() > 0 && value > 0) {
-            rate = value / ((double) this.getElapsed() / 1000);
+        long elapsed = this.getElapsed();
+        if (elapsed > 0 && value > 0) {
+            rate = value / ((double) elapsed / 1000);
         }
         if (rate < 0) {
             rate = 0;
@@ -165,11 +239,11 @@ public class LocalSamplingStatCalculator {
      * @return average page size in bytes (0 if sample count is zero)
      */
     public double getAvgPageBytes() {
-        long count = calculator.getCount();
+        long count = getCount();
         if (count == 0) {
             return 0;
         }
-        return calculator.getTotalBytes() / (double) count;
+        return totalBytes.sum() / (double) count;
     }
 
     /**
@@ -179,91 +253,6 @@ public class LocalSamplingStatCalculator {
         return label;
     }
 
-    /**
-     * Records a sample.
-     * 修改这个方法，并不会影响csv的保存
-     *
-     * @param res the sample to record
-     * @return newly created sample with current statistics
-     */
-    public Sample addSample(SampleResult res) {
-        long rtime;
-        long cmean;
-        long cstdv;
-        long cmedian;
-        long cpercent;
-        long eCount;
-        long endTime;
-        double throughput;
-        boolean rbool;
-        synchronized (calculator) {
-            calculator.addValue(res.getTime(), res.getSampleCount());
-            calculator.addBytes(res.getBytesAsLong());
-            calculator.addSentBytes(res.getSentBytes());
-            setStartTime(res);
-            eCount = getCurrentSample().getErrorCount();
-            eCount += res.getErrorCount();
-            endTime = getEndTime(res);
-            long howLongRunning = endTime - firstTime;
-            throughput = ((double) calculator.getCount() / (double) howLongRunning) * 1000.0;
-//            if (throughput > maxThroughput) {
-//                maxThroughput = throughput;
-//            }
-
-            rtime = res.getTime();
-            cmean = (long)calculator.getMean();
-            cstdv = (long)calculator.getStandardDeviation();
-            cmedian = calculator.getMedian().longValue();
-            cpercent = calculator.getPercentPoint( 0.500 ).longValue();
-// TODO cpercent is the same as cmedian here - why? and why pass it to "distributionLine"?
-            rbool = res.isSuccessful();
-        }
-
-        long count = calculator.getCount();
-        Sample s =
-                new Sample( null, rtime, cmean, cstdv, cmedian, cpercent, throughput, eCount, rbool, count, endTime );
-        currentSample = s;
-        return s;
-    }
-
-//    public long getCountPerSecond() {
-//        // 不是说平均下来TPS的取值就延迟一秒，这里保证的是取的值是TPS。
-//        long timeSec = (System.currentTimeMillis() / 1000) - 1;
-//        Long successCountPerSec = successCountMap.getIfPresent(timeSec);
-//        if (Objects.isNull(successCountPerSec)) {
-//            return 0L;
-//        }
-//        return successCountPerSec;
-//    }
-//    public long getErrorCountPerSecond() {
-//        long timeSec = (System.currentTimeMillis() / 1000) - 1;
-//        Long errorCountPerSec = errorCountMap.getIfPresent(timeSec);
-//        if (Objects.isNull(errorCountPerSec)) {
-//            return 0L;
-//        }
-//        return errorCountPerSec;
-//    }
-
-    private long getEndTime(SampleResult res) {
-        long endTime = res.getEndTime();
-        long lastTime = getCurrentSample().getEndTime();
-        if (lastTime < endTime) {
-            lastTime = endTime;
-        }
-        return lastTime;
-    }
-
-    /**
-     * @param res
-     */
-    private void setStartTime(SampleResult res) {
-        long startTime = res.getStartTime();
-        if (firstTime > startTime) {
-            // this is our first sample, set the start time to current timestamp
-            firstTime = startTime;
-        }
-    }
-
     /**
      * Returns the raw double value of the percentage of samples with errors
      * that were recorded. (Between 0.0 and 1.0)
@@ -272,13 +261,11 @@ public class LocalSamplingStatCalculator {
      * that were recorded.
      */
     public double getErrorPercentage() {
-        double rval = 0.0;
-
-        if (calculator.getCount() == 0) {
-            return rval;
+        long count = getCount();
+        if (count == 0) {
+            return 0.0;
         }
-        rval = (double) getCurrentSample().getErrorCount() / (double) calculator.getCount();
-        return rval;
+        return (double) getErrorCount() / (double) count;
     }
 
     /**
@@ -286,72 +273,97 @@ public class LocalSamplingStatCalculator {
      */
     @Override
     public String toString() {
-//        StringBuilder mySB = new StringBuilder();
-//
-//        mySB.append("Samples: " + this.getCount() + "  ");
-//        mySB.append("Avg: " + this.getMean() + "  ");
-//        mySB.append("Min: " + this.getMin() + "  ");
-//        mySB.append("Max: " + this.getMax() + "  ");
-//        mySB.append("Error Rate: " + this.getErrorPercentage() + "  ");
-//        mySB.append("Sample Rate: " + this.getRate());
-//        return mySB.toString();
-        return "";
+        return "Samples: " + getCount() + "  Avg: " + getMean() + "  Min: " + getMin()
+                + "  Max: " + getMax() + "  Error Rate: " + getErrorPercentage() + "  Sample Rate: " + getRate();
     }
 
     /**
      * @return errorCount
      */
     public long getErrorCount() {
-        return getCurrentSample().getErrorCount();
+        return errorCount.sum();
+    }
+
+    public long getCount() {
+        return count.sum();
     }
 
     /**
-     * @return Returns the maxThroughput.
+     * 平均响应时间，当前请求总共花费的时间/响应了多少请求。
      */
-//    public double getMaxThroughput() {
-//        return maxThroughput;
-//    }
+    public double getMean() {
+        long count = getCount();
+        if (count == 0) {
+            return 0.0;
+        }
+        return elapsedSum.sum() / (double) count;
+    }
 
-//    public Map<Number, Number[]> getDistribution() {
-//        return calculator.getDistribution();
-//    }
+    public long getMax() {
+        long max = maxElapsed.get();
+        return max == Long.MIN_VALUE ? 0L : max;
+    }
 
-//    public Number getPercentPoint(double percent) {
-//        return calculator.getPercentPoint(percent);
-//    }
-    public long getCount() {
-        return calculator.getCount();
+    public long getMin() {
+        long min = minElapsed.get();
+        return min == Long.MAX_VALUE ? 0L : Math.max(min, 0L);
     }
 
-//    public Number getMax() {
-//        return calculator.getMax();
-//    }
+    /**
+     * 百分位响应时间，percent取值0~100，相对误差不超过1%。
+     */
+    public long getPercentile(double percent) {
+        return histogram.getValueAtPercentile(percent);
+    }
 
-    public double getMean() {
-        return calculator.getMean();
+    /**
+     * 一次遍历获取多个百分位响应时间，percents需要从小到大排列。
+     */
+    public long[] getPercentiles(double... percents) {
+        return histogram.getValuesAtPercentiles(percents);
     }
 
-//    public Number getMeanAsNumber() {
-//        return Long.valueOf((long) calculator.getMean());
-//    }
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
 
-//    public Number getMedian() {
-//        return calculator.getMedian();
-//    }
+    /**
+     * 最近INTERVAL_SECONDS个完整秒的汇总数据，下标见SecondBucketRing。
+     * 和getRate()等累计值不同，吞吐量的突然下跌可以马上体现出来。
+     */
+    public long[] getIntervalSum() {
+        return secondBucketRing.sum(System.currentTimeMillis(), INTERVAL_SECONDS);
+    }
 
-//    public Number getMin() {
-//        if (calculator.getMin().longValue() < 0) {
-//            return Long.valueOf(0);
-//        }
-//        return calculator.getMin();
-//    }
+    /**
+     * 最近一段时间内成功请求的TPS
+     */
+    public static double getIntervalSuccessRate(long[] intervalSum) {
+        return (intervalSum[SecondBucketRing.COUNT] - intervalSum[SecondBucketRing.ERRORS]) / (double) INTERVAL_SECONDS;
+    }
 
-//    public Number getPercentPoint(float percent) {
-//        return calculator.getPercentPoint(percent);
-//    }
+    /**
+     * 最近一段时间内失败请求的TPS
+     */
+    public static double getIntervalErrorRate(long[] intervalSum) {
+        return intervalSum[SecondBucketRing.ERRORS] / (double) INTERVAL_SECONDS;
+    }
+
+    /**
+     * 最近一段时间内的平均响应时间，没有请求时为0
+     */
+    public static double getIntervalMean(long[] intervalSum) {
+        if (intervalSum[SecondBucketRing.COUNT] == 0) {
+            return 0.0;
+        }
+        return intervalSum[SecondBucketRing.ELAPSED_SUM] / (double) intervalSum[SecondBucketRing.COUNT];
+    }
 
-//    public double getStandardDeviation() {
-//        return calculator.getStandardDeviation();
-//    }
+    public static double getIntervalKBPerSecond(long[] intervalSum) {
+        return intervalSum[SecondBucketRing.BYTES] / 1024.0 / INTERVAL_SECONDS;
+    }
 
+    public static double getIntervalSentKBPerSecond(long[] intervalSum) {
+        return intervalSum[SecondBucketRing.SENT_BYTES] / 1024.0 / INTERVAL_SECONDS;
+    }
 }
@@ -0,0 +1,135 @@
+package io.renren.modules.test.jmeter.calculator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按秒分桶的环形缓冲，用于计算最近N秒的真实TPS、错误TPS和平均响应时间。
+ * <p>
+ * 所有数组在创建时分配好，写入时只有几次原子累加，不会为每个请求创建对象。
+ * 桶按照请求结束时间的秒数定位，秒数变化时由第一个写入的线程用CAS占住并清零。
+ * 环的长度是64秒，比这更早的数据直接丢弃（累计值在LocalSamplingStatCalculator中仍然保留）。
+ */
+public class SecondBucketRing {
+
+    private static final int SIZE = 64;
+
+    private static final int MASK = SIZE - 1;
+
+    /**
+     * 桶正在被清零时的标识。
+     */
+    private static final long RESETTING = -1L;
+
+    public static final int COUNT = 0;
+    public static final int ERRORS = 1;
+    public static final int BYTES = 2;
+    public static final int SENT_BYTES = 3;
+    public static final int ELAPSED_SUM = 4;
+
+    /**
+     * 每个桶当前对应的秒数。
+     */
+    private final AtomicLongArray seconds = new AtomicLongArray(SIZE);
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+
+    private final AtomicLongArray errors = new AtomicLongArray(SIZE);
+
+    private final AtomicLongArray bytes = new AtomicLongArray(SIZE);
+
+    private final AtomicLongArray sentBytes = new AtomicLongArray(SIZE);
+
+    private final AtomicLongArray elapsedSums = new AtomicLongArray(SIZE);
+
+    public void record(long timeStamp, long count, long errorCount, long byteCount, long sentByteCount, long elapsed) {
+        long sec = timeStamp / 1000;
+        int idx = (int) (sec & MASK);
+        for (; ; ) {
+            long current = seconds.get(idx);
+            if (current == sec) {
+                counts.addAndGet(idx, count);
+                if (errorCount > 0) {
+                    errors.addAndGet(idx, errorCount);
+                }
+                bytes.addAndGet(idx, byteCount);
+                sentBytes.addAndGet(idx, sentByteCount);
+                elapsedSums.addAndGet(idx, elapsed);
+                return;
+            }
+            if (current > sec) {
+                // 桶已经被更新的秒数占用，说明这个请求太旧了。
+                return;
+            }
+            if (current != RESETTING && seconds.compareAndSet(idx, current, RESETTING)) {
+                counts.set(idx, 0L);
+                errors.set(idx, 0L);
+                bytes.set(idx, 0L);
+                sentBytes.set(idx, 0L);
+                elapsedSums.set(idx, 0L);
+                seconds.set(idx, sec);
+            }
+            // 其他线程正在清零，只是几次赋值，自旋等待即可。
+        }
+    }
+
+    /**
+     * 汇总最近n个完整秒的数据（不包含当前正在进行的这一秒）。
+     *
+     * @param nowMillis 当前时间
+     * @param n         秒数，不超过环的长度
+     * @return 以COUNT/ERRORS/BYTES/SENT_BYTES/ELAPSED_SUM为下标的数组
+     */
+    public long[] sum(long nowMillis, int n) {
+        long[] total = new long[5];
+        long endSec = nowMillis / 1000;
+        int window = Math.min(Math.max(n, 1), SIZE - 1);
+        for (long sec = endSec - window; sec < endSec; sec++) {
+            int idx = (int) (sec & MASK);
+            if (seconds.get(idx) != sec) {
+                continue;
+            }
+            long c = counts.get(idx);
+            long e = errors.get(idx);
+            long b = bytes.get(idx);
+            long sb = sentBytes.get(idx);
+            long el = elapsedSums.get(idx);
+            // 读的过程中桶被复用了，这一秒的数据作废。
+            if (seconds.get(idx) != sec) {
+                continue;
+            }
+            total[COUNT] += c;
+            total[ERRORS] += e;
+            total[BYTES] += b;
+            total[SENT_BYTES] += sb;
+            total[ELAPSED_SUM] += el;
+        }
+        return total;
+    }
+
+    /**
+     * 合并另一个环中的数据，用于由各个节点的数据汇总出整体数据。
+     */
+    public void add(SecondBucketRing other) {
+        for (int idx = 0; idx < SIZE; idx++) {
+            long sec = other.seconds.get(idx);
+            if (sec <= 0L) {
+                continue;
+            }
+            long c = other.counts.get(idx);
+            long e = other.errors.get(idx);
+            long b = other.bytes.get(idx);
+            long sb = other.sentBytes.get(idx);
+            long el = other.elapsedSums.get(idx);
+            if (other.seconds.get(idx) != sec) {
+                continue;
+            }
+            record(sec * 1000, c, e, b, sb, el);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < SIZE; i++) {
+            seconds.set(i, 0L);
+        }
+    }
+}
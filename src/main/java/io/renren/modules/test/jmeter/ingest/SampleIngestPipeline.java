@@ -0,0 +1,317 @@
+package io.renren.modules.test.jmeter.ingest;
+
+import io.renren.modules.test.jmeter.JmeterResultCollector;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 压测结果的异步处理管道。
+ * <p>
+ * Jmeter的请求线程（分布式时是RMI线程）只把结果放到预先分配好的环形缓冲中就返回，
+ * 由每个脚本独立的消费线程批量写结果文件和做前端监控的计算，磁盘抖动和计算都不会再影响到请求线程测到的响应时间。
+ * <p>
+ * 多生产者单消费者：生产者CAS抢占序号，写完槽位后发布序号；消费者按序号顺序读取，保证结果文件的时序性。
+ * 缓冲满的时候，按配置阻塞等待，或者丢弃前端监控的数据。
+ * 测试报告的数据总是经过缓冲由消费线程写入，缓冲满时等待，不会丢失也不会乱序（后续按块建索引依赖结果文件的顺序）。
+ */
+public class SampleIngestPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampleIngestPipeline.class);
+
+    /**
+     * 缓冲满时的处理策略：阻塞等待
+     */
+    public static final String POLICY_BLOCK = "BLOCK";
+
+    /**
+     * 缓冲满时的处理策略：丢弃前端监控数据，测试报告的数据仍然等待放入缓冲
+     */
+    public static final String POLICY_DROP = "DROP";
+
+    /**
+     * 消费者一次最多连续处理的数量。
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * 消费者没有数据时最长的等待时间。
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 针对每一个运行中的脚本，存储一份。key值和samplingStatCalculator4File保持一致。
+     */
+    private static final Map<Long, SampleIngestPipeline> pipelines = new ConcurrentHashMap<>();
+
+    private final Long runKey;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final boolean dropWhenFull;
+
+    private final Slot[] slots;
+
+    /**
+     * 下一个可以被生产者抢占的序号
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 消费者下一个要处理的序号
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 消费者自己使用的序号，和head一致。
+     */
+    private long next;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder published = new LongAdder();
+
+    /**
+     * 最后处理的请求的结束时间，用于计算消费者的延迟。
+     */
+    private volatile long lastConsumedTime;
+
+    private volatile boolean running;
+
+    private volatile boolean consumerParked;
+
+    private Thread consumer;
+
+    public SampleIngestPipeline(Long runKey, int bufferSize, String fullPolicy) {
+        this.runKey = runKey;
+        int size = 1024;
+        while (size < bufferSize && size < (1 << 24)) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.dropWhenFull = !POLICY_BLOCK.equalsIgnoreCase(fullPolicy);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * 注册并启动，同一个key之前的管道会被停掉。
+     */
+    public static SampleIngestPipeline start(SampleIngestPipeline pipeline) {
+        SampleIngestPipeline old = pipelines.put(pipeline.runKey, pipeline);
+        if (old != null && old != pipeline) {
+            old.shutdown();
+        }
+        pipeline.startConsumer();
+        return pipeline;
+    }
+
+    public static SampleIngestPipeline get(Long runKey) {
+        return pipelines.get(runKey);
+    }
+
+    /**
+     * 处理完缓冲中剩余的数据，停止消费线程并移除。
+     */
+    public static void shutdown(Long runKey) {
+        SampleIngestPipeline pipeline = pipelines.remove(runKey);
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    public static void shutdownAll() {
+        pipelines.keySet().forEach(SampleIngestPipeline::shutdown);
+    }
+
+    private synchronized void startConsumer() {
+        if (running) {
+            return;
+        }
+        running = true;
+        consumer = new Thread(this::consume, "jmeter-sample-ingest-" + runKey);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * 请求线程调用，放入缓冲后立即返回。
+     * 缓冲满且策略为丢弃时，丢弃前端监控的数据；还需要写测试报告的，等待有空位后只放入测试报告的数据。
+     *
+     * @return false表示管道已经停止，没有放入缓冲，需要调用方自己处理。
+     */
+    public boolean publish(JmeterResultCollector collector, SampleEvent event, boolean report, boolean chart) {
+        long seq;
+        for (; ; ) {
+            if (!running) {
+                return false;
+            }
+            seq = tail.get();
+            if (seq - head.get() >= capacity) {
+                if (dropWhenFull) {
+                    if (chart) {
+                        chart = false;
+                        dropped.increment();
+                    }
+                    if (!report) {
+                        return true;
+                    }
+                }
+                LockSupport.parkNanos(10_000L);
+                continue;
+            }
+            if (tail.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        Slot slot = slots[(int) (seq & mask)];
+        slot.collector = collector;
+        slot.event = event;
+        slot.report = report;
+        slot.chart = chart;
+        // 发布，消费者看到序号后才会读取槽位的内容。
+        slot.sequence = seq;
+        published.increment();
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    private void consume() {
+        while (running || next < tail.get()) {
+            if (consumeBatch() == 0) {
+                consumerParked = true;
+                if (slots[(int) (next & mask)].sequence != next && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                consumerParked = false;
+            }
+        }
+    }
+
+    /**
+     * 处理一批已经发布的数据，只能由消费者调用。
+     *
+     * @return 处理的数量
+     */
+    private int consumeBatch() {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.sequence != next) {
+                break;
+            }
+            JmeterResultCollector collector = slot.collector;
+            SampleEvent event = slot.event;
+            boolean report = slot.report;
+            boolean chart = slot.chart;
+            slot.collector = null;
+            slot.event = null;
+            try {
+                collector.consumeSample(event, report, chart);
+                lastConsumedTime = event.getResult().getEndTime();
+            } catch (Exception e) {
+                logger.error("处理压测结果出错！", e);
+            }
+            // 处理完才释放槽位，drain以此判断数据已经处理完。
+            head.lazySet(++next);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 等待当前已经放入缓冲的数据全部处理完。
+     */
+    public void drain(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (head.get() < target && consumer != null && consumer.isAlive()) {
+            if (System.currentTimeMillis() > deadline) {
+                logger.warn("等待压测结果处理超时！剩余数量：" + (target - head.get()));
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void shutdown() {
+        running = false;
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (thread.isAlive()) {
+                return;
+            }
+        }
+        // 停止的同时刚好抢到序号的请求线程，由这里处理掉。
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (next < tail.get() && System.currentTimeMillis() < deadline) {
+            if (consumeBatch() == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 缓冲中还没有处理的数量
+     */
+    public long getDepth() {
+        return Math.max(tail.get() - head.get(), 0L);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 因为缓冲满而丢弃的前端监控数据的数量
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * 消费者的延迟（毫秒），即当前时间和最后处理的请求结束时间的差值。
+     */
+    public long getLagMillis() {
+        if (lastConsumedTime == 0L || getDepth() == 0L) {
+            return 0L;
+        }
+        return Math.max(System.currentTimeMillis() - lastConsumedTime, 0L);
+    }
+
+    /**
+     * 环形缓冲的槽位，预先分配，重复使用。
+     */
+    private static final class Slot {
+        volatile long sequence = -1L;
+        JmeterResultCollector collector;
+        SampleEvent event;
+        boolean report;
+        boolean chart;
+    }
+}
@@ -0,0 +1,177 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 在单独的线程中执行的消费者。
+ * <p>
+ * 测试报告的各个统计（汇总、APDEX、错误、Top5错误）及图表互相独立，每个都包装成这个消费者，
+ * 同一份按文件顺序的数据分批交给各自的工作线程，并行计算。
+ * 每个消费者收到的Sample及顺序和同步执行时完全一样，百分位数的滑动窗口等和顺序有关的结果也相同。
+ * <p>
+ * 只有consume在工作线程中执行，stopConsuming先等待工作线程处理完已经交给它的数据，再在调用线程中执行，
+ * 所以SampleContext中的结果数据只在调用线程中修改。其他方法调用时工作线程是空闲的，直接调用。
+ */
+public class AsyncSampleConsumer implements SampleConsumer {
+
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * 每个消费者最多缓存的批数，处理慢的消费者会让数据的分发等待。
+     */
+    private static final int QUEUE_BATCHES = 16;
+
+    private static final Batch END = new Batch(-1);
+
+    private final SampleConsumer delegate;
+
+    private final ExecutorService executor;
+
+    private BlockingQueue<Batch> queue;
+
+    private Future<?> worker;
+
+    private Batch batch;
+
+    private volatile Throwable error;
+
+    public AsyncSampleConsumer(SampleConsumer delegate, ExecutorService executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public void startConsuming() {
+        delegate.startConsuming();
+        error = null;
+        queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        worker = executor.submit(this::work);
+    }
+
+    @Override
+    public void consume(Sample sample, int channel) {
+        if (batch != null && batch.channel != channel) {
+            flush();
+        }
+        if (batch == null) {
+            batch = new Batch(channel);
+        }
+        batch.samples.add(sample);
+        if (batch.samples.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    @Override
+    public void stopConsuming() {
+        flush();
+        put(END);
+        try {
+            worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SampleException("Consumer interrupted", e);
+        } catch (ExecutionException e) {
+            throw new SampleException("Consumer failed with message :" + e.getCause().getMessage(), e.getCause());
+        }
+        checkError();
+        delegate.stopConsuming();
+    }
+
+    private void flush() {
+        if (batch == null) {
+            return;
+        }
+        checkError();
+        put(batch);
+        batch = null;
+    }
+
+    private void put(Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SampleException("Consumer interrupted", e);
+        }
+    }
+
+    private void checkError() {
+        Throwable e = error;
+        if (e != null) {
+            throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 工作线程，出错之后继续取出数据丢弃，分发数据的线程不会因为队列满了一直等待。
+     */
+    private void work() {
+        while (true) {
+            Batch next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                error = e;
+                return;
+            }
+            if (next == END) {
+                return;
+            }
+            if (error != null) {
+                continue;
+            }
+            try {
+                for (Sample sample : next.samples) {
+                    delegate.consume(sample, next.channel);
+                }
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    @Override
+    public void setConsumedMetadata(SampleMetadata sampleMetadata, int channel) {
+        delegate.setConsumedMetadata(sampleMetadata, channel);
+    }
+
+    @Override
+    public SampleContext getSampleContext() {
+        return delegate.getSampleContext();
+    }
+
+    @Override
+    public void setSampleContext(SampleContext context) {
+        delegate.setSampleContext(context);
+    }
+
+    @Override
+    public void setChannelAttribute(int channel, String key, Object value) {
+        delegate.setChannelAttribute(channel, key, value);
+    }
+
+    @Override
+    public Object getChannelAttribute(int channel, String key) {
+        return delegate.getChannelAttribute(channel, key);
+    }
+
+    private static class Batch {
+
+        private final int channel;
+
+        private final List<Sample> samples = new ArrayList<>(BATCH_SIZE);
+
+        private Batch(int channel) {
+            this.channel = channel;
+        }
+    }
+}
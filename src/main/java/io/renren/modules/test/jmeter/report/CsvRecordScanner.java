@@ -0,0 +1,62 @@
+package io.renren.modules.test.jmeter.report;
+
+/**
+ * 按csv的引号规则查找记录的边界，状态和CSVSaveService.csvReadFile的解析一致。
+ * <p>
+ * 只在引号外的\n之后切分，\r\n不会被分开，引号中的换行属于同一行记录。
+ * 扫描的状态在多次调用之间保留，数据可以分多次扫描。
+ */
+class CsvRecordScanner {
+
+    private static final int INITIAL = 0;
+    private static final int PLAIN = 1;
+    private static final int QUOTED = 2;
+    private static final int EMBEDDED_QUOTE = 3;
+
+    private final byte delimiter;
+
+    private int state = INITIAL;
+
+    CsvRecordScanner(char delimiter) {
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * 扫描bytes[from, to)，返回最后一个记录结束之后的位置，没有完整的记录返回-1。
+     */
+    int scan(byte[] bytes, int from, int to) {
+        int cut = -1;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            switch (state) {
+                case INITIAL:
+                    state = b == '"' ? QUOTED : isDelimiterOrEol(b) ? INITIAL : PLAIN;
+                    break;
+                case PLAIN:
+                    state = isDelimiterOrEol(b) ? INITIAL : PLAIN;
+                    break;
+                case QUOTED:
+                    state = b == '"' ? EMBEDDED_QUOTE : QUOTED;
+                    break;
+                default:
+                    state = b == '"' ? QUOTED : isDelimiterOrEol(b) ? INITIAL : PLAIN;
+                    break;
+            }
+            if (b == '\n' && state == INITIAL) {
+                cut = i + 1;
+            }
+        }
+        return cut;
+    }
+
+    /**
+     * 从记录的开始重新扫描。
+     */
+    void reset() {
+        state = INITIAL;
+    }
+
+    private boolean isDelimiterOrEol(byte b) {
+        return b == delimiter || b == '\n' || b == '\r';
+    }
+}
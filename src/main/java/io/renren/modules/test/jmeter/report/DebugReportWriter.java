@@ -0,0 +1,457 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ResourceUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 调试测试报告（jtl xml结果文件）的流式生成，代替jmeter.results.zyanycall.xsl的XSLT转换。
+ * <p>
+ * XSLT需要把整个jtl文件解析成内存中的文档树，带响应内容的jtl很容易几百MB，会内存溢出或者很慢。
+ * 这里用StAX顺序读取，每读完一个请求就写出这个请求的html，内存占用和jtl文件大小无关。
+ * 生成的html和xsl生成的一致，页面的样式及脚本直接从xsl文件中读取，页面只需要维护xsl一处。
+ * <p>
+ * 请求及响应的内容超过bodyLimit个字符时，页面中只保留前bodyLimit个字符，
+ * 完整内容写到报告旁边的目录（报告文件名 + FRAGMENT_SUFFIX）中，页面中链接过去。
+ * jtl文件最后不完整（压测被强制停止）时，已经读到的请求仍然生成报告。
+ */
+public class DebugReportWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DebugReportWriter.class);
+
+    public static final String FRAGMENT_SUFFIX = "_bodies";
+
+    private static final String DOCTYPE = "<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" "
+            + "\"http://www.w3.org/TR/html4/loose.dtd\">";
+
+    /**
+     * 请求的子元素中页面展示的，按xsl中xsl:value-of的取值，只取第一个。
+     */
+    private static final Set<String> SAMPLE_FIELDS = new HashSet<>(Arrays.asList("method", "java.net.URL",
+            "queryString", "cookies", "requestHeader", "responseHeader", "responseData", "responseFile"));
+
+    private static final Set<String> ASSERTION_FIELDS = new HashSet<>(Arrays.asList("name", "failure", "error",
+            "failureMessage"));
+
+    /**
+     * 配置好之后可以多线程共用，批量生成报告时不用每次查找及创建。
+     */
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static volatile Template template;
+
+    private final String xslPath;
+
+    private final int bodyLimit;
+
+    /**
+     * @param xslPath   读取页面样式及脚本的xsl文件，如StressTestUtils.xslFilePath
+     * @param bodyLimit 页面中每项内容最多的字符数
+     */
+    public DebugReportWriter(String xslPath, int bodyLimit) {
+        this.xslPath = xslPath;
+        this.bodyLimit = bodyLimit;
+    }
+
+    public static File getFragmentDir(File reportFile) {
+        String path = reportFile.getPath();
+        int dot = path.lastIndexOf('.');
+        return new File((dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path) + FRAGMENT_SUFFIX);
+    }
+
+    /**
+     * @return 写出的请求数
+     */
+    public int write(File jtlFile, File reportFile) throws IOException, XMLStreamException {
+        String[] styleAndScript = loadTemplate(xslPath);
+        File fragmentDir = getFragmentDir(reportFile);
+        FileUtils.deleteQuietly(fragmentDir);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(jtlFile), 64 * 1024);
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile),
+                     StandardCharsets.UTF_8), 64 * 1024)) {
+            writeHeader(out, styleAndScript);
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            int count;
+            try {
+                count = writeSamples(reader, out, fragmentDir);
+            } finally {
+                reader.close();
+            }
+            writeFooter(out);
+            return count;
+        }
+    }
+
+    private int writeSamples(XMLStreamReader reader, Writer out, File fragmentDir) throws IOException, XMLStreamException {
+        int position = 0;
+        int written = 0;
+        String lastThread = null;
+        Sample sample = null;
+        Assertion assertion = null;
+        // 正在读取的内容，及其所在元素的深度
+        Field field = null;
+        int fieldDepth = 0;
+        int depth = 0;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 2) {
+                        position++;
+                        sample = new Sample(position, reader);
+                    } else if (sample != null && field == null) {
+                        if (depth == 3 && "assertionResult".equals(name)) {
+                            assertion = new Assertion();
+                            sample.assertions.add(assertion);
+                        } else if (depth == 3 && SAMPLE_FIELDS.contains(name) && !sample.fields.containsKey(name)) {
+                            field = new Field(fragmentDir, position + "_" + name);
+                            sample.fields.put(name, field);
+                            fieldDepth = depth;
+                        } else if (depth == 4 && assertion != null && ASSERTION_FIELDS.contains(name)
+                                && !assertion.fields.containsKey(name)) {
+                            field = new Field(fragmentDir, position + "_assertion" + sample.assertions.size() + "_" + name);
+                            assertion.fields.put(name, field);
+                            fieldDepth = depth;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (field != null && depth == fieldDepth) {
+                        field.close();
+                        field = null;
+                    } else if (depth == 3) {
+                        assertion = null;
+                    } else if (depth == 2 && sample != null) {
+                        writeSample(out, sample, lastThread, fragmentDir);
+                        written++;
+                        lastThread = sample.thread;
+                        sample = null;
+                    }
+                    depth--;
+                } else if (field != null && (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+                    field.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
+        } catch (XMLStreamException e) {
+            if (written == 0) {
+                throw e;
+            }
+            logger.warn("调试结果文件不完整，只生成前{}个完整请求的测试报告：{}", written, e.getMessage());
+            return written;
+        } finally {
+            if (field != null) {
+                field.close();
+            }
+        }
+        return written;
+    }
+
+    private void writeSample(Writer out, Sample sample, String lastThread, File fragmentDir) throws IOException {
+        int position = sample.position;
+        if (position == 1 || !sample.thread.equals(lastThread)) {
+            out.write("<li class=\"navigation\">Thread: ");
+            escape(out, sample.thread);
+            out.write("</li>");
+        }
+        out.write("<li onclick=\"return onclick_li(this, " + position + ");\"><div class=\"");
+        out.write("true".equals(sample.attributes.get("s")) ? "success" : "failure");
+        out.write("\">");
+        escape(out, sample.attr("lb"));
+        out.write("</div><div class=\"detail\">");
+
+        out.write("<div class=\"group\">Sampler</div><div class=\"zebra\"><table>");
+        out.write("<tr><td class=\"data key\">Title</td><td class=\"data delimiter\">:</td><td class=\"data\" id=\"ThreadTitle"
+                + position + "\">");
+        escape(out, sample.attr("lb"));
+        out.write("</td></tr>");
+        row(out, "Thread Name", sample.thread, "");
+        out.write("<tr><td class=\"data key\">Timestamp</td><td class=\"data delimiter\">:</td><td class=\"data\"><span class=\"patch_timestamp\">");
+        escape(out, sample.attr("ts"));
+        out.write("</span></td></tr>");
+        row(out, "Time", sample.attr("t"), " ms");
+        row(out, "Latency", sample.attr("lt"), " ms");
+        row(out, "Bytes", sample.attr("by"), "");
+        row(out, "Sample Count", sample.attr("sc"), "");
+        row(out, "Error Count", sample.attr("ec"), "");
+        row(out, "Response Code", sample.attr("rc"), "");
+        row(out, "Response Message", sample.attr("rm"), "");
+        out.write("</table></div><div class=\"trail\"></div>");
+
+        if (!sample.assertions.isEmpty()) {
+            out.write("<div class=\"group\">Assertion</div><div class=\"zebra\"><table>");
+            for (Assertion assertion : sample.assertions) {
+                boolean failure = "true".equals(assertion.text("failure")) || "true".equals(assertion.text("error"));
+                out.write(failure ? "<tbody class=\"failure\">" : "<tbody class=\"\">");
+                out.write("<tr><td class=\"data assertion\" colspan=\"3\">");
+                escape(out, assertion.text("name"));
+                out.write("</td></tr>");
+                row(out, "Failure", assertion.text("failure"), "");
+                row(out, "Error", assertion.text("error"), "");
+                out.write("<tr><td class=\"data key\">Failure Message</td><td class=\"data delimiter\">:</td><td class=\"data\">");
+                writeField(out, assertion.fields.get("failureMessage"));
+                writeFragmentLink(out, assertion.fields.get("failureMessage"), fragmentDir);
+                out.write("</td></tr></tbody>");
+            }
+            out.write("</table></div><div class=\"trail\"></div>");
+        }
+
+        out.write("<div class=\"group\">Request</div><div class=\"zebra\"><table>");
+        out.write("<tr><td class=\"data key\">Method/Url</td><td class=\"data delimiter\">:</td><td class=\"data\"><pre class=\"data\" id=\"MethodUrl"
+                + position + "\">");
+        escape(out, sample.text("method"));
+        out.write(" ");
+        escape(out, sample.text("java.net.URL"));
+        out.write("</pre></td></tr>");
+        preRow(out, "Query String", sample.fields.get("queryString"), null, fragmentDir);
+        preRow(out, "Cookies", sample.fields.get("cookies"), null, fragmentDir);
+        preRow(out, "Request Headers", sample.fields.get("requestHeader"), null, fragmentDir);
+        out.write("</table></div><div class=\"trail\"></div>");
+
+        out.write("<div class=\"group\">Response</div><div class=\"zebra\"><table>");
+        preRow(out, "Response Headers", sample.fields.get("responseHeader"), null, fragmentDir);
+        preRow(out, "Response Data", sample.fields.get("responseData"), "RawJson" + position, fragmentDir);
+        preRow(out, "Response File", sample.fields.get("responseFile"), null, fragmentDir);
+        out.write("<tr><td class=\"data key\">JSON Data Format</td><td class=\"data delimiter\">:</td><td><div id=\"Canvas"
+                + position + "\" class=\"Canvas\" onclick=\"SelectJsonLog('" + position + "')\"></div></td></tr>");
+        out.write("</table></div><div class=\"trail\"></div>");
+        out.write("</div></li>");
+    }
+
+    private static void row(Writer out, String key, String value, String unit) throws IOException {
+        out.write("<tr><td class=\"data key\">" + key + "</td><td class=\"data delimiter\">:</td><td class=\"data\">");
+        escape(out, value);
+        out.write(unit + "</td></tr>");
+    }
+
+    private void preRow(Writer out, String key, Field field, String id, File fragmentDir) throws IOException {
+        out.write("<tr><td class=\"data key\">" + key + "</td><td class=\"data delimiter\">:</td><td class=\"data\"><pre ");
+        if (id != null) {
+            out.write("id=\"" + id + "\" ");
+        }
+        out.write("class=\"data\">");
+        writeField(out, field);
+        out.write("</pre>");
+        writeFragmentLink(out, field, fragmentDir);
+        out.write("</td></tr>");
+    }
+
+    private static void writeField(Writer out, Field field) throws IOException {
+        if (field != null) {
+            escape(out, field.head);
+        }
+    }
+
+    /**
+     * 截断的内容后面链接到完整内容的文件，相对报告文件的路径。
+     * 链接在pre外面，页面脚本格式化JSON时只取pre中的内容。
+     */
+    private static void writeFragmentLink(Writer out, Field field, File fragmentDir) throws IOException {
+        if (field == null || field.fragment == null) {
+            return;
+        }
+        out.write("<a href=\"" + fragmentDir.getName() + "/" + field.fragment.getName() + "\" target=\"_blank\">……共"
+                + field.length + "个字符，已截断，查看完整内容</a>");
+    }
+
+    private static void writeHeader(Writer out, String[] styleAndScript) throws IOException {
+        out.write(DOCTYPE);
+        out.write("\n<html lang=\"en\">\n<head>\n<META http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+        out.write("<meta name=\"Author\" content=\"shanhe.me\">\n<title>JMeter Test Results</title>\n");
+        out.write("<style type=\"text/css\">");
+        out.write(styleAndScript[0]);
+        out.write("</style>\n<script type=\"text/javascript\">");
+        out.write(styleAndScript[1]);
+        out.write("</script>\n</head>\n<body>\n<div class=\"Canvas\" style=\"display:none;\" id=\"Canvas0\"></div>\n");
+        out.write("<div id=\"left-panel\">\n<a href=\"javascript:printAllResult();\">printAllResult</a>\n");
+        // 列表中的元素之间不能有空白，页面脚本按nextSibling遍历
+        out.write("<ol id=\"result-list\">");
+    }
+
+    private static void writeFooter(Writer out) throws IOException {
+        out.write("</ol>\n</div>\n<div id=\"right-panel\"></div>\n</body>\n</html>\n");
+    }
+
+    private static void escape(Writer out, CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * 从xsl中读取页面的样式及脚本，读取后缓存，多个报告共用。
+     * xsl是文件系统中的文件（开发时或者配置到外部目录）时，文件修改后重新读取；在jar包中时不会变化，只读取一次。
+     */
+    private static String[] loadTemplate(String xslPath) throws IOException, XMLStreamException {
+        URL url = ResourceUtils.getURL(xslPath);
+        long lastModified = ResourceUtils.isFileURL(url) ? ResourceUtils.getFile(url).lastModified() : 0L;
+        Template loaded = template;
+        if (loaded != null && loaded.xslPath.equals(xslPath) && loaded.lastModified == lastModified) {
+            return loaded.styleAndScript;
+        }
+        String xsl;
+        try (InputStream in = url.openStream()) {
+            xsl = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(xsl));
+        StringBuilder style = new StringBuilder();
+        StringBuilder script = new StringBuilder();
+        StringBuilder current = null;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    current = "style".equals(name) ? style : "script".equals(name) ? script : null;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    current = null;
+                } else if (current != null && (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+                    current.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        loaded = new Template(xslPath, lastModified, new String[]{style.toString(), script.toString()});
+        template = loaded;
+        return loaded.styleAndScript;
+    }
+
+    private static class Template {
+
+        private final String xslPath;
+
+        private final long lastModified;
+
+        private final String[] styleAndScript;
+
+        private Template(String xslPath, long lastModified, String[] styleAndScript) {
+            this.xslPath = xslPath;
+            this.lastModified = lastModified;
+            this.styleAndScript = styleAndScript;
+        }
+    }
+
+    private static class Sample {
+
+        private final int position;
+
+        private final String thread;
+
+        private final Map<String, String> attributes = new HashMap<>();
+
+        private final Map<String, Field> fields = new HashMap<>();
+
+        private final List<Assertion> assertions = new ArrayList<>();
+
+        private Sample(int position, XMLStreamReader reader) {
+            this.position = position;
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+            this.thread = attr("tn");
+        }
+
+        private String attr(String name) {
+            String value = attributes.get(name);
+            return value == null ? "" : value;
+        }
+
+        private String text(String name) {
+            Field field = fields.get(name);
+            return field == null ? "" : field.head.toString();
+        }
+    }
+
+    private static class Assertion {
+
+        private final Map<String, Field> fields = new HashMap<>();
+
+        private String text(String name) {
+            Field field = fields.get(name);
+            return field == null ? "" : field.head.toString();
+        }
+    }
+
+    /**
+     * 一项内容，前bodyLimit个字符在内存中，超出时全部内容写到单独的文件。
+     */
+    private class Field {
+
+        private final File fragmentDir;
+
+        private final String fragmentName;
+
+        private final StringBuilder head = new StringBuilder();
+
+        private long length;
+
+        private File fragment;
+
+        private Writer overflow;
+
+        private Field(File fragmentDir, String fragmentName) {
+            this.fragmentDir = fragmentDir;
+            this.fragmentName = fragmentName;
+        }
+
+        private void append(char[] chars, int start, int len) throws IOException {
+            if (overflow == null && length + len > bodyLimit) {
+                fragment = new File(fragmentDir, fragmentName + ".txt");
+                FileUtils.forceMkdir(fragmentDir);
+                overflow = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fragment),
+                        StandardCharsets.UTF_8));
+                overflow.append(head);
+            }
+            if (overflow != null) {
+                overflow.write(chars, start, len);
+            }
+            int keep = (int) Math.max(Math.min(len, bodyLimit - length), 0);
+            head.append(chars, start, keep);
+            length += len;
+        }
+
+        private void close() throws IOException {
+            if (overflow != null) {
+                overflow.close();
+                overflow = null;
+            }
+        }
+    }
+}
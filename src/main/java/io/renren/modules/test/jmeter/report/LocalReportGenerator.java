@@ -17,6 +17,7 @@ package io.renren.modules.test.jmeter.report;
  * limitations under the License.
  *
  */
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
 import org.apache.commons.io.FileUtils;
 import org.apache.jmeter.JMeter;
 import org.apache.jmeter.report.config.ConfigurationException;
@@ -29,6 +30,7 @@ import org.apache.jmeter.report.dashboard.ExportException;
 import org.apache.jmeter.report.dashboard.GenerationException;
 import org.apache.jmeter.report.processor.*;
 import org.apache.jmeter.report.processor.graph.AbstractGraphConsumer;
+import org.apache.jmeter.report.processor.graph.AbstractVersusRequestsGraphConsumer;
 import org.apache.jmeter.reporters.ResultCollector;
 import org.apache.jmeter.samplers.SampleSaveConfiguration;
 import org.apache.jmeter.util.JMeterUtils;
@@ -41,8 +43,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +63,9 @@ import java.util.regex.Pattern;
  *
  * 当前的修改面对超高并发生成测试报告仍然有问题，但是一般的并发执行是没问题的。
  * 即便发生并发问题，仅会日志打印异常，并不会造成其它影响。
+ *
+ * 测试结果文件按数据块并行解析（ParallelCsvSampleReader），各个统计及图表在各自的线程中并行计算（AsyncSampleConsumer），
+ * 每个统计收到的数据和顺序都和原来单线程处理时一致，生成的测试报告相同。
  * Created by zyanycall@gmail.com on 2019/3/5 17:31.
  *
  * @since 3.0
@@ -92,6 +102,8 @@ public class LocalReportGenerator {
 
     private static final Pattern POTENTIAL_CAMEL_CASE_PATTERN = Pattern.compile("_(.)");
 
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
     private final File testFile;
     private final ReportGeneratorConfiguration configuration;
 
@@ -100,6 +112,26 @@ public class LocalReportGenerator {
      */
     private final ResultCollector resultCollector;
 
+    /**
+     * 统计及图表的工作线程，生成测试报告期间有效。
+     */
+    private ExecutorService consumerExecutor;
+
+    /**
+     * 生成进度及取消标记，为null时不统计进度。
+     */
+    private ReportProgress progress;
+
+    /**
+     * 只使用切片中的记录，为null时使用全部记录。
+     */
+    private ResultSlice slice;
+
+    /**
+     * 生成测试报告时顺便计算的汇总统计，保存到数据库中。
+     */
+    private SliceStatistics statistics;
+
     /**
      * Instantiates a new report generator.
      *
@@ -120,7 +152,8 @@ public class LocalReportGenerator {
 
         File file = new File(resultsFile);
         if (resultCollector == null) {
-            if (!(file.isFile() && file.canRead())) {
+            // 压缩的结果文件只有.gz的分段存在
+            if (!(file.isFile() && file.canRead()) && !ResultFileSegments.exists(file)) {
                 throw new IllegalArgumentException(String.format(
                         "Cannot read test results file : %s", file));
             }
@@ -178,6 +211,54 @@ public class LocalReportGenerator {
         return buffer.toString();
     }
 
+    /**
+     * 读取测试结果文件时更新进度，取消之后读取及生成测试报告抛出异常结束。
+     * 设置了进度时csv结果文件也使用ResultFileSampleSource读取，读取出来的数据和CsvFileSampleSource一致。
+     */
+    public void setProgress(ReportProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * 只使用切片中的记录生成测试报告或者统计，有索引的csv分段只读取相关的数据块。
+     */
+    public void setSlice(ResultSlice slice) {
+        this.slice = slice;
+    }
+
+    /**
+     * 只计算汇总统计，不生成测试报告目录，和设置了切片时一起使用。
+     * 和测试报告一样，只统计jmeter.reportgenerator.sample_filter匹配的请求。
+     */
+    public List<SliceStatistics.Row> statistics() throws GenerationException {
+        ExecutorService parseExecutor = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+        try {
+            SliceStatistics statistics = new SliceStatistics();
+            SampleSource source = createResultFileSource(parseExecutor);
+            source.setSampleContext(new SampleContext());
+            FilterConsumer nameFilter = new FilterConsumer();
+            nameFilter.setName(NAME_FILTER_CONSUMER_NAME);
+            nameFilter.setSamplePredicate(createNamePredicate());
+            nameFilter.addSampleConsumer(statistics);
+            source.addSampleConsumer(nameFilter);
+            source.run();
+            return statistics.getRows();
+        } catch (SampleException ex) {
+            throw new GenerationException("Error while processing samples:" + ex.getMessage(), ex);
+        } finally {
+            if (parseExecutor != null) {
+                parseExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * generate之后的汇总统计，没有生成过时返回null。
+     */
+    public List<SliceStatistics.Row> getStatistics() {
+        return statistics == null ? null : statistics.getRows();
+    }
+
     /**
      * Generate dashboard reports using the data from the specified CSV File.
      * zyanycall fixed
@@ -196,12 +277,90 @@ public class LocalReportGenerator {
         File tmpDir = configuration.getTempDirectory();
         boolean tmpDirCreated = createTempDir(tmpDir);
 
+        // 只有一个CPU时并行没有收益，仍然单线程处理。
+        ExecutorService parseExecutor = null;
+        if (PARALLELISM > 1) {
+            parseExecutor = new ForkJoinPool(PARALLELISM);
+            AtomicInteger threadIndex = new AtomicInteger();
+            consumerExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "report-consumer-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        try {
+            generate(reportPathDir, tmpDir, parseExecutor);
+        } finally {
+            if (parseExecutor != null) {
+                parseExecutor.shutdownNow();
+                consumerExecutor.shutdownNow();
+                consumerExecutor = null;
+            }
+        }
+
+        removeTempDir(tmpDir, tmpDirCreated);
+
+        log.debug("End of report generation");
+
+    }
+
+    private void generate(String reportPathDir, File tmpDir, ExecutorService parseExecutor) throws GenerationException {
         // Build consumers chain
         SampleContext sampleContext = new SampleContext();
         sampleContext.setWorkingDirectory(tmpDir);
-        SampleSource source = new CsvFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        // 二进制格式、压缩或者分段的测试结果文件使用对应的数据源，读取出来的数据和csv一致。
+        // csv文件按数据块并行解析，编码不支持按字节切分时仍然使用Jmeter的CsvFileSampleSource。
+        SampleSource source;
+        if (ResultFileSampleSource.isNeeded(testFile) || progress != null || slice != null
+                || (parseExecutor != null && ParallelCsvSampleReader.isSupported(CSV_DEFAULT_SEPARATOR))) {
+            source = createResultFileSource(parseExecutor);
+        } else {
+            source = new CsvFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        }
         source.setSampleContext(sampleContext);
+        // 汇总统计和测试报告共用一次读取，不需要再读取一遍结果文件。
+        // 和测试报告的统计表一样放在名称过滤之后，只统计sample_filter匹配的请求。
+        statistics = new SliceStatistics();
+        NormalizerSampleConsumer consumers = createConsumers(false, statistics);
+        source.addSampleConsumer(consumers);
 
+        // Generate data
+        log.debug("Start samples processing");
+        try {
+            source.run(); // NOSONAR
+        } catch (SampleException ex) {
+            throw new GenerationException("Error while processing samples:"+ex.getMessage(), ex);
+        }
+        log.debug("End of samples processing");
+
+        if (progress != null) {
+            progress.checkCancelled();
+        }
+        export(sampleContext, reportPathDir);
+    }
+
+    private ResultFileSampleSource createResultFileSource(ExecutorService parseExecutor) {
+        ResultFileSampleSource source = new ResultFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR,
+                parseExecutor, PARALLELISM);
+        source.setProgress(progress);
+        source.setSlice(slice);
+        return source;
+    }
+
+    /**
+     * 构建统计及图表的消费者链，返回链的入口。
+     *
+     * @param rolling 是否是滚动测试报告使用，统计及图表stopConsuming之后保留数据（RollingConsumers），
+     *                结束时需要再次读取全部数据的图表（XX vs Request）不加入。
+     */
+    NormalizerSampleConsumer createConsumers(boolean rolling) throws GenerationException {
+        return createConsumers(rolling, null);
+    }
+
+    /**
+     * @param summary 额外的汇总统计，和测试报告的统计表一样放在名称过滤之后，可以为null
+     */
+    private NormalizerSampleConsumer createConsumers(boolean rolling, SampleConsumer summary) throws GenerationException {
         NormalizerSampleConsumer normalizer = new NormalizerSampleConsumer();
         normalizer.setName(NORMALIZER_CONSUMER_NAME);
 
@@ -209,9 +368,12 @@ public class LocalReportGenerator {
         dateRangeConsumer.addSampleConsumer(createBeginDateConsumer());
         dateRangeConsumer.addSampleConsumer(createEndDateConsumer());
 
-        FilterConsumer nameFilter = createNameFilter();
+        FilterConsumer nameFilter = createNameFilter(rolling);
+        if (summary != null) {
+            nameFilter.addSampleConsumer(fanOut(summary));
+        }
 
-        FilterConsumer excludeControllerFilter = createExcludeControllerFilter();
+        FilterConsumer excludeControllerFilter = createExcludeControllerFilter(rolling);
 
         nameFilter.addSampleConsumer(excludeControllerFilter);
 
@@ -219,8 +381,6 @@ public class LocalReportGenerator {
 
         normalizer.addSampleConsumer(dateRangeConsumer);
 
-        source.addSampleConsumer(normalizer);
-
         // Get graph configurations
         Map<String, GraphConfiguration> graphConfigurations = configuration
                 .getGraphConfigurations();
@@ -229,43 +389,45 @@ public class LocalReportGenerator {
         for (Map.Entry<String, GraphConfiguration> entryGraphCfg : graphConfigurations
                 .entrySet()) {
             addGraphConsumer(nameFilter, excludeControllerFilter,
-                    entryGraphCfg);
+                    entryGraphCfg, rolling);
         }
+        return normalizer;
+    }
 
-        // Generate data
-        log.debug("Start samples processing");
-        try {
-            source.run(); // NOSONAR
-        } catch (SampleException ex) {
-            throw new GenerationException("Error while processing samples:"+ex.getMessage(), ex);
-        }
-        log.debug("End of samples processing");
-
+    /**
+     * 使用统计结果生成测试报告目录。
+     * 生成的目录通过Jmeter的全局属性传给exporter，同一时间只能有一个在生成。
+     */
+    void export(SampleContext sampleContext, String reportPathDir) throws GenerationException {
         log.debug("Start data exporting");
 
         // Process configuration to build data exporters
         String key;
         ExporterConfiguration value;
 
-        // zyanycall add
-        JMeterUtils.setProperty(JMeter.JMETER_REPORT_OUTPUT_DIR_PROPERTY, reportPathDir);
-        // zyanycall add end
+        synchronized (LocalReportGenerator.class) {
+            // zyanycall add
+            JMeterUtils.setProperty(JMeter.JMETER_REPORT_OUTPUT_DIR_PROPERTY, reportPathDir);
+            // zyanycall add end
 
-        for (Map.Entry<String, ExporterConfiguration> entry : configuration.getExportConfigurations().entrySet()) {
-            key = entry.getKey();
-            value = entry.getValue();
-            if (log.isInfoEnabled()) {
-                log.info("Exporting data using exporter:'{}' of className:'{}'", key, value.getClassName());
+            for (Map.Entry<String, ExporterConfiguration> entry : configuration.getExportConfigurations().entrySet()) {
+                key = entry.getKey();
+                value = entry.getValue();
+                if (log.isInfoEnabled()) {
+                    log.info("Exporting data using exporter:'{}' of className:'{}'", key, value.getClassName());
+                }
+                exportData(sampleContext, key, value);
             }
-            exportData(sampleContext, key, value);
         }
 
         log.debug("End of data exporting");
+    }
 
-        removeTempDir(tmpDir, tmpDirCreated);
-
-        log.debug("End of report generation");
-
+    /**
+     * 统计及图表包装成在单独线程中执行的消费者。
+     */
+    private SampleConsumer fanOut(SampleConsumer consumer) {
+        return consumerExecutor == null ? consumer : new AsyncSampleConsumer(consumer, consumerExecutor);
     }
 
     /**
@@ -322,7 +484,8 @@ public class LocalReportGenerator {
 
     private void addGraphConsumer(FilterConsumer nameFilter,
                                   FilterConsumer excludeControllerFilter,
-                                  Map.Entry<String, GraphConfiguration> entryGraphCfg)
+                                  Map.Entry<String, GraphConfiguration> entryGraphCfg,
+                                  boolean rolling)
             throws GenerationException {
         String graphName = entryGraphCfg.getKey();
         GraphConfiguration graphConfiguration = entryGraphCfg.getValue();
@@ -333,6 +496,10 @@ public class LocalReportGenerator {
             Class<?> clazz = Class.forName(className);
             Object obj = clazz.newInstance();
             AbstractGraphConsumer graph = (AbstractGraphConsumer) obj;
+            if (rolling && graph instanceof AbstractVersusRequestsGraphConsumer) {
+                log.info("Skip graph '{}' in rolling report", graphName);
+                return;
+            }
             graph.setName(graphName);
 
             // Set the graph title
@@ -349,12 +516,15 @@ public class LocalReportGenerator {
                 setProperty(className, obj, methods, propertyName,
                         propertyValue, setterName);
             }
+            if (rolling) {
+                RollingConsumers.retain(graph);
+            }
 
             // Choose which entry point to use to plug the graph
             AbstractSampleConsumer entryPoint = graphConfiguration
                     .excludesControllers() ? excludeControllerFilter
                     : nameFilter;
-            entryPoint.addSampleConsumer(graph);
+            entryPoint.addSampleConsumer(fanOut(graph));
         } catch (ClassNotFoundException | IllegalAccessException
                 | InstantiationException | ClassCastException ex) {
             String error = String.format(INVALID_CLASS_FMT, className);
@@ -388,33 +558,36 @@ public class LocalReportGenerator {
         }
     }
 
-    private ErrorsSummaryConsumer createErrorsSummaryConsumer() {
-        ErrorsSummaryConsumer errorsSummaryConsumer = new ErrorsSummaryConsumer();
+    private ErrorsSummaryConsumer createErrorsSummaryConsumer(boolean rolling) {
+        ErrorsSummaryConsumer errorsSummaryConsumer = rolling ? new RollingConsumers.ErrorsSummary()
+                : new ErrorsSummaryConsumer();
         errorsSummaryConsumer.setName(ERRORS_SUMMARY_CONSUMER_NAME);
         return errorsSummaryConsumer;
     }
 
-    private FilterConsumer createExcludeControllerFilter() {
+    private FilterConsumer createExcludeControllerFilter(boolean rolling) {
         FilterConsumer excludeControllerFilter = new FilterConsumer();
         excludeControllerFilter
                 .setName(START_INTERVAL_CONTROLLER_FILTER_CONSUMER_NAME);
         excludeControllerFilter
                 .setSamplePredicate(new ControllerSamplePredicate());
         excludeControllerFilter.setReverseFilter(true);
-        excludeControllerFilter.addSampleConsumer(createErrorsSummaryConsumer());
+        excludeControllerFilter.addSampleConsumer(fanOut(createErrorsSummaryConsumer(rolling)));
         return excludeControllerFilter;
     }
 
-    private SampleConsumer createTop5ErrorsConsumer(ReportGeneratorConfiguration configuration) {
-        Top5ErrorsBySamplerConsumer top5ErrorsBySamplerConsumer = new Top5ErrorsBySamplerConsumer();
+    private SampleConsumer createTop5ErrorsConsumer(ReportGeneratorConfiguration configuration, boolean rolling) {
+        Top5ErrorsBySamplerConsumer top5ErrorsBySamplerConsumer = rolling ? new RollingConsumers.Top5ErrorsBySampler()
+                : new Top5ErrorsBySamplerConsumer();
         top5ErrorsBySamplerConsumer.setName(TOP5_ERRORS_BY_SAMPLER_CONSUMER_NAME);
         top5ErrorsBySamplerConsumer.setHasOverallResult(true);
         top5ErrorsBySamplerConsumer.setIgnoreTransactionController(configuration.isIgnoreTCFromTop5ErrorsBySampler());
         return top5ErrorsBySamplerConsumer;
     }
 
-    private StatisticsSummaryConsumer createStatisticsSummaryConsumer() {
-        StatisticsSummaryConsumer statisticsSummaryConsumer = new StatisticsSummaryConsumer();
+    private StatisticsSummaryConsumer createStatisticsSummaryConsumer(boolean rolling) {
+        StatisticsSummaryConsumer statisticsSummaryConsumer = rolling ? new RollingConsumers.StatisticsSummary()
+                : new StatisticsSummaryConsumer();
         statisticsSummaryConsumer.setName(STATISTICS_SUMMARY_CONSUMER_NAME);
         statisticsSummaryConsumer.setHasOverallResult(true);
         return statisticsSummaryConsumer;
@@ -426,8 +599,9 @@ public class LocalReportGenerator {
         return requestsSummaryConsumer;
     }
 
-    private ApdexSummaryConsumer createApdexSummaryConsumer() {
-        ApdexSummaryConsumer apdexSummaryConsumer = new ApdexSummaryConsumer();
+    private ApdexSummaryConsumer createApdexSummaryConsumer(boolean rolling) {
+        ApdexSummaryConsumer apdexSummaryConsumer = rolling ? new RollingConsumers.ApdexSummary()
+                : new ApdexSummaryConsumer();
         apdexSummaryConsumer.setName(APDEX_SUMMARY_CONSUMER_NAME);
         apdexSummaryConsumer.setHasOverallResult(true);
         apdexSummaryConsumer.setThresholdSelector(sampleName -> {
@@ -460,13 +634,8 @@ public class LocalReportGenerator {
         return apdexSummaryConsumer;
     }
 
-    /**
-     * @return a {@link FilterConsumer} that filters samplers based on their name
-     */
-    private FilterConsumer createNameFilter() {
-        FilterConsumer nameFilter = new FilterConsumer();
-        nameFilter.setName(NAME_FILTER_CONSUMER_NAME);
-        nameFilter.setSamplePredicate(sample -> {
+    private SamplePredicate createNamePredicate() {
+        return sample -> {
             // Get filtered samples from configuration
             Pattern filteredSamplesPattern = configuration
                     .getFilteredSamplesPattern();
@@ -474,11 +643,20 @@ public class LocalReportGenerator {
             // or if its name matches the filter pattern
             return filteredSamplesPattern == null
                     || filteredSamplesPattern.matcher(sample.getName()).matches();
-        });
-        nameFilter.addSampleConsumer(createApdexSummaryConsumer());
-        nameFilter.addSampleConsumer(createRequestsSummaryConsumer());
-        nameFilter.addSampleConsumer(createStatisticsSummaryConsumer());
-        nameFilter.addSampleConsumer(createTop5ErrorsConsumer(configuration));
+        };
+    }
+
+    /**
+     * @return a {@link FilterConsumer} that filters samplers based on their name
+     */
+    private FilterConsumer createNameFilter(boolean rolling) {
+        FilterConsumer nameFilter = new FilterConsumer();
+        nameFilter.setName(NAME_FILTER_CONSUMER_NAME);
+        nameFilter.setSamplePredicate(createNamePredicate());
+        nameFilter.addSampleConsumer(fanOut(createApdexSummaryConsumer(rolling)));
+        nameFilter.addSampleConsumer(fanOut(createRequestsSummaryConsumer()));
+        nameFilter.addSampleConsumer(fanOut(createStatisticsSummaryConsumer(rolling)));
+        nameFilter.addSampleConsumer(fanOut(createTop5ErrorsConsumer(configuration, rolling)));
         return nameFilter;
     }
 
@@ -0,0 +1,375 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.ResultFileCommit;
+import io.renren.modules.test.jmeter.writer.ResultReader;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetaDataParser;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.save.SaveService;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * csv测试结果文件的并行解析，替代Jmeter的CsvSampleReader给测试报告使用。
+ * <p>
+ * 拆分线程按csv的引号规则把文件切成在记录边界上的数据块（约1MB），每个数据块交给线程池解析，
+ * 读取时按文件中的顺序取出数据块的解析结果，依次分配行号，读取出来的Sample和顺序读取完全一致。
+ * 表头、列数的检查及每行的解析规则都和CsvSampleReader相同。
+ * 同时在解析中的数据块数量有上限，内存占用和文件大小无关。
+ * <p>
+ * 只支持分隔符、引号、换行都是单字节的编码（如UTF-8、GBK），其他编码仍然使用CsvSampleReader。
+ */
+public class ParallelCsvSampleReader implements ResultReader {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelCsvSampleReader.class);
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    static final Charset CHARSET = Charset.forName(
+            SaveService.getFileEncoding(StandardCharsets.UTF_8.displayName()));
+
+    private static final Chunk END = new Chunk(Collections.emptyList(), 0, null);
+
+    private final File file;
+
+    private final SampleMetadata metadata;
+
+    private final char separator;
+
+    /**
+     * 每行应有的列数，没有表头时包括sample_variables的列。
+     */
+    private final int columnCount;
+
+    private final ExecutorService parseExecutor;
+
+    private final BlockingQueue<Future<Chunk>> chunks;
+
+    private final Thread splitter;
+
+    private volatile boolean closed;
+
+    private List<String[]> rows = Collections.emptyList();
+
+    private int rowIndex;
+
+    private Exception chunkError;
+
+    private long row;
+
+    private boolean eof;
+
+    /**
+     * 已经取出的数据块及表头的字节数。
+     */
+    private long position;
+
+    /**
+     * @param separator     没有表头时使用的分隔符，有表头时和CsvSampleReader一样使用表头解析出来的分隔符
+     * @param parseExecutor 解析数据块的线程池，同时在解析中的数据块不超过线程池并行度的两倍
+     */
+    public ParallelCsvSampleReader(File file, char separator, ExecutorService parseExecutor, int parallelism)
+            throws IOException {
+        this(file, separator, parseExecutor, parallelism, null);
+    }
+
+    /**
+     * 只读取文件中指定的范围（如ResultFileIndex选出来的数据块），每个范围都从记录的开始到记录的结束。
+     * 位置从第一个范围的开始计算。
+     *
+     * @param parseExecutor 解析数据块的线程池，null时在拆分线程中解析
+     * @param ranges        按顺序排列的[开始, 结束)，null表示表头之后的全部数据
+     */
+    public ParallelCsvSampleReader(File file, char separator, ExecutorService parseExecutor, int parallelism,
+                                   List<long[]> ranges) throws IOException {
+        this.file = file;
+        this.parseExecutor = parseExecutor;
+        this.chunks = new ArrayBlockingQueue<>(Math.max(parallelism, 1) * 2);
+
+        long limit = ResultFileCommit.getReadableLength(file);
+        int headerLength = 0;
+        String header = null;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while (headerLength < limit && (b = in.read()) >= 0) {
+                headerLength++;
+                if (b == '\n') {
+                    break;
+                }
+                if (b == '\r') {
+                    // 和BufferedReader.readLine一致，\r\n是一个换行
+                    if (headerLength < limit && in.read() == '\n') {
+                        headerLength++;
+                    }
+                    break;
+                }
+                line.write(b);
+            }
+            if (headerLength > 0) {
+                header = new String(line.toByteArray(), CHARSET);
+            }
+        }
+        if (header == null) {
+            this.metadata = null;
+            this.separator = separator;
+            this.columnCount = 0;
+            this.splitter = null;
+            return;
+        }
+
+        Header parsed = Header.parse(header, separator, file);
+        this.metadata = parsed.metadata;
+        this.separator = metadata.getSeparator();
+        this.columnCount = parsed.columnCount;
+
+        List<long[]> toRead = ranges != null ? ranges : Collections.singletonList(new long[]{headerLength, limit});
+        this.position = toRead.isEmpty() ? headerLength : toRead.get(0)[0];
+        this.splitter = new Thread(() -> split(toRead, limit), "report-csv-splitter-" + file.getName());
+        this.splitter.setDaemon(true);
+        this.splitter.start();
+    }
+
+    /**
+     * 当前的编码及分隔符是否可以按字节切分记录。
+     */
+    public static boolean isSupported(char separator) {
+        byte[] expected = {'"', '\r', '\n', (byte) separator};
+        return separator < 0x80
+                && Arrays.equals(("\"\r\n" + separator).getBytes(CHARSET), expected);
+    }
+
+    @Override
+    public SampleMetadata getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public Sample readSample() throws IOException {
+        while (rowIndex >= rows.size()) {
+            if (chunkError != null) {
+                Exception e = chunkError;
+                chunkError = null;
+                eof = true;
+                if (e instanceof SampleException) {
+                    throw (SampleException) e;
+                }
+                throw new SampleException("Could not read sample <" + row + ">", e);
+            }
+            if (eof || metadata == null) {
+                return null;
+            }
+            Chunk chunk = takeChunk();
+            if (chunk == END) {
+                eof = true;
+                return null;
+            }
+            rows = chunk.rows;
+            rowIndex = 0;
+            position += chunk.length;
+            chunkError = chunk.error;
+        }
+        String[] data = rows.get(rowIndex);
+        rows.set(rowIndex++, null);
+        return new Sample(row++, metadata, data);
+    }
+
+    private Chunk takeChunk() throws IOException {
+        try {
+            return chunks.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("读取测试结果文件被中断！" + file);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new SampleException("Could not read sample <" + row + ">", cause);
+        }
+    }
+
+    /**
+     * 在拆分线程中执行，找到记录的边界切分数据块，提交给线程池解析。
+     */
+    private void split(List<long[]> ranges, long limit) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (long[] range : ranges) {
+                if (closed) {
+                    break;
+                }
+                splitRange(channel, range[0], Math.min(range[1], limit));
+            }
+            chunks.put(CompletableFuture.completedFuture(END));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            CompletableFuture<Chunk> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                chunks.put(failed);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void splitRange(FileChannel channel, long position, long limit) throws IOException, InterruptedException {
+        CsvRecordScanner scanner = new CsvRecordScanner(separator);
+        byte[] carry = new byte[0];
+        int carryStart = 0;
+        int carryLength = 0;
+        while (position < limit && !closed) {
+            int toRead = (int) Math.min(CHUNK_SIZE, limit - position);
+            byte[] bytes = new byte[carryLength + toRead];
+            System.arraycopy(carry, carryStart, bytes, 0, carryLength);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, carryLength, toRead);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            int length = buffer.position();
+            if (length == carryLength) {
+                break;
+            }
+            // 上次扫描到carry的末尾，只扫描新读取的部分。
+            int cut = Math.max(scanner.scan(bytes, carryLength, length), 0);
+            if (cut > 0) {
+                submit(bytes, cut);
+            }
+            carry = bytes;
+            carryStart = cut;
+            carryLength = length - cut;
+        }
+        // 最后没有换行结尾的一行，和CsvSampleReader一样按一行解析。
+        if (carryLength > 0 && !closed) {
+            submit(Arrays.copyOfRange(carry, carryStart, carryStart + carryLength), carryLength);
+        }
+    }
+
+    private void submit(byte[] bytes, int length) throws InterruptedException {
+        if (parseExecutor == null) {
+            chunks.put(CompletableFuture.completedFuture(parse(bytes, length)));
+        } else {
+            chunks.put(parseExecutor.submit(() -> parse(bytes, length)));
+        }
+    }
+
+    /**
+     * 在线程池中执行，解析一个数据块，出错时返回出错之前的行及错误。
+     */
+    private Chunk parse(byte[] bytes, int length) {
+        List<String[]> result = new ArrayList<>(length / 128 + 16);
+        BufferedReader reader = new BufferedReader(new StringReader(new String(bytes, 0, length, CHARSET)), 64 * 1024);
+        try {
+            String[] data;
+            while ((data = CSVSaveService.csvReadFile(reader, separator)).length > 0) {
+                if (data.length != columnCount) {
+                    return new Chunk(result, length, new SampleException("Mismatch between expected number of columns:"
+                            + metadata.getColumnCount() + " and columns in CSV file:" + data.length
+                            + ", check your jmeter.save.saveservice.* configuration or check line is complete"));
+                }
+                result.add(data);
+            }
+        } catch (IOException e) {
+            return new Chunk(result, length, e);
+        }
+        return new Chunk(result, length, null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (splitter != null) {
+            splitter.interrupt();
+            Future<Chunk> future;
+            while ((future = chunks.poll()) != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 表头的解析结果，和CsvSampleReader的规则一致。
+     */
+    static class Header {
+
+        final SampleMetadata metadata;
+
+        /**
+         * 每行应有的列数，没有表头时包括sample_variables的列。
+         */
+        final int columnCount;
+
+        /**
+         * 第一行是否是表头，不是表头时第一行就是数据。
+         */
+        final boolean hasHeaders;
+
+        private Header(SampleMetadata metadata, int columnCount, boolean hasHeaders) {
+            this.metadata = metadata;
+            this.columnCount = columnCount;
+            this.hasHeaders = hasHeaders;
+        }
+
+        /**
+         * @param line      第一行，不包括换行
+         * @param separator 没有表头时使用的分隔符
+         */
+        static Header parse(String line, char separator, File file) {
+            if (CSVSaveService.getSampleSaveConfiguration(line, file.getAbsolutePath()) == null) {
+                log.warn("File '{}' does not contain the field names header, ensure the jmeter.save.saveservice.* properties "
+                        + "are the same as when the CSV file was created or the file may be read incorrectly "
+                        + "when generating report", file.getAbsolutePath());
+                SampleMetadata metadata = new SampleMetadata(SampleSaveConfiguration.staticConfig());
+                String vars = JMeterUtils.getProperty("sample_variables");
+                int sampleVariables = vars != null ? vars.split(",").length : 0;
+                return new Header(metadata, metadata.getColumnCount() + sampleVariables, false);
+            }
+            SampleMetadata metadata = new SampleMetaDataParser(separator).parse(line);
+            return new Header(metadata, metadata.getColumnCount(), true);
+        }
+    }
+
+    private static class Chunk {
+
+        private final List<String[]> rows;
+
+        /**
+         * 数据块的字节数
+         */
+        private final int length;
+
+        private final Exception error;
+
+        private Chunk(List<String[]> rows, int length, Exception error) {
+            this.rows = rows;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
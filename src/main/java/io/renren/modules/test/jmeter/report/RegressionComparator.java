@@ -0,0 +1,319 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
+import io.renren.modules.test.jmeter.calculator.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 同一个脚本两次压测的汇总统计对比（基线和候选），按请求名称计算变化并判断是否有性能回归。
+ * <p>
+ * 吞吐量下降、平均及百分位响应时间上升超过配置的百分比，或者失败率上升超过配置的百分点时算回归。
+ * 只使用保存的汇总统计，不需要读取结果文件：
+ * 百分位响应时间来自LatencyHistogram，两次的差异在直方图的误差之内时不算回归；
+ * 失败率的上升还需要通过两比例z检验（单侧95%置信度），请求少时的偶然失败不算回归；
+ * 任一次请求数少于minSamples的请求名称不做判断。
+ */
+public class RegressionComparator {
+
+    public static final String TPS = "tps";
+
+    public static final String ERROR_PCT = "errorPct";
+
+    public static final String MEAN = "mean";
+
+    public static final String PCT50 = "pct50";
+
+    public static final String PCT90 = "pct90";
+
+    public static final String PCT95 = "pct95";
+
+    public static final String PCT99 = "pct99";
+
+    /**
+     * 单侧95%置信度的z值。
+     */
+    private static final double Z_95 = 1.645;
+
+    public enum Status {
+        /**
+         * 没有回归
+         */
+        PASS,
+        /**
+         * 有性能回归
+         */
+        REGRESSION,
+        /**
+         * 请求数太少，不做判断
+         */
+        INSUFFICIENT,
+        /**
+         * 只有候选中有的请求名称
+         */
+        ADDED,
+        /**
+         * 只有基线中有的请求名称
+         */
+        MISSING
+    }
+
+    private final double tpsDropPct;
+
+    private final double latencyRisePct;
+
+    private final double errorRisePct;
+
+    private final long minSamples;
+
+    /**
+     * @param tpsDropPct     吞吐量下降超过这个百分比算回归
+     * @param latencyRisePct 平均及百分位响应时间上升超过这个百分比算回归
+     * @param errorRisePct   失败率上升超过这个百分点算回归
+     * @param minSamples     任一次请求数少于这个数时不做判断
+     */
+    public RegressionComparator(double tpsDropPct, double latencyRisePct, double errorRisePct, long minSamples) {
+        this.tpsDropPct = tpsDropPct;
+        this.latencyRisePct = latencyRisePct;
+        this.errorRisePct = errorRisePct;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * 全部请求的合计在最前面，之后按基线中的顺序，最后是只有候选中有的请求名称。
+     */
+    public Result compare(Long baselineReportId, List<StressTestReportStatsEntity> baseline,
+                          Long candidateReportId, List<StressTestReportStatsEntity> candidate) {
+        Map<String, StressTestReportStatsEntity> candidates = new LinkedHashMap<>();
+        for (StressTestReportStatsEntity stat : candidate) {
+            candidates.put(key(stat), stat);
+        }
+        List<Row> rows = new ArrayList<>();
+        for (StressTestReportStatsEntity stat : baseline) {
+            rows.add(compare(stat, candidates.remove(key(stat))));
+        }
+        for (StressTestReportStatsEntity stat : candidates.values()) {
+            rows.add(compare(null, stat));
+        }
+        rows.sort((a, b) -> Boolean.compare(b.isOverall(), a.isOverall()));
+        return new Result(baselineReportId, candidateReportId, rows);
+    }
+
+    /**
+     * 请求名称也可能是Total，合计行单独区分。
+     */
+    private static String key(StressTestReportStatsEntity stat) {
+        return Integer.valueOf(1).equals(stat.getOverall()) ? "\u0000overall" : stat.getLabel();
+    }
+
+    private Row compare(StressTestReportStatsEntity base, StressTestReportStatsEntity cand) {
+        Row row = new Row(base, cand);
+        if (base == null) {
+            row.status = Status.ADDED;
+            return row;
+        }
+        if (cand == null) {
+            row.status = Status.MISSING;
+            return row;
+        }
+        row.tpsChange = changePct(base.getTps(), cand.getTps());
+        row.errorPctChange = value(cand.getErrorPct()) - value(base.getErrorPct());
+        row.meanChange = changePct(base.getMean(), cand.getMean());
+        row.pct50Change = changePct(base.getPct50(), cand.getPct50());
+        row.pct90Change = changePct(base.getPct90(), cand.getPct90());
+        row.pct95Change = changePct(base.getPct95(), cand.getPct95());
+        row.pct99Change = changePct(base.getPct99(), cand.getPct99());
+        if (value(base.getSamples()) < minSamples || value(cand.getSamples()) < minSamples) {
+            row.status = Status.INSUFFICIENT;
+            return row;
+        }
+        if (row.tpsChange != null && -row.tpsChange > tpsDropPct) {
+            row.regressions.add(TPS);
+        }
+        if (row.errorPctChange > errorRisePct && isErrorRiseSignificant(base, cand)) {
+            row.regressions.add(ERROR_PCT);
+        }
+        if (row.meanChange != null && row.meanChange > latencyRisePct) {
+            row.regressions.add(MEAN);
+        }
+        checkPercentile(row, PCT50, base.getPct50(), cand.getPct50(), row.pct50Change);
+        checkPercentile(row, PCT90, base.getPct90(), cand.getPct90(), row.pct90Change);
+        checkPercentile(row, PCT95, base.getPct95(), cand.getPct95(), row.pct95Change);
+        checkPercentile(row, PCT99, base.getPct99(), cand.getPct99(), row.pct99Change);
+        row.status = row.regressions.isEmpty() ? Status.PASS : Status.REGRESSION;
+        return row;
+    }
+
+    /**
+     * 两个百分位都可能有LatencyHistogram.RELATIVE_ERROR的误差，差异超过两倍误差（且至少1ms）才可能是真的变化。
+     */
+    private void checkPercentile(Row row, String metric, Long base, Long cand, Double change) {
+        if (change == null || change <= latencyRisePct) {
+            return;
+        }
+        double noise = Math.max(2 * LatencyHistogram.RELATIVE_ERROR * value(base), 1);
+        if (value(cand) - value(base) > noise) {
+            row.regressions.add(metric);
+        }
+    }
+
+    /**
+     * 两比例z检验，候选的失败率显著高于基线。
+     */
+    private static boolean isErrorRiseSignificant(StressTestReportStatsEntity base, StressTestReportStatsEntity cand) {
+        double n1 = value(base.getSamples());
+        double n2 = value(cand.getSamples());
+        double p1 = value(base.getErrors()) / n1;
+        double p2 = value(cand.getErrors()) / n2;
+        double pooled = (value(base.getErrors()) + value(cand.getErrors())) / (n1 + n2);
+        double se = Math.sqrt(pooled * (1 - pooled) * (1 / n1 + 1 / n2));
+        return se > 0 && (p2 - p1) / se > Z_95;
+    }
+
+    /**
+     * @return 基线为0时无法计算变化比例，返回null
+     */
+    private static Double changePct(Number base, Number cand) {
+        if (base == null || cand == null || base.doubleValue() == 0) {
+            return null;
+        }
+        return (cand.doubleValue() - base.doubleValue()) * 100 / base.doubleValue();
+    }
+
+    private static double value(Number number) {
+        return number == null ? 0 : number.doubleValue();
+    }
+
+    public static class Result {
+
+        private final Long baselineReportId;
+
+        private final Long candidateReportId;
+
+        private final List<Row> rows;
+
+        private Result(Long baselineReportId, Long candidateReportId, List<Row> rows) {
+            this.baselineReportId = baselineReportId;
+            this.candidateReportId = candidateReportId;
+            this.rows = rows;
+        }
+
+        public Long getBaselineReportId() {
+            return baselineReportId;
+        }
+
+        public Long getCandidateReportId() {
+            return candidateReportId;
+        }
+
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * 任一请求名称（包括全部请求的合计）有回归时整体算回归。
+         */
+        public boolean isRegression() {
+            for (Row row : rows) {
+                if (row.status == Status.REGRESSION) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static class Row {
+
+        private final StressTestReportStatsEntity baseline;
+
+        private final StressTestReportStatsEntity candidate;
+
+        private Status status;
+
+        private final List<String> regressions = new ArrayList<>();
+
+        /**
+         * 变化的百分比，基线为0时为null
+         */
+        private Double tpsChange;
+
+        private Double meanChange;
+
+        private Double pct50Change;
+
+        private Double pct90Change;
+
+        private Double pct95Change;
+
+        private Double pct99Change;
+
+        /**
+         * 失败率变化的百分点
+         */
+        private Double errorPctChange;
+
+        private Row(StressTestReportStatsEntity baseline, StressTestReportStatsEntity candidate) {
+            this.baseline = baseline;
+            this.candidate = candidate;
+        }
+
+        public String getLabel() {
+            return baseline != null ? baseline.getLabel() : candidate.getLabel();
+        }
+
+        public boolean isOverall() {
+            return Integer.valueOf(1).equals((baseline != null ? baseline : candidate).getOverall());
+        }
+
+        public StressTestReportStatsEntity getBaseline() {
+            return baseline;
+        }
+
+        public StressTestReportStatsEntity getCandidate() {
+            return candidate;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * 回归的指标，如tps、pct95
+         */
+        public List<String> getRegressions() {
+            return regressions;
+        }
+
+        public Double getTpsChange() {
+            return tpsChange;
+        }
+
+        public Double getMeanChange() {
+            return meanChange;
+        }
+
+        public Double getPct50Change() {
+            return pct50Change;
+        }
+
+        public Double getPct90Change() {
+            return pct90Change;
+        }
+
+        public Double getPct95Change() {
+            return pct95Change;
+        }
+
+        public Double getPct99Change() {
+            return pct99Change;
+        }
+
+        public Double getErrorPctChange() {
+            return errorPctChange;
+        }
+    }
+}
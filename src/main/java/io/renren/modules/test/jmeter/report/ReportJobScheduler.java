@@ -0,0 +1,304 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * 生成测试报告的任务队列，不再使用公共的异步线程池。
+ * <p>
+ * 同时生成的任务数不超过配置的并发数，同时生成的结果文件大小之和不超过配置的内存上限
+ * （本地生成时统计数据随结果文件增长，按结果文件大小估算内存占用），没有任务在生成时总是开始下一个，
+ * 超过上限的单个大文件也能生成。
+ * 排队的任务中结果文件小的先生成，排队超过STARVATION_MILLIS的按排队顺序优先，大文件不会一直排不上。
+ * 任务可以取消：排队中的直接移出队列，正在生成的通过ReportProgress通知。
+ * 正在生成的任务定时把进度交给ProgressListener（保存到数据库给页面展示）。
+ * <p>
+ * 页面上等待结果的任务（如时间段的统计及测试报告）也在这个队列中，一样受并发数及内存上限的限制，
+ * 同一个key的任务同一时间只有一个，多个请求共用一次的结果。
+ */
+public class ReportJobScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportJobScheduler.class);
+
+    private static final long STARVATION_MILLIS = 10 * 60 * 1000;
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+
+    /**
+     * 共用结果的任务成功结束后，结果再保留的时间，页面等待超时后再次请求时直接取得结果。
+     */
+    private static final long SHARED_RESULT_RETAIN_MILLIS = 60 * 1000;
+
+    public interface Task {
+        void run(ReportProgress progress) throws Exception;
+    }
+
+    public interface Computation<T> {
+        T run(ReportProgress progress) throws Exception;
+    }
+
+    public interface ProgressListener {
+        void onProgress(Long jobId, ReportProgress progress);
+    }
+
+    public enum CancelResult {
+        /**
+         * 排队中的任务已经移出队列，不会再生成。
+         */
+        DEQUEUED,
+        /**
+         * 正在生成的任务已经通知取消，任务自己结束并更新状态。
+         */
+        SIGNALLED,
+        /**
+         * 没有这个任务。
+         */
+        NOT_FOUND
+    }
+
+    private final IntSupplier parallelism;
+
+    private final LongSupplier memoryBudget;
+
+    private final ProgressListener progressListener;
+
+    private final List<Job> queued = new ArrayList<>();
+
+    private final Map<Object, Job> running = new LinkedHashMap<>();
+
+    /**
+     * 还没有结束或者刚刚成功结束的共用结果的任务，key是submitShared的key。
+     */
+    private final Map<String, CompletableFuture<?>> shared = new HashMap<>();
+
+    private long runningBytes;
+
+    private long sequence;
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService progressReporter;
+
+    /**
+     * @param parallelism      同时生成的任务数，每次调度时读取，修改配置后立即生效
+     * @param memoryBudget     同时生成的结果文件大小之和的上限（字节）
+     * @param progressListener 定时接收正在生成的任务的进度
+     */
+    public ReportJobScheduler(IntSupplier parallelism, LongSupplier memoryBudget, ProgressListener progressListener) {
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
+        this.progressListener = progressListener;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "report-job-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.progressReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "report-job-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressReporter.scheduleWithFixedDelay(this::reportProgress,
+                PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加入队列，能开始时立即开始。
+     *
+     * @param bytes 结果文件的大小
+     * @return 同一个任务已经在排队或者生成时返回false
+     */
+    public synchronized boolean submit(Long jobId, long bytes, Task task) {
+        if (isActive(jobId)) {
+            return false;
+        }
+        queued.add(new Job(jobId, bytes, task, sequence++, true));
+        dispatch();
+        return true;
+    }
+
+    /**
+     * 加入队列，返回任务结果的Future，用于页面上等待结果的任务。
+     * 同一个key的任务还没有结束时不重复加入，返回同一个Future，不会有两个任务同时写同一个目录。
+     * 成功结束后结果保留SHARED_RESULT_RETAIN_MILLIS，期间同一个key直接返回结果；失败的不保留，再次提交时重新执行。
+     * 这类任务不保存进度，也不能取消。
+     *
+     * @param bytes 需要读取的结果文件的大小
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> CompletableFuture<T> submitShared(String key, long bytes, Computation<T> computation) {
+        CompletableFuture<T> future = (CompletableFuture<T>) shared.get(key);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        shared.put(key, result);
+        queued.add(new Job(key, bytes, progress -> {
+            try {
+                result.complete(computation.run(progress));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+                removeShared(key, result);
+                return;
+            }
+            try {
+                progressReporter.schedule(() -> removeShared(key, result), SHARED_RESULT_RETAIN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 已经shutdown
+                removeShared(key, result);
+            }
+        }, sequence++, false));
+        dispatch();
+        return result;
+    }
+
+    private synchronized void removeShared(String key, CompletableFuture<?> result) {
+        shared.remove(key, result);
+    }
+
+    public synchronized boolean isActive(Long jobId) {
+        return running.containsKey(jobId) || findQueued(jobId) != null;
+    }
+
+    public synchronized CancelResult cancel(Long jobId) {
+        Job job = findQueued(jobId);
+        if (job != null) {
+            queued.remove(job);
+            return CancelResult.DEQUEUED;
+        }
+        job = running.get(jobId);
+        if (job != null) {
+            job.progress.cancel();
+            return CancelResult.SIGNALLED;
+        }
+        return CancelResult.NOT_FOUND;
+    }
+
+    private Job findQueued(Object jobId) {
+        for (Job job : queued) {
+            if (job.jobId.equals(jobId)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按顺序开始能开始的任务，下一个任务放不下时停止，不跳过它开始后面的，避免优先的任务一直等待。
+     */
+    private void dispatch() {
+        while (!queued.isEmpty()) {
+            Job next = pickNext();
+            if (!running.isEmpty() && (running.size() >= Math.max(parallelism.getAsInt(), 1)
+                    || runningBytes + next.bytes > memoryBudget.getAsLong())) {
+                return;
+            }
+            queued.remove(next);
+            start(next);
+        }
+    }
+
+    /**
+     * 排队太久的任务按排队顺序最先，其余结果文件小的先。
+     */
+    private Job pickNext() {
+        long now = System.currentTimeMillis();
+        Job next = null;
+        for (Job job : queued) {
+            if (now - job.queuedAt >= STARVATION_MILLIS) {
+                if (next == null || now - next.queuedAt < STARVATION_MILLIS || job.sequence < next.sequence) {
+                    next = job;
+                }
+            } else if (next == null || (now - next.queuedAt < STARVATION_MILLIS
+                    && (job.bytes < next.bytes || (job.bytes == next.bytes && job.sequence < next.sequence)))) {
+                next = job;
+            }
+        }
+        return next;
+    }
+
+    private void start(Job job) {
+        running.put(job.jobId, job);
+        runningBytes += job.bytes;
+        workers.execute(() -> {
+            try {
+                job.task.run(job.progress);
+            } catch (Throwable e) {
+                logger.error("生成测试报告出错！" + job.jobId, e);
+            } finally {
+                finish(job);
+            }
+        });
+    }
+
+    private synchronized void finish(Job job) {
+        running.remove(job.jobId);
+        runningBytes -= job.bytes;
+        dispatch();
+    }
+
+    private void reportProgress() {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(running.values());
+        }
+        for (Job job : jobs) {
+            if (!job.reportProgress) {
+                continue;
+            }
+            try {
+                progressListener.onProgress((Long) job.jobId, job.progress);
+            } catch (Throwable e) {
+                logger.warn("保存测试报告生成进度出错！" + job.jobId, e);
+            }
+        }
+    }
+
+    /**
+     * 停止调度，排队中的任务不再开始，正在生成的任务通知取消，不等待结束。
+     */
+    public synchronized void shutdown() {
+        queued.clear();
+        shared.values().forEach(future -> future.cancel(false));
+        shared.clear();
+        running.values().forEach(job -> job.progress.cancel());
+        progressReporter.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static class Job {
+
+        /**
+         * 测试报告的id，或者submitShared的key
+         */
+        private final Object jobId;
+
+        private final long bytes;
+
+        private final Task task;
+
+        private final long sequence;
+
+        private final long queuedAt = System.currentTimeMillis();
+
+        private final ReportProgress progress;
+
+        private final boolean reportProgress;
+
+        private Job(Object jobId, long bytes, Task task, long sequence, boolean reportProgress) {
+            this.jobId = jobId;
+            this.bytes = bytes;
+            this.task = task;
+            this.sequence = sequence;
+            this.progress = new ReportProgress(bytes);
+            this.reportProgress = reportProgress;
+        }
+    }
+}
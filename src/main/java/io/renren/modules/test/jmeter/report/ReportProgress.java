@@ -0,0 +1,82 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.SampleException;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 一个测试报告生成任务的进度及取消标记。
+ * <p>
+ * 读取测试结果文件时更新已经读取的字节数，总字节数是全部分段的文件大小（压缩的分段是压缩后的大小）。
+ * 取消时设置标记并执行登记的取消动作（如结束生成测试报告的命令行进程），
+ * 读取测试结果文件的线程检查到标记后抛出Cancelled结束生成。
+ */
+public class ReportProgress {
+
+    private final long totalBytes;
+
+    private volatile long parsedBytes;
+
+    private volatile boolean cancelled;
+
+    private final List<Runnable> cancelActions = new CopyOnWriteArrayList<>();
+
+    public ReportProgress(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getParsedBytes() {
+        return parsedBytes;
+    }
+
+    public void setParsedBytes(long parsedBytes) {
+        this.parsedBytes = Math.min(parsedBytes, totalBytes);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        for (Runnable action : cancelActions) {
+            action.run();
+        }
+    }
+
+    /**
+     * 登记取消时执行的动作，已经取消时直接执行。
+     */
+    public void onCancel(Runnable action) {
+        cancelActions.add(action);
+        if (cancelled) {
+            action.run();
+        }
+    }
+
+    /**
+     * 已经取消时抛出Cancelled，在读取测试结果文件的循环中调用。
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new Cancelled();
+        }
+    }
+
+    /**
+     * 生成被取消，继承SampleException，和读取出错一样沿着Jmeter的数据源及统计向外抛出。
+     */
+    public static class Cancelled extends SampleException {
+
+        private static final long serialVersionUID = 1L;
+
+        public Cancelled() {
+            super("测试报告生成已取消！");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * 测试报告的生成标记，结果文件及生成配置没有变化时直接使用已经生成的测试报告。
+ * <p>
+ * 测试报告生成成功后在测试报告目录旁边保存一个.stamp文件，记录：
+ * 生成配置的摘要（生成方式、Jmeter中jmeter.reportgenerator.*的属性、决定csv如何解析的jmeter.save.saveservice.*及sample_variables属性、
+ * reportgenerator.properties及user.properties的内容）、
+ * 结果文件每个分段的文件名、大小、修改时间，以及已经计算过的全部分段内容的摘要。
+ * 再次生成时先比较大小和修改时间，相同即命中；大小不同一定是内容变了，不命中；
+ * 只有大小相同、修改时间不同时（如文件被复制、touch过）才读取一遍内容计算摘要，和记录的摘要相同也命中，
+ * 并更新记录的修改时间，下次直接命中。
+ * 生成测试报告时不会为了保存标记再读一遍结果文件，只保存这样计算过的摘要。
+ * 所以第一次生成的标记中没有摘要，文件被touch过之后的第一次仍然重新生成，之后的标记才带有摘要。
+ * 重新生成之前删除标记，生成失败或者中断时没有标记，不会误用不完整的测试报告目录。
+ */
+public class ReportStamp {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportStamp.class);
+
+    public static final String SUFFIX = ".stamp";
+
+    private static final String CONFIG_KEY = "config";
+    private static final String SEGMENTS_KEY = "segments";
+    private static final String DIGEST_KEY = "digest";
+
+    private static final String REPORT_GENERATOR_PREFIX = "jmeter.reportgenerator.";
+
+    /**
+     * 分隔符、时间格式、保存的列等，决定结果文件如何解析。
+     */
+    private static final String SAVE_SERVICE_PREFIX = "jmeter.save.saveservice.";
+
+    private static final String SAMPLE_VARIABLES = "sample_variables";
+
+    private final File resultFile;
+
+    private final String config;
+
+    private String segments;
+
+    /**
+     * 内容摘要，只在matches时大小或修改时间不一致才读取文件计算，没有计算过为null。
+     */
+    private String digest;
+
+    private ReportStamp(File resultFile, String config) {
+        this.resultFile = resultFile;
+        this.config = config;
+        this.segments = describeSegments(resultFile);
+    }
+
+    /**
+     * @param mode 生成方式，不同方式生成的测试报告不通用
+     */
+    public static ReportStamp of(File resultFile, String mode) {
+        return new ReportStamp(resultFile, configDigest(mode));
+    }
+
+    public static File getStampFile(String reportPathDir) {
+        return new File(reportPathDir + SUFFIX);
+    }
+
+    public static void deleteQuietly(String reportPathDir) {
+        FileUtils.deleteQuietly(getStampFile(reportPathDir));
+    }
+
+    /**
+     * 测试报告目录是否是用同样的结果文件、同样的配置生成的。
+     */
+    public boolean matches(String reportPathDir) {
+        File stampFile = getStampFile(reportPathDir);
+        if (!stampFile.isFile() || !new File(reportPathDir, "index.html").isFile()) {
+            return false;
+        }
+        Properties stamp = new Properties();
+        try (InputStream in = new FileInputStream(stampFile)) {
+            stamp.load(in);
+        } catch (IOException e) {
+            logger.warn("读取测试报告标记出错！" + stampFile, e);
+            return false;
+        }
+        if (!config.equals(stamp.getProperty(CONFIG_KEY))) {
+            return false;
+        }
+        String stampSegments = stamp.getProperty(SEGMENTS_KEY, "");
+        if (segments.equals(stampSegments)) {
+            return true;
+        }
+        if (!withoutTime(segments).equals(withoutTime(stampSegments))) {
+            return false;
+        }
+        try {
+            // 没有记录摘要时也计算，重新生成之后保存到标记中。
+            String stampDigest = stamp.getProperty(DIGEST_KEY);
+            if (!computeDigest().equals(stampDigest)) {
+                return false;
+            }
+            save(reportPathDir);
+            return true;
+        } catch (IOException e) {
+            logger.warn("计算测试结果文件摘要出错！" + resultFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * 测试报告生成成功之后保存标记，生成之前修复过的结果文件按修复之后的记录。
+     * 不读取结果文件，只保存已经计算过的摘要，修复过的文件摘要已经失效，不保存。
+     */
+    public void save(String reportPathDir) throws IOException {
+        String current = describeSegments(resultFile);
+        if (!current.equals(segments)) {
+            segments = current;
+            digest = null;
+        }
+        Properties stamp = new Properties();
+        stamp.setProperty(CONFIG_KEY, config);
+        stamp.setProperty(SEGMENTS_KEY, segments);
+        if (digest != null) {
+            stamp.setProperty(DIGEST_KEY, digest);
+        }
+        File stampFile = getStampFile(reportPathDir);
+        try (OutputStream out = new FileOutputStream(stampFile)) {
+            stamp.store(out, null);
+        }
+    }
+
+    private String computeDigest() throws IOException {
+        if (digest == null) {
+            MessageDigest md = newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            for (File segment : ResultFileSegments.listSegments(resultFile)) {
+                try (InputStream in = new FileInputStream(segment)) {
+                    int len;
+                    while ((len = in.read(buffer)) > 0) {
+                        md.update(buffer, 0, len);
+                    }
+                }
+            }
+            digest = Hex.encodeHexString(md.digest());
+        }
+        return digest;
+    }
+
+    /**
+     * 去掉分段描述中的修改时间，只保留文件名和大小。
+     */
+    private static String withoutTime(String segments) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : segments.split(";")) {
+            int index = segment.lastIndexOf(':');
+            sb.append(index < 0 ? segment : segment.substring(0, index)).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static String describeSegments(File resultFile) {
+        StringBuilder sb = new StringBuilder();
+        for (File segment : ResultFileSegments.listSegments(resultFile)) {
+            sb.append(segment.getName()).append(':').append(segment.length())
+                    .append(':').append(segment.lastModified()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 生成配置的摘要，需要在加载Jmeter的配置之后调用。
+     */
+    private static String configDigest(String mode) {
+        MessageDigest md = newDigest();
+        md.update(mode.getBytes(StandardCharsets.UTF_8));
+        TreeMap<String, String> properties = new TreeMap<>();
+        for (String name : JMeterUtils.getJMeterProperties().stringPropertyNames()) {
+            if (name.startsWith(REPORT_GENERATOR_PREFIX) || name.startsWith(SAVE_SERVICE_PREFIX)
+                    || name.equals(SAMPLE_VARIABLES)) {
+                properties.put(name, JMeterUtils.getPropDefault(name, ""));
+            }
+        }
+        md.update(properties.toString().getBytes(StandardCharsets.UTF_8));
+        String binDir = JMeterUtils.getJMeterBinDir();
+        for (String name : new String[]{"reportgenerator.properties",
+                JMeterUtils.getPropDefault("user.properties", "user.properties")}) {
+            File file = new File(name).isAbsolute() ? new File(name) : new File(binDir, name);
+            if (file.isFile()) {
+                try {
+                    md.update(FileUtils.readFileToByteArray(file));
+                } catch (IOException e) {
+                    logger.warn("读取测试报告配置文件出错！" + file, e);
+                }
+            }
+        }
+        return Hex.encodeHexString(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * 把测试报告目录打包成zip直接写入输出流（如下载的响应），不在磁盘上生成zip文件。
+ * <p>
+ * 输出使用大的缓冲区，中间不flush，只在最后写完时flush一次。
+ * 图片、字体、已经压缩过的文件不再压缩，直接存储。
+ * 指定了线程池时，各个文件在线程池中并行压缩成内存中的数据，再按目录顺序原样写入zip，
+ * 同时最多有线程数两倍的文件在压缩，大文件不并行，直接在当前线程中边读边压缩写入。
+ * 文件名使用GBK编码，和之前生成的zip一致，Windows中解压不会乱码。
+ */
+public class ReportZipStreamer {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 超过这个大小的文件不放到内存中并行压缩。
+     */
+    private static final long MAX_PARALLEL_ENTRY_SIZE = 8 * 1024 * 1024;
+
+    private static final Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "ico", "woff", "woff2", "eot", "gz", "zip", "jar", "svgz"));
+
+    private final ExecutorService executor;
+
+    private final int window;
+
+    /**
+     * @param executor 并行压缩的线程池，null时在当前线程中依次压缩
+     * @param parallelism 线程池的线程数
+     */
+    public ReportZipStreamer(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.window = Math.max(parallelism, 1) * 2;
+    }
+
+    /**
+     * 打包目录，zip中的第一层是目录本身，写完之后不关闭输出流。
+     */
+    public void write(File dir, OutputStream out) throws IOException {
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        zip.setEncoding("GBK");
+        List<File> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        collect(dir, dir.getName(), files, names);
+
+        Deque<Future<Entry>> pending = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                String name = names.get(i);
+                if (executor != null && file.isFile() && file.length() <= MAX_PARALLEL_ENTRY_SIZE) {
+                    pending.add(executor.submit(() -> prepare(file, name)));
+                } else {
+                    pending.add(CompletableFuture.completedFuture(new Entry(file, name)));
+                }
+                if (pending.size() >= window) {
+                    writeEntry(zip, pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(zip, pending.poll());
+            }
+        } finally {
+            for (Future<Entry> future : pending) {
+                future.cancel(true);
+            }
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * 按目录顺序列出全部目录及文件，目录的名称以/结尾。
+     */
+    private void collect(File file, String name, List<File> files, List<String> names) {
+        if (file.isDirectory()) {
+            files.add(file);
+            names.add(name + "/");
+            File[] children = file.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                collect(child, name + "/" + child.getName(), files, names);
+            }
+        } else {
+            files.add(file);
+            names.add(name);
+        }
+    }
+
+    private void writeEntry(ZipArchiveOutputStream zip, Future<Entry> future) throws IOException {
+        Entry entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("打包测试报告被中断！");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (entry.data != null) {
+            zip.addRawArchiveEntry(entry.zipEntry, new ByteArrayInputStream(entry.data));
+        } else if (entry.file.isDirectory()) {
+            zip.putArchiveEntry(new ZipArchiveEntry(entry.file, entry.name));
+            zip.closeArchiveEntry();
+        } else {
+            writeStreaming(zip, entry.file, entry.name);
+        }
+    }
+
+    /**
+     * 在当前线程中边读边写，直接存储的文件要先读一遍计算CRC。
+     */
+    private void writeStreaming(ZipArchiveOutputStream zip, File file, String name) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(file, name);
+        if (isStored(name)) {
+            CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, len);
+                }
+            }
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(file.length());
+            zipEntry.setCrc(crc.getValue());
+        } else {
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+        }
+        zip.putArchiveEntry(zipEntry);
+        try (InputStream in = new FileInputStream(file)) {
+            IOUtils.copy(in, zip, BUFFER_SIZE);
+        }
+        zip.closeArchiveEntry();
+    }
+
+    /**
+     * 在线程池中读取文件，压缩（或者直接存储）成zip中的原始数据。
+     */
+    private static Entry prepare(File file, String name) throws IOException {
+        byte[] content;
+        try (InputStream in = new FileInputStream(file)) {
+            content = IOUtils.toByteArray(in, file.length());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(file, name);
+        zipEntry.setSize(content.length);
+        zipEntry.setCrc(crc.getValue());
+        if (isStored(name)) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setCompressedSize(content.length);
+            return new Entry(file, name, zipEntry, content);
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(content.length / 2, 64));
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 64 * 1024)) {
+                out.write(content);
+            }
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zipEntry.setCompressedSize(compressed.size());
+            return new Entry(file, name, zipEntry, compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean isStored(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    private static class Entry {
+
+        private final File file;
+
+        private final String name;
+
+        private final ZipArchiveEntry zipEntry;
+
+        /**
+         * 并行压缩好的原始数据，为null时在写入时边读边压缩。
+         */
+        private final byte[] data;
+
+        private Entry(File file, String name) {
+            this(file, name, null, null);
+        }
+
+        private Entry(File file, String name, ZipArchiveEntry zipEntry, byte[] data) {
+            this.file = file;
+            this.name = name;
+            this.zipEntry = zipEntry;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.ResultFileCommit;
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
+import org.apache.commons.io.FileUtils;
+import org.apache.jmeter.report.core.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * csv测试结果文件分段的稀疏索引，按时间段、请求名称读取部分数据时只读取相关的数据块。
+ * <p>
+ * 索引保存在分段旁边的.idx文件中，记录每个数据块（ParallelCsvSampleReader切分的约1MB、在记录边界上的数据块）
+ * 的起止位置、记录开始时间的最小值和最大值，以及数据块中出现过的请求名称（全部请求名称的位图）。
+ * 结果文件按请求完成的顺序写入，开始时间只是大致有序，所以记录最小值和最大值而不是假设有序。
+ * <p>
+ * 生成完整的测试报告并行读取csv分段时顺便建立，没有索引时第一次按切片读取时建立。
+ * 有提交长度标记的分段（压测中还在写入）之后再读取时从上次索引到的位置继续；
+ * 没有标记的分段长度变化（如被修复过）时重新建立。
+ * 压缩、二进制格式的分段不能按位置读取，没有索引。
+ */
+public class ResultFileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResultFileIndex.class);
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x52464958;
+
+    private static final int VERSION = 1;
+
+    private final List<String> labels;
+
+    private final List<Block> blocks;
+
+    /**
+     * 已经建立索引的数据的结束位置。
+     */
+    private final long end;
+
+    private ResultFileIndex(List<String> labels, List<Block> blocks, long end) {
+        this.labels = labels;
+        this.blocks = blocks;
+        this.end = end;
+    }
+
+    public static File getIndexFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    public static void deleteQuietly(File resultFile) {
+        for (File segment : ResultFileSegments.listSegments(resultFile)) {
+            FileUtils.deleteQuietly(getIndexFile(segment));
+        }
+    }
+
+    /**
+     * 分段是否可以建立索引。
+     */
+    public static boolean isIndexable(File segment, char separator) {
+        return ParallelCsvSampleReader.isSupported(separator)
+                && !ResultFileSegments.isCompressed(segment) && !BinaryResultFormat.isBinaryResultFile(segment);
+    }
+
+    /**
+     * 分段的索引是否需要建立或者更新。
+     */
+    public static boolean isStale(File segment) {
+        ResultFileIndex index = load(segment);
+        return index == null || index.end < ResultFileCommit.getReadableLength(segment);
+    }
+
+    /**
+     * 读取分段现有的索引，没有索引、索引损坏或者和分段不一致时返回null。
+     */
+    public static ResultFileIndex load(File segment) {
+        File indexFile = getIndexFile(segment);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long end = in.readLong();
+            long readable = ResultFileCommit.getReadableLength(segment);
+            boolean committed = ResultFileCommit.getCommittedLength(segment) >= 0;
+            // 有标记的分段只会在后面追加，没有标记的分段长度变化说明内容已经变了。
+            if (committed ? readable < end : readable != end) {
+                return null;
+            }
+            int labelCount = in.readInt();
+            List<String> labels = new ArrayList<>(labelCount);
+            for (int i = 0; i < labelCount; i++) {
+                labels.add(in.readUTF());
+            }
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                long start = in.readLong();
+                long blockEnd = in.readLong();
+                long minTime = in.readLong();
+                long maxTime = in.readLong();
+                long[] words = new long[in.readInt()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = in.readLong();
+                }
+                blocks.add(new Block(start, blockEnd, minTime, maxTime, BitSet.valueOf(words)));
+            }
+            return new ResultFileIndex(labels, blocks, end);
+        } catch (IOException e) {
+            logger.warn("读取测试结果文件索引出错！" + indexFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取分段的索引，没有时建立，分段有新提交的数据时继续建立到当前的提交长度。
+     *
+     * @param parseExecutor 解析数据块的线程池，null时在拆分线程中解析
+     * @return 不能建立索引时返回null
+     */
+    public static ResultFileIndex ensure(File segment, char separator, ExecutorService parseExecutor, int parallelism) {
+        if (!isIndexable(segment, separator)) {
+            return null;
+        }
+        ResultFileIndex index = load(segment);
+        long readable = ResultFileCommit.getReadableLength(segment);
+        if (index != null && index.end >= readable) {
+            return index;
+        }
+        long start = System.currentTimeMillis();
+        List<long[]> ranges = index == null ? null : Collections.singletonList(new long[]{index.end, readable});
+        try (ParallelCsvSampleReader reader = new ParallelCsvSampleReader(segment, separator, parseExecutor,
+                parallelism, ranges)) {
+            if (reader.getMetadata() == null) {
+                return null;
+            }
+            Builder builder = index == null ? new Builder(reader.getPosition()) : new Builder(index);
+            Sample sample;
+            while ((sample = reader.readSample()) != null) {
+                builder.add(sample, reader.getPosition());
+            }
+            index = builder.build(reader.getPosition());
+            index.save(segment);
+            logger.info("测试结果文件索引建立完成，{}个数据块，耗时{}ms：{}", index.blocks.size(),
+                    System.currentTimeMillis() - start, segment);
+            return index;
+        } catch (Exception e) {
+            logger.warn("建立测试结果文件索引出错，按切片读取时读取全部数据！" + segment, e);
+            return null;
+        }
+    }
+
+    /**
+     * 可能有切片中记录的数据块，相邻的合并成一个范围。
+     *
+     * @return 按顺序排列的[开始, 结束)
+     */
+    public List<long[]> select(ResultSlice slice) {
+        List<long[]> ranges = new ArrayList<>();
+        long[] last = null;
+        for (Block block : blocks) {
+            if (!slice.mayMatch(block.minTime, block.maxTime, block.labels, labels)) {
+                continue;
+            }
+            if (last != null && last[1] == block.start) {
+                last[1] = block.end;
+            } else {
+                last = new long[]{block.start, block.end};
+                ranges.add(last);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * 按切片读取结果文件时大致需要读取的字节数，用于生成测试报告任务队列的内存预算。
+     * 有索引的分段是选出来的数据块加上还没有建立索引的部分，没有索引的分段需要完整读取一遍。
+     */
+    public static long sliceBytes(File resultFile, ResultSlice slice) {
+        long bytes = 0;
+        for (File segment : ResultFileSegments.listSegments(resultFile)) {
+            ResultFileIndex index = load(segment);
+            if (index == null) {
+                bytes += segment.length();
+                continue;
+            }
+            for (long[] range : index.select(slice)) {
+                bytes += range[1] - range[0];
+            }
+            bytes += Math.max(ResultFileCommit.getReadableLength(segment) - index.end, 0);
+        }
+        return bytes;
+    }
+
+    public List<String> getLabels() {
+        return Collections.unmodifiableList(labels);
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * 先写临时文件再改名，读取时不会读到写了一半的索引。
+     */
+    public void save(File segment) throws IOException {
+        File indexFile = getIndexFile(segment);
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(end);
+            out.writeInt(labels.size());
+            for (String label : labels) {
+                out.writeUTF(label);
+            }
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                out.writeLong(block.start);
+                out.writeLong(block.end);
+                out.writeLong(block.minTime);
+                out.writeLong(block.maxTime);
+                long[] words = block.labels.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+        }
+        FileUtils.deleteQuietly(indexFile);
+        if (!tmpFile.renameTo(indexFile)) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException("保存测试结果文件索引失败！" + indexFile);
+        }
+    }
+
+    /**
+     * 顺序读取分段时逐条加入记录建立索引，读取器的位置变化时开始一个新的数据块。
+     */
+    public static class Builder {
+
+        private final List<String> labels;
+
+        private final Map<String, Integer> labelIndexes = new HashMap<>();
+
+        private final List<Block> blocks;
+
+        private long blockStart;
+
+        private long blockEnd;
+
+        private long minTime = Long.MAX_VALUE;
+
+        private long maxTime = Long.MIN_VALUE;
+
+        private BitSet blockLabels = new BitSet();
+
+        /**
+         * @param dataStart 数据开始的位置，即表头之后
+         */
+        public Builder(long dataStart) {
+            this.labels = new ArrayList<>();
+            this.blocks = new ArrayList<>();
+            this.blockStart = dataStart;
+            this.blockEnd = dataStart;
+        }
+
+        /**
+         * 从已有的索引继续建立。
+         */
+        private Builder(ResultFileIndex index) {
+            this.labels = new ArrayList<>(index.labels);
+            this.blocks = new ArrayList<>(index.blocks);
+            for (int i = 0; i < labels.size(); i++) {
+                labelIndexes.put(labels.get(i), i);
+            }
+            this.blockStart = index.end;
+            this.blockEnd = index.end;
+        }
+
+        /**
+         * @param position 读取这条记录之后读取器的位置，即这条记录所在数据块的结束位置
+         */
+        public void add(Sample sample, long position) {
+            if (position != blockEnd) {
+                finishBlock();
+                blockStart = blockEnd;
+                blockEnd = position;
+            }
+            long startTime = sample.getStartTime();
+            minTime = Math.min(minTime, startTime);
+            maxTime = Math.max(maxTime, startTime);
+            String label = sample.getName();
+            Integer labelIndex = labelIndexes.get(label);
+            if (labelIndex == null) {
+                labelIndex = labels.size();
+                labels.add(label);
+                labelIndexes.put(label, labelIndex);
+            }
+            blockLabels.set(labelIndex);
+        }
+
+        /**
+         * @param end 读取结束时读取器的位置
+         */
+        public ResultFileIndex build(long end) {
+            finishBlock();
+            return new ResultFileIndex(labels, blocks, end);
+        }
+
+        private void finishBlock() {
+            if (minTime <= maxTime) {
+                blocks.add(new Block(blockStart, blockEnd, minTime, maxTime, blockLabels));
+            }
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            blockLabels = new BitSet();
+        }
+    }
+
+    private static class Block {
+
+        private final long start;
+
+        private final long end;
+
+        private final long minTime;
+
+        private final long maxTime;
+
+        private final BitSet labels;
+
+        private Block(long start, long end, long minTime, long maxTime, BitSet labels) {
+            this.start = start;
+            this.end = end;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.labels = labels;
+        }
+    }
+}
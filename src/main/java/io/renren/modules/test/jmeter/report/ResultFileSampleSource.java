@@ -0,0 +1,294 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
+import io.renren.modules.test.jmeter.writer.ResultReader;
+import org.apache.commons.lang3.Validate;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 二进制格式、压缩或者分段的测试结果文件的数据源，替代CsvFileSampleSource给测试报告使用。
+ * 读取出来的Sample和csv结果文件的列名一致，后续的测试报告处理不需要任何改动。
+ * 参照CsvFileSampleSource实现，各个分段依次读取，压缩的分段边读边解压。
+ * 指定了解析线程池时，未压缩的csv分段使用ParallelCsvSampleReader并行解析，普通的csv结果文件也可以使用，
+ * 并行读取完整的csv分段时顺便建立ResultFileIndex。
+ * 指定了切片时只产生切片中的记录，有索引的分段只读取可能有切片中记录的数据块。
+ */
+public class ResultFileSampleSource extends AbstractSampleSource {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultFileSampleSource.class);
+
+    private final List<File> segments;
+
+    private final char separator;
+
+    private final ExecutorService parseExecutor;
+
+    private final int parallelism;
+
+    private final PrivateProducer producer = new PrivateProducer();
+
+    /**
+     * 每读取这么多行更新一次进度、检查一次是否取消。
+     */
+    private static final int PROGRESS_INTERVAL = 4096;
+
+    private ReportProgress progress;
+
+    private ResultSlice slice;
+
+    public ResultFileSampleSource(File inputFile, char separator) {
+        this(inputFile, separator, null, 0);
+    }
+
+    /**
+     * @param parseExecutor 解析csv分段的线程池，null表示顺序读取
+     * @param parallelism   线程池的并行度
+     */
+    public ResultFileSampleSource(File inputFile, char separator, ExecutorService parseExecutor, int parallelism) {
+        this.segments = ResultFileSegments.listSegments(inputFile);
+        this.separator = separator;
+        this.parseExecutor = parseExecutor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 读取时更新进度，检查到取消时抛出ReportProgress.Cancelled。
+     */
+    public void setProgress(ReportProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * 只读取切片中的记录。
+     */
+    public void setSlice(ResultSlice slice) {
+        this.slice = slice;
+    }
+
+    /**
+     * 是否需要使用这个数据源，普通的csv结果文件仍然使用Jmeter的CsvFileSampleSource。
+     * 写入中断、末尾有没提交的数据的csv结果文件也要使用这个数据源，只读取提交的部分。
+     */
+    public static boolean isNeeded(File inputFile) {
+        return BinaryResultFormat.isBinaryResultFile(inputFile) || ResultFileSegments.isSegmented(inputFile)
+                || ResultFileSegments.hasUncommittedTail(inputFile);
+    }
+
+    private void produce() {
+        SampleContext context = getSampleContext();
+        Validate.validState(context != null, "Set a sample context before producing samples.");
+        // 全部分段是同一个结果文件，表头相同，只开始、结束一次，都在channel 0。
+        // 每个分段各自开始、结束的话，统计在每次结束时都会清空，只剩下最后一个分段的结果。
+        boolean started = false;
+        long segmentStart = 0;
+        try {
+            for (File segment : segments) {
+                long sampleCount = 0;
+                long start = System.currentTimeMillis();
+                try (ResultReader reader = openReader(segment)) {
+                    if (reader.getMetadata() == null) {
+                        continue;
+                    }
+                    if (!started) {
+                        producer.setSampleContext(context);
+                        producer.setProducedMetadata(reader.getMetadata(), 0);
+                        producer.setChannelAttribute(0, CsvFileSampleSource.SOURCE_FILE_ATTRIBUTE, segment);
+                        producer.startProducing();
+                        started = true;
+                    }
+                    ResultFileIndex.Builder indexBuilder = slice == null && reader instanceof ParallelCsvSampleReader
+                            && ResultFileIndex.isStale(segment) ? new ResultFileIndex.Builder(reader.getPosition()) : null;
+                    Sample sample;
+                    while ((sample = reader.readSample()) != null) {
+                        if (indexBuilder != null) {
+                            indexBuilder = addToIndex(indexBuilder, sample, reader.getPosition(), segment);
+                        }
+                        if (slice == null || slice.matches(sample)) {
+                            producer.produce(sample, 0);
+                            sampleCount++;
+                        }
+                        if (progress != null && sample.getSampleRow() % PROGRESS_INTERVAL == 0) {
+                            progress.checkCancelled();
+                            progress.setParsedBytes(segmentStart + Math.max(reader.getPosition(), 0));
+                        }
+                    }
+                    if (indexBuilder != null) {
+                        saveIndex(indexBuilder.build(reader.getPosition()), segment);
+                    }
+                } catch (IOException e) {
+                    throw new SampleException("Could not read result file " + segment, e);
+                }
+                log.info("produce(): {} samples produced in {} ms from {}", sampleCount,
+                        System.currentTimeMillis() - start, segment.getName());
+                segmentStart += segment.length();
+                if (progress != null) {
+                    progress.setParsedBytes(segmentStart);
+                }
+            }
+        } finally {
+            if (started) {
+                producer.stopProducing();
+            }
+        }
+    }
+
+    /**
+     * 建立索引出错（如时间戳不是毫秒数）不影响测试报告，不再建立索引。
+     */
+    private static ResultFileIndex.Builder addToIndex(ResultFileIndex.Builder indexBuilder, Sample sample,
+                                                      long position, File segment) {
+        try {
+            indexBuilder.add(sample, position);
+            return indexBuilder;
+        } catch (RuntimeException e) {
+            log.warn("建立测试结果文件索引出错！" + segment, e);
+            return null;
+        }
+    }
+
+    private static void saveIndex(ResultFileIndex index, File segment) {
+        try {
+            index.save(segment);
+        } catch (IOException e) {
+            log.warn("保存测试结果文件索引出错！" + segment, e);
+        }
+    }
+
+    private ResultReader openReader(File segment) throws IOException {
+        if (slice != null) {
+            ResultFileIndex index = ResultFileIndex.ensure(segment, separator, parseExecutor, parallelism);
+            if (index != null) {
+                return new ParallelCsvSampleReader(segment, separator, parseExecutor, parallelism, index.select(slice));
+            }
+        }
+        if (parseExecutor != null && ParallelCsvSampleReader.isSupported(separator)
+                && !ResultFileSegments.isCompressed(segment) && !BinaryResultFormat.isBinaryResultFile(segment)) {
+            return new ParallelCsvSampleReader(segment, separator, parseExecutor, parallelism);
+        }
+        return ResultReader.open(segment, separator);
+    }
+
+    @Override
+    public void setSampleConsumers(List<SampleConsumer> consumers) {
+        producer.setSampleConsumers(consumers);
+    }
+
+    @Override
+    public void addSampleConsumer(SampleConsumer consumer) {
+        producer.addSampleConsumer(consumer);
+    }
+
+    @Override
+    public void removeSampleConsumer(SampleConsumer consumer) {
+        producer.removeSampleConsumer(consumer);
+    }
+
+    @Override
+    public void run() {
+        produce();
+    }
+
+    /**
+     * 把读取到的数据分发给所有的消费者。
+     */
+    private static class PrivateProducer extends AbstractSampleProcessor implements SampleProducer {
+
+        private List<SampleConsumer> sampleConsumers = new ArrayList<>();
+
+        void setSampleConsumers(List<SampleConsumer> consumers) {
+            Validate.notNull(consumers, "consumers must not be null");
+            sampleConsumers = consumers;
+        }
+
+        void addSampleConsumer(SampleConsumer consumer) {
+            if (consumer != null) {
+                sampleConsumers.add(consumer);
+            }
+        }
+
+        void removeSampleConsumer(SampleConsumer consumer) {
+            if (consumer != null) {
+                sampleConsumers.remove(consumer);
+            }
+        }
+
+        @Override
+        public void setSampleContext(SampleContext context) {
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.setSampleContext(context);
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void setProducedMetadata(SampleMetadata metadata, int channel) {
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.setConsumedMetadata(metadata, channel);
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void setChannelAttribute(int channel, String key, Object value) {
+            super.setChannelAttribute(channel, key, value);
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.setChannelAttribute(channel, key, value);
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void startProducing() {
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.startConsuming();
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void produce(Sample s, int channel) {
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.consume(s, channel);
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void stopProducing() {
+            for (SampleConsumer consumer : sampleConsumers) {
+                try {
+                    consumer.stopConsuming();
+                } catch (Exception e) {
+                    throw new SampleException("Consumer failed with message :" + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.Sample;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 测试结果的一个切片：开始时间在[from, to)之间、请求名称是指定名称之一的记录。
+ * 和Jmeter测试报告的时间过滤一样按记录的开始时间判断，结果文件中的时间戳需要是毫秒数（Jmeter默认的格式）。
+ */
+public class ResultSlice {
+
+    private final long from;
+
+    private final long to;
+
+    private final Set<String> labels;
+
+    /**
+     * @param from   开始时间（毫秒），null表示不限
+     * @param to     结束时间（毫秒，不包括），null表示不限
+     * @param labels 请求名称，null或者空表示全部
+     */
+    public ResultSlice(Long from, Long to, Collection<String> labels) {
+        this.from = from != null ? from : Long.MIN_VALUE;
+        this.to = to != null ? to : Long.MAX_VALUE;
+        this.labels = labels == null || labels.isEmpty()
+                ? Collections.emptySet() : Collections.unmodifiableSet(new LinkedHashSet<>(labels));
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public Set<String> getLabels() {
+        return labels;
+    }
+
+    public boolean matches(Sample sample) {
+        long startTime = sample.getStartTime();
+        return startTime >= from && startTime < to && (labels.isEmpty() || labels.contains(sample.getName()));
+    }
+
+    /**
+     * 数据块中是否可能有这个切片的记录。
+     *
+     * @param minTime     数据块中最早的开始时间
+     * @param maxTime     数据块中最晚的开始时间
+     * @param blockLabels 数据块中出现的请求名称在allLabels中的位置
+     */
+    boolean mayMatch(long minTime, long maxTime, BitSet blockLabels, List<String> allLabels) {
+        if (maxTime < from || minTime >= to) {
+            return false;
+        }
+        if (labels.isEmpty()) {
+            return true;
+        }
+        for (int i = blockLabels.nextSetBit(0); i >= 0; i = blockLabels.nextSetBit(i + 1)) {
+            if (labels.contains(allLabels.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
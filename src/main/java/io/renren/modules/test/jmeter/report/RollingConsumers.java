@@ -0,0 +1,140 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.processor.*;
+import org.apache.jmeter.report.processor.graph.AbstractGraphConsumer;
+import org.apache.jmeter.report.processor.graph.GroupData;
+import org.apache.jmeter.report.processor.graph.GroupInfo;
+import org.apache.jmeter.util.JMeterUtils;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 滚动测试报告使用的统计及图表，stopConsuming之后保留已经统计的数据，可以继续consume。
+ * <p>
+ * Jmeter的统计在stopConsuming中把结果写入SampleContext之后会清空数据，只能在最后调用一次。
+ * 这里的汇总统计是Jmeter对应统计的子类，stopConsuming之前保存数据，之后再放回去；
+ * 图表把每个分组的GroupData换成清空时什么都不做的子类。
+ * 统计的计算都还是Jmeter自己的，每次stopConsuming得到的结果和到目前为止的数据一次性生成的测试报告相同。
+ */
+public final class RollingConsumers {
+
+    private RollingConsumers() {
+    }
+
+    /**
+     * 图表在开始consume之前调用，之后stopConsuming不再清空数据。
+     */
+    public static void retain(AbstractGraphConsumer graph) {
+        try {
+            Field groupInfosField = AbstractGraphConsumer.class.getDeclaredField("groupInfos");
+            groupInfosField.setAccessible(true);
+            Field groupDataField = GroupInfo.class.getDeclaredField("groupData");
+            groupDataField.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Map<String, GroupInfo> groupInfos = (Map<String, GroupInfo>) groupInfosField.get(graph);
+            for (GroupInfo groupInfo : groupInfos.values()) {
+                groupDataField.set(groupInfo, new RetainedGroupData(groupInfo.getAggregatorFactory(),
+                        groupInfo.enablesOverallSeries(), groupInfo.enablesAggregatedKeysSeries()));
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("图表" + graph.getName() + "不支持滚动测试报告！", e);
+        }
+    }
+
+    private static class RetainedGroupData extends GroupData {
+
+        private RetainedGroupData(AggregatorFactory factory, boolean hasOverall, boolean hasAggregatedKey) {
+            super(factory, hasOverall, hasAggregatedKey);
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+
+    public static class StatisticsSummary extends StatisticsSummaryConsumer {
+
+        @Override
+        public void stopConsuming() {
+            Map<String, SummaryInfo> infos = new HashMap<>(getSummaryInfos());
+            StatisticsSummaryData overall = getOverallInfo().getData();
+            try {
+                super.stopConsuming();
+            } finally {
+                getSummaryInfos().putAll(infos);
+                getOverallInfo().setData(overall);
+            }
+        }
+    }
+
+    public static class ApdexSummary extends ApdexSummaryConsumer {
+
+        @Override
+        public void stopConsuming() {
+            Map<String, SummaryInfo> infos = new HashMap<>(getSummaryInfos());
+            ApdexSummaryData overall = getOverallInfo().getData();
+            try {
+                super.stopConsuming();
+            } finally {
+                getSummaryInfos().putAll(infos);
+                getOverallInfo().setData(overall);
+            }
+        }
+    }
+
+    public static class Top5ErrorsBySampler extends Top5ErrorsBySamplerConsumer {
+
+        @Override
+        public void stopConsuming() {
+            Map<String, SummaryInfo> infos = new HashMap<>(getSummaryInfos());
+            Top5ErrorsSummaryData overall = getOverallInfo().getData();
+            try {
+                super.stopConsuming();
+            } finally {
+                getSummaryInfos().putAll(infos);
+                getOverallInfo().setData(overall);
+            }
+        }
+    }
+
+    /**
+     * 父类stopConsuming时会把错误数清零，错误率改为使用这里自己的计数。
+     */
+    public static class ErrorsSummary extends ErrorsSummaryConsumer {
+
+        private long errorCount;
+
+        @Override
+        protected void updateData(SummaryInfo info, Sample sample) {
+            super.updateData(info, sample);
+            if (!sample.getSuccess()) {
+                errorCount++;
+            }
+        }
+
+        @Override
+        protected ListResultData createDataResult(String key, Long data) {
+            ListResultData result = new ListResultData();
+            result.addResult(new ValueResultData(key != null ? key : JMeterUtils.getResString("reportgenerator_summary_total")));
+            result.addResult(new ValueResultData(data));
+            result.addResult(new ValueResultData((double) data * 100.0 / (double) errorCount));
+            result.addResult(new ValueResultData((double) data * 100.0 / getOverallInfo().getData().doubleValue()));
+            return result;
+        }
+
+        @Override
+        public void stopConsuming() {
+            Map<String, SummaryInfo> infos = new HashMap<>(getSummaryInfos());
+            Long overall = getOverallInfo().getData();
+            try {
+                super.stopConsuming();
+            } finally {
+                getSummaryInfos().putAll(infos);
+                getOverallInfo().setData(overall);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.ResultFileCommit;
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
+import org.apache.commons.io.FileUtils;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.CsvFileSampleSource;
+import org.apache.jmeter.report.processor.NormalizerSampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.apache.jmeter.save.CSVSaveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 压测过程中的滚动测试报告。
+ * <p>
+ * 长时间的压测不需要等到结束，每隔一段时间在测试报告目录中重新生成一次测试报告。
+ * 统计及图表从压测开始一直保留（RollingConsumers），每次刷新只读取结果文件中上次之后新提交的数据，
+ * 交给这些统计继续计算，再用统计的当前结果生成测试报告，不会从头读取结果文件。
+ * 读取的耗时只和新增的数据量有关，生成测试报告的耗时只和统计的数据量（请求数、时间段数）有关。
+ * <p>
+ * 读取在单独的线程中进行，只读取已经提交的完整记录，不影响压测的请求线程及结果的写入。
+ * Jmeter不能向非空的目录导出测试报告，每次先导出到临时目录，再替换掉原来的测试报告目录。
+ * 二进制格式、边写边压缩的结果文件不能从上次的位置继续读取，不生成滚动测试报告。
+ * 需要再次读取全部数据的两个图表（Response Time/Latency Vs Request）在滚动测试报告中没有，
+ * 压测结束后生成的测试报告仍然是完整的。
+ */
+public class RollingReportGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollingReportGenerator.class);
+
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 导出测试报告的临时目录及替换时旧目录的后缀。
+     */
+    private static final String EXPORT_SUFFIX = "_rolling";
+
+    private static final String REPLACED_SUFFIX = "_replaced";
+
+    /**
+     * 正在生成滚动测试报告的结果文件，key是结果文件路径。
+     */
+    private static final Map<String, RollingReportGenerator> generators = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private final File resultFile;
+
+    private final String reportPathDir;
+
+    private final char defaultSeparator;
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * 停止之后不再刷新，在refresh的锁中修改。
+     */
+    private boolean stopped;
+
+    /**
+     * 第一次读取到数据时创建，之后一直使用同一组统计。
+     */
+    private LocalReportGenerator generator;
+
+    private SampleContext sampleContext;
+
+    private NormalizerSampleConsumer consumers;
+
+    private SampleMetadata metadata;
+
+    private int columnCount;
+
+    /**
+     * 正在读取的分段及下一个记录在分段中的位置。
+     */
+    private int segmentIndex;
+
+    private long position;
+
+    private long row;
+
+    private long skippedRows;
+
+    private RollingReportGenerator(File resultFile, String reportPathDir, char defaultSeparator) {
+        this.resultFile = resultFile;
+        this.reportPathDir = reportPathDir;
+        this.defaultSeparator = defaultSeparator;
+    }
+
+    /**
+     * 开始定时生成滚动测试报告，已经开始的不重复开始。
+     *
+     * @param reportPathDir  测试报告目录，和压测结束后生成的测试报告是同一个目录
+     * @param intervalMillis 刷新的周期
+     * @param separator      结果文件没有表头时使用的分隔符
+     */
+    public static void start(String resultFilename, String reportPathDir, long intervalMillis, char separator) {
+        if (!ParallelCsvSampleReader.isSupported(separator)) {
+            logger.warn("当前的编码及分隔符不支持滚动测试报告！{}", resultFilename);
+            return;
+        }
+        RollingReportGenerator generator = new RollingReportGenerator(new File(resultFilename), reportPathDir, separator);
+        if (generators.putIfAbsent(resultFilename, generator) != null) {
+            return;
+        }
+        generator.task = getScheduler().scheduleWithFixedDelay(generator::refreshQuietly,
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("开始生成滚动测试报告，每{}秒刷新一次：{}", intervalMillis / 1000, reportPathDir);
+    }
+
+    /**
+     * 停止定时刷新，已经生成的滚动测试报告保留到重新生成测试报告。
+     * 正在进行的刷新完成之后才返回，之后生成的测试报告不会和刷新同时写测试报告目录。
+     */
+    public static void stop(String resultFilename) {
+        RollingReportGenerator generator = generators.remove(resultFilename);
+        if (generator != null) {
+            generator.task.cancel(false);
+            synchronized (generator) {
+                generator.stopped = true;
+            }
+            logger.info("停止生成滚动测试报告：{}", generator.reportPathDir);
+        }
+    }
+
+    public static boolean isRunning(String resultFilename) {
+        return generators.containsKey(resultFilename);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "rolling-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (Throwable e) {
+            // 滚动测试报告出错不影响压测，下个周期继续。
+            logger.error("生成滚动测试报告出错！" + reportPathDir, e);
+        }
+    }
+
+    /**
+     * 读取新提交的数据，再用统计的当前结果生成测试报告。
+     */
+    synchronized void refresh() throws Exception {
+        if (stopped) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long before = row;
+        List<File> segments = ResultFileSegments.listSegments(resultFile);
+        while (segmentIndex < segments.size()) {
+            File segment = segments.get(segmentIndex);
+            if (ResultFileSegments.isCompressed(segment) || BinaryResultFormat.isBinaryResultFile(segment)) {
+                logger.warn("二进制格式、压缩的结果文件不支持滚动测试报告！{}", segment);
+                stop(resultFile.getPath());
+                return;
+            }
+            read(segment);
+            // 后面已经有新的分段时，这个分段已经写完关闭，读完之后换到下一个。
+            if (segmentIndex == segments.size() - 1) {
+                break;
+            }
+            segmentIndex++;
+            position = 0;
+        }
+        if (consumers == null) {
+            return;
+        }
+        consumers.stopConsuming();
+        export();
+        logger.info("滚动测试报告刷新完成，新增{}条，共{}条，跳过列数不一致的{}条，耗时{}ms：{}", row - before, row,
+                skippedRows, System.currentTimeMillis() - start, reportPathDir);
+    }
+
+    /**
+     * 导出到临时目录，再替换掉原来的测试报告目录。
+     * 替换只是两次目录的重命名，查看测试报告时不会看到导出了一半的测试报告。
+     */
+    private void export() throws Exception {
+        File exportDir = new File(reportPathDir + EXPORT_SUFFIX);
+        File replacedDir = new File(reportPathDir + REPLACED_SUFFIX);
+        File reportDir = new File(reportPathDir);
+        FileUtils.deleteQuietly(exportDir);
+        FileUtils.deleteQuietly(replacedDir);
+        generator.export(sampleContext, exportDir.getPath());
+        if (!exportDir.exists()) {
+            // 没有配置exporter
+            return;
+        }
+        if (reportDir.exists()) {
+            Files.move(reportDir.toPath(), replacedDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(exportDir.toPath(), reportDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.deleteQuietly(replacedDir);
+    }
+
+    /**
+     * 从上次的位置读取到提交长度为止的完整记录，没有提交长度标记的读取到文件末尾的完整记录。
+     */
+    private void read(File segment) throws Exception {
+        long committed = ResultFileCommit.getCommittedLength(segment);
+        long limit = committed >= 0 ? Math.min(committed, segment.length()) : segment.length();
+        if (position >= limit) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            int readSize = READ_SIZE;
+            while (position < limit) {
+                int size = (int) Math.min(readSize, limit - position);
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                byte[] bytes = buffer.array();
+                int length = buffer.position();
+                int offset = position == 0 ? readHeader(segment, bytes, length) : 0;
+                int next = offset;
+                if (offset >= 0) {
+                    int cut = new CsvRecordScanner(metadata.getSeparator()).scan(bytes, offset, length);
+                    if (cut > 0) {
+                        consume(bytes, offset, cut);
+                        next = cut;
+                    }
+                }
+                if (next <= 0) {
+                    // 一条记录比读取的大小还长时加大再读，否则是还没有写完的记录，下次再读。
+                    if (length < limit - position) {
+                        readSize *= 2;
+                        continue;
+                    }
+                    return;
+                }
+                position += next;
+                readSize = READ_SIZE;
+            }
+        }
+    }
+
+    /**
+     * 读取表头，第一个分段的表头用来创建统计，之后的分段跳过。
+     *
+     * @return 数据开始的位置，表头还没有写完返回-1
+     */
+    private int readHeader(File segment, byte[] bytes, int length) throws Exception {
+        int end = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return -1;
+        }
+        if (metadata == null) {
+            int lineEnd = end > 0 && bytes[end - 1] == '\r' ? end - 1 : end;
+            String line = new String(bytes, 0, lineEnd, ParallelCsvSampleReader.CHARSET);
+            ParallelCsvSampleReader.Header header = ParallelCsvSampleReader.Header.parse(line, defaultSeparator, segment);
+            metadata = header.metadata;
+            columnCount = header.columnCount;
+            startConsuming(segment);
+            if (!header.hasHeaders) {
+                // 没有表头时第一行就是数据
+                return 0;
+            }
+        }
+        return end + 1;
+    }
+
+    private void startConsuming(File segment) throws Exception {
+        generator = new LocalReportGenerator(resultFile.getPath(), null);
+        sampleContext = new SampleContext();
+        consumers = generator.createConsumers(true);
+        consumers.setSampleContext(sampleContext);
+        consumers.setConsumedMetadata(metadata, 0);
+        consumers.setChannelAttribute(0, CsvFileSampleSource.SOURCE_FILE_ATTRIBUTE, segment);
+        consumers.startConsuming();
+    }
+
+    private void consume(byte[] bytes, int from, int to) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(
+                new String(bytes, from, to - from, ParallelCsvSampleReader.CHARSET)), 64 * 1024);
+        String[] data;
+        while ((data = CSVSaveService.csvReadFile(reader, metadata.getSeparator())).length > 0) {
+            // 压测还在进行，列数不一致的行跳过，不中断滚动测试报告。
+            if (data.length != columnCount) {
+                skippedRows++;
+                continue;
+            }
+            consumers.consume(new Sample(row++, metadata, data), 0);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.calculator.LatencyHistogram;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.processor.AbstractSampleConsumer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 测试结果（或者切片）的汇总统计，每个请求名称一行，最后是全部请求的合计。
+ * 返回给前端的JSON使用，生成测试报告时也顺便统计，保存到数据库中（StressTestReportStatsEntity）。
+ * 百分位响应时间使用LatencyHistogram，相对误差不超过1%。
+ */
+public class SliceStatistics extends AbstractSampleConsumer {
+
+    public static final String TOTAL_LABEL = "Total";
+
+    private final Map<String, Row> rows = new LinkedHashMap<>();
+
+    private final Row total = new Row(TOTAL_LABEL, true);
+
+    @Override
+    public void startConsuming() {
+        rows.clear();
+        total.clear();
+    }
+
+    @Override
+    public void consume(Sample sample, int channel) {
+        rows.computeIfAbsent(sample.getName(), label -> new Row(label, false)).add(sample);
+        total.add(sample);
+    }
+
+    @Override
+    public void stopConsuming() {
+    }
+
+    public List<Row> getRows() {
+        List<Row> result = new ArrayList<>(rows.values());
+        result.add(total);
+        return result;
+    }
+
+    public static class Row {
+
+        private final String label;
+
+        private final boolean overall;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private long samples;
+
+        private long errors;
+
+        private long elapsedSum;
+
+        private long min = Long.MAX_VALUE;
+
+        private long max;
+
+        private long receivedBytes;
+
+        private long sentBytes;
+
+        private long firstStart = Long.MAX_VALUE;
+
+        private long lastEnd = Long.MIN_VALUE;
+
+        private Row(String label, boolean overall) {
+            this.label = label;
+            this.overall = overall;
+        }
+
+        private void add(Sample sample) {
+            long elapsed = sample.getElapsedTime();
+            samples++;
+            if (!sample.getSuccess()) {
+                errors++;
+            }
+            elapsedSum += elapsed;
+            min = Math.min(min, elapsed);
+            max = Math.max(max, elapsed);
+            histogram.record(elapsed);
+            receivedBytes += sample.getReceivedBytes();
+            sentBytes += sample.getSentBytes();
+            firstStart = Math.min(firstStart, sample.getStartTime());
+            lastEnd = Math.max(lastEnd, sample.getEndTime());
+        }
+
+        private void clear() {
+            histogram.clear();
+            samples = 0;
+            errors = 0;
+            elapsedSum = 0;
+            min = Long.MAX_VALUE;
+            max = 0;
+            receivedBytes = 0;
+            sentBytes = 0;
+            firstStart = Long.MAX_VALUE;
+            lastEnd = Long.MIN_VALUE;
+        }
+
+        private double getDurationSeconds() {
+            return samples == 0 ? 0 : Math.max(lastEnd - firstStart, 1) / 1000.0;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * 是否是全部请求的合计，请求名称也可能是Total，不能只看名称。
+         */
+        public boolean isOverall() {
+            return overall;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getErrorPercentage() {
+            return samples == 0 ? 0 : errors * 100.0 / samples;
+        }
+
+        public double getMean() {
+            return samples == 0 ? 0 : (double) elapsedSum / samples;
+        }
+
+        public long getMin() {
+            return samples == 0 ? 0 : min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getPct50() {
+            return histogram.getValueAtPercentile(50);
+        }
+
+        public long getPct90() {
+            return histogram.getValueAtPercentile(90);
+        }
+
+        public long getPct95() {
+            return histogram.getValueAtPercentile(95);
+        }
+
+        public long getPct99() {
+            return histogram.getValueAtPercentile(99);
+        }
+
+        public double getThroughput() {
+            return samples == 0 ? 0 : samples / getDurationSeconds();
+        }
+
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        public double getReceivedKBPerSecond() {
+            return samples == 0 ? 0 : receivedBytes / 1024.0 / getDurationSeconds();
+        }
+
+        public long getFirstStart() {
+            return samples == 0 ? 0 : firstStart;
+        }
+
+        public long getLastEnd() {
+            return samples == 0 ? 0 : lastEnd;
+        }
+    }
+}
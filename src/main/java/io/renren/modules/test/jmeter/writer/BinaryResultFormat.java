@@ -0,0 +1,151 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.save.CSVSaveService;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 二进制列式测试结果文件的格式定义。
+ * <p>
+ * 文件结构：文件头(MAGIC + VERSION)，之后是若干条记录，每条记录以一个字节的类型开头：
+ * <ul>
+ * <li>DICTIONARY：字典项，字典编号 + 字典内的id + 字符串。字典项一定写在第一次引用它的数据块之前。</li>
+ * <li>BLOCK：数据块，块的字节长度 + 行数 + 块内的内联字符串 + 按列存储的数据，每一列所有行连续存放。</li>
+ * </ul>
+ * 数值列使用zigzag + varint编码，时间戳存储和上一行的差值；label、响应码、线程名等字符串列存储字典id，
+ * 字典满了之后新出现的字符串直接内联在数据块中（id为0）。
+ * 成功标识按位存储。
+ */
+public class BinaryResultFormat {
+
+    /**
+     * 文件后缀
+     */
+    public static final String SUFFIX = "jbr";
+
+    static final byte[] MAGIC = {'J', 'B', 'R', 'F'};
+
+    static final byte VERSION = 1;
+
+    static final byte RECORD_DICTIONARY = 'D';
+
+    static final byte RECORD_BLOCK = 'B';
+
+    /**
+     * 每个数据块最多的行数
+     */
+    static final int BLOCK_ROWS = 4096;
+
+    /**
+     * 每个字典最多的条目数，超过后新的字符串内联存储。
+     */
+    static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * 字典编号，同时也是字符串列的编号。
+     */
+    static final int DICT_LABEL = 0;
+    static final int DICT_CODE = 1;
+    static final int DICT_MESSAGE = 2;
+    static final int DICT_THREAD = 3;
+    static final int DICT_FAILURE = 4;
+    static final int DICT_COUNT = 5;
+
+    /**
+     * 数值列的编号，数据块中按这个顺序存放，之后是字符串列，最后是成功标识。
+     */
+    static final int COL_TIMESTAMP = 0;
+    static final int COL_ELAPSED = 1;
+    static final int COL_LATENCY = 2;
+    static final int COL_CONNECT = 3;
+    static final int COL_IDLE_TIME = 4;
+    static final int COL_BYTES = 5;
+    static final int COL_SENT_BYTES = 6;
+    static final int COL_GRP_THREADS = 7;
+    static final int COL_ALL_THREADS = 8;
+    static final int COL_SAMPLE_COUNT = 9;
+    static final int COL_ERROR_COUNT = 10;
+    static final int NUMERIC_COLUMNS = 11;
+
+    /**
+     * 读取时还原的列，和Jmeter的csv结果文件的列名一致，测试报告按列名取值。
+     */
+    public static final String[] CSV_COLUMNS = {
+            CSVSaveService.TIME_STAMP, CSVSaveService.CSV_ELAPSED, CSVSaveService.LABEL,
+            CSVSaveService.RESPONSE_CODE, CSVSaveService.RESPONSE_MESSAGE, CSVSaveService.THREAD_NAME,
+            CSVSaveService.SUCCESSFUL, CSVSaveService.FAILURE_MESSAGE, CSVSaveService.CSV_BYTES,
+            CSVSaveService.CSV_SENT_BYTES, CSVSaveService.CSV_THREAD_COUNT1, CSVSaveService.CSV_THREAD_COUNT2,
+            CSVSaveService.CSV_LATENCY, CSVSaveService.CSV_SAMPLE_COUNT, CSVSaveService.CSV_ERROR_COUNT,
+            CSVSaveService.CSV_IDLETIME, CSVSaveService.CSV_CONNECT_TIME};
+
+    public static SampleMetadata getSampleMetadata(char separator) {
+        return new SampleMetadata(separator, CSV_COLUMNS);
+    }
+
+    /**
+     * 根据文件头判断是否是二进制格式的测试结果文件。
+     */
+    public static boolean isBinaryResultFile(File file) {
+        if (!file.isFile() || file.length() < MAGIC.length) {
+            return false;
+        }
+        byte[] head = new byte[MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(head);
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(head, MAGIC);
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0L) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeZigZag(OutputStream out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return 读取的值，文件结束时抛出EOFException
+     */
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("测试结果文件格式错误，varint过长！");
+    }
+
+    static long readZigZag(InputStream in) throws IOException {
+        long raw = readVarLong(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        int length = (int) readVarLong(in);
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,203 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 二进制列式测试结果文件的流式读取，格式见BinaryResultFormat。
+ * 每次只解码一个数据块，按行还原成和csv结果文件一样的Sample，内存占用和文件大小无关。
+ * 只读到提交长度为止（见ResultFileCommit），没有标记时最后一个数据块不完整（例如进程被强制结束）读到前一个完整的数据块为止。
+ */
+public class BinaryResultReader implements ResultReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(BinaryResultReader.class);
+
+    private final File file;
+
+    private final DataInputStream in;
+
+    private final CountingInputStream counter;
+
+    private final SampleMetadata metadata;
+
+    private final List<List<String>> dictionaries = new ArrayList<>(BinaryResultFormat.DICT_COUNT);
+
+    /**
+     * 当前数据块解码后的数据
+     */
+    private long[][] numericColumns = new long[BinaryResultFormat.NUMERIC_COLUMNS][0];
+    private String[][] stringColumns = new String[BinaryResultFormat.DICT_COUNT][0];
+    private boolean[] successes = new boolean[0];
+    private int blockRows;
+    private int blockRow;
+
+    /**
+     * 已经读取的行数，即Sample的行号。
+     */
+    private long row;
+
+    private boolean eof;
+
+    public BinaryResultReader(File file, char separator) throws IOException {
+        this.file = file;
+        this.counter = new CountingInputStream(new FileInputStream(file));
+        this.in = new DataInputStream(new BufferedInputStream(ResultFileSegments.openStream(file, counter), 64 * 1024));
+        this.metadata = BinaryResultFormat.getSampleMetadata(separator);
+        for (int i = 0; i < BinaryResultFormat.DICT_COUNT; i++) {
+            List<String> dictionary = new ArrayList<>();
+            // id从1开始，0表示内联的字符串。
+            dictionary.add(null);
+            dictionaries.add(dictionary);
+        }
+        byte[] magic = new byte[BinaryResultFormat.MAGIC.length];
+        try {
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BinaryResultFormat.MAGIC)) {
+                throw new IOException("不是二进制格式的测试结果文件！" + file);
+            }
+            int version = in.read();
+            if (version != BinaryResultFormat.VERSION) {
+                throw new IOException("不支持的测试结果文件版本：" + version + " " + file);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public SampleMetadata getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long getPosition() {
+        return counter.getByteCount();
+    }
+
+    @Override
+    public Sample readSample() throws IOException {
+        while (blockRow >= blockRows) {
+            if (eof || !readBlock()) {
+                eof = true;
+                return null;
+            }
+        }
+        int r = blockRow++;
+        long[][] columns = numericColumns;
+        return new Sample(row++, metadata,
+                String.valueOf(columns[BinaryResultFormat.COL_TIMESTAMP][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_ELAPSED][r]),
+                stringColumns[BinaryResultFormat.DICT_LABEL][r],
+                stringColumns[BinaryResultFormat.DICT_CODE][r],
+                stringColumns[BinaryResultFormat.DICT_MESSAGE][r],
+                stringColumns[BinaryResultFormat.DICT_THREAD][r],
+                String.valueOf(successes[r]),
+                stringColumns[BinaryResultFormat.DICT_FAILURE][r],
+                String.valueOf(columns[BinaryResultFormat.COL_BYTES][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_SENT_BYTES][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_GRP_THREADS][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_ALL_THREADS][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_LATENCY][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_SAMPLE_COUNT][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_ERROR_COUNT][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_IDLE_TIME][r]),
+                String.valueOf(columns[BinaryResultFormat.COL_CONNECT][r]));
+    }
+
+    /**
+     * 读取记录直到下一个数据块，途中的字典项加入字典。
+     *
+     * @return 文件结束或者数据不完整时返回false
+     */
+    private boolean readBlock() throws IOException {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return false;
+                }
+                if (type == BinaryResultFormat.RECORD_DICTIONARY) {
+                    int dictionary = (int) BinaryResultFormat.readVarLong(in);
+                    int id = (int) BinaryResultFormat.readVarLong(in);
+                    String text = BinaryResultFormat.readString(in);
+                    List<String> values = dictionaries.get(dictionary);
+                    if (id != values.size()) {
+                        throw new IOException("测试结果文件字典数据错误！" + file);
+                    }
+                    values.add(text);
+                } else if (type == BinaryResultFormat.RECORD_BLOCK) {
+                    byte[] block = new byte[(int) BinaryResultFormat.readVarLong(in)];
+                    in.readFully(block);
+                    decodeBlock(new ByteArrayInputStream(block));
+                    return true;
+                } else {
+                    throw new IOException("测试结果文件数据错误，未知的记录类型：" + type + " " + file);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("测试结果文件最后的数据不完整，已忽略。" + file);
+            return false;
+        }
+    }
+
+    private void decodeBlock(InputStream block) throws IOException {
+        int rows = (int) BinaryResultFormat.readVarLong(block);
+        if (numericColumns[0].length < rows) {
+            numericColumns = new long[BinaryResultFormat.NUMERIC_COLUMNS][rows];
+            stringColumns = new String[BinaryResultFormat.DICT_COUNT][rows];
+            successes = new boolean[rows];
+        }
+        long timestamp = BinaryResultFormat.readZigZag(block);
+        List<Deque<String>> inlineStrings = new ArrayList<>(BinaryResultFormat.DICT_COUNT);
+        for (int i = 0; i < BinaryResultFormat.DICT_COUNT; i++) {
+            int count = (int) BinaryResultFormat.readVarLong(block);
+            Deque<String> inline = new ArrayDeque<>(count);
+            for (int j = 0; j < count; j++) {
+                inline.add(BinaryResultFormat.readString(block));
+            }
+            inlineStrings.add(inline);
+        }
+        long[] timestamps = numericColumns[BinaryResultFormat.COL_TIMESTAMP];
+        timestamps[0] = timestamp;
+        for (int r = 1; r < rows; r++) {
+            timestamp += BinaryResultFormat.readZigZag(block);
+            timestamps[r] = timestamp;
+        }
+        for (int column = BinaryResultFormat.COL_ELAPSED; column < BinaryResultFormat.NUMERIC_COLUMNS; column++) {
+            long[] values = numericColumns[column];
+            for (int r = 0; r < rows; r++) {
+                values[r] = BinaryResultFormat.readZigZag(block);
+            }
+        }
+        for (int column = 0; column < BinaryResultFormat.DICT_COUNT; column++) {
+            List<String> dictionary = dictionaries.get(column);
+            Deque<String> inline = inlineStrings.get(column);
+            String[] values = stringColumns[column];
+            for (int r = 0; r < rows; r++) {
+                int id = (int) BinaryResultFormat.readVarLong(block);
+                values[r] = id == 0 ? inline.poll() : dictionary.get(id);
+            }
+        }
+        byte[] successBytes = new byte[(rows + 7) / 8];
+        if (block.read(successBytes) != successBytes.length && rows > 0) {
+            throw new IOException("测试结果文件数据块不完整！" + file);
+        }
+        for (int r = 0; r < rows; r++) {
+            successes[r] = (successBytes[r >> 3] & (1 << (r & 7))) != 0;
+        }
+        blockRows = rows;
+        blockRow = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
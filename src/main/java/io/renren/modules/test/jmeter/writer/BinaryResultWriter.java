@@ -0,0 +1,248 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.assertions.AssertionResult;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 二进制列式测试结果文件的写入，格式见BinaryResultFormat。
+ * 请求结果先按列缓存在内存中，满一个数据块才编码写入，写入方法有锁，一般只有异步处理的消费线程在写。
+ * 数据块写入文件之后按FORCE_INTERVAL_MILLIS同步到磁盘再更新提交长度，见ResultFileCommit。
+ */
+public class BinaryResultWriter extends ResultFileWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BinaryResultWriter.class);
+
+    private final FileOutputStream fileOut;
+
+    private final OutputStream out;
+
+    private final ResultFileCommit commit;
+
+    /**
+     * 上次同步到磁盘并更新提交长度的时间
+     */
+    private long lastForceTime;
+
+    private boolean closed;
+
+    private final List<Map<String, Integer>> dictionaries = new ArrayList<>(BinaryResultFormat.DICT_COUNT);
+
+    /**
+     * 当前数据块的数据
+     */
+    private final long[][] numericColumns = new long[BinaryResultFormat.NUMERIC_COLUMNS][BinaryResultFormat.BLOCK_ROWS];
+    private final int[][] stringColumns = new int[BinaryResultFormat.DICT_COUNT][BinaryResultFormat.BLOCK_ROWS];
+    private final List<List<String>> inlineStrings = new ArrayList<>(BinaryResultFormat.DICT_COUNT);
+    private final BitSet successes = new BitSet(BinaryResultFormat.BLOCK_ROWS);
+    private int rows;
+
+    /**
+     * 数据块编码用的缓冲，重复使用。
+     */
+    private final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream(64 * 1024);
+
+    BinaryResultWriter(String path) throws IOException {
+        super(path);
+        File file = new File(path);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        this.fileOut = new FileOutputStream(file);
+        this.out = new BufferedOutputStream(fileOut, 64 * 1024);
+        for (int i = 0; i < BinaryResultFormat.DICT_COUNT; i++) {
+            dictionaries.add(new HashMap<>());
+            inlineStrings.add(new ArrayList<>());
+        }
+        this.commit = new ResultFileCommit(file);
+        out.write(BinaryResultFormat.MAGIC);
+        out.write(BinaryResultFormat.VERSION);
+        commit(false);
+    }
+
+    /**
+     * 缓冲中的数据写入文件，调用时文件中的最后一个记录必须是完整的。
+     * 同步到磁盘之后才提交到目前为止的文件长度，提交长度之前不会有没落盘的数据。
+     *
+     * @param force 是否立即同步，否则只在距离上次同步超过FORCE_INTERVAL_MILLIS时同步并提交
+     */
+    private void commit(boolean force) throws IOException {
+        out.flush();
+        long now = System.currentTimeMillis();
+        if (!force && now - lastForceTime < FORCE_INTERVAL_MILLIS) {
+            return;
+        }
+        fileOut.getFD().sync();
+        commit.commit(fileOut.getChannel().position(), force);
+        lastForceTime = now;
+    }
+
+    @Override
+    public void write(SampleEvent sampleEvent) {
+        SampleResult result = sampleEvent.getResult();
+        if (isSampleWanted(result)) {
+            write(result);
+        }
+    }
+
+    public synchronized void write(SampleResult result) {
+        if (closed) {
+            return;
+        }
+        int row = rows;
+        long[][] columns = numericColumns;
+        columns[BinaryResultFormat.COL_TIMESTAMP][row] = result.getTimeStamp();
+        columns[BinaryResultFormat.COL_ELAPSED][row] = result.getTime();
+        columns[BinaryResultFormat.COL_LATENCY][row] = result.getLatency();
+        columns[BinaryResultFormat.COL_CONNECT][row] = result.getConnectTime();
+        columns[BinaryResultFormat.COL_IDLE_TIME][row] = result.getIdleTime();
+        columns[BinaryResultFormat.COL_BYTES][row] = result.getBytesAsLong();
+        columns[BinaryResultFormat.COL_SENT_BYTES][row] = result.getSentBytes();
+        columns[BinaryResultFormat.COL_GRP_THREADS][row] = result.getGroupThreads();
+        columns[BinaryResultFormat.COL_ALL_THREADS][row] = result.getAllThreads();
+        columns[BinaryResultFormat.COL_SAMPLE_COUNT][row] = result.getSampleCount();
+        columns[BinaryResultFormat.COL_ERROR_COUNT][row] = result.getErrorCount();
+        try {
+            stringColumns[BinaryResultFormat.DICT_LABEL][row] = idOf(BinaryResultFormat.DICT_LABEL, result.getSampleLabel());
+            stringColumns[BinaryResultFormat.DICT_CODE][row] = idOf(BinaryResultFormat.DICT_CODE, result.getResponseCode());
+            stringColumns[BinaryResultFormat.DICT_MESSAGE][row] = idOf(BinaryResultFormat.DICT_MESSAGE, result.getResponseMessage());
+            stringColumns[BinaryResultFormat.DICT_THREAD][row] = idOf(BinaryResultFormat.DICT_THREAD, result.getThreadName());
+            stringColumns[BinaryResultFormat.DICT_FAILURE][row] = idOf(BinaryResultFormat.DICT_FAILURE, getFailureMessage(result));
+            successes.set(row, result.isSuccessful());
+            rows++;
+            if (rows == BinaryResultFormat.BLOCK_ROWS) {
+                writeBlock();
+                commit(false);
+            }
+        } catch (IOException e) {
+            logger.error("写入测试结果文件出错！" + path, e);
+        }
+    }
+
+    /**
+     * 和csv结果文件一致，取第一个有失败信息的断言结果。
+     */
+    private static String getFailureMessage(SampleResult result) {
+        for (AssertionResult assertionResult : result.getAssertionResults()) {
+            String message = assertionResult.getFailureMessage();
+            if (message != null) {
+                return message;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * 字符串在字典中的id，第一次出现时写入字典项。
+     * 字典满了返回0，字符串内联在数据块中。
+     */
+    private int idOf(int dictionary, String value) throws IOException {
+        String text = value == null ? "" : value;
+        Map<String, Integer> ids = dictionaries.get(dictionary);
+        Integer id = ids.get(text);
+        if (id != null) {
+            return id;
+        }
+        if (ids.size() >= BinaryResultFormat.MAX_DICTIONARY_SIZE) {
+            inlineStrings.get(dictionary).add(text);
+            return 0;
+        }
+        id = ids.size() + 1;
+        ids.put(text, id);
+        out.write(BinaryResultFormat.RECORD_DICTIONARY);
+        BinaryResultFormat.writeVarLong(out, dictionary);
+        BinaryResultFormat.writeVarLong(out, id);
+        BinaryResultFormat.writeString(out, text);
+        return id;
+    }
+
+    private void writeBlock() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        ByteArrayOutputStream block = blockBuffer;
+        block.reset();
+        BinaryResultFormat.writeVarLong(block, rows);
+        long[] timestamps = numericColumns[BinaryResultFormat.COL_TIMESTAMP];
+        BinaryResultFormat.writeZigZag(block, timestamps[0]);
+        for (List<String> inline : inlineStrings) {
+            BinaryResultFormat.writeVarLong(block, inline.size());
+            for (String text : inline) {
+                BinaryResultFormat.writeString(block, text);
+            }
+            inline.clear();
+        }
+        // 时间戳存储和上一行的差值，异步写入时可能略有乱序，所以用zigzag。
+        for (int row = 1; row < rows; row++) {
+            BinaryResultFormat.writeZigZag(block, timestamps[row] - timestamps[row - 1]);
+        }
+        for (int column = BinaryResultFormat.COL_ELAPSED; column < BinaryResultFormat.NUMERIC_COLUMNS; column++) {
+            long[] values = numericColumns[column];
+            for (int row = 0; row < rows; row++) {
+                BinaryResultFormat.writeZigZag(block, values[row]);
+            }
+        }
+        for (int[] ids : stringColumns) {
+            for (int row = 0; row < rows; row++) {
+                BinaryResultFormat.writeVarLong(block, ids[row]);
+            }
+        }
+        byte[] successBytes = Arrays.copyOf(successes.toByteArray(), (rows + 7) / 8);
+        block.write(successBytes);
+
+        out.write(BinaryResultFormat.RECORD_BLOCK);
+        BinaryResultFormat.writeVarLong(out, block.size());
+        block.writeTo(out);
+        successes.clear();
+        rows = 0;
+    }
+
+    /**
+     * 未满的数据块也会写入文件，提交长度按同步间隔更新，需要立即读取到目前为止的全部结果时使用sync。
+     */
+    @Override
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+            commit(false);
+        } catch (IOException e) {
+            logger.error("刷新测试结果文件出错！" + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        flush();
+        if (closed) {
+            return;
+        }
+        try {
+            commit(true);
+        } catch (IOException e) {
+            logger.error("同步测试结果文件到磁盘出错！" + path, e);
+        }
+    }
+
+    @Override
+    protected synchronized void close() {
+        if (closed) {
+            return;
+        }
+        sync();
+        closed = true;
+        try {
+            out.close();
+            commit.close();
+        } catch (IOException e) {
+            logger.error("关闭测试结果文件出错！" + path, e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleMetaDataParser;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.save.SaveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * csv测试结果文件分段的流式读取，压缩的分段边读边解压，不需要先解压到磁盘。
+ * <p>
+ * 有提交长度标记的分段只读到提交长度为止（见ResultFileCommit）。
+ * 没有标记的分段和Jmeter的CsvSampleReader不同，列数不对的行（写入中断的最后一行、包含<0x00>的行）直接跳过，
+ * 压缩流不完整（进程被强制结束）时读到最后一个完整的压缩块为止，
+ * 所以分段不需要再经过fixReportFile的修复。
+ */
+public class CsvResultReader implements ResultReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(CsvResultReader.class);
+
+    private final File file;
+
+    private final BufferedReader reader;
+
+    private final CountingInputStream counter;
+
+    private final char separator;
+
+    private final SampleMetadata metadata;
+
+    private long row;
+
+    private long skipped;
+
+    public CsvResultReader(File file, char separator) throws IOException {
+        this.file = file;
+        this.separator = separator;
+        this.counter = new CountingInputStream(new FileInputStream(file));
+        this.reader = new BufferedReader(new InputStreamReader(ResultFileSegments.openStream(file, counter),
+                SaveService.getFileEncoding(StandardCharsets.UTF_8.name())), 1024 * 1024);
+        String header;
+        try {
+            header = reader.readLine();
+        } catch (EOFException e) {
+            header = null;
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        this.metadata = header == null ? null : new SampleMetaDataParser(separator).parse(header);
+    }
+
+    @Override
+    public SampleMetadata getMetadata() {
+        return metadata;
+    }
+
+    @Override
+    public long getPosition() {
+        return counter.getByteCount();
+    }
+
+    @Override
+    public Sample readSample() throws IOException {
+        if (metadata == null) {
+            return null;
+        }
+        while (true) {
+            String[] data;
+            try {
+                data = CSVSaveService.csvReadFile(reader, separator);
+            } catch (EOFException e) {
+                logger.warn("测试结果文件最后的数据不完整，已忽略。" + file);
+                return null;
+            } catch (IOException e) {
+                // 引号不匹配的行，跳过
+                skipped++;
+                continue;
+            }
+            if (data.length == 0) {
+                return null;
+            }
+            if (data.length != metadata.getColumnCount()) {
+                skipped++;
+                continue;
+            }
+            return new Sample(row++, metadata, data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (skipped > 0) {
+            logger.warn("测试结果文件中跳过了{}行不完整的数据。{}", skipped, file);
+        }
+        reader.close();
+    }
+}
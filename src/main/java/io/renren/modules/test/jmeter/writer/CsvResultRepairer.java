@@ -0,0 +1,266 @@
+package io.renren.modules.test.jmeter.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 没有提交长度标记的csv测试结果文件（之前版本或者其他方式写入）的修复，替代原来的sed命令及_back文件的修复方式。
+ * <p>
+ * 用一个大缓冲顺序读一遍文件，按csv的引号规则切分出每一行记录，
+ * 删除包含<0x00>的行、列数和表头不一致的行，以及写入中断的不完整的最后一行。
+ * 中间写入中断的行引号可能不成对，之后的内容都会被当作引号中的内容，
+ * 发现结束的引号后面不是分隔符或换行、列数和表头不一致、或者引号中的内容跨行太长时，
+ * 删除到引号中的第一个换行为止，之后的数据重新解析。
+ * 保留的行通过写位置原地前移，写位置永远不会超过读位置，最后截掉文件末尾。
+ * 文件没有问题时只有读，没有写入。不依赖操作系统命令，各个系统上的行为一致。
+ * <p>
+ * 按字节切分，分隔符、引号、换行都是单字节字符，UTF-8等编码中多字节字符的后续字节不会和它们混淆。
+ */
+public class CsvResultRepairer {
+
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * 单行记录的最大长度，超过的不再缓存，当作坏数据删除（如掉电后一大段的<0x00>）。
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * 引号中的内容从第一个换行开始超过这个长度，认为是引号不成对的行。
+     */
+    private static final int MAX_QUOTED_LINES_SIZE = 1024 * 1024;
+
+    private static final byte QUOTE = '"';
+
+    private static final byte NEW_LINE = '\n';
+
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final byte separator;
+
+    public CsvResultRepairer(char separator) {
+        this.separator = (byte) separator;
+    }
+
+    /**
+     * 修复csv结果文件，第一行（表头）的列数作为每行应有的列数。
+     */
+    public Result repair(File file) throws IOException {
+        Result result = new Result();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+            // buffer中第0个字节在文件中的位置
+            long bufferStart = 0;
+            long readPosition = 0;
+            long writePosition = 0;
+            // 最后一个完整记录结束的位置
+            long recordEndPosition = 0;
+            // 当前记录在buffer中的开始位置及解析状态
+            int recordStart = 0;
+            int scanned = 0;
+            int columns = 1;
+            boolean inQuotes = false;
+            // 上一个字节是结束的引号
+            boolean closedQuote = false;
+            // 当前记录引号中的第一个换行在buffer中的位置，用于引号不成对时重新同步
+            int quotedNewLine = -1;
+            boolean hasNul = false;
+            // 当前记录太长，已经丢弃了前面的部分
+            boolean discarding = false;
+            int expectedColumns = -1;
+
+            while (true) {
+                if (readPosition < length) {
+                    int read = channel.read(buffer, readPosition);
+                    if (read < 0) {
+                        length = readPosition;
+                    } else {
+                        readPosition += read;
+                    }
+                }
+                int limit = buffer.position();
+                byte[] bytes = buffer.array();
+                for (int i = scanned; i < limit; i++) {
+                    byte b = bytes[i];
+                    boolean resync = false;
+                    boolean afterQuote = closedQuote;
+                    closedQuote = false;
+                    if (b == QUOTE) {
+                        // 引号中的两个引号是转义，切换两次状态不变。
+                        inQuotes = !inQuotes;
+                        closedQuote = !inQuotes;
+                    } else if (b == 0) {
+                        hasNul = true;
+                    } else if (inQuotes) {
+                        if (b == NEW_LINE) {
+                            if (quotedNewLine < 0) {
+                                quotedNewLine = i;
+                            } else {
+                                resync = i - quotedNewLine > MAX_QUOTED_LINES_SIZE;
+                            }
+                        }
+                    } else {
+                        // 引号中换过行的记录列数不对，多半是前面有一行写入中断，引号不成对。
+                        boolean tornQuote = quotedNewLine >= 0 && expectedColumns >= 0;
+                        if (b == separator) {
+                            columns++;
+                            resync = tornQuote && columns > expectedColumns;
+                        } else if (b == NEW_LINE && tornQuote && columns != expectedColumns) {
+                            resync = true;
+                        } else if (b == NEW_LINE) {
+                            int end = i + 1;
+                            boolean keep = !hasNul && !discarding;
+                            if (keep && expectedColumns < 0) {
+                                expectedColumns = columns;
+                            } else if (keep && columns != expectedColumns) {
+                                keep = false;
+                                result.columnMismatchRows++;
+                            } else if (!keep) {
+                                result.badRows++;
+                            }
+                            if (keep) {
+                                result.rows++;
+                                long recordPosition = bufferStart + recordStart;
+                                if (recordPosition != writePosition) {
+                                    ByteBuffer record = buffer.duplicate();
+                                    record.limit(end).position(recordStart);
+                                    while (record.hasRemaining()) {
+                                        writePosition += channel.write(record, writePosition);
+                                    }
+                                } else {
+                                    writePosition += end - recordStart;
+                                }
+                            }
+                            recordStart = end;
+                            recordEndPosition = bufferStart + end;
+                            columns = 1;
+                            quotedNewLine = -1;
+                            hasNul = false;
+                            discarding = false;
+                        } else if (afterQuote && b != CARRIAGE_RETURN) {
+                            // 结束的引号后面只能是分隔符或换行，引号中换过行的，是和前面中断的行拼在了一起。
+                            resync = quotedNewLine >= 0;
+                        }
+                    }
+                    if (resync) {
+                        // 删除到引号中的第一个换行为止（写入中断的行），从下一行重新解析。
+                        result.tornRows++;
+                        int end = quotedNewLine + 1;
+                        recordStart = end;
+                        recordEndPosition = bufferStart + end;
+                        columns = 1;
+                        inQuotes = false;
+                        quotedNewLine = -1;
+                        hasNul = false;
+                        discarding = false;
+                        i = end - 1;
+                    }
+                }
+                scanned = limit;
+
+                if (readPosition >= length) {
+                    break;
+                }
+                // 缓冲满了，没有处理完的记录移到缓冲开头继续读。
+                if (recordStart == 0 && !buffer.hasRemaining()) {
+                    if (hasNul || buffer.capacity() >= MAX_RECORD_SIZE) {
+                        // 坏数据不需要保留，直接丢弃，继续找这一行的结尾。
+                        discarding = true;
+                        quotedNewLine = -1;
+                        bufferStart += limit;
+                        buffer.clear();
+                        scanned = 0;
+                        continue;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_RECORD_SIZE));
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                    continue;
+                }
+                buffer.limit(limit).position(recordStart);
+                buffer.compact();
+                bufferStart += recordStart;
+                scanned -= recordStart;
+                if (quotedNewLine >= 0) {
+                    quotedNewLine -= recordStart;
+                }
+                recordStart = 0;
+            }
+
+            // 没有换行结尾的最后一行是写入中断留下的
+            result.tornTailBytes = length - recordEndPosition;
+            if (writePosition < length) {
+                channel.truncate(writePosition);
+                channel.force(false);
+            }
+            result.removedBytes = length - writePosition;
+        }
+        return result;
+    }
+
+    /**
+     * 修复的统计
+     */
+    public static class Result {
+
+        /**
+         * 保留的行数，包括表头
+         */
+        private long rows;
+
+        /**
+         * 包含<0x00>或者超长的行数
+         */
+        private long badRows;
+
+        private long columnMismatchRows;
+
+        /**
+         * 中间写入中断、引号不成对的行数
+         */
+        private long tornRows;
+
+        private long tornTailBytes;
+
+        private long removedBytes;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBadRows() {
+            return badRows;
+        }
+
+        public long getColumnMismatchRows() {
+            return columnMismatchRows;
+        }
+
+        public long getTornRows() {
+            return tornRows;
+        }
+
+        public long getTornTailBytes() {
+            return tornTailBytes;
+        }
+
+        public long getRemovedBytes() {
+            return removedBytes;
+        }
+
+        public boolean isModified() {
+            return removedBytes > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "保留" + rows + "行，删除包含<0x00>的" + badRows + "行、列数不一致的" + columnMismatchRows
+                    + "行、引号不成对的" + tornRows + "行，截掉不完整的最后一行" + tornTailBytes + "字节，共删除" + removedBytes + "字节";
+        }
+    }
+}
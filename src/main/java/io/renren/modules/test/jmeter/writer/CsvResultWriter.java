@@ -0,0 +1,324 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.save.SaveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * csv测试结果文件的写入，文件内容和ResultCollector的csv文件完全一致。
+ * <p>
+ * 请求结果在调用线程中格式化、编码成字节，加锁的部分只有拷贝到缓冲中，
+ * 缓冲满了才一次性写入FileChannel，替代PrintWriter每行一次的加锁写入。
+ * 一般只有异步处理的消费线程在写，缓冲满了之前没有系统调用。
+ * <p>
+ * 可选边写边gzip压缩，以及按大小或者时间滚动到新的分段，分段的命名见ResultFileSegments。
+ * <p>
+ * 缓冲中只有完整的行，写入文件之后按FORCE_INTERVAL_MILLIS同步到磁盘再更新提交长度（见ResultFileCommit），
+ * 压缩时先做一次同步刷新，提交长度之前的数据在进程被强制结束或者掉电后仍然可以完整读取（压缩的可以解压读取）。
+ * 响应信息等字段中的<0x00>字符在写入前去掉，结果文件中不会出现<0x00>。
+ */
+public class CsvResultWriter extends ResultFileWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CsvResultWriter.class);
+
+    /**
+     * 写入缓冲的大小
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final SampleSaveConfiguration saveConfig;
+
+    private final Charset charset;
+
+    private final boolean compress;
+
+    /**
+     * 分段滚动的大小（字节）及时间（毫秒），0表示不按此滚动。
+     */
+    private final long rotateBytes;
+
+    private final long rotateMillis;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * 压缩时从直接缓冲拷贝数据用
+     */
+    private byte[] chunk;
+
+    private int segmentIndex;
+
+    private long segmentStartTime;
+
+    private FileChannel channel;
+
+    private GZIPOutputStream gzipOut;
+
+    private ResultFileCommit commit;
+
+    /**
+     * 上次同步到磁盘并更新提交长度的时间
+     */
+    private long lastForceTime;
+
+    private boolean closed;
+
+    CsvResultWriter(String path, SampleSaveConfiguration saveConfig, boolean compress,
+                    long rotateBytes, long rotateMillis) throws IOException {
+        super(path);
+        this.saveConfig = saveConfig;
+        this.charset = Charset.forName(SaveService.getFileEncoding(StandardCharsets.UTF_8.name()));
+        this.compress = compress;
+        this.rotateBytes = rotateBytes;
+        this.rotateMillis = rotateMillis;
+        if (compress) {
+            chunk = new byte[64 * 1024];
+        }
+        File file = new File(path);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        openSegment(firstSegmentIndex(file));
+    }
+
+    /**
+     * 结果文件已经存在时（追加写入），从已有的最后一个分段继续，之前的分段都保留。
+     * 最后一个分段和本次的压缩方式不同时不能追加，从下一个分段开始。
+     */
+    private int firstSegmentIndex(File file) {
+        List<File> segments = ResultFileSegments.listSegments(file);
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        int last = segments.size() - 1;
+        return segments.get(last).equals(ResultFileSegments.getSegmentFile(file, last, compress)) ? last : last + 1;
+    }
+
+    private void openSegment(int index) throws IOException {
+        File file = ResultFileSegments.getSegmentFile(new File(path), index, compress);
+        // 和ResultCollector一致，文件已经存在则追加，新文件才写表头，已有的分段都不会被清空。
+        // 追加到已经存在的压缩文件时是一个新的gzip成员，解压时会连在一起。
+        boolean append = file.exists();
+        long committed = append ? ResultFileCommit.getCommittedLength(file) : -1;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // 上次写入中断留下的没提交的数据，追加之前截掉。
+        if (committed >= 0 && committed < channel.size()) {
+            channel.truncate(committed);
+        }
+        commit = new ResultFileCommit(file);
+        forceAndCommit(false);
+        if (compress) {
+            gzipOut = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024, true);
+        }
+        segmentIndex = index;
+        segmentStartTime = System.currentTimeMillis();
+        if (!append && saveConfig.saveFieldNames()) {
+            put(encode(CSVSaveService.printableFieldNamesToString(saveConfig)));
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        writeBuffer();
+        if (gzipOut != null) {
+            gzipOut.finish();
+            gzipOut.flush();
+        }
+        forceAndCommit(true);
+        commit.close();
+        channel.close();
+    }
+
+    /**
+     * 当前分段达到滚动的大小或者时间时，切换到新的分段。
+     */
+    private void rotateIfNeeded() throws IOException {
+        boolean bySize = rotateBytes > 0 && channel.size() >= rotateBytes;
+        boolean byTime = rotateMillis > 0 && System.currentTimeMillis() - segmentStartTime >= rotateMillis;
+        if (bySize || byTime) {
+            closeSegment();
+            openSegment(segmentIndex + 1);
+        }
+    }
+
+    @Override
+    public void write(SampleEvent sampleEvent) {
+        SampleResult result = sampleEvent.getResult();
+        if (!isSampleWanted(result)) {
+            return;
+        }
+        byte[] line;
+        try {
+            line = encode(CSVSaveService.resultToDelimitedString(withSaveConfig(sampleEvent)));
+        } catch (Exception e) {
+            logger.error("格式化测试结果出错！", e);
+            return;
+        }
+        try {
+            put(line);
+        } catch (IOException e) {
+            logger.error("写入测试结果文件出错！" + path, e);
+        }
+    }
+
+    /**
+     * CSVSaveService按请求结果上的SampleSaveConfiguration格式化。
+     * 请求结果还会被其他监听器使用，不能直接修改，格式不同时使用设置了本文件配置的浅拷贝。
+     */
+    private SampleEvent withSaveConfig(SampleEvent sampleEvent) {
+        SampleResult result = sampleEvent.getResult();
+        if (result.getSaveConfig() == saveConfig) {
+            return sampleEvent;
+        }
+        SampleResult copy = (SampleResult) result.clone();
+        copy.setSaveConfig(saveConfig);
+        return new ConfiguredSampleEvent(sampleEvent, copy);
+    }
+
+    private byte[] encode(String line) {
+        if (line.indexOf('\0') >= 0) {
+            line = line.replace("\0", "");
+        }
+        return (line + LINE_SEPARATOR).getBytes(charset);
+    }
+
+    private synchronized void put(byte[] line) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (line.length > buffer.remaining()) {
+            writeBuffer();
+            rotateIfNeeded();
+            if (line.length > buffer.capacity()) {
+                // 超长的一行（如很长的失败信息）直接写入。
+                writeBytes(ByteBuffer.wrap(line));
+                commit();
+                return;
+            }
+        }
+        buffer.put(line);
+    }
+
+    private void writeBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeBytes(buffer);
+        buffer.clear();
+        commit();
+    }
+
+    /**
+     * 写入的都是完整的行，压缩流先同步刷新，保证提交的数据可以解压。
+     * 距离上次同步超过FORCE_INTERVAL_MILLIS时同步到磁盘，提交到目前为止的文件长度。
+     */
+    private void commit() throws IOException {
+        if (gzipOut != null) {
+            gzipOut.flush();
+        }
+        if (System.currentTimeMillis() - lastForceTime >= FORCE_INTERVAL_MILLIS) {
+            forceAndCommit(false);
+        }
+    }
+
+    /**
+     * 先把文件同步到磁盘，再提交文件长度，提交长度之前不会有没落盘的数据。
+     *
+     * @param forceCommit 标记本身是否也同步到磁盘
+     */
+    private void forceAndCommit(boolean forceCommit) throws IOException {
+        channel.force(false);
+        commit.commit(channel.size(), forceCommit);
+        lastForceTime = System.currentTimeMillis();
+    }
+
+    private void writeBytes(ByteBuffer bytes) throws IOException {
+        if (gzipOut == null) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return;
+        }
+        while (bytes.hasRemaining()) {
+            int length = Math.min(bytes.remaining(), chunk.length);
+            bytes.get(chunk, 0, length);
+            gzipOut.write(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBuffer();
+        } catch (IOException e) {
+            logger.error("刷新测试结果文件出错！" + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void sync() {
+        flush();
+        if (closed) {
+            return;
+        }
+        try {
+            forceAndCommit(true);
+        } catch (IOException e) {
+            logger.error("同步测试结果文件到磁盘出错！" + path, e);
+        }
+    }
+
+    @Override
+    protected synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            logger.error("关闭测试结果文件出错！" + path, e);
+        }
+    }
+
+    /**
+     * 替换了请求结果的事件，线程组、节点的hostname及sample_variables的值都取自原来的事件。
+     */
+    private static final class ConfiguredSampleEvent extends SampleEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SampleEvent event;
+
+        private ConfiguredSampleEvent(SampleEvent event, SampleResult result) {
+            super(result, event.getThreadGroup(), event.getHostname());
+            this.event = event;
+        }
+
+        @Override
+        public String getVarValue(int i) {
+            return event.getVarValue(i);
+        }
+    }
+}
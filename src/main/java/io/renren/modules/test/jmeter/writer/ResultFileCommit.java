@@ -0,0 +1,88 @@
+package io.renren.modules.test.jmeter.writer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 测试结果文件的提交长度标记。
+ * <p>
+ * 写入时在结果文件（每个分段）旁边维护一个.commit文件，只保存一个long，即文件中已经同步到磁盘的完整记录的字节数。
+ * 写入的数据先force到磁盘再更新标记，标记永远不会超过已经落盘的长度：写入过程中最多间隔
+ * ResultFileWriter.FORCE_INTERVAL_MILLIS同步一次，sync及正常关闭时同步并等于文件长度。
+ * 读取时只读到提交长度为止，写入中断留下的不完整的最后一行、掉电后文件中没有落盘的<0x00>数据都读不到，
+ * 所以有标记的结果文件生成报告前不需要再修复，代价是掉电时最后一个同步间隔内的结果不会被读取。
+ * 没有标记的是之前版本或者其他方式（如Jmeter_home中的命令）写入的结果文件，按原来的方式处理。
+ */
+public class ResultFileCommit implements Closeable {
+
+    public static final String SUFFIX = ".commit";
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+
+    ResultFileCommit(File segment) throws IOException {
+        this.channel = FileChannel.open(getCommitFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 更新提交长度，调用前length之前的数据必须已经同步到磁盘（FileChannel.force），只写入文件是不够的。
+     *
+     * @param force 标记本身是否同步到磁盘，没有同步时掉电后可能还是之前的提交长度，不影响正确性
+     */
+    void commit(long length, boolean force) throws IOException {
+        buffer.clear();
+        buffer.putLong(length);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static File getCommitFile(File segment) {
+        return new File(segment.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return 提交长度，没有标记时返回-1
+     */
+    public static long getCommittedLength(File segment) {
+        File commitFile = getCommitFile(segment);
+        if (!commitFile.isFile() || commitFile.length() < Long.BYTES) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(commitFile))) {
+            long length = in.readLong();
+            return length < 0 ? -1 : length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 可以读取的长度，有标记时是提交长度，没有标记时是文件长度。
+     */
+    public static long getReadableLength(File segment) {
+        long committed = getCommittedLength(segment);
+        return committed >= 0 ? Math.min(committed, segment.length()) : segment.length();
+    }
+
+    /**
+     * 是否有标记，并且文件末尾有没提交的数据（写入中断）。
+     */
+    public static boolean hasUncommittedTail(File segment) {
+        long committed = getCommittedLength(segment);
+        return committed >= 0 && segment.length() > committed;
+    }
+}
@@ -0,0 +1,56 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.report.core.CsvSampleWriter;
+import org.apache.jmeter.report.core.Sample;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 二进制格式、压缩或者分段的测试结果文件合并转换为一个Jmeter的csv结果文件。
+ * 用于需要csv文件的场景，如使用Jmeter_home中的命令生成测试报告、下载测试结果文件给其他工具分析。
+ */
+public class ResultFileConverter {
+
+    /**
+     * @return 转换的行数
+     */
+    public static long toCsv(File resultFile, File csvFile, char separator) throws IOException {
+        long count = 0;
+        CsvSampleWriter writer = null;
+        try {
+            for (File segment : ResultFileSegments.listSegments(resultFile)) {
+                try (ResultReader reader = ResultReader.open(segment, separator)) {
+                    if (reader.getMetadata() == null) {
+                        continue;
+                    }
+                    if (writer == null) {
+                        // 所有分段的列都是一样的，表头只写一次。
+                        writer = new CsvSampleWriter(csvFile, reader.getMetadata());
+                        writer.writeHeader();
+                    }
+                    Sample sample;
+                    while ((sample = reader.readSample()) != null) {
+                        writer.write(sample);
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 转换后的csv文件路径，和结果文件放在一起。
+     * 不能和结果文件的分段同名，否则会被当成分段读取。
+     */
+    public static File getCsvFile(File resultFile) {
+        String path = resultFile.getPath();
+        int index = path.lastIndexOf(".");
+        return new File((index > 0 ? path.substring(0, index) : path) + "_merged.csv");
+    }
+}
@@ -0,0 +1,157 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 测试结果文件的分段。
+ * <p>
+ * 结果文件按大小或者时间滚动成多个分段，第一个分段就是测试报告记录的结果文件，
+ * 之后的分段命名和Jmeter读取多个结果文件的规则一致，如case_4444.csv之后是case_4444-1.csv、case_4444-2.csv。
+ * 开启压缩时每个分段再加上.gz后缀，如case_4444.csv.gz、case_4444-1.csv.gz。
+ * 每个分段都是完整的结果文件，有自己的表头。
+ */
+public class ResultFileSegments {
+
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * 第index个分段的文件，从0开始。
+     */
+    public static File getSegmentFile(File resultFile, int index, boolean compress) {
+        String path = resultFile.getPath();
+        if (index > 0) {
+            String name = resultFile.getName();
+            int dot = name.lastIndexOf(".");
+            String parent = path.substring(0, path.length() - name.length());
+            path = dot > 0 ? parent + name.substring(0, dot) + "-" + index + name.substring(dot)
+                    : parent + name + "-" + index;
+        }
+        return new File(compress ? path + GZIP_SUFFIX : path);
+    }
+
+    /**
+     * 结果文件现有的全部分段，按顺序排列。
+     */
+    public static List<File> listSegments(File resultFile) {
+        List<File> segments = new ArrayList<>();
+        for (int index = 0; ; index++) {
+            File plain = getSegmentFile(resultFile, index, false);
+            File compressed = getSegmentFile(resultFile, index, true);
+            if (plain.isFile()) {
+                segments.add(plain);
+            } else if (compressed.isFile()) {
+                segments.add(compressed);
+            } else {
+                return segments;
+            }
+        }
+    }
+
+    public static boolean exists(File resultFile) {
+        return !listSegments(resultFile).isEmpty();
+    }
+
+    /**
+     * 全部分段的大小之和，压缩的分段是压缩后的大小。
+     */
+    public static long sizeOf(File resultFile) {
+        long size = 0;
+        for (File segment : listSegments(resultFile)) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    public static boolean isCompressed(File segment) {
+        return segment.getName().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * 是否需要按分段读取，只有一个未压缩的分段时和原有的结果文件没有区别。
+     */
+    public static boolean isSegmented(File resultFile) {
+        List<File> segments = listSegments(resultFile);
+        return segments.size() > 1 || (segments.size() == 1 && isCompressed(segments.get(0)));
+    }
+
+    /**
+     * 读取分段的内容，压缩的分段读取时解压。
+     * 有提交长度标记的分段只读到提交长度为止，见ResultFileCommit。
+     * 正在写入或者写入中断的压缩分段没有结尾，读到最后一次同步刷新的数据为止，当作正常结束。
+     */
+    public static InputStream openStream(File segment) throws IOException {
+        return openStream(segment, new FileInputStream(segment));
+    }
+
+    /**
+     * @param in 分段文件的输入流，如需要统计读取字节数时包装过的文件流
+     */
+    public static InputStream openStream(File segment, InputStream in) throws IOException {
+        long committed = ResultFileCommit.getCommittedLength(segment);
+        if (committed >= 0) {
+            in = new BoundedInputStream(in, committed);
+        }
+        if (!isCompressed(segment)) {
+            return in;
+        }
+        try {
+            return new TruncatedGzipInputStream(new GZIPInputStream(in, 64 * 1024));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 是否有分段的末尾有没提交的数据（写入中断），需要按提交长度读取。
+     */
+    public static boolean hasUncommittedTail(File resultFile) {
+        for (File segment : listSegments(resultFile)) {
+            if (ResultFileCommit.hasUncommittedTail(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void deleteQuietly(File resultFile) {
+        for (File segment : listSegments(resultFile)) {
+            FileUtils.deleteQuietly(segment);
+            FileUtils.deleteQuietly(ResultFileCommit.getCommitFile(segment));
+        }
+    }
+
+    /**
+     * 压缩流不完整时抛出的EOFException当作流结束，之前解压出来的数据都可以读取到。
+     */
+    private static class TruncatedGzipInputStream extends FilterInputStream {
+
+        private TruncatedGzipInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+    }
+}
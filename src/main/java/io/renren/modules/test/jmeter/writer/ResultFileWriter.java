@@ -0,0 +1,134 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.reporters.ResultCollector;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 测试结果文件的写入，替代ResultCollector中每个请求结果一次加锁的PrintWriter写入。
+ * <p>
+ * 和ResultCollector的结果文件一样，同一个文件同一时间只有一个写入对象，
+ * 每次testStarted打开(引用计数加一)，testEnded释放，最后一个释放的关闭文件。
+ * 写入之后结果先在内存中缓冲，攒够一批才写入文件。
+ */
+public abstract class ResultFileWriter {
+
+    /**
+     * 写入过程中同步到磁盘并更新提交长度（见ResultFileCommit）的最长间隔，
+     * 每批写入都同步的话，高TPS时fsync太频繁。
+     */
+    protected static final long FORCE_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * 正在写入的文件，key是文件路径。
+     */
+    private static final Map<String, ResultFileWriter> writers = new HashMap<>();
+
+    static {
+        // 和ResultCollector一样，进程退出时把缓冲中的结果写入文件。
+        Runtime.getRuntime().addShutdownHook(new Thread(ResultFileWriter::closeAll, "ResultFileWriter-shutdown"));
+    }
+
+    protected final String path;
+
+    /**
+     * 和ResultCollector一致，只保存失败的或者只保存成功的请求结果。
+     */
+    private boolean errorOnly;
+
+    private boolean successOnly;
+
+    private int refCount;
+
+    protected ResultFileWriter(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 打开文件的写入对象，已经打开则引用计数加一。
+     *
+     * @param binary       是否使用二进制列式格式，否则为csv格式
+     * @param saveConfig   csv格式保存的列
+     * @param compress     csv格式是否gzip压缩
+     * @param rotateBytes  csv格式分段滚动的大小（字节），0表示不按大小滚动
+     * @param rotateMillis csv格式分段滚动的时间（毫秒），0表示不按时间滚动
+     * @param errorOnly    只保存失败的请求结果，即ResultCollector.isErrorLogging()
+     * @param successOnly  只保存成功的请求结果，即ResultCollector.isSuccessOnlyLogging()
+     */
+    public static synchronized ResultFileWriter open(String path, boolean binary, SampleSaveConfiguration saveConfig,
+                                                     boolean compress, long rotateBytes, long rotateMillis,
+                                                     boolean errorOnly, boolean successOnly) throws IOException {
+        ResultFileWriter writer = writers.get(path);
+        if (writer == null) {
+            writer = binary ? new BinaryResultWriter(path)
+                    : new CsvResultWriter(path, saveConfig, compress, rotateBytes, rotateMillis);
+            writer.errorOnly = errorOnly;
+            writer.successOnly = successOnly;
+            writers.put(path, writer);
+        }
+        writer.refCount++;
+        return writer;
+    }
+
+    /**
+     * 获取已经打开的写入对象，没有则返回null。
+     */
+    public static synchronized ResultFileWriter get(String path) {
+        return writers.get(path);
+    }
+
+    /**
+     * 引用计数减一，最后一个释放时关闭文件。
+     */
+    public static synchronized void release(String path) {
+        ResultFileWriter writer = writers.get(path);
+        if (writer == null) {
+            return;
+        }
+        if (--writer.refCount <= 0) {
+            writers.remove(path);
+            writer.close();
+        }
+    }
+
+    private static synchronized void closeAll() {
+        writers.values().forEach(ResultFileWriter::close);
+        writers.clear();
+    }
+
+    /**
+     * 写入一个请求结果，关闭之后的写入会被忽略。
+     * 和ResultCollector.sampleOccurred一样，不需要的结果（见isSampleWanted）不写入。
+     */
+    public abstract void write(SampleEvent sampleEvent);
+
+    /**
+     * 和ResultCollector一致的判断：按只保存成功/失败的设置过滤，
+     * 同一个请求结果只写入同一个文件一次（多个收集器写同一个文件时）。
+     */
+    protected boolean isSampleWanted(SampleResult result) {
+        return ResultCollector.isSampleWanted(result.isSuccessful(), errorOnly, successOnly)
+                && !result.markFile(path);
+    }
+
+    /**
+     * 把缓冲中的结果写入文件。
+     */
+    public abstract void flush();
+
+    /**
+     * 把缓冲中的结果写入文件并同步到磁盘，之后读取文件可以得到目前为止的全部结果。
+     */
+    public abstract void sync();
+
+    protected abstract void close();
+
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,41 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleMetadata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 测试结果文件一个分段的流式读取，读取出来的Sample和Jmeter的csv结果文件一致。
+ */
+public interface ResultReader extends Closeable {
+
+    /**
+     * @return 列的定义，空文件返回null
+     */
+    SampleMetadata getMetadata();
+
+    /**
+     * @return 下一行的数据，文件结束时返回null
+     */
+    Sample readSample() throws IOException;
+
+    /**
+     * @return 已经读取的分段文件的字节数（压缩的分段是压缩后的字节数），用于显示进度，不支持时返回-1
+     */
+    default long getPosition() {
+        return -1;
+    }
+
+    /**
+     * 根据文件内容选择二进制或者csv(可能压缩)的读取方式。
+     */
+    static ResultReader open(File segment, char separator) throws IOException {
+        if (BinaryResultFormat.isBinaryResultFile(segment)) {
+            return new BinaryResultReader(segment, separator);
+        }
+        return new CsvResultReader(segment, separator);
+    }
+}
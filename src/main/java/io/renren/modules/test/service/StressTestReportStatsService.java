@@ -0,0 +1,40 @@
+package io.renren.modules.test.service;
+
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
+import io.renren.modules.test.jmeter.report.SliceStatistics;
+
+import java.util.List;
+
+/**
+ * 性能测试报告的汇总统计
+ */
+public interface StressTestReportStatsService {
+
+    /**
+     * 保存测试报告的汇总统计，替换之前保存的
+     */
+    void saveStatistics(Long reportId, List<SliceStatistics.Row> rows);
+
+    /**
+     * 查询测试报告的汇总统计，全部请求的合计在最前面
+     */
+    List<StressTestReportStatsEntity> queryByReportId(Long reportId);
+
+    /**
+     * 同一个脚本多次压测的趋势，按测试报告从旧到新排列
+     *
+     * @param label 请求名称，为空时使用全部请求的合计
+     * @param limit 最近多少次压测
+     */
+    List<StressTestReportStatsEntity> queryTrend(Long fileId, String label, Integer limit);
+
+    /**
+     * 批量删除测试报告的汇总统计
+     */
+    void deleteBatchByReportIds(Long[] reportIds);
+
+    /**
+     * 批量删除用例的全部测试报告的汇总统计
+     */
+    void deleteBatchByCaseIds(Long[] caseIds);
+}
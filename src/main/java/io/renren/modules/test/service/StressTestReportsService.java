@@ -1,9 +1,14 @@
 package io.renren.modules.test.service;
 
 import io.renren.modules.test.entity.StressTestReportsEntity;
-import org.springframework.core.io.FileSystemResource;
+import io.renren.modules.test.jmeter.report.RegressionComparator;
+import io.renren.modules.test.jmeter.report.ReportStamp;
+import io.renren.modules.test.jmeter.report.ResultSlice;
+import io.renren.modules.test.jmeter.report.SliceStatistics;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -48,22 +53,78 @@ public interface StressTestReportsService {
     void deleteBatchCsv(Long[] reportIds);
 
     /**
-     * 生成测试报告
+     * 生成测试报告，已经在排队或者生成中的跳过，不影响其他的测试报告
+     *
+     * @return 跳过的测试报告名称
      */
-    void createReport(Long[] reportIds);
+    List<String> createReport(Long[] reportIds);
 
     /**
-     * 生成测试报告
+     * 生成测试报告，加入队列排队生成
      */
     void createReport(StressTestReportsEntity reportsEntity);
 
+    /**
+     * 取消排队中或者正在生成的测试报告
+     */
+    void cancelReport(Long[] reportIds);
+
+    /**
+     * 测试结果中一个时间段、部分请求的汇总统计
+     *
+     * @return 等待超时还在统计时返回null，稍后用同样的参数再次请求
+     */
+    List<SliceStatistics.Row> sliceStatistics(StressTestReportsEntity reportsEntity, ResultSlice slice);
+
+    /**
+     * 使用测试结果中一个时间段、部分请求生成测试报告，返回测试报告目录相对测试报告根路径的路径
+     *
+     * @return 等待超时还在生成时返回null，稍后用同样的参数再次请求
+     */
+    String createSliceReport(StressTestReportsEntity reportsEntity, ResultSlice slice);
+
+    /**
+     * 设置为所属脚本性能回归对比的基线
+     */
+    void setBaseline(Long reportId);
+
+    /**
+     * 对比同一个脚本的两个测试报告的汇总统计
+     */
+    RegressionComparator.Result compare(Long baselineReportId, Long candidateReportId);
+
+    /**
+     * 和所属脚本的基线对比，并保存是否有性能回归
+     */
+    RegressionComparator.Result compareWithBaseline(Long reportId);
+
+    /**
+     * 脚本最近一次的测试报告和基线对比并保存结果，已经对比过的不再对比，返回有性能回归的脚本数
+     *
+     * @param fileIds 为空时检查所有设置了基线的脚本
+     */
+    int checkRegression(Long[] fileIds);
+
+    /**
+     * 保存测试报告的生成标记，结果文件及配置不变时再次生成直接使用
+     */
+    void saveReportStamp(ReportStamp reportStamp, String reportPathDir);
+
     /**
      * 批量删除测试报告的来源CSV文件
      */
     void deleteReportCSV(StressTestReportsEntity stressCaseReports);
 
 
-    FileSystemResource getZipFile(StressTestReportsEntity reportsEntity) throws IOException;
+    /**
+     * 获取测试报告目录，还没有生成时抛出异常
+     */
+    File getReportDir(StressTestReportsEntity reportsEntity);
+
+    /**
+     * 把测试报告目录打包成zip直接写入输出流
+     */
+    void writeReportZip(File reportDir, OutputStream out) throws IOException;
 
 //    /**
 //     * 批量更新性能测试用例信息
@@ -0,0 +1,27 @@
+package io.renren.modules.test.service;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * 压测实时监控数据推送
+ */
+public interface StressTestStatService {
+
+    /**
+     * 订阅指定脚本文件的实时监控数据，服务端定时推送。
+     * 同一个脚本文件的所有订阅者共用同一份监控数据。
+     */
+    SseEmitter subscribe(Long fileId);
+
+    /**
+     * 原有格式的实时监控数据(JSON)，同一个刷新周期内所有请求共用一份。
+     */
+    String getStatInfoJson(Long fileId);
+
+    /**
+     * 列式数值格式的实时监控数据(JSON)。
+     *
+     * @param since 前端已有数据的序号，不为空时只返回之后有变化的数据
+     */
+    String getStatSnapshotJson(Long fileId, Long since);
+}
@@ -1,33 +1,26 @@
 package io.renren.modules.test.service.impl;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.ResourceUtils;
 
 import io.renren.common.exception.RRException;
 import io.renren.modules.test.dao.DebugTestReportsDao;
 import io.renren.modules.test.entity.DebugTestReportsEntity;
+import io.renren.modules.test.jmeter.report.DebugReportWriter;
 import io.renren.modules.test.service.DebugTestReportsService;
 import io.renren.modules.test.utils.StressTestUtils;
 
@@ -46,6 +39,10 @@ public class DebugTestReportsServiceImpl implements DebugTestReportsService {
     @Autowired
     private StressTestUtils stressTestUtils;
 
+    @Autowired
+    @Qualifier("debugReportExecutor")
+    private Executor debugReportExecutor;
+
     /**
      * 性能差的查询方法：添加不必要的循环和延迟
      */
@@ -256,6 +253,7 @@ public class DebugTestReportsServiceImpl implements DebugTestReportsService {
                 reportPathFile.isFile();
             }
             FileUtils.deleteQuietly(reportPathFile);
+            FileUtils.deleteQuietly(DebugReportWriter.getFragmentDir(reportPathFile));
 
             // 性能差：重复调用删除方法
             for (int i = 0; i < 2; i++) {
@@ -428,170 +426,66 @@ public class DebugTestReportsServiceImpl implements DebugTestReportsService {
     }
 
     /**
-     * 性能差的批量生成报告：添加不必要的操作
+     * 批量生成时多个报告交给全局共用的debugReportExecutor并行生成，
+     * 同时有多个批量请求时总的并发数也不超过CPU核数。
+     * 某个报告生成失败时记录日志，不影响其他报告。
      */
     @Override
-    @Transactional
-    @Async("asyncServiceExecutor")
     public void createReport(Long[] reportIds) {
-        // 性能差：生成前查询所有报告
         for (Long reportId : reportIds) {
-            for (int i = 0; i < 2; i++) {
-                queryObject(reportId);
-            }
+            debugReportExecutor.execute(() -> createReportQuietly(reportId));
         }
+    }
 
-        // 性能差：不必要的延迟
+    private void createReportQuietly(Long reportId) {
         try {
-            Thread.sleep(50);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-
-        for (Long reportId : reportIds) {
-            // 性能差：每个报告生成前都查询
-            queryObject(reportId);
             createReport(reportId);
-            // 性能差：每个报告生成后都查询
-            queryObject(reportId);
+        } catch (Exception e) {
+            logger.error("生成调试测试报告失败，reportId：" + reportId, e);
         }
     }
 
     /**
-     * 性能差的单个报告生成：添加大量不必要的操作
+     * 用StAX流式读取jtl结果文件生成html测试报告，内存占用和结果文件大小无关。
+     * 超长的请求及响应内容在报告中截断，完整内容保存在报告旁边的目录中。
      */
     @Override
     @Transactional
     @Async("asyncServiceExecutor")
     public void createReport(Long reportId) {
-        // 性能差：多次查询同一个对象
-        DebugTestReportsEntity debugTestReport = null;
-        for (int i = 0; i < 5; i++) {
-            debugTestReport = queryObject(reportId);
-        }
-
+        DebugTestReportsEntity debugTestReport = debugTestReportsDao.queryObject(reportId);
         if (debugTestReport == null) {
             throw new RRException("找不到调试测试报告！");
         }
 
-        // 性能差：多次检查文件大小
-        Long fileSize = null;
-        for (int i = 0; i < 10; i++) {
-            fileSize = debugTestReport.getFileSize();
-            if (fileSize == 0L || fileSize == null) {
-                // 性能差：即使已经知道结果，还要继续检查
-                continue;
-            }
-        }
-
         // 首先判断，如果file_size为0或者空，说明没有结果文件，直接报错打断。
-        if (fileSize == 0L || fileSize == null) {
+        Long fileSize = debugTestReport.getFileSize();
+        if (fileSize == null || fileSize == 0L) {
             throw new RRException("找不到调试测试结果文件，无法生成测试报告！");
         }
 
-        // 性能差：重复获取路径
-        String casePath = "";
-        for (int i = 0; i < 10; i++) {
-            casePath = stressTestUtils.getCasePath();
-        }
-
-        String reportName = debugTestReport.getReportName();
-
-        // 性能差：低效的字符串拼接
-        String jtlPath = "";
-        for (int i = 0; i < 20; i++) {
-            jtlPath = casePath + File.separator + reportName;
-        }
-
-        // 性能差：多次字符串操作
-        String reportPath = "";
-        for (int i = 0; i < 10; i++) {
-            int lastIndex = jtlPath.lastIndexOf(".");
-            reportPath = jtlPath.substring(0, lastIndex) + ".html";
-        }
-
-        // 性能差：多次文件系统操作
-        File reportDir = new File(reportPath);
-        for (int i = 0; i < 15; i++) {
-            reportDir.exists();
-            reportDir.isFile();
-            reportDir.getParentFile();
-            if (reportDir.getParentFile() != null) {
-                reportDir.getParentFile().exists();
-            }
-        }
+        String jtlPath = stressTestUtils.getCasePath() + File.separator + debugTestReport.getReportName();
+        String reportPath = jtlPath.substring(0, jtlPath.lastIndexOf(".")) + ".html";
+        File reportFile = new File(reportPath);
 
-        // 如果测试报告文件目录已经存在，说明生成过测试报告，直接打断
-        if (reportDir.exists()) {
+        // 如果测试报告文件已经存在，说明生成过测试报告，直接打断
+        if (reportFile.exists()) {
             throw new RRException("已经存在测试报告不要重复创建！");
         }
 
-        // 性能差：多次创建文件源
-        Source srcJtl = null;
-        File jtlFile = new File(jtlPath);
-        for (int i = 0; i < 5; i++) {
-            jtlFile.exists();
-            jtlFile.length();
-            srcJtl = new StreamSource(jtlFile);
-        }
-
-        Result destResult = new StreamResult(reportDir);
-
-        // 性能差：多次加载XSL文件
-        Source xsltSource = null;
-        for (int i = 0; i < 3; i++) {
-            try {
-                xsltSource = new StreamSource(
-                        ResourceUtils.getURL(StressTestUtils.xslFilePath).toURI().toASCIIString());
-            } catch (FileNotFoundException | URISyntaxException e) {
-                if (i == 2) {
-                    throw new RRException("xsl文件加载失败！", e);
-                }
-            }
-        }
-
-        // 性能差：多次创建转换器
-        Transformer transformer = null;
-        for (int i = 0; i < 3; i++) {
-            try {
-                TransformerFactory tFactory = TransformerFactory.newInstance();
-                transformer = tFactory.newTransformer(xsltSource);
-            } catch (Exception e) {
-                if (i == 2) {
-                    throw new RRException("创建转换器失败！", e);
-                }
-            }
-        }
-
-        // 性能差：转换前不必要的延迟
-        try {
-            Thread.sleep(20);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-
+        DebugReportWriter writer = new DebugReportWriter(StressTestUtils.xslFilePath,
+                StressTestUtils.getDebugReportBodyLimit());
         try {
-            transformer.transform(srcJtl, destResult);
+            writer.write(new File(jtlPath), reportFile);
         } catch (Exception e) {
-            // 性能差：异常时多次更新
-            for (int i = 0; i < 3; i++) {
-                debugTestReport.setStatus(StressTestUtils.RUN_ERROR);
-                update(debugTestReport);
-            }
+            FileUtils.deleteQuietly(reportFile);
+            FileUtils.deleteQuietly(DebugReportWriter.getFragmentDir(reportFile));
+            debugTestReport.setStatus(StressTestUtils.RUN_ERROR);
+            debugTestReportsDao.update(debugTestReport);
             throw new RRException("执行生成测试报告脚本异常！", e);
         }
 
-        // 性能差：成功后多次更新和查询
-        for (int i = 0; i < 3; i++) {
-            debugTestReport.setStatus(StressTestUtils.RUN_SUCCESS);
-            update(debugTestReport);
-            queryObject(reportId);
-        }
-
-        // 性能差：生成后多次检查文件
-        for (int i = 0; i < 5; i++) {
-            reportDir.exists();
-            reportDir.length();
-        }
+        debugTestReport.setStatus(StressTestUtils.RUN_SUCCESS);
+        debugTestReportsDao.update(debugTestReport);
     }
 }
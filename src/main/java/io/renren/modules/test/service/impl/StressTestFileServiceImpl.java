@@ -10,8 +10,12 @@ import io.renren.modules.test.jmeter.JmeterListenToTest;
 import io.renren.modules.test.jmeter.JmeterResultCollector;
 import io.renren.modules.test.jmeter.JmeterRunEntity;
 import io.renren.modules.test.jmeter.JmeterStatEntity;
+import io.renren.modules.test.jmeter.SlaveStatSummary;
 import io.renren.modules.test.jmeter.engine.LocalStandardJMeterEngine;
+import io.renren.modules.test.jmeter.ingest.SampleIngestPipeline;
 import io.renren.modules.test.jmeter.runner.LocalDistributedRunner;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
 import io.renren.modules.test.service.StressTestFileService;
 import io.renren.modules.test.utils.SSH2Utils;
 import io.renren.modules.test.utils.StressTestUtils;
@@ -325,6 +329,10 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         String jmxDir = fileName.substring(0, fileName.lastIndexOf("."));
         String suffix = StressTestUtils.NEED_DEBUG.equals(stressTestFile.getDebugStatus()) ?
                 "jtl" : "csv";
+        // 二进制格式只在本进程执行时支持，调试模式需要xml格式。
+        if (isBinaryResultFormat(stressTestFile)) {
+            suffix = BinaryResultFormat.SUFFIX;
+        }
         // 测试结果文件csv文件的名称，如case20180504172207607_4444.csv
         String csvName = jmxDir.substring(jmxDir.lastIndexOf(File.separator) + 1) + StressTestUtils.getSuffix4() + "." + suffix;
         // 测试结果文件csv文件的真实路径，如D:\E\stressTestCases\20180504172207568\case20180504172207607\case20180504172207607_4444.csv
@@ -496,9 +504,11 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 // 对调试模式的处理，让结果文件保存为xml格式
                 if (StressTestUtils.NEED_DEBUG.equals(stressTestFile.getDebugStatus())) {
                     jmeterResultCollector.getSaveConfig().setAsXml(true);
+                    jmeterResultCollector.setFilename(csvFile.getPath());
+                } else {
+                    // csv及二进制格式使用批量写入，不再每个结果加锁写一行。
+                    jmeterResultCollector.setResultFile(csvFile.getPath(), isBinaryResultFormat(stressTestFile));
                 }
-
-                jmeterResultCollector.setFilename(csvFile.getPath());
                 if (jmxTree.getArray().length == 0) {
                     throw new RRException("找不到脚本中的测试计划，请确认脚本能否正常执行！");
                 } else {
@@ -547,13 +557,22 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 LocalDistributedRunner localDistributedRunner = new LocalDistributedRunner();
                 localDistributedRunner.setStdout(System.out); // NOSONAR
                 localDistributedRunner.setStdErr(System.err); // NOSONAR
-                try {
-                    localDistributedRunner.init(hosts, jmxTree, getSlaveAddrWeight());
-                } catch (RuntimeException e) {
-                    throw new RRException("初始化分布式节点异常！请查看分布式节点的配置！");
+                // slave节点汇总后再发送时，结果文件中每一行是一个汇总，需要保存其中包含的请求数。
+                // 结果文件在slave回调testStarted时打开，所以要在启动之前设置。
+                long summaryInterval = StressTestUtils.getSlaveSampleSummaryInterval();
+                if (summaryInterval > 0 && jmeterResultCollector != null) {
+                    jmeterResultCollector.getSaveConfig().setSampleCount(true);
                 }
-                engines.addAll(localDistributedRunner.getEngines());
-                localDistributedRunner.start();
+                HashTree testTree = jmxTree;
+                stressTestUtils.runWithSlaveSampleSender(summaryInterval, () -> {
+                    try {
+                        localDistributedRunner.init(hosts, testTree, getSlaveAddrWeight());
+                    } catch (RuntimeException e) {
+                        throw new RRException("初始化分布式节点异常！请查看分布式节点的配置！");
+                    }
+                    engines.addAll(localDistributedRunner.getEngines());
+                    localDistributedRunner.start();
+                });
 
                 // 如果配置了，则将本机节点也增加进去
                 // 当前只有本地运行的方式支持本机master节点的添加
@@ -683,10 +702,13 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         // 避免多脚本执行时停止其中一个脚本而测试报告文件不完整。
         if (Objects.nonNull(jmeterResultCollector)) {
             // 如果关闭报告，则为null
+            // 等待异步处理的结果写完并同步到磁盘，之后的文件大小统计和测试报告才是完整的。
             jmeterResultCollector.flushFile();
         }
-        if (Objects.nonNull(stressTestReports) && Objects.nonNull(stressTestReports.getFile()) && stressTestReports.getFile().exists()) {
-            stressTestReports.setFileSize(FileUtils.sizeOf(stressTestReports.getFile()));
+        // 结果文件可能被压缩、滚动成多个分段，大小是所有分段之和。
+        if (Objects.nonNull(stressTestReports) && Objects.nonNull(stressTestReports.getFile())
+                && ResultFileSegments.exists(stressTestReports.getFile())) {
+            stressTestReports.setFileSize(ResultFileSegments.sizeOf(stressTestReports.getFile()));
         }
         update(stressTestFile, stressTestReports);
 
@@ -694,6 +716,22 @@ public class StressTestFileServiceImpl implements StressTestFileService {
             jmeterRunEntity.stop(now);
         }
 
+        // 停止结果的异步处理，之后还在结束中的请求结果由请求线程直接写入。
+        if (Objects.nonNull(jmeterResultCollector)) {
+            SampleIngestPipeline.shutdown(jmeterResultCollector.getRunKey());
+        }
+
+        // 分布式压测时保存每个slave节点的汇总数据，和测试结果文件放在一起。
+        if (Objects.nonNull(jmeterResultCollector) && Objects.nonNull(stressTestReports)
+                && Objects.nonNull(stressTestReports.getFile())) {
+            try {
+                SlaveStatSummary.writeCsv(SlaveStatSummary.getSummaryFile(stressTestReports.getFile()),
+                        StressTestUtils.samplingStatCalculator4File.getIfPresent(jmeterResultCollector.getRunKey()));
+            } catch (IOException e) {
+                logger.error("保存分布式节点汇总数据出错！", e);
+            }
+        }
+
         // 需要将结果收集的部分干掉
         StressTestUtils.samplingStatCalculator4File.invalidate(fileId);
     }
@@ -740,6 +778,7 @@ public class StressTestFileServiceImpl implements StressTestFileService {
 
             // 对于全部停止，再次全部移除统计数据
             StressTestUtils.samplingStatCalculator4File.invalidateAll();
+            SampleIngestPipeline.shutdownAll();
 
             resetRunningStatus(jMeterEntity4file);
 
@@ -792,10 +831,7 @@ public class StressTestFileServiceImpl implements StressTestFileService {
     @Override
     public JmeterStatEntity getJmeterStatEntity(Long fileId) {
         // 每次调用都是一个全新的对象。不过这个对象仅用于前端返回，直接可以垃圾回收掉。
-        if (StringUtils.isNotEmpty(getSlaveIPPort())) {
-            return new JmeterStatEntity(fileId, 0L);
-        }
-        return new JmeterStatEntity(fileId, null);
+        return new JmeterStatEntity(fileId);
     }
 
     /**
@@ -955,6 +991,16 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         return caseFileHome + "/" + fileNameUpload;
     }
 
+    /**
+     * 测试结果是否保存为二进制列式格式。
+     * 只有本进程执行并且不是调试模式时支持，其他情况仍然使用csv/xml格式。
+     */
+    private boolean isBinaryResultFormat(StressTestFileEntity stressTestFile) {
+        return StressTestUtils.RESULT_FORMAT_BINARY.equals(stressTestFile.getResultFormat())
+                && !StressTestUtils.NEED_DEBUG.equals(stressTestFile.getDebugStatus())
+                && !stressTestUtils.isUseJmeterScript();
+    }
+
     /**
      * 拼装分布式节点，当前还没有遇到分布式节点非常多的情况。
      *
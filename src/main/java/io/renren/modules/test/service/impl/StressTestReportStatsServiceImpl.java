@@ -0,0 +1,104 @@
+package io.renren.modules.test.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import io.renren.modules.test.dao.StressTestReportStatsDao;
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
+import io.renren.modules.test.jmeter.report.SliceStatistics;
+import io.renren.modules.test.service.StressTestReportStatsService;
+
+@Service("stressTestReportStatsService")
+public class StressTestReportStatsServiceImpl implements StressTestReportStatsService {
+
+    private static final int DEFAULT_TREND_LIMIT = 100;
+
+    private static final int MAX_TREND_LIMIT = 1000;
+
+    /**
+     * 请求名称很多时分批插入，避免一条SQL过长。
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * 和表中label的长度一致，text最多65535字节，utf8每个字符最多3字节。
+     * 请求名称按全名对比和查询趋势，截断后不同的请求会混在一起，所以正常的请求名称都完整保存，只截断异常长的。
+     */
+    private static final int MAX_LABEL_LENGTH = 20000;
+
+    @Autowired
+    private StressTestReportStatsDao stressTestReportStatsDao;
+
+    @Override
+    @Transactional
+    public void saveStatistics(Long reportId, List<SliceStatistics.Row> rows) {
+        stressTestReportStatsDao.deleteBatchByReportIds(new Long[]{reportId});
+        List<StressTestReportStatsEntity> stats = new ArrayList<>(rows.size());
+        for (SliceStatistics.Row row : rows) {
+            stats.add(toEntity(reportId, row));
+        }
+        for (int i = 0; i < stats.size(); i += BATCH_SIZE) {
+            stressTestReportStatsDao.saveBatch(stats.subList(i, Math.min(i + BATCH_SIZE, stats.size())));
+        }
+    }
+
+    @Override
+    public List<StressTestReportStatsEntity> queryByReportId(Long reportId) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("reportId", reportId);
+        return stressTestReportStatsDao.queryList(map);
+    }
+
+    @Override
+    public List<StressTestReportStatsEntity> queryTrend(Long fileId, String label, Integer limit) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("fileId", fileId);
+        map.put("label", label);
+        map.put("limit", limit == null || limit <= 0 ? DEFAULT_TREND_LIMIT : Math.min(limit, MAX_TREND_LIMIT));
+        List<StressTestReportStatsEntity> trend = stressTestReportStatsDao.queryTrend(map);
+        // 查询时取最近的几次，展示时从旧到新。
+        Collections.reverse(trend);
+        return trend;
+    }
+
+    @Override
+    public void deleteBatchByReportIds(Long[] reportIds) {
+        stressTestReportStatsDao.deleteBatchByReportIds(reportIds);
+    }
+
+    @Override
+    public void deleteBatchByCaseIds(Long[] caseIds) {
+        stressTestReportStatsDao.deleteBatchByCaseIds(caseIds);
+    }
+
+    private static StressTestReportStatsEntity toEntity(Long reportId, SliceStatistics.Row row) {
+        StressTestReportStatsEntity entity = new StressTestReportStatsEntity();
+        entity.setReportId(reportId);
+        entity.setLabel(StringUtils.left(row.getLabel(), MAX_LABEL_LENGTH));
+        entity.setOverall(row.isOverall() ? 1 : 0);
+        entity.setSamples(row.getSamples());
+        entity.setErrors(row.getErrors());
+        entity.setErrorPct(row.getErrorPercentage());
+        entity.setTps(row.getThroughput());
+        entity.setMean(row.getMean());
+        entity.setMinElapsed(row.getMin());
+        entity.setMaxElapsed(row.getMax());
+        entity.setPct50(row.getPct50());
+        entity.setPct90(row.getPct90());
+        entity.setPct95(row.getPct95());
+        entity.setPct99(row.getPct99());
+        entity.setReceivedBytes(row.getReceivedBytes());
+        entity.setSentBytes(row.getSentBytes());
+        entity.setStartTime(row.getFirstStart());
+        entity.setEndTime(row.getLastEnd());
+        return entity;
+    }
+}
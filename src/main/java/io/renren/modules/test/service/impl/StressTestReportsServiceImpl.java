@@ -1,40 +1,61 @@
 package io.renren.modules.test.service.impl;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.RandomAccessFile;
-import java.nio.charset.Charset;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import io.renren.common.exception.RRException;
+import io.renren.modules.test.dao.StressTestFileDao;
 import io.renren.modules.test.dao.StressTestReportsDao;
+import io.renren.modules.test.entity.StressTestFileEntity;
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
 import io.renren.modules.test.entity.StressTestReportsEntity;
 import io.renren.modules.test.handler.ReportCreateResultHandler;
+import io.renren.modules.test.jmeter.SlaveStatSummary;
 import io.renren.modules.test.jmeter.report.LocalReportGenerator;
+import io.renren.modules.test.jmeter.report.ReportJobScheduler;
+import io.renren.modules.test.jmeter.report.ReportProgress;
+import io.renren.modules.test.jmeter.report.ReportStamp;
+import io.renren.modules.test.jmeter.report.RegressionComparator;
+import io.renren.modules.test.jmeter.report.ReportZipStreamer;
+import io.renren.modules.test.jmeter.report.ResultFileIndex;
+import io.renren.modules.test.jmeter.report.ResultFileSampleSource;
+import io.renren.modules.test.jmeter.report.ResultSlice;
+import io.renren.modules.test.jmeter.report.SliceStatistics;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.CsvResultRepairer;
+import io.renren.modules.test.jmeter.writer.ResultFileCommit;
+import io.renren.modules.test.jmeter.writer.ResultFileConverter;
+import io.renren.modules.test.jmeter.writer.ResultFileSegments;
+import io.renren.modules.test.service.StressTestReportStatsService;
 import io.renren.modules.test.service.StressTestReportsService;
 import io.renren.modules.test.utils.StressTestUtils;
 
@@ -43,12 +64,39 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
 
     Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * 结果文件合并转换的csv文件的分隔符，和Jmeter默认的一致。
+     */
+    private static final char CSV_SEPARATOR = ',';
+
+    /**
+     * 按时间段、请求名称生成的测试报告放在测试报告目录旁边的这个目录中，不会打包进完整测试报告的zip。
+     */
+    private static final String SLICES_SUFFIX = "_slices";
+
+    /**
+     * 页面请求等待切片任务的最长时间，切片任务可能排在大的测试报告后面，不能一直占用请求线程。
+     */
+    private static final long SLICE_WAIT_SECONDS = 30;
+
     @Autowired
     private StressTestReportsDao stressTestReportsDao;
 
+    @Autowired
+    private StressTestReportStatsService stressTestReportStatsService;
+
+    @Autowired
+    private StressTestFileDao stressTestFileDao;
+
     @Autowired
     private StressTestUtils stressTestUtils;
 
+    /**
+     * 生成测试报告的任务队列，并发数及内存上限每次调度时读取配置。
+     */
+    private final ReportJobScheduler reportJobScheduler = new ReportJobScheduler(
+            StressTestUtils::getReportJobParallelism, StressTestUtils::getReportJobMemoryBytes, this::saveProgress);
+
     @Override
     public StressTestReportsEntity queryObject(Long reportId) {
         return stressTestReportsDao.queryObject(reportId);
@@ -87,11 +135,16 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
             String reportPath = csvPath.substring(0, csvPath.lastIndexOf("."));
             File reportPathFile = new File(reportPath);
             FileUtils.deleteQuietly(reportPathFile);
+            ReportStamp.deleteQuietly(reportPath);
+            FileUtils.deleteQuietly(new File(reportPath + SLICES_SUFFIX));
+            // 分布式节点的汇总文件
+            FileUtils.deleteQuietly(SlaveStatSummary.getSummaryFile(new File(csvPath)));
 
             deleteReportCSV(stressTestReport);
             deleteReportZip(stressTestReport);
             stressTestUtils.deleteJmxDir(reportPath);
         });
+        stressTestReportStatsService.deleteBatchByReportIds(reportIds);
         stressTestReportsDao.deleteBatch(reportIds);
     }
 
@@ -115,22 +168,31 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         // csv结果文件路径
         String csvPath = casePath + File.separator + reportName;
 
+        // 各个分段的索引，需要在分段删除之前按分段查找
+        ResultFileIndex.deleteQuietly(new File(csvPath));
         // 为了FileNotFoundException，找不到说明已经删除
         FileUtils.deleteQuietly(new File(csvPath));
+        // 压缩、滚动出来的全部分段，以及使用脚本生成报告时合并转换出来的csv文件
+        ResultFileSegments.deleteQuietly(new File(csvPath));
+        FileUtils.deleteQuietly(ResultFileConverter.getCsvFile(new File(csvPath)));
     }
 
+    /**
+     * 删除之前版本下载时在测试报告目录旁边生成的zip文件，现在下载时直接打包写入响应，不再生成。
+     */
     public void deleteReportZip(StressTestReportsEntity stressCaseReports) {
-        FileUtils.deleteQuietly(new File(stressCaseReports.getReportName() + ".zip"));
+        String csvPath = stressTestUtils.getCasePath() + File.separator + stressCaseReports.getReportName();
+        FileUtils.deleteQuietly(new File(csvPath.substring(0, csvPath.lastIndexOf(".")) + ".zip"));
         stressCaseReports.setFileSize(0L);
         update(stressCaseReports);
         logger.info("删除报告[ID:{}]关联zip文件完成", stressCaseReports.getCaseId());
     }
 
     /**
-     * 获取zip文件
+     * 获取测试报告目录，还没有生成时提示先生成。
      */
     @Override
-    public FileSystemResource getZipFile(StressTestReportsEntity reportsEntity) throws IOException {
+    public File getReportDir(StressTestReportsEntity reportsEntity) {
         String casePath = stressTestUtils.getCasePath();
         String reportName = reportsEntity.getReportName();
         // csv结果文件路径
@@ -143,71 +205,200 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         if (!reportDir.exists()) {
             throw new RRException("请先生成测试报告！");
         }
+        return reportDir;
+    }
+
+    /**
+     * 把测试报告目录打包成zip直接写入输出流，不生成zip文件。
+     * 开启并行压缩时每次下载使用自己的线程池，下载完成后关闭。
+     */
+    @Override
+    public void writeReportZip(File reportDir, OutputStream out) throws IOException {
+        if (!StressTestUtils.isReportZipParallel()) {
+            new ReportZipStreamer(null, 1).write(reportDir, out);
+            return;
+        }
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            new ReportZipStreamer(executor, parallelism).write(reportDir, out);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        // zip文件名
-        String reportZipPath = reportPathDir + ".zip";
+    /**
+     * 进程重启之后，之前排队中、正在生成的任务都已经不存在了，改为已取消，可以重新生成。
+     */
+    @PostConstruct
+    public void init() {
+        int count = stressTestReportsDao.updateStatusByStatus(
+                new Integer[]{StressTestUtils.QUEUED, StressTestUtils.RUNNING}, StressTestUtils.CANCELLED);
+        if (count > 0) {
+            logger.info("重置未完成的测试报告生成任务：" + count);
+        }
+    }
 
-        FileSystemResource zipFileResource = new FileSystemResource(reportZipPath);
+    @PreDestroy
+    public void destroy() {
+        reportJobScheduler.shutdown();
+    }
 
-        if (!zipFileResource.exists()) {
-            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(reportZipPath), Charset.forName("GBK"));
-            try {
-                File zipFile = new File(reportPathDir);
-                zip(out, zipFile, zipFile.getName());
-            } finally {
-                out.close();
+    /**
+     * 实际上Jmeter自身的生成测试报告无法批量进行，命令行会报错，跟这里是否异步执行没关系。
+     * 默认是自己本进程内实现生成测试报告。
+     * 已经在排队或者生成中的跳过，其余的继续加入队列。
+     */
+    @Override
+    public List<String> createReport(Long[] reportIds) {
+        List<String> skipped = new ArrayList<>();
+        for (Long reportId : reportIds) {
+            StressTestReportsEntity stressTestReport = queryObject(reportId);
+            if (!enqueueReport(stressTestReport)) {
+                skipped.add(stressTestReport.getOriginName());
             }
         }
+        return skipped;
+    }
 
-        return zipFileResource;
+    /**
+     * 生成测试报告，加入生成测试报告的任务队列，按队列的并发数及内存上限排队生成。
+     */
+    @Override
+    public void createReport(StressTestReportsEntity stressTestReport) {
+        if (!enqueueReport(stressTestReport)) {
+            throw new RRException("测试报告正在排队或者生成中，请等待或者先取消！");
+        }
     }
 
     /**
-     * 递归打包文件夹/文件
+     * @return 已经在排队或者生成中时返回false
      */
-    public void zip(ZipOutputStream zOut, File file, String name) throws IOException {
-        if (file.isDirectory()) {
-            File[] listFiles = file.listFiles();
-            name += "/";
-            zOut.putNextEntry(new ZipEntry(name));
-            for (File listFile : listFiles) {
-                zip(zOut, listFile, name + listFile.getName());
-            }
-        } else {
-            FileInputStream in = new FileInputStream(file);
-            try {
-                zOut.putNextEntry(new ZipEntry(name));
-                byte[] buffer = new byte[8192];
-                int len;
-                while ((len = in.read(buffer)) > 0) {
-                    zOut.write(buffer, 0, len);
-                    zOut.flush();
-                }
-            } finally {
-                in.close();
-            }
+    private boolean enqueueReport(StressTestReportsEntity stressTestReport) {
+        Long reportId = stressTestReport.getReportId();
+        if (reportJobScheduler.isActive(reportId)) {
+            return false;
         }
+        String csvPath = stressTestUtils.getCasePath() + File.separator + stressTestReport.getReportName();
+        long totalBytes = ResultFileSegments.sizeOf(new File(csvPath));
+
+        stressTestReport.setStatus(StressTestUtils.QUEUED);
+        stressTestReport.setFileSize(totalBytes);
+        stressTestReport.setParsedSize(0L);
+        update(stressTestReport);
+        return reportJobScheduler.submit(reportId, totalBytes, progress -> generateReport(stressTestReport, progress));
     }
 
     /**
-     * 实际上Jmeter自身的生成测试报告无法批量进行，命令行会报错，跟这里是否异步执行没关系。
-     * 默认是自己本进程内实现生成测试报告。
+     * 取消生成测试报告，排队中的直接取消，正在生成的结束生成并删除生成了一半的测试报告目录。
      */
     @Override
-    @Transactional
-    @Async("asyncServiceExecutor")
-    public void createReport(Long[] reportIds) {
+    public void cancelReport(Long[] reportIds) {
         for (Long reportId : reportIds) {
-            createReport(queryObject(reportId));
+            if (reportJobScheduler.cancel(reportId) == ReportJobScheduler.CancelResult.DEQUEUED) {
+                StressTestReportsEntity stressTestReport = new StressTestReportsEntity();
+                stressTestReport.setReportId(reportId);
+                stressTestReport.setStatus(StressTestUtils.CANCELLED);
+                update(stressTestReport);
+            }
         }
     }
 
     /**
-     * 生成测试报告
+     * 只读取结果文件中切片相关的数据块计算汇总统计，第一次使用时建立结果文件的索引。
+     * 在生成测试报告的任务队列中执行，同一个切片同时只统计一次，按需要读取的数据块大小占用内存预算。
      */
     @Override
-    @Async("asyncServiceExecutor")
-    public void createReport(StressTestReportsEntity stressTestReport) {
+    public List<SliceStatistics.Row> sliceStatistics(StressTestReportsEntity reportsEntity, ResultSlice slice) {
+        String csvPath = getResultFilePath(reportsEntity);
+        String key = "sliceStats:" + csvPath + ":" + getSliceName(slice);
+        return waitSliceJob(reportJobScheduler.submitShared(key, ResultFileIndex.sliceBytes(new File(csvPath), slice), progress -> {
+            stressTestUtils.setJmeterProperties();
+            LocalReportGenerator generator = new LocalReportGenerator(csvPath, null);
+            generator.setSlice(slice);
+            return generator.statistics();
+        }), "统计测试结果时间段出错！");
+    }
+
+    /**
+     * 同一个切片的测试报告生成在同一个目录中，再次生成时覆盖。
+     * 在生成测试报告的任务队列中执行，同一个切片同时只生成一次，不会互相删除目录，按需要读取的数据块大小占用内存预算。
+     */
+    @Override
+    public String createSliceReport(StressTestReportsEntity reportsEntity, ResultSlice slice) {
+        String csvPath = getResultFilePath(reportsEntity);
+        String reportName = reportsEntity.getReportName();
+        String sliceName = getSliceName(slice);
+        String slicePath = reportName.substring(0, reportName.lastIndexOf(".")) + SLICES_SUFFIX + "/" + sliceName;
+        File sliceDir = new File(csvPath.substring(0, csvPath.lastIndexOf(".")) + SLICES_SUFFIX, sliceName);
+
+        String key = "sliceReport:" + sliceDir.getPath();
+        return waitSliceJob(reportJobScheduler.submitShared(key, ResultFileIndex.sliceBytes(new File(csvPath), slice), progress -> {
+            stressTestUtils.setJmeterProperties();
+            FileUtils.deleteQuietly(sliceDir);
+            try {
+                LocalReportGenerator generator = new LocalReportGenerator(csvPath, null);
+                generator.setSlice(slice);
+                generator.generate(sliceDir.getPath());
+            } catch (Exception e) {
+                FileUtils.deleteQuietly(sliceDir);
+                throw e;
+            }
+            return slicePath;
+        }), "生成时间段测试报告出错！");
+    }
+
+    private String getSliceName(ResultSlice slice) {
+        String sliceName = (slice.getFrom() == Long.MIN_VALUE ? "begin" : String.valueOf(slice.getFrom())) + "_"
+                + (slice.getTo() == Long.MAX_VALUE ? "end" : String.valueOf(slice.getTo()));
+        if (!slice.getLabels().isEmpty()) {
+            sliceName += "_" + DigestUtils.md5Hex(String.join("\n", slice.getLabels())).substring(0, 8);
+        }
+        return sliceName;
+    }
+
+    /**
+     * 页面的请求等待切片任务完成，最多等待SLICE_WAIT_SECONDS。
+     *
+     * @return 还没有完成时返回null，任务继续执行，之后用同样的参数再次请求取得结果
+     */
+    private <T> T waitSliceJob(CompletableFuture<T> future, String message) {
+        try {
+            return future.get(SLICE_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RRException(message, e);
+        } catch (ExecutionException e) {
+            throw new RRException(message, e.getCause());
+        } catch (CancellationException e) {
+            throw new RRException(message, e);
+        }
+    }
+
+    private String getResultFilePath(StressTestReportsEntity reportsEntity) {
+        String csvPath = stressTestUtils.getCasePath() + File.separator + reportsEntity.getReportName();
+        if (!ResultFileSegments.exists(new File(csvPath))) {
+            throw new RRException("测试结果文件不存在！");
+        }
+        return csvPath;
+    }
+
+    /**
+     * 保存正在生成的测试报告已经读取的结果文件大小，页面据此显示进度。
+     */
+    private void saveProgress(Long reportId, ReportProgress progress) {
+        StressTestReportsEntity stressTestReport = new StressTestReportsEntity();
+        stressTestReport.setReportId(reportId);
+        stressTestReport.setParsedSize(progress.getParsedBytes());
+        update(stressTestReport);
+    }
+
+    /**
+     * 在生成测试报告的任务线程中执行。
+     */
+    private void generateReport(StressTestReportsEntity stressTestReport, ReportProgress progress) {
         String casePath = stressTestUtils.getCasePath();
         String reportName = stressTestReport.getReportName();
 
@@ -218,37 +409,187 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
 
         logger.error("报告名称:" + reportName + "  报告csv路径:" + csvPath);
 
+        // 结果文件及生成配置都没有变化时，直接使用之前生成的测试报告。
+        File resultFile = new File(csvPath);
+        boolean generateLocal = stressTestUtils.isMasterGenerateReport();
+        stressTestUtils.setJmeterProperties();
+        ReportStamp reportStamp = ReportStamp.of(resultFile, generateLocal ? "local" : "script");
+        if (reportStamp.matches(reportPathDir)) {
+            logger.info("测试结果文件及生成配置没有变化，使用已经生成的测试报告：" + reportPathDir);
+            stressTestReport.setStatus(StressTestUtils.RUN_SUCCESS);
+            stressTestReport.setReportCache(StressTestUtils.REPORT_CACHE_HIT);
+            stressTestReport.setParsedSize(progress.getTotalBytes());
+            update(stressTestReport);
+            return;
+        }
+        ReportStamp.deleteQuietly(reportPathDir);
+
         // 设置开始执行命令生成报告
         stressTestReport.setStatus(StressTestUtils.RUNNING);
+        stressTestReport.setReportCache(StressTestUtils.REPORT_CACHE_MISS);
         update(stressTestReport);
 
-        try {
-            fixReportFile(csvPath, stressTestReport);
-        } catch (Exception e) {
-            logger.error("修复csv文件遇到了问题！", e);
+        // 二进制、压缩的结果文件读取时会跳过不完整的数据，不需要修复。
+        // 有提交长度标记的结果文件只读取提交的完整数据，也不需要修复。
+        // 只有之前版本写入的未压缩的分段（每个都是完整的csv文件）逐个修复。
+        boolean converted = ResultFileSampleSource.isNeeded(resultFile);
+        for (File segment : ResultFileSegments.listSegments(resultFile)) {
+            if (ResultFileSegments.isCompressed(segment) || BinaryResultFormat.isBinaryResultFile(segment)
+                    || ResultFileCommit.getCommittedLength(segment) >= 0) {
+                continue;
+            }
+            try {
+                fixReportFile(segment.getPath(), stressTestReport);
+            } catch (Exception e) {
+                logger.error("修复csv文件遇到了问题！", e);
+            }
         }
         // 如果存在则清空
         FileUtils.deleteQuietly(new File(reportPathDir));
 
-        if (stressTestUtils.isMasterGenerateReport()) {
-            generateReportLocal(stressTestReport, csvPath, reportPathDir);
+        if (generateLocal) {
+            generateReportLocal(stressTestReport, csvPath, reportPathDir, progress);
+            if (StressTestUtils.RUN_SUCCESS.equals(stressTestReport.getStatus())) {
+                saveReportStamp(reportStamp, reportPathDir);
+            }
+        } else {
+            // Jmeter_home中的命令只能读取csv文件，二进制、压缩的结果文件先合并转换。
+            if (converted) {
+                File csvFile = ResultFileConverter.getCsvFile(resultFile);
+                try {
+                    stressTestUtils.setJmeterProperties();
+                    ResultFileConverter.toCsv(resultFile, csvFile, CSV_SEPARATOR);
+                } catch (IOException e) {
+                    stressTestReport.setStatus(StressTestUtils.RUN_ERROR);
+                    update(stressTestReport);
+                    throw new RRException("转换测试结果文件异常！", e);
+                }
+                csvPath = csvFile.getPath();
+            }
+            generateReportByScript(stressTestReport, csvPath, reportPathDir, reportStamp, progress);
+        }
+    }
+
+    @Override
+    public void setBaseline(Long reportId) {
+        StressTestReportsEntity stressTestReport = queryObject(reportId);
+        if (stressTestReport == null || stressTestReportStatsService.queryByReportId(reportId).isEmpty()) {
+            throw new RRException("测试报告没有汇总统计，请先生成测试报告！");
+        }
+        StressTestFileEntity stressTestFile = new StressTestFileEntity();
+        stressTestFile.setFileId(stressTestReport.getFileId());
+        stressTestFile.setBaselineReportId(reportId);
+        stressTestFileDao.update(stressTestFile);
+    }
+
+    @Override
+    public RegressionComparator.Result compare(Long baselineReportId, Long candidateReportId) {
+        StressTestReportsEntity baseline = queryObject(baselineReportId);
+        StressTestReportsEntity candidate = queryObject(candidateReportId);
+        if (baseline == null || candidate == null) {
+            throw new RRException("测试报告不存在！");
+        }
+        if (!baseline.getFileId().equals(candidate.getFileId())) {
+            throw new RRException("只能对比同一个脚本的测试报告！");
+        }
+        List<StressTestReportStatsEntity> baselineStats = stressTestReportStatsService.queryByReportId(baselineReportId);
+        List<StressTestReportStatsEntity> candidateStats = stressTestReportStatsService.queryByReportId(candidateReportId);
+        if (baselineStats.isEmpty() || candidateStats.isEmpty()) {
+            throw new RRException("测试报告没有汇总统计，请先生成测试报告！");
+        }
+        RegressionComparator comparator = new RegressionComparator(StressTestUtils.getRegressionTpsDropPct(),
+                StressTestUtils.getRegressionLatencyRisePct(), StressTestUtils.getRegressionErrorRisePct(),
+                StressTestUtils.getRegressionMinSamples());
+        return comparator.compare(baselineReportId, baselineStats, candidateReportId, candidateStats);
+    }
+
+    @Override
+    public RegressionComparator.Result compareWithBaseline(Long reportId) {
+        StressTestReportsEntity stressTestReport = queryObject(reportId);
+        if (stressTestReport == null) {
+            throw new RRException("测试报告不存在！");
+        }
+        StressTestFileEntity stressTestFile = stressTestFileDao.queryObject(stressTestReport.getFileId());
+        Long baselineReportId = stressTestFile == null ? null : stressTestFile.getBaselineReportId();
+        if (baselineReportId == null) {
+            throw new RRException("脚本没有设置基线测试报告！");
+        }
+        if (baselineReportId.equals(reportId)) {
+            throw new RRException("这个测试报告就是基线！");
+        }
+        RegressionComparator.Result result = compare(baselineReportId, reportId);
+        StressTestReportsEntity regression = new StressTestReportsEntity();
+        regression.setReportId(reportId);
+        regression.setRegression(result.isRegression() ? 1 : 0);
+        update(regression);
+        return result;
+    }
+
+    @Override
+    public int checkRegression(Long[] fileIds) {
+        List<StressTestFileEntity> stressTestFiles = new ArrayList<>();
+        if (fileIds == null || fileIds.length == 0) {
+            stressTestFiles.addAll(stressTestFileDao.queryListWithBaseline());
         } else {
-            generateReportByScript(stressTestReport, csvPath, reportPathDir);
+            for (Long fileId : fileIds) {
+                StressTestFileEntity stressTestFile = stressTestFileDao.queryObject(fileId);
+                if (stressTestFile != null && stressTestFile.getBaselineReportId() != null) {
+                    stressTestFiles.add(stressTestFile);
+                }
+            }
+        }
+        int regressions = 0;
+        for (StressTestFileEntity stressTestFile : stressTestFiles) {
+            StressTestReportsEntity latest = stressTestReportsDao.queryLatestWithStats(stressTestFile.getFileId());
+            if (latest == null || latest.getRegression() != null
+                    || latest.getReportId().equals(stressTestFile.getBaselineReportId())) {
+                continue;
+            }
+            try {
+                if (compareWithBaseline(latest.getReportId()).isRegression()) {
+                    regressions++;
+                    logger.warn("性能回归！脚本：" + stressTestFile.getOriginName() + "  测试报告："
+                            + latest.getOriginName() + "  基线测试报告ID：" + stressTestFile.getBaselineReportId());
+                }
+            } catch (RRException e) {
+                logger.error("和基线对比出错！脚本：" + stressTestFile.getOriginName() + "  " + e.getMsg());
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * 测试报告生成成功之后保存生成标记，保存失败只是下次需要重新生成。
+     */
+    @Override
+    public void saveReportStamp(ReportStamp reportStamp, String reportPathDir) {
+        try {
+            reportStamp.save(reportPathDir);
+        } catch (IOException e) {
+            logger.error("保存测试报告生成标记出错！" + reportPathDir, e);
         }
     }
 
     /**
      * 使用本进程多线程生成测试报告。
      */
-    public void generateReportLocal(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir) {
+    public void generateReportLocal(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir,
+                                    ReportProgress progress) {
         stressTestUtils.setJmeterProperties();
         LocalReportGenerator generator = null;
         try {
             generator = new LocalReportGenerator(csvPath, null);
+            generator.setProgress(progress);
             generator.generate(reportPathDir);
+            saveStatistics(stressTestReport, generator.getStatistics());
             stressTestReport.setStatus(StressTestUtils.RUN_SUCCESS);
+            stressTestReport.setParsedSize(progress.getTotalBytes());
             update(stressTestReport);
         } catch (Throwable e) {
+            if (progress.isCancelled()) {
+                cancelled(stressTestReport, reportPathDir);
+                return;
+            }
             // 保存状态，执行出现异常
             stressTestReport.setStatus(StressTestUtils.RUN_ERROR);
             update(stressTestReport);
@@ -259,7 +600,8 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
     /**
      * 使用Jmeter_home中的命令生成测试报告。
      */
-    public void generateReportByScript(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir) {
+    public void generateReportByScript(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir,
+                                       ReportStamp reportStamp, ReportProgress progress) {
         // 开始执行命令行
         String jmeterHomeBin = stressTestUtils.getJmeterHomeBin();
         String jmeterExc = stressTestUtils.getJmeterExc();
@@ -279,6 +621,9 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         cmdLine.setSubstitutionMap(map);
 
         DefaultExecutor executor = new DefaultExecutor();
+        // 取消时结束命令行进程
+        ExecuteWatchdog watchdog = new ExecuteWatchdog(ExecuteWatchdog.INFINITE_TIMEOUT);
+        executor.setWatchdog(watchdog);
         // 非阻塞方式运行脚本命令，不耽误前端的操作。
         // 流操作在executor执行源码中已经关闭。
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -290,181 +635,90 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         try {
             // 自定义的钩子程序
             ReportCreateResultHandler resultHandler = new ReportCreateResultHandler(stressTestReport,
-                    this, outputStream, errorStream);
+                    this, outputStream, errorStream, reportStamp, reportPathDir);
             // 执行脚本命令
             executor.execute(cmdLine, resultHandler);
+            progress.onCancel(watchdog::destroyProcess);
+            // 命令行进程结束之后任务才结束，生成测试报告的并发数才准确。
+            resultHandler.waitFor();
         } catch (IOException e) {
             // 保存状态，执行出现异常
             stressTestReport.setStatus(StressTestUtils.RUN_ERROR);
             update(stressTestReport);
             throw new RRException("执行生成测试报告脚本异常！", e);
+        } catch (InterruptedException e) {
+            watchdog.destroyProcess();
+            Thread.currentThread().interrupt();
+        }
+        if (progress.isCancelled()) {
+            cancelled(stressTestReport, reportPathDir);
+        } else if (StressTestUtils.RUN_SUCCESS.equals(stressTestReport.getStatus())) {
+            // 命令行生成时拿不到统计数据，再读取一遍结果文件计算汇总统计。
+            try {
+                stressTestUtils.setJmeterProperties();
+                saveStatistics(stressTestReport, new LocalReportGenerator(csvPath, null).statistics());
+            } catch (Exception e) {
+                logger.error("计算测试报告汇总统计出错！" + csvPath, e);
+            }
         }
     }
 
     /**
-     * 测试报告文件如果最后一行不完整，会报生成报告的错误。
-     * 目前发现，测试报告会包含<0x00>即十六进制0的特殊字符，会导致测试报告生成失败。
-     * 其实遇到这种，测试报告生成直接跳出循环即可，但是目前Jmeter4版本没有做到，所以先删除不符合条件的行
-     *
-     * @param fileName csv 文件
-     */
-    public void fixReportFile(String fileName, StressTestReportsEntity stressTestReport) throws Exception {
-        fixReportLastLine(fileName, stressTestReport);
-        fixReportUnknownLine4Linux(fileName);
-    }
-
-    /**
-     * 目前发现，测试报告会包含<0x00>即十六进制0的特殊字符，会导致测试报告生成失败。
-     * 首先生成一个_back结尾的文件，里面会将包含<0x00>即十六进制0的特殊字符的行都跳过。
-     * 然后将_back结尾的文件替换成要生成测试报告的源文件，完成数据的修复。
-     *
-     * @param fileName csv 文件
+     * 保存测试报告的汇总统计，保存失败不影响测试报告，只是列表及趋势中没有这次的数据。
      */
-    private void fixReportUnknownLine(String fileName) throws IOException {
-        File file = new File(fileName);
-        File fileBack = new File(fileName + "_back");
-        BufferedReader reader = null;
-        PrintWriter writer = null;
+    private void saveStatistics(StressTestReportsEntity stressTestReport, List<SliceStatistics.Row> rows) {
+        if (rows == null) {
+            return;
+        }
         try {
-            reader = new BufferedReader(new FileReader(file));
-            writer = new PrintWriter(fileBack);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // 判断条件，根据自己的情况书写，会删除所有符合条件的行
-                // String[] lines = line.split(",");
-                // if (lines.length != lineLength) {
-                // continue;
-                // }
-                if (line.contains("\0")) {
-                    continue;
-                }
-                writer.println(line);
-                writer.flush();
-            }
-            // reader.close();
-            // writer.close();
-
-            // 删除老文件，使用_back文件替换旧的可能存在问题的文件。
-            FileUtils.deleteQuietly(file);
-            fileBack.renameTo(file);
-        } catch (IOException e) {
-            logger.error("测试报告原始csv修复特殊字符<0x00>失败！", e);
-        } finally {
-            reader.close();
-            writer.close();
+            stressTestReportStatsService.saveStatistics(stressTestReport.getReportId(), rows);
+        } catch (Exception e) {
+            logger.error("保存测试报告汇总统计出错！" + stressTestReport.getReportId(), e);
         }
     }
 
     /**
-     * 目前发现，测试报告会包含<0x00>即十六进制0的特殊字符，会导致测试报告生成失败。
-     * 针对Linux环境，使用Linux的本地命令来修复文件。
-     *
-     * @param fileName csv 文件
+     * 生成被取消，删除生成了一半的测试报告目录。
      */
-    private void fixReportUnknownLine4Linux(String fileName) throws Exception {
-        if (StressTestUtils.OS_NAME_LC.startsWith("windows") || StressTestUtils.OS_NAME_LC.startsWith("mac")) {
-            fixReportUnknownLine(fileName);
-            return;
-        }
-        // 使用临时的shell文件来执行sed命令，因为Linux环境下直接执行sed命令不成功。
-        String[] strs = { "sed -i '/\\x0/d' " + fileName };
-        File temp = stressTestUtils.createShell(strs);
-        String result = stressTestUtils.runShell(temp.getAbsolutePath());
-
-        logger.error(temp.getAbsolutePath() + result);
+    private void cancelled(StressTestReportsEntity stressTestReport, String reportPathDir) {
+        FileUtils.deleteQuietly(new File(reportPathDir));
+        stressTestReport.setStatus(StressTestUtils.CANCELLED);
+        update(stressTestReport);
+        logger.info("测试报告生成已取消：" + reportPathDir);
     }
 
     /**
      * 测试报告文件如果最后一行不完整，会报生成报告的错误。
-     * 所以每次生成报告之前，如果不完整则删除最后一行记录，让测试报告生成没有这文件不完整的错误。
+     * 目前发现，测试报告会包含<0x00>即十六进制0的特殊字符，会导致测试报告生成失败。
+     * 其实遇到这种，测试报告生成直接跳出循环即可，但是目前Jmeter4版本没有做到，所以先删除不符合条件的行。
+     * 一次顺序读取原地修复，见CsvResultRepairer，不需要生成_back文件或者执行sed命令。
      *
      * @param fileName csv 文件
      */
-    private int fixReportLastLine(String fileName, StressTestReportsEntity stressTestReport) throws IOException {
-        // 需要增加判断，如果是不完整的最后一行，属于脏数据，则删除这条数据。
-        // 如果是完整的，则直接跳出不执行删除操作。
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(fileName, "rw");
-            if (raf.length() == 0L) {
-                stressTestReport.setStatus(StressTestUtils.NO_FILE);
-                update(stressTestReport);
-                logger.error("测试报告原始csv文件为空，可以删除！");
-                throw new RRException("测试报告原始文件找不到，请删除！");
-            }
-            // 获取倒数第一行的数据
-            long pos = raf.length() - 1;
-            pos = getPos(raf, pos);
-            String lastLine = getLineStr(raf, raf.length(), pos);
-
-            // 获取倒数第二行的数据
-            long posSec = pos - 1;
-            posSec = getPos(raf, posSec);
-            String lastSecLine = getLineStr(raf, pos, posSec);
-
-            // 是否删除最后一行，可以通过最后一行的数据结构是否和倒数第二行相同来判断。
-            // csv文件都是英文逗号, 做分割
-            String[] theLast = lastLine.split(",");
-            String[] theLastSec = lastSecLine.split(",");
-            if (theLast.length != theLastSec.length) {
-                // 这会删除最后一行
-                if (pos <= 0) {
-                    raf.setLength(pos);
-                } else {
-                    raf.setLength(pos + 1);
-                }
-            }
-
-            // 关闭回收
-            // raf.close();
-            return theLastSec.length;
-        } catch (FileNotFoundException e) {
+    public void fixReportFile(String fileName, StressTestReportsEntity stressTestReport) {
+        File file = new File(fileName);
+        if (!file.exists()) {
             stressTestReport.setStatus(StressTestUtils.NO_FILE);
             update(stressTestReport);
-            logger.error("测试报告原始csv文件找不到！", e);
+            logger.error("测试报告原始csv文件找不到！" + fileName);
             throw new RRException("测试报告原始文件找不到！");
+        }
+        if (file.length() == 0L) {
+            stressTestReport.setStatus(StressTestUtils.NO_FILE);
+            update(stressTestReport);
+            logger.error("测试报告原始csv文件为空，可以删除！");
+            throw new RRException("测试报告原始文件找不到，请删除！");
+        }
+        try {
+            CsvResultRepairer.Result result = new CsvResultRepairer(CSV_SEPARATOR).repair(file);
+            if (result.isModified()) {
+                logger.error("测试报告原始csv文件已修复，" + result + "。" + fileName);
+            }
         } catch (IOException e) {
             stressTestReport.setStatus(StressTestUtils.RUN_ERROR);
             update(stressTestReport);
             logger.error("测试报告原始文件修复时，IO错误！", e);
             throw new RRException("测试报告原始文件修复时出错！");
-        } finally {
-            raf.close();
-        }
-    }
-
-    /**
-     * 获取文件中的某一段数据，这里是以\n做分割的。
-     * 本身文件是从后向前做循环，所以多次调用并不会增加过多的性能时间损耗。
-     * 默认是UTF-8的编码
-     *
-     * @param raf      原始文件
-     * @param posEnd   要截取数据行的在文件中结束的位置
-     * @param posStart 要截取数据行的开始的位置
-     * @return 返回一行数据
-     * @throws IOException
-     */
-    public String getLineStr(RandomAccessFile raf, long posEnd, long posStart) throws IOException {
-        byte[] bytes = new byte[(int) (posEnd - posStart)];
-        raf.read(bytes);
-        return new String(bytes, Charset.forName("UTF-8"));
-    }
-
-    /**
-     * 获取要截取数据行的开始的位置
-     * 是从文本的最后开始向前找，找到换行符\n之后即停止，返回位置。
-     * 该位置其他调用方法会遇到，会作为起点。
-     * <p>
-     * 同时由于是从文本的最后向前寻找，所以csv文本是脏数据，最后一行不包含\n，也会找到最后一行。
-     */
-    public long getPos(RandomAccessFile raf, long posStart) throws IOException {
-        while (posStart > 0) {
-            posStart--;
-            raf.seek(posStart);
-            if (raf.readByte() == '\n') {
-                break;
-            }
         }
-        return posStart;
     }
 }
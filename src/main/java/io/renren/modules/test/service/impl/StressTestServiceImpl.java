@@ -4,6 +4,7 @@ import io.renren.common.exception.RRException;
 import io.renren.modules.test.dao.DebugTestReportsDao;
 import io.renren.modules.test.dao.StressTestDao;
 import io.renren.modules.test.dao.StressTestFileDao;
+import io.renren.modules.test.dao.StressTestReportStatsDao;
 import io.renren.modules.test.dao.StressTestReportsDao;
 import io.renren.modules.test.entity.StressTestEntity;
 import io.renren.modules.test.service.StressTestService;
@@ -32,6 +33,9 @@ public class StressTestServiceImpl implements StressTestService {
     @Autowired
     private StressTestReportsDao stressTestReportsDao;
 
+    @Autowired
+    private StressTestReportStatsDao stressTestReportStatsDao;
+
     @Autowired
     private DebugTestReportsDao debugTestReportsDao;
 
@@ -82,6 +86,8 @@ public class StressTestServiceImpl implements StressTestService {
         // 删除数据库内容
         // 脚本文件的删除调用file的自身方法，在controller中调用。因为file包含了分布式节点的数据。
         // 测试报告的内容都在master服务器端，所以直接删除case文件夹即可。
+        // 汇总统计按测试报告关联用例，先于测试报告删除。
+        stressTestReportStatsDao.deleteBatchByCaseIds(caseIds);
         stressTestReportsDao.deleteBatchByCaseIds(caseIds);
         debugTestReportsDao.deleteBatchByCaseIds(caseIds);
         stressTestDao.deleteBatch(caseIds);
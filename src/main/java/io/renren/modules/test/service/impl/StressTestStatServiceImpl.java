@@ -0,0 +1,330 @@
+package io.renren.modules.test.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.renren.common.exception.RRException;
+import io.renren.common.utils.R;
+import io.renren.modules.test.jmeter.JmeterStatSnapshot;
+import io.renren.modules.test.service.StressTestFileService;
+import io.renren.modules.test.service.StressTestStatService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 实时监控数据的推送和缓存。
+ * 每个脚本文件的监控数据在一个刷新周期内只计算并序列化一次，推送和轮询的请求都共用这一份数据。
+ * 推送时，上一次已经收到数据的订阅者只发送增量，其他的发送全量。
+ * 每个订阅者同一时间最多只有一条数据在发送，上一条还没发完的慢客户端会跳过本次数据（只保留最新的），
+ * 连续跳过太多次则断开，客户端(EventSource)会自动重连，服务端不会为慢客户端无限堆积数据。
+ */
+@Service("stressTestStatService")
+public class StressTestStatServiceImpl implements StressTestStatService {
+
+    Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * 推送周期，和前端轮询的周期保持一致。
+     */
+    private static final long PUSH_INTERVAL_MILLIS = 2000L;
+
+    /**
+     * 连接的超时时间，超时后客户端会自动重连。
+     */
+    private static final long EMITTER_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * 慢客户端连续跳过多少次推送后断开。
+     */
+    private static final int MAX_MISSED_PUSH = 5;
+
+    private static final int SEND_THREADS = 4;
+
+    /**
+     * 监控数据的刷新周期，周期内的请求直接返回缓存的数据。
+     */
+    private static final long SNAPSHOT_REFRESH_MILLIS = 1000L;
+
+    @Autowired
+    private StressTestFileService stressTestFileService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * key是脚本文件的fileId，value是这个脚本文件的订阅者。
+     */
+    private final Map<Long, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * 每个脚本文件的监控数据快照，一段时间没有人查看则自动清理。
+     */
+    private final Cache<Long, SnapshotHolder> snapshotCache = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.MINUTES)
+            .build();
+
+    private ScheduledExecutorService pushScheduler;
+
+    private ThreadPoolExecutor sendExecutor;
+
+    @PostConstruct
+    public void init() {
+        pushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jmeter-stat-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger threadIndex = new AtomicInteger();
+        sendExecutor = new ThreadPoolExecutor(SEND_THREADS, SEND_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(1000), r -> {
+            Thread thread = new Thread(r, "jmeter-stat-send-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pushScheduler.scheduleWithFixedDelay(this::push, PUSH_INTERVAL_MILLIS, PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pushScheduler.shutdownNow();
+        sendExecutor.shutdownNow();
+        subscribers.values().forEach(list -> list.forEach(Subscriber::close));
+    }
+
+    @Override
+    public SseEmitter subscribe(Long fileId) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+        Subscriber subscriber = new Subscriber(fileId, emitter);
+        subscribers.compute(fileId, (k, list) -> {
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+            }
+            list.add(subscriber);
+            return list;
+        });
+        Runnable remove = () -> unsubscribe(fileId, subscriber);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        return emitter;
+    }
+
+    private void unsubscribe(Long fileId, Subscriber subscriber) {
+        subscribers.computeIfPresent(fileId, (k, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    @Override
+    public String getStatInfoJson(Long fileId) {
+        return getSnapshotHolder(fileId).getStatInfoJson();
+    }
+
+    @Override
+    public String getStatSnapshotJson(Long fileId, Long since) {
+        return getSnapshotHolder(fileId).getSnapshotJson(since);
+    }
+
+    private SnapshotHolder getSnapshotHolder(Long fileId) {
+        SnapshotHolder holder;
+        try {
+            holder = snapshotCache.get(fileId, () -> new SnapshotHolder(fileId));
+        } catch (ExecutionException e) {
+            throw new RRException("获取实时监控数据出错！", e);
+        }
+        holder.refreshIfExpired();
+        return holder;
+    }
+
+    private String toJson(Object object) {
+        try {
+            return objectMapper.writeValueAsString(object);
+        } catch (JsonProcessingException e) {
+            throw new RRException("实时监控数据转换JSON出错！", e);
+        }
+    }
+
+    /**
+     * 推送线程执行，不能抛出异常，否则定时任务会终止。
+     */
+    private void push() {
+        for (Map.Entry<Long, List<Subscriber>> entry : subscribers.entrySet()) {
+            try {
+                SnapshotHolder holder = getSnapshotHolder(entry.getKey());
+                for (Subscriber subscriber : entry.getValue()) {
+                    subscriber.offer(holder);
+                }
+            } catch (Exception e) {
+                logger.error("推送实时监控数据出错！fileId：" + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 一个脚本文件的快照，以及本周期内序列化好的数据。
+     */
+    private class SnapshotHolder {
+
+        private final Long fileId;
+
+        private final JmeterStatSnapshot snapshot;
+
+        private long refreshTime;
+
+        /**
+         * 本周期的序号及序列化好的数据，整体替换，读取方拿到的序号和数据一定是同一个周期的。
+         */
+        private volatile Frame frame = new Frame(0L, null, null);
+
+        /**
+         * 原有格式的数据，有请求时才生成。
+         */
+        private String statInfoJson;
+
+        SnapshotHolder(Long fileId) {
+            this.fileId = fileId;
+            this.snapshot = new JmeterStatSnapshot(fileId);
+        }
+
+        synchronized void refreshIfExpired() {
+            long now = System.currentTimeMillis();
+            if (now - refreshTime < SNAPSHOT_REFRESH_MILLIS) {
+                return;
+            }
+            snapshot.refresh(stressTestFileService.getJmeterStatEntity(fileId));
+            long seq = snapshot.getSeq();
+            frame = new Frame(seq, toJson(R.ok().put("snapshot", snapshot.toPayload(null))),
+                    toJson(R.ok().put("snapshot", snapshot.toPayload(seq - 1))));
+            statInfoJson = null;
+            refreshTime = now;
+        }
+
+        Frame getFrame() {
+            return frame;
+        }
+
+        synchronized String getStatInfoJson() {
+            if (statInfoJson == null) {
+                statInfoJson = toJson(R.ok().put("statInfo", snapshot.getStatEntity()));
+            }
+            return statInfoJson;
+        }
+
+        String getSnapshotJson(Long since) {
+            return getSnapshotJson(frame, since);
+        }
+
+        /**
+         * 返回的数据和current的序号是同一个周期的。
+         */
+        String getSnapshotJson(Frame current, Long since) {
+            if (since == null) {
+                return current.fullJson;
+            }
+            if (since == current.seq - 1) {
+                return current.deltaJson;
+            }
+            synchronized (this) {
+                if (frame != current) {
+                    // 快照已经刷新到下一个周期，只能发这个周期的全量数据。
+                    return current.fullJson;
+                }
+                return toJson(R.ok().put("snapshot", snapshot.toPayload(since)));
+            }
+        }
+    }
+
+    /**
+     * 一个周期的序号、全量数据及相对上一个周期的增量数据，不可变。
+     */
+    private static final class Frame {
+
+        private final long seq;
+
+        private final String fullJson;
+
+        private final String deltaJson;
+
+        private Frame(long seq, String fullJson, String deltaJson) {
+            this.seq = seq;
+            this.fullJson = fullJson;
+            this.deltaJson = deltaJson;
+        }
+    }
+
+    private class Subscriber {
+
+        private final Long fileId;
+
+        private final SseEmitter emitter;
+
+        /**
+         * 当前是否有数据正在发送
+         */
+        private final AtomicBoolean sending = new AtomicBoolean(false);
+
+        private final AtomicInteger missed = new AtomicInteger(0);
+
+        /**
+         * 最后一次发送的数据的序号，只有推送线程访问。
+         */
+        private long lastSeq;
+
+        Subscriber(Long fileId, SseEmitter emitter) {
+            this.fileId = fileId;
+            this.emitter = emitter;
+        }
+
+        void offer(SnapshotHolder holder) {
+            if (!sending.compareAndSet(false, true)) {
+                // 上一条还没发送完，跳过本次，下次发最新的数据。
+                if (missed.incrementAndGet() > MAX_MISSED_PUSH) {
+                    close();
+                }
+                return;
+            }
+            missed.set(0);
+            // 收到过上一周期数据的只发增量，跳过了推送或者新加入的发全量。
+            Frame frame = holder.getFrame();
+            String payload = holder.getSnapshotJson(frame, lastSeq > 0 ? lastSeq : null);
+            lastSeq = frame.seq;
+            try {
+                sendExecutor.execute(() -> {
+                    try {
+                        emitter.send(SseEmitter.event().data(payload));
+                    } catch (IOException | IllegalStateException e) {
+                        // 客户端已经断开
+                        close();
+                    } finally {
+                        sending.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                lastSeq = 0L;
+                sending.set(false);
+            }
+        }
+
+        void close() {
+            unsubscribe(fileId, this);
+            try {
+                emitter.complete();
+            } catch (Exception e) {
+                // 已经关闭
+            }
+        }
+    }
+}
@@ -6,7 +6,8 @@ import io.renren.common.exception.RRException;
 import io.renren.common.utils.SpringContextUtils;
 import io.renren.modules.sys.service.SysConfigService;
 import io.renren.modules.test.jmeter.JmeterRunEntity;
-import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
+import io.renren.modules.test.jmeter.ingest.SampleIngestPipeline;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -45,6 +46,9 @@ public class StressTestUtils {
     public static final Integer RUN_SUCCESS = 2;
     public static final Integer RUN_ERROR = 3;
     public static final Integer NO_FILE = 4;
+    //测试报告的状态  5：排队等待生成  6：生成被取消
+    public static final Integer QUEUED = 5;
+    public static final Integer CANCELLED = 6;
 
     /**
      * 是否需要测试报告的状态标识
@@ -53,6 +57,13 @@ public class StressTestUtils {
     public static final Integer NEED_REPORT = 0;
     public static final Integer NO_NEED_REPORT = 1;
 
+    /**
+     * 测试报告是否使用了缓存的状态标识
+     */
+    //0：重新生成  1：结果文件及配置没有变化，使用已经生成的测试报告
+    public static final Integer REPORT_CACHE_MISS = 0;
+    public static final Integer REPORT_CACHE_HIT = 1;
+
     /**
      * 是否需要前端Chart监控的状态标识
      */
@@ -67,6 +78,13 @@ public class StressTestUtils {
     public static final Integer NO_NEED_DEBUG = 0;
     public static final Integer NEED_DEBUG = 1;
 
+    /**
+     * 测试结果文件格式
+     */
+    //0：csv  1：二进制列式格式
+    public static final Integer RESULT_FORMAT_CSV = 0;
+    public static final Integer RESULT_FORMAT_BINARY = 1;
+
     //0：禁用  1：启用  2：进行中
     public static final Integer DISABLE = 0;
     public static final Integer ENABLE = 1;
@@ -77,7 +95,7 @@ public class StressTestUtils {
      * 用于存储每一个用例的计算结果集合。
      * 使用google的缓存技术，让这部分全局数据多一份时间控制保障。
      */
-    public static Cache<Long, Map<String, LocalSamplingStatCalculator>> samplingStatCalculator4File =
+    public static Cache<Long, LabelStatTable> samplingStatCalculator4File =
 //            new HashMap<>();
             CacheBuilder.newBuilder()
                     .maximumSize(5000) // 设置缓存的最大容量
@@ -144,6 +162,86 @@ public class StressTestUtils {
      */
     public final static String SCRIPT_SCHEDULER_DURATION_KEY = "SCRIPT_SCHEDULER_DURATION_KEY";
 
+    /**
+     * 压测结果异步处理的缓冲大小（条数），会向上取整为2的幂，默认65536。
+     * 缓冲是预先分配的，每个正在执行的脚本一份。
+     */
+    public final static String MASTER_JMETER_INGEST_BUFFER_SIZE_KEY = "MASTER_JMETER_INGEST_BUFFER_SIZE_KEY";
+
+    /**
+     * 压测结果异步处理的缓冲满了之后的策略。
+     * DROP：丢弃前端监控的数据，是默认值。需要写测试报告时请求线程仍然等待，保证结果文件完整、有序。
+     * BLOCK：请求线程阻塞等待，监控数据完整，但是会影响压测的请求线程。
+     */
+    public final static String MASTER_JMETER_INGEST_FULL_POLICY_KEY = "MASTER_JMETER_INGEST_FULL_POLICY_KEY";
+
+    /**
+     * 分布式压测时slave节点汇总结果再发送给master的周期（毫秒）。
+     * 0表示不汇总，每个请求的结果都发送给master（默认）。
+     */
+    public final static String SLAVE_SAMPLE_SUMMARY_INTERVAL_KEY = "SLAVE_SAMPLE_SUMMARY_INTERVAL_KEY";
+
+    /**
+     * csv测试结果文件是否边写边gzip压缩，默认false。
+     */
+    public final static String MASTER_RESULT_FILE_COMPRESS_KEY = "MASTER_RESULT_FILE_COMPRESS_KEY";
+
+    /**
+     * csv测试结果文件按大小滚动成分段（MB），0表示不按大小滚动（默认）。
+     */
+    public final static String MASTER_RESULT_FILE_ROTATE_SIZE_KEY = "MASTER_RESULT_FILE_ROTATE_SIZE_KEY";
+
+    /**
+     * csv测试结果文件按时间滚动成分段（分钟），0表示不按时间滚动（默认）。
+     */
+    public final static String MASTER_RESULT_FILE_ROTATE_INTERVAL_KEY = "MASTER_RESULT_FILE_ROTATE_INTERVAL_KEY";
+
+    /**
+     * 压测过程中滚动测试报告的刷新周期（分钟），0表示不生成滚动测试报告（默认）。
+     * 只支持未压缩的csv测试结果文件。
+     */
+    public final static String MASTER_ROLLING_REPORT_INTERVAL_KEY = "MASTER_ROLLING_REPORT_INTERVAL_KEY";
+
+    /**
+     * 下载测试报告时zip包中的文件是否多线程并行压缩，false表示单线程依次压缩（默认）。
+     */
+    public final static String MASTER_REPORT_ZIP_PARALLEL_KEY = "MASTER_REPORT_ZIP_PARALLEL_KEY";
+
+    /**
+     * 同时生成测试报告的任务数，超出的排队，默认2。
+     */
+    public final static String MASTER_REPORT_JOB_PARALLELISM_KEY = "MASTER_REPORT_JOB_PARALLELISM_KEY";
+
+    /**
+     * 同时生成的测试报告的结果文件大小之和的上限（MB），0表示使用JVM的最大堆内存（默认）。
+     */
+    public final static String MASTER_REPORT_JOB_MEMORY_KEY = "MASTER_REPORT_JOB_MEMORY_KEY";
+
+    /**
+     * 和基线对比时吞吐量下降超过多少百分比算性能回归，0表示使用默认值10。
+     */
+    public final static String MASTER_REGRESSION_TPS_DROP_KEY = "MASTER_REGRESSION_TPS_DROP_KEY";
+
+    /**
+     * 和基线对比时平均及百分位响应时间上升超过多少百分比算性能回归，0表示使用默认值20。
+     */
+    public final static String MASTER_REGRESSION_LATENCY_RISE_KEY = "MASTER_REGRESSION_LATENCY_RISE_KEY";
+
+    /**
+     * 和基线对比时失败率上升超过多少个百分点（且统计显著）算性能回归，0表示只要统计显著就算。
+     */
+    public final static String MASTER_REGRESSION_ERROR_RISE_KEY = "MASTER_REGRESSION_ERROR_RISE_KEY";
+
+    /**
+     * 和基线对比时请求数少于多少的请求名称不做判断，0表示都做判断。
+     */
+    public final static String MASTER_REGRESSION_MIN_SAMPLES_KEY = "MASTER_REGRESSION_MIN_SAMPLES_KEY";
+
+    /**
+     * 调试测试报告中每项请求及响应内容最多显示的字符数（K），0表示使用默认值100。
+     */
+    public final static String MASTER_DEBUG_REPORT_BODY_LIMIT_KEY = "MASTER_DEBUG_REPORT_BODY_LIMIT_KEY";
+
     public static String getJmeterHome() {
         return sysConfigService.getValue(MASTER_JMETER_HOME_KEY);
     }
@@ -187,6 +285,103 @@ public class StressTestUtils {
         }
     }
 
+    public static int getIngestBufferSize() {
+        try {
+            String value = sysConfigService.getValue(MASTER_JMETER_INGEST_BUFFER_SIZE_KEY);
+            if (StringUtils.isBlank(value)) {
+                return 65536;
+            }
+            return Integer.parseInt(value.trim());
+        } catch (Exception e) {
+            return 65536;
+        }
+    }
+
+    public static String getIngestFullPolicy() {
+        String value = sysConfigService.getValue(MASTER_JMETER_INGEST_FULL_POLICY_KEY);
+        if (StringUtils.isBlank(value)) {
+            return SampleIngestPipeline.POLICY_DROP;
+        }
+        return value.trim();
+    }
+
+    public static long getSlaveSampleSummaryInterval() {
+        try {
+            String value = sysConfigService.getValue(SLAVE_SAMPLE_SUMMARY_INTERVAL_KEY);
+            if (StringUtils.isBlank(value)) {
+                return 0L;
+            }
+            return Math.max(Long.parseLong(value.trim()), 0L);
+        } catch (Exception e) {
+            return 0L;
+        }
+    }
+
+    public static boolean isResultFileCompress() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_RESULT_FILE_COMPRESS_KEY));
+    }
+
+    public static long getResultFileRotateBytes() {
+        return getNonNegativeLong(MASTER_RESULT_FILE_ROTATE_SIZE_KEY) * 1024 * 1024;
+    }
+
+    public static long getResultFileRotateMillis() {
+        return getNonNegativeLong(MASTER_RESULT_FILE_ROTATE_INTERVAL_KEY) * 60 * 1000;
+    }
+
+    public static long getRollingReportMillis() {
+        return getNonNegativeLong(MASTER_ROLLING_REPORT_INTERVAL_KEY) * 60 * 1000;
+    }
+
+    public static boolean isReportZipParallel() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_REPORT_ZIP_PARALLEL_KEY));
+    }
+
+    public static int getReportJobParallelism() {
+        long parallelism = getNonNegativeLong(MASTER_REPORT_JOB_PARALLELISM_KEY);
+        return parallelism > 0 ? (int) Math.min(parallelism, 64) : 2;
+    }
+
+    public static long getReportJobMemoryBytes() {
+        long memory = getNonNegativeLong(MASTER_REPORT_JOB_MEMORY_KEY);
+        return memory > 0 ? memory * 1024 * 1024 : Runtime.getRuntime().maxMemory();
+    }
+
+    public static long getRegressionTpsDropPct() {
+        long pct = getNonNegativeLong(MASTER_REGRESSION_TPS_DROP_KEY);
+        return pct > 0 ? pct : 10;
+    }
+
+    public static long getRegressionLatencyRisePct() {
+        long pct = getNonNegativeLong(MASTER_REGRESSION_LATENCY_RISE_KEY);
+        return pct > 0 ? pct : 20;
+    }
+
+    public static long getRegressionErrorRisePct() {
+        return getNonNegativeLong(MASTER_REGRESSION_ERROR_RISE_KEY);
+    }
+
+    public static long getRegressionMinSamples() {
+        return getNonNegativeLong(MASTER_REGRESSION_MIN_SAMPLES_KEY);
+    }
+
+    public static int getDebugReportBodyLimit() {
+        long limit = getNonNegativeLong(MASTER_DEBUG_REPORT_BODY_LIMIT_KEY);
+        return (int) Math.min(limit > 0 ? limit : 100, 1024 * 1024) * 1024;
+    }
+
+    private static long getNonNegativeLong(String key) {
+        try {
+            String value = sysConfigService.getValue(key);
+            if (StringUtils.isBlank(value)) {
+                return 0L;
+            }
+            return Math.max(Long.parseLong(value.trim()), 0L);
+        } catch (Exception e) {
+            return 0L;
+        }
+    }
+
     public static String getSuffix4() {
         String currentTimeStr = System.currentTimeMillis() + "";
         return currentTimeStr.substring(currentTimeStr.length() - 4);
@@ -287,10 +482,61 @@ public class StressTestUtils {
         return false;
     }
 
+    /**
+     * slave节点发送结果的方式相关的Jmeter属性。
+     */
+    private static final String[] SLAVE_SAMPLE_SENDER_PROPERTIES =
+            {"mode", "time_threshold", "num_sample_threshold", "key_on_threadname"};
+
+    /**
+     * 按slave节点发送结果的方式初始化并启动分布式节点。
+     * 汇总周期大于0时使用Jmeter自带的Statistical方式：slave节点按label每个周期汇总一次
+     * （请求数、失败数、流量、响应时间之和）再通过RMI发送，master收到的数据量只和label数量有关，和TPS无关。
+     * 发送方式是在master上启动远程引擎时（ClientJMeterEngine.runTest中转换监听器）创建好再序列化到slave的，
+     * 所以只需要设置master的属性，slave节点无需任何改动，但必须等到启动完成之后才能还原。
+     * <p>
+     * 这些属性是JVM全局的，只在本次初始化及启动期间生效，结束后还原，不影响其他脚本及调试模式。
+     * 和setJmeterProperties使用同一把锁，期间测试报告等重新加载属性时不会把汇总方式冲掉。
+     *
+     * @param summaryInterval slave节点的汇总周期（毫秒），不大于0时按原来的方式发送每个请求
+     * @param run             初始化并启动分布式节点，即创建、configure并runTest远程引擎
+     */
+    public synchronized void runWithSlaveSampleSender(long summaryInterval, Runnable run) {
+        if (summaryInterval <= 0) {
+            run.run();
+            return;
+        }
+        Properties jmeterProps = JMeterUtils.getJMeterProperties();
+        Properties previous = new Properties();
+        for (String key : SLAVE_SAMPLE_SENDER_PROPERTIES) {
+            String value = jmeterProps.getProperty(key);
+            if (value != null) {
+                previous.setProperty(key, value);
+            }
+        }
+        try {
+            JMeterUtils.setProperty("mode", "Statistical");
+            JMeterUtils.setProperty("time_threshold", String.valueOf(summaryInterval));
+            // 只按时间发送
+            JMeterUtils.setProperty("num_sample_threshold", String.valueOf(Integer.MAX_VALUE));
+            JMeterUtils.setProperty("key_on_threadname", "false");
+            run.run();
+        } finally {
+            for (String key : SLAVE_SAMPLE_SENDER_PROPERTIES) {
+                String value = previous.getProperty(key);
+                if (value == null) {
+                    jmeterProps.remove(key);
+                } else {
+                    jmeterProps.setProperty(key, value);
+                }
+            }
+        }
+    }
+
     /**
      * 设置Jmeter运行环境相关的配置，如配置文件的加载，当地语言环境等。
      */
-    public void setJmeterProperties() {
+    public synchronized void setJmeterProperties() {
         String jmeterHomeBin = getJmeterHomeBin();
         JMeterUtils.loadJMeterProperties(jmeterHomeBin + File.separator + "jmeter.properties");
         JMeterUtils.setJMeterHome(getJmeterHome());
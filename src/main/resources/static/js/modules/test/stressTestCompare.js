@@ -0,0 +1,56 @@
+var vm = new Vue({
+    el: '#rrapp',
+    data: {
+        comparison: null
+    },
+    created: function () {
+        // 没有baselineId时和所属脚本的基线对比，并保存是否有性能回归
+        var url = baseURL + "test/stressReports/compare/" + T.p("reportId");
+        if (T.p("baselineId")) {
+            url += "?baselineId=" + T.p("baselineId");
+        }
+        $.get(url, function (r) {
+            if (r.code === 0) {
+                vm.comparison = r.comparison;
+            } else {
+                alert(r.msg);
+            }
+        });
+    },
+    methods: {
+        value: function (stat, name) {
+            if (stat == null || stat[name] == null) {
+                return '-';
+            }
+            var value = stat[name];
+            return value % 1 === 0 ? value : value.toFixed(2);
+        },
+        // 基线 → 对比，以及变化，回归的指标标红
+        cell: function (row, name, change, unit) {
+            var html = this.value(row.baseline, name) + ' → ' + this.value(row.candidate, name);
+            if (change != null) {
+                var text = (change > 0 ? '+' : '') + change.toFixed(2) + unit;
+                var regression = row.regressions.indexOf(name) >= 0;
+                html += ' <span class="label ' + (regression ? 'label-danger' : 'label-default') + '">' + text + '</span>';
+            }
+            return html;
+        },
+        statusLabel: function (status) {
+            if (status === 'PASS') {
+                return '<span class="label label-success">没有回归</span>';
+            } else if (status === 'REGRESSION') {
+                return '<span class="label label-danger">性能回归</span>';
+            } else if (status === 'INSUFFICIENT') {
+                return '<span class="label label-default">请求数太少</span>';
+            } else if (status === 'ADDED') {
+                return '<span class="label label-info">新增请求</span>';
+            } else if (status === 'MISSING') {
+                return '<span class="label label-warning">缺少请求</span>';
+            }
+            return '';
+        },
+        back: function () {
+            history.go(-1);
+        }
+    }
+});
@@ -171,6 +171,7 @@ var vm = new Vue({
                 vm.stressTestFile.reportStatus = 0;
                 vm.stressTestFile.webchartStatus = 0;
                 vm.stressTestFile.debugStatus = 0;
+                vm.stressTestFile.resultFormat = 0;
                 vm.stressTestFile.duration = 3600;
                 vm.stressTestFile.fileIdList = fileIds;
             } else {
@@ -275,11 +276,10 @@ var vm = new Vue({
                 postData: {'caseId': vm.q.caseId},
                 page: page
             }).trigger("reloadGrid");
-            // clearInterval 是自带的函数。
-            clearInterval(timeTicket);
+            stopInterval();
         },
         suspendEcharts: function (event) {
-            clearInterval(timeTicket);
+            stopInterval();
         },
         startEcharts: function (event) {
             startInterval(fileIdData);
@@ -354,6 +354,11 @@ function synchronizeFile(fileIds) {
 }
 
 var timeTicket;
+var statEventSource;
+// 列式监控数据在前端的副本，增量数据合并到这里。
+var statSeq = null;
+var statLabels = [];
+var statRows = [];
 var responseTimeDataObj = {};
 var responseTimeLegendData = [];
 var throughputDataObj = {};
@@ -379,51 +384,166 @@ function startInterval(fileId) {
         clearEcharts();
     }
     fileIdData = fileId;
-    timeTicket = setInterval(function () {
-        $.get(baseURL + "test/stressFile/statInfo/" + fileId, function (r) {
-            var responseTimeMap = r.statInfo.responseTimesMap;
-            //拿其中的一个值尝试一下，没有则不刷新option了。
-            // if (Object.keys(responseTimeMap).length  === 0) {
-            //     return;
-            // }
-
-            $("#howLongRunningFormat").html(r.statInfo.howLongRunningFormat);
-
-            // 如果不是正在执行，则不再刷新前端
-            if (r.statInfo.runStatus !== 1) {
-                return;
+    stopInterval();
+    // 优先使用服务端推送，浏览器不支持或者连接失败时退回到定时轮询。
+    if (window.EventSource) {
+        statEventSource = new EventSource(baseURL + "test/stressFile/statStream/" + fileId);
+        statEventSource.onmessage = function (e) {
+            refreshEcharts(mergeSnapshot(JSON.parse(e.data).snapshot));
+        };
+        statEventSource.onerror = function () {
+            // 连接超时断开时EventSource会自动重连，只有彻底关闭时才改为轮询。
+            if (statEventSource && statEventSource.readyState === EventSource.CLOSED) {
+                statEventSource = null;
+                startPolling(fileId);
             }
+        };
+        return;
+    }
+    startPolling(fileId);
+}
 
-            var throughputMap = r.statInfo.throughputMap;
-            var networkSentMap = r.statInfo.networkSentMap;
-            var networkReceiveMap = r.statInfo.networkReceiveMap;
-            var successPercentageMap = r.statInfo.successPercentageMap;
-            var errorPercentageMap = r.statInfo.errorPercentageMap;
-            var threadCountsMap = r.statInfo.threadCountsMap;
-            var totalCountsMap = r.statInfo.totalCountsMap;
-            xAxisData.push(new Date().toLocaleTimeString());
-
-            var responseTimesEChartOption = getOptionLine(responseTimeMap, responseTimeLegendData, responseTimeDataObj, null);
-            var getThroughputMapOption = getOptionLine(throughputMap, throughputLegendData, throughputDataObj, null);
-            var networkSentMapOption = getOptionLine(networkSentMap, networkSentLegendData, networkSentDataObj, 'sent');
-            var networkReceiveMapOption = getOptionLine(networkReceiveMap, networkReceiveLegendData, networkReceiveDataObj, 'received');
-            var successPercentageMapOption = getOptionLine(successPercentageMap, successPercentageLegendData, successPercentageDataObj, 'successPercentage');
-            var errorPercentageMapOption = getOptionLine(errorPercentageMap, errorPercentageLegendData, errorPercentageDataObj, null);
-            var threadCountsMapOption = getOptionLine(threadCountsMap, threadCountsLegendData, threadCountsDataObj, null);
-            var totalCountsMapOption = getOptionPie(totalCountsMap, totalCountsLegendData, totalCountsDataObj, null);
-
-            responseTimesEChart.setOption(responseTimesEChartOption);
-            throughputEChart.setOption(getThroughputMapOption);
-            networkSentEChart.setOption(networkSentMapOption);
-            networkReceivedEChart.setOption(networkReceiveMapOption);
-            successPercentageEChart.setOption(successPercentageMapOption);
-            errorPercentageEChart.setOption(errorPercentageMapOption);
-            threadCountsEChart.setOption(threadCountsMapOption);
-            totalCountsEChart.setOption(totalCountsMapOption);
+function startPolling(fileId) {
+    timeTicket = setInterval(function () {
+        var url = baseURL + "test/stressFile/statSnapshot/" + fileId;
+        if (statSeq !== null) {
+            url += "?since=" + statSeq;
+        }
+        $.get(url, function (r) {
+            refreshEcharts(mergeSnapshot(r.snapshot));
         });
     }, 2000);
 }
 
+/**
+ * 合并服务端返回的列式数据（全量或增量），再转换为各个图表使用的格式。
+ */
+function mergeSnapshot(snapshot) {
+    if (snapshot.full) {
+        statLabels = [];
+        statRows = [];
+    }
+    for (var i = 0; i < snapshot.labels.length; i++) {
+        statLabels[snapshot.labelBase + i] = snapshot.labels[i];
+    }
+    var columns = snapshot.columns;
+    for (var r = 0; r < snapshot.rows.length; r++) {
+        var row = {};
+        for (var c = 0; c < columns.length; c++) {
+            row[columns[c]] = snapshot.values[c][r];
+        }
+        statRows[snapshot.rows[r]] = row;
+    }
+    statSeq = snapshot.seq;
+
+    var statInfo = {
+        runStatus: snapshot.runStatus,
+        howLongRunningFormat: snapshot.howLongRunningFormat,
+        threadCountsMap: snapshot.threadCounts,
+        ingestMetricsMap: snapshot.ingestMetrics,
+        slaveColumns: snapshot.slaveColumns,
+        slaves: snapshot.slaves,
+        responseTimesMap: {},
+        throughputMap: {},
+        networkSentMap: {},
+        networkReceiveMap: {},
+        successPercentageMap: {},
+        errorPercentageMap: {},
+        totalCountsMap: {}
+    };
+    var totalCount = 0;
+    for (var j = 0; j < statLabels.length; j++) {
+        if (statRows[j]) {
+            totalCount += statRows[j].count;
+        }
+    }
+    var successPercent = 1.0;
+    for (var k = 0; k < statLabels.length; k++) {
+        var label = statLabels[k];
+        var v = statRows[k];
+        if (!v) {
+            continue;
+        }
+        statInfo.responseTimesMap[label + "_Avg(ms)"] = v.avg.toFixed(2);
+        statInfo.responseTimesMap[label + "_P50(ms)"] = v.p50;
+        statInfo.responseTimesMap[label + "_P90(ms)"] = v.p90;
+        statInfo.responseTimesMap[label + "_P95(ms)"] = v.p95;
+        statInfo.responseTimesMap[label + "_P99(ms)"] = v.p99;
+        statInfo.responseTimesMap[label + "_Max(ms)"] = v.max;
+        statInfo.throughputMap[label + "_Tps(OK)"] = v.tps.toFixed(2);
+        if (v.errorTps > 0) {
+            statInfo.throughputMap[label + "_Tps(KO)"] = v.errorTps.toFixed(2);
+        }
+        statInfo.networkSentMap[label + "(Sent)"] = v.sentKB.toFixed(2);
+        statInfo.networkReceiveMap[label + "(Received)"] = v.receivedKB.toFixed(2);
+        var errorPercent = totalCount > 0 ? Number((v.errorCount / totalCount).toFixed(2)) : 0;
+        statInfo.successPercentageMap[label + "_ErrorPercent"] = errorPercent > 0 ? String(errorPercent) : "0";
+        successPercent = successPercent - errorPercent;
+        statInfo.errorPercentageMap[label + "_ErrorPercent"] = v.errorPercent > 0 ? v.errorPercent.toFixed(2) : "0";
+        statInfo.totalCountsMap[label + "_总请求数"] = String(v.count);
+    }
+    statInfo.successPercentageMap["SuccessPercent"] = successPercent.toFixed(2);
+    return {statInfo: statInfo};
+}
+
+function stopInterval() {
+    // clearInterval 是自带的函数。
+    clearInterval(timeTicket);
+    if (statEventSource) {
+        statEventSource.close();
+        statEventSource = null;
+    }
+}
+
+function refreshEcharts(r) {
+    var responseTimeMap = r.statInfo.responseTimesMap;
+    //拿其中的一个值尝试一下，没有则不刷新option了。
+    // if (Object.keys(responseTimeMap).length  === 0) {
+    //     return;
+    // }
+
+    $("#howLongRunningFormat").html(r.statInfo.howLongRunningFormat);
+    var ingest = r.statInfo.ingestMetricsMap;
+    if (ingest && ingest.capacity) {
+        $("#ingestMetrics").html("结果缓冲：" + ingest.depth + "/" + ingest.capacity
+            + "&nbsp;&nbsp;丢弃监控数据：" + ingest.dropped + "&nbsp;&nbsp;处理延迟：" + ingest.lagMillis + "ms");
+    }
+    refreshSlaveStats(r.statInfo.slaveColumns, r.statInfo.slaves);
+
+    // 如果不是正在执行，则不再刷新前端
+    if (r.statInfo.runStatus !== 1) {
+        return;
+    }
+
+    var throughputMap = r.statInfo.throughputMap;
+    var networkSentMap = r.statInfo.networkSentMap;
+    var networkReceiveMap = r.statInfo.networkReceiveMap;
+    var successPercentageMap = r.statInfo.successPercentageMap;
+    var errorPercentageMap = r.statInfo.errorPercentageMap;
+    var threadCountsMap = r.statInfo.threadCountsMap;
+    var totalCountsMap = r.statInfo.totalCountsMap;
+    xAxisData.push(new Date().toLocaleTimeString());
+
+    var responseTimesEChartOption = getOptionLine(responseTimeMap, responseTimeLegendData, responseTimeDataObj, null);
+    var getThroughputMapOption = getOptionLine(throughputMap, throughputLegendData, throughputDataObj, null);
+    var networkSentMapOption = getOptionLine(networkSentMap, networkSentLegendData, networkSentDataObj, 'sent');
+    var networkReceiveMapOption = getOptionLine(networkReceiveMap, networkReceiveLegendData, networkReceiveDataObj, 'received');
+    var successPercentageMapOption = getOptionLine(successPercentageMap, successPercentageLegendData, successPercentageDataObj, 'successPercentage');
+    var errorPercentageMapOption = getOptionLine(errorPercentageMap, errorPercentageLegendData, errorPercentageDataObj, null);
+    var threadCountsMapOption = getOptionLine(threadCountsMap, threadCountsLegendData, threadCountsDataObj, null);
+    var totalCountsMapOption = getOptionPie(totalCountsMap, totalCountsLegendData, totalCountsDataObj, null);
+
+    responseTimesEChart.setOption(responseTimesEChartOption);
+    throughputEChart.setOption(getThroughputMapOption);
+    networkSentEChart.setOption(networkSentMapOption);
+    networkReceivedEChart.setOption(networkReceiveMapOption);
+    successPercentageEChart.setOption(successPercentageMapOption);
+    errorPercentageEChart.setOption(errorPercentageMapOption);
+    threadCountsEChart.setOption(threadCountsMapOption);
+    totalCountsEChart.setOption(totalCountsMapOption);
+
+}
+
 function ShowRunning(fileId) {
     vm.showChart = true;
     vm.showEdit = false;
@@ -431,7 +551,44 @@ function ShowRunning(fileId) {
     startInterval(fileId);
 }
 
+/**
+ * 分布式压测时每个slave节点一行，用于找出压力机本身有问题的节点。
+ */
+function refreshSlaveStats(columns, slaves) {
+    if (!columns || !slaves || Object.keys(slaves).length === 0) {
+        $("#slaveStatsPanel").hide();
+        return;
+    }
+    var titles = {
+        count: "总请求数", errorCount: "失败数", tps: "Tps(OK)", errorTps: "Tps(KO)", avg: "Avg(ms)",
+        p90: "P90(ms)", p99: "P99(ms)", max: "Max(ms)", errorPercent: "失败率(%)"
+    };
+    var html = "<table class='table table-bordered table-condensed'><tr><th>节点</th>";
+    for (var c = 0; c < columns.length; c++) {
+        html += "<th>" + titles[columns[c]] + "</th>";
+    }
+    html += "</tr>";
+    for (var host in slaves) {
+        var values = slaves[host];
+        // 有失败的节点标红
+        html += values[1] > 0 ? "<tr class='danger'>" : "<tr>";
+        // hostname来自slave节点，转义后再拼接
+        html += "<td>" + $("<div>").text(host).html() + "</td>";
+        for (var i = 0; i < values.length; i++) {
+            html += "<td>" + values[i] + "</td>";
+        }
+        html += "</tr>";
+    }
+    html += "</table>";
+    $("#slaveStats").html(html);
+    $("#slaveStatsPanel").show();
+}
+
 function clearEcharts() {
+    statSeq = null;
+    statLabels = [];
+    statRows = [];
+    refreshSlaveStats();
     responseTimeDataObj = {};
     responseTimeLegendData = [];
     throughputDataObj = {};
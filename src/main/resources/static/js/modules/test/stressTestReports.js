@@ -25,6 +25,38 @@ $(function () {
                     return conver(value);
                 }
             },
+            {
+                label: 'TPS', name: 'tps', width: 35, sortable: false, formatter: function (value, options, row) {
+                    return value == null ? '' : value.toFixed(2);
+                }
+            },
+            {
+                label: '平均响应(ms)', name: 'mean', width: 40, sortable: false, formatter: function (value, options, row) {
+                    return value == null ? '' : value.toFixed(2);
+                }
+            },
+            {
+                label: '95%响应(ms)', name: 'pct95', width: 40, sortable: false, formatter: function (value, options, row) {
+                    return value == null ? '' : value;
+                }
+            },
+            {
+                label: '失败率', name: 'errorPct', width: 35, sortable: false, formatter: function (value, options, row) {
+                    return value == null ? '' : value.toFixed(2) + '%';
+                }
+            },
+            {
+                label: '基线对比', name: 'regression', width: 35, sortable: false, formatter: function (value, options, row) {
+                    if (row.reportId === row.baselineReportId) {
+                        return '<span class="label label-primary">基线</span>';
+                    } else if (value === 1) {
+                        return '<a href="stressTestCompare.html?reportId=' + row.reportId + '"><span class="label label-danger">性能回归</span></a>';
+                    } else if (value === 0) {
+                        return '<a href="stressTestCompare.html?reportId=' + row.reportId + '"><span class="label label-success">没有回归</span></a>';
+                    }
+                    return '';
+                }
+            },
             {label: '添加时间', name: 'addTime', width: 60},
             {label: '修改时间', name: 'updateTime', width: 60},
             {
@@ -32,13 +64,28 @@ $(function () {
                     if (value === 0) {
                         return '<span class="label label-info">创建成功</span>';
                     } else if (value === 1) {
+                        // 本地生成时显示已经读取的结果文件比例，命令行生成没有进度
+                        if (row.parsedSize > 0 && row.fileSize > 0) {
+                            var percent = Math.min(Math.floor(row.parsedSize * 100 / row.fileSize), 100);
+                            return '<div class="progress" style="margin-bottom: 0"><div class="progress-bar progress-bar-warning" style="width: ' + percent + '%">' + percent + '%</div></div>';
+                        }
                         return '<span class="label label-warning">正在执行</span>';
                     } else if (value === 2) {
+                        // 结果文件及配置没有变化时直接使用之前生成的测试报告
+                        if (row.reportCache === 1) {
+                            return '<span class="label label-success">执行成功</span> <span class="label label-default">缓存</span>';
+                        } else if (row.reportCache === 0) {
+                            return '<span class="label label-success">执行成功</span> <span class="label label-default">重新生成</span>';
+                        }
                         return '<span class="label label-success">执行成功</span>';
                     } else if (value === 3) {
                         return '<span class="label label-danger">出现异常</span>';
                     } else if (value === 4) {
                         return '<span class="label label-danger">原始文件消失</span>';
+                    } else if (value === 5) {
+                        return '<span class="label label-info">排队中</span>';
+                    } else if (value === 6) {
+                        return '<span class="label label-default">已取消</span>';
                     }
                 }
             },
@@ -46,6 +93,10 @@ $(function () {
                 label: '执行操作', name: '', width: 80, sortable: false, formatter: function (value, options, row) {
                     var createReportBtn = "<a href='#' class='btn btn-primary' onclick='createReport(" + row.reportId + ")' ><i class='fa fa-plus'></i>&nbsp;生成报告</a>";
                     var downloadReportBtn = "&nbsp;&nbsp;<a href='" + baseURL + "test/stressReports/downloadReport/" + row.reportId + "' class='btn btn-primary' onclick='return checkStatus(" + row.status + ")'><i class='fa fa-download'></i>&nbsp;下载</a>";
+                    if (row.status === 1 || row.status === 5) {
+                        var cancelReportBtn = "<a href='#' class='btn btn-warning' onclick='cancelReport(" + row.reportId + ")' ><i class='fa fa-stop'></i>&nbsp;取消</a>";
+                        return cancelReportBtn + downloadReportBtn;
+                    }
                     return createReportBtn + downloadReportBtn;
                 }
             }
@@ -188,6 +239,46 @@ var vm = new Vue({
                 });
             });
         },
+        setBaseline: function () {
+            var reportId = getSelectedRow();
+            if (reportId == null) {
+                return;
+            }
+
+            confirm('确定设置为所属脚本的性能回归基线？', function () {
+                $.ajax({
+                    type: "POST",
+                    url: baseURL + "test/stressReports/baseline/" + reportId,
+                    success: function (r) {
+                        if (r.code == 0) {
+                            alert('操作成功', function () {
+                                vm.reload();
+                            });
+                        } else {
+                            alert(r.msg);
+                        }
+                    }
+                });
+            });
+        },
+        compare: function () {
+            // 选中一个时和所属脚本的基线对比，选中两个时旧的作为基线
+            var reportIds = getSelectedRows();
+            if (reportIds == null) {
+                return;
+            }
+            if (reportIds.length > 2) {
+                alert('最多选择两条记录');
+                return;
+            }
+            if (reportIds.length === 1) {
+                window.location.href = "stressTestCompare.html?reportId=" + reportIds[0];
+            } else {
+                var baselineId = Math.min(reportIds[0], reportIds[1]);
+                var reportId = Math.max(reportIds[0], reportIds[1]);
+                window.location.href = "stressTestCompare.html?reportId=" + reportId + "&baselineId=" + baselineId;
+            }
+        },
         back: function () {
             history.go(-1);
         },
@@ -221,7 +312,14 @@ function createReport(reportIds) {
         success: function (r) {
             if (r.code == 0) {
                 vm.reload();
-                alert('后台正在异步生成!文件越大生成报告时间越长,请耐心等待!', function () {
+                var msg = '后台正在异步生成!文件越大生成报告时间越长,请耐心等待!';
+                if (r.skipped && r.skipped.length > 0) {
+                    msg += '<br>以下测试报告正在排队或者生成中，已跳过：<br>'
+                        + r.skipped.map(function (name) {
+                            return $("<div>").text(name).html();
+                        }).join('<br>');
+                }
+                alert(msg, function () {
                 });
             } else {
                 alert(r.msg);
@@ -231,6 +329,25 @@ function createReport(reportIds) {
     // });
 }
 
+function cancelReport(reportIds) {
+    if (!reportIds) {
+        return;
+    }
+    $.ajax({
+        type: "POST",
+        url: baseURL + "test/stressReports/cancelReport",
+        contentType: "application/json",
+        data: JSON.stringify(numberToArray(reportIds)),
+        success: function (r) {
+            if (r.code == 0) {
+                vm.reload();
+            } else {
+                alert(r.msg);
+            }
+        }
+    });
+}
+
 function checkStatus(status) {
     if (status != 2) {
         alert('没有测试报告！');
@@ -0,0 +1,98 @@
+package io.renren;
+
+import io.renren.modules.test.jmeter.writer.CsvResultRepairer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+public class CsvResultRepairerTest {
+
+    private static final String HEADER = "timeStamp,elapsed,label,responseMessage\n";
+
+    @Test
+    public void test() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder(HEADER);
+        write(content, HEADER);
+        for (int i = 0; i < 200000; i++) {
+            // 引号中的分隔符和换行不分列
+            String line = i + ",12,\"登录,首页\",\"OK\nline\"\n";
+            write(content, line);
+            expected.append(line);
+            if (i % 1000 == 0) {
+                write(content, i + ",12,bad\0,OK\n");
+                write(content, i + ",12,short\n");
+            }
+        }
+        // 掉电后末尾的<0x00>及不完整的最后一行
+        content.write(new byte[10 * 1024 * 1024]);
+        write(content, "\n200000,1");
+
+        File file = File.createTempFile("repair", ".csv");
+        try {
+            Files.write(file.toPath(), content.toByteArray());
+            CsvResultRepairer.Result result = new CsvResultRepairer(',').repair(file);
+            Assert.assertEquals(200001, result.getRows());
+            Assert.assertEquals(201, result.getBadRows());
+            Assert.assertEquals(200, result.getColumnMismatchRows());
+            Assert.assertEquals(8, result.getTornTailBytes());
+            Assert.assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+            // 已经修复的文件不再修改
+            result = new CsvResultRepairer(',').repair(file);
+            Assert.assertFalse(result.isModified());
+            Assert.assertEquals(200001, result.getRows());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTornLine() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder(HEADER);
+        write(content, HEADER);
+        for (int i = 0; i < 100; i++) {
+            String line = i + ",12,\"登录,首页\",\"OK\nline\"\n";
+            write(content, line);
+            expected.append(line);
+        }
+        // 中间写入中断的行，引号不成对，后面是带引号的行
+        write(content, "100,12,\"登\n");
+        for (int i = 101; i < 200; i++) {
+            String line = i + ",12,\"登录,首页\",\"OK\nline\"\n";
+            write(content, line);
+            expected.append(line);
+        }
+        // 后面是没有引号的行
+        write(content, "200,12,\"登\n");
+        for (int i = 201; i < 200000; i++) {
+            String line = i + ",12,login,OK\n";
+            write(content, line);
+            expected.append(line);
+        }
+
+        File file = File.createTempFile("repair", ".csv");
+        try {
+            Files.write(file.toPath(), content.toByteArray());
+            CsvResultRepairer.Result result = new CsvResultRepairer(',').repair(file);
+            Assert.assertEquals(2, result.getTornRows());
+            Assert.assertEquals(199999, result.getRows());
+            Assert.assertEquals(0, result.getTornTailBytes());
+            Assert.assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,105 @@
+package io.renren;
+
+import io.renren.modules.test.jmeter.report.DebugReportWriter;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+
+public class DebugReportWriterTest {
+
+    @Test
+    public void test() throws Exception {
+        StringBuilder jtl = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testResults version=\"1.2\">\n");
+        jtl.append(sample("登录 &amp; 首页", "线程组 1-1", "true", "{\"a\":1}"));
+        jtl.append(sample("查询", "线程组 1-1", "false", repeat('x', 5000)));
+        jtl.append(sample("查询", "线程组 1-2", "true", "ok"));
+        // 压测被强制停止时最后一个请求不完整
+        jtl.append("<httpSample lb=\"unfinishedSample\" tn=\"线程组 1-2\"><responseData>ab");
+
+        File jtlFile = File.createTempFile("debug", ".jtl");
+        File reportFile = new File(jtlFile.getPath().replace(".jtl", ".html"));
+        File fragmentDir = DebugReportWriter.getFragmentDir(reportFile);
+        try {
+            FileUtils.writeStringToFile(jtlFile, jtl.toString(), StandardCharsets.UTF_8);
+            int count = new DebugReportWriter("classpath:config/jmeter.results.zyanycall.xsl", 1000).write(jtlFile, reportFile);
+            Assert.assertEquals(3, count);
+
+            String html = FileUtils.readFileToString(reportFile, StandardCharsets.UTF_8);
+            Assert.assertTrue(html.contains("var onclick_li"));
+            Assert.assertEquals(2, countOf(html, "<li class=\"navigation\">"));
+            Assert.assertTrue(html.contains("<div class=\"success\">登录 &amp; 首页</div>"));
+            Assert.assertTrue(html.contains("<div class=\"failure\">查询</div>"));
+            Assert.assertTrue(html.contains("POST http://host/path?a=1&amp;b=2</pre>"));
+            Assert.assertTrue(html.contains(">" + repeat('x', 1000) + "</pre><a href=\"" + fragmentDir.getName()
+                    + "/2_responseData.txt\""));
+            Assert.assertFalse(html.contains("unfinishedSample"));
+            Assert.assertTrue(html.endsWith("</html>\n"));
+            // 列表中的元素之间不能有空白
+            Assert.assertFalse(html.contains("</li>\n<li") || html.contains("</li> <li"));
+
+            Assert.assertEquals(repeat('x', 5000), FileUtils.readFileToString(
+                    new File(fragmentDir, "2_responseData.txt"), StandardCharsets.UTF_8));
+        } finally {
+            FileUtils.deleteQuietly(jtlFile);
+            FileUtils.deleteQuietly(reportFile);
+            FileUtils.deleteQuietly(fragmentDir);
+        }
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        String head = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testResults version=\"1.2\">\n";
+        // 只缺少结尾的</testResults>时全部请求都是完整的
+        Assert.assertEquals(2, write(head + sample("a", "t", "true", "1") + sample("b", "t", "true", "2")));
+        // 第一个请求就不完整时没有可以生成的内容
+        try {
+            write(head + "<httpSample lb=\"a\" tn=\"t\"><responseData>ab");
+            Assert.fail();
+        } catch (XMLStreamException e) {
+            // 预期的异常
+        }
+    }
+
+    private static int write(String jtl) throws Exception {
+        File jtlFile = File.createTempFile("debug", ".jtl");
+        File reportFile = new File(jtlFile.getPath().replace(".jtl", ".html"));
+        try {
+            FileUtils.writeStringToFile(jtlFile, jtl, StandardCharsets.UTF_8);
+            return new DebugReportWriter("classpath:config/jmeter.results.zyanycall.xsl", 1000).write(jtlFile, reportFile);
+        } finally {
+            FileUtils.deleteQuietly(jtlFile);
+            FileUtils.deleteQuietly(reportFile);
+            FileUtils.deleteQuietly(DebugReportWriter.getFragmentDir(reportFile));
+        }
+    }
+
+    private static String sample(String label, String thread, String success, String body) {
+        return "<httpSample t=\"12\" lt=\"10\" ts=\"1700000000000\" s=\"" + success + "\" lb=\"" + label
+                + "\" rc=\"200\" rm=\"OK\" tn=\"" + thread + "\" by=\"10\" sc=\"1\" ec=\"0\">\n"
+                + "  <responseData class=\"java.lang.String\">" + body + "</responseData>\n"
+                + "  <method class=\"java.lang.String\">POST</method>\n"
+                + "  <java.net.URL>http://host/path?a=1&amp;b=2</java.net.URL>\n"
+                + "</httpSample>\n";
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static int countOf(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,103 @@
+package io.renren;
+
+import io.renren.modules.test.jmeter.calculator.LabelStatTable;
+import io.renren.modules.test.jmeter.calculator.LocalSamplingStatCalculator;
+import org.apache.jmeter.samplers.SampleResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class LabelStatTableTest {
+
+    private static final int THREADS = 8;
+
+    private static final int LABELS = 50;
+
+    private static final int SAMPLES_PER_THREAD = 100000;
+
+    @Test
+    public void test() throws InterruptedException {
+        LabelStatTable table = new LabelStatTable();
+        SampleResult[] results = new SampleResult[LABELS];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < LABELS; i++) {
+            results[i] = new SampleResult();
+            results[i].setSampleLabel("label-" + i);
+            results[i].setStampAndTime(now, 10);
+            results[i].setSuccessful(true);
+        }
+
+        // 多个线程同时注册和累加，模拟分布式时多个RMI线程的回调。
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < THREADS; t++) {
+            int offset = t;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < SAMPLES_PER_THREAD; i++) {
+                    SampleResult result = results[(i + offset) % LABELS];
+                    table.getOrCreate(result.getSampleLabel()).addSample(result);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        Assert.assertEquals(LABELS, table.size());
+        Assert.assertEquals(LABELS, table.asMap().size());
+        Set<String> labels = new HashSet<>();
+        long total = 0;
+        for (int id = 0; id < table.size(); id++) {
+            LocalSamplingStatCalculator calculator = table.get(id);
+            Assert.assertEquals(id, table.idOf(calculator.getLabel()));
+            Assert.assertSame(calculator, table.asMap().get(calculator.getLabel()));
+            labels.add(calculator.getLabel());
+            total += calculator.getCount();
+        }
+        Assert.assertEquals(LABELS, labels.size());
+        // 没有丢失的累加
+        Assert.assertEquals((long) THREADS * SAMPLES_PER_THREAD, total);
+    }
+
+    @Test
+    public void testHosts() {
+        LabelStatTable table = new LabelStatTable();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            SampleResult result = new SampleResult();
+            result.setSampleLabel("label-" + (i % 3));
+            result.setStampAndTime(now, i % 2 == 0 ? 10 : 1000);
+            result.setSuccessful(i % 10 != 0);
+            table.addHostSample("slave-" + (i % 2), result.getSampleLabel(), result);
+        }
+
+        // 整体数据由各个节点合并得到
+        Assert.assertEquals(2, table.getHostTables().size());
+        Assert.assertEquals(3, table.size());
+        long total = 0;
+        long errors = 0;
+        for (LocalSamplingStatCalculator calculator : table.calculators()) {
+            total += calculator.getCount();
+            errors += calculator.getErrorCount();
+            Assert.assertEquals(10, calculator.getMin());
+            Assert.assertEquals(1000, calculator.getMax());
+            Assert.assertSame(calculator, table.asMap().get(calculator.getLabel()));
+        }
+        Assert.assertEquals(1000, total);
+        Assert.assertEquals(100, errors);
+        Assert.assertEquals("label-0", table.get(0).getLabel());
+        Assert.assertEquals(505.0, table.get(0).getMean(), 0.5);
+    }
+}
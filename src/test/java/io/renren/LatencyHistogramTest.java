@@ -0,0 +1,32 @@
+package io.renren;
+
+import io.renren.modules.test.jmeter.calculator.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void test() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100000, histogram.getTotalCount());
+
+        long[] percentiles = histogram.getValuesAtPercentiles(50, 90, 99);
+        assertWithin(50000, percentiles[0]);
+        assertWithin(90000, percentiles[1]);
+        assertWithin(99000, percentiles[2]);
+        assertWithin(100000, histogram.getValueAtPercentile(100));
+
+        // 超过上限的值记在最后一个桶
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertTrue(histogram.getValueAtPercentile(100) >= LatencyHistogram.MAX_TRACKABLE_VALUE);
+    }
+
+    private void assertWithin(long expected, long actual) {
+        Assert.assertTrue(expected + " -> " + actual, Math.abs(actual - expected) <= expected / 100);
+    }
+}
@@ -0,0 +1,59 @@
+package io.renren;
+
+import io.renren.modules.test.entity.StressTestReportStatsEntity;
+import io.renren.modules.test.jmeter.report.RegressionComparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+
+public class RegressionComparatorTest {
+
+    @Test
+    public void test() {
+        RegressionComparator comparator = new RegressionComparator(10, 20, 1, 100);
+        RegressionComparator.Result result = comparator.compare(
+                1L, Arrays.asList(
+                        stat("Total", 1, 20000, 20, 200, 100, 300),
+                        stat("login", 0, 10000, 10, 100, 100, 300),
+                        stat("query", 0, 10000, 10, 100, 100, 300),
+                        stat("rare", 0, 50, 0, 1, 100, 300)),
+                2L, Arrays.asList(
+                        stat("Total", 1, 20000, 20, 195, 101, 302),
+                        stat("login", 0, 10000, 10, 100, 100, 400),
+                        stat("query", 0, 10000, 300, 98, 100, 300),
+                        stat("rare", 0, 50, 25, 1, 500, 900),
+                        stat("new", 0, 100, 0, 1, 100, 300)));
+
+        Assert.assertTrue(result.isRegression());
+        Assert.assertEquals(5, result.getRows().size());
+        // 合计行在最前面，变化在阈值之内
+        Assert.assertTrue(result.getRows().get(0).isOverall());
+        Assert.assertEquals(RegressionComparator.Status.PASS, result.getRows().get(0).getStatus());
+        // 90%、95%、99%响应时间上升33%，平均响应时间没有变化
+        Assert.assertEquals(Arrays.asList(RegressionComparator.PCT90, RegressionComparator.PCT95,
+                RegressionComparator.PCT99), result.getRows().get(1).getRegressions());
+        // 失败率从0.1%上升到3%
+        Assert.assertEquals(Arrays.asList(RegressionComparator.ERROR_PCT), result.getRows().get(2).getRegressions());
+        Assert.assertEquals(RegressionComparator.Status.INSUFFICIENT, result.getRows().get(3).getStatus());
+        Assert.assertEquals(RegressionComparator.Status.ADDED, result.getRows().get(4).getStatus());
+    }
+
+    private StressTestReportStatsEntity stat(String label, int overall, long samples, long errors,
+                                             double tps, long pct50, long pct95) {
+        StressTestReportStatsEntity stat = new StressTestReportStatsEntity();
+        stat.setLabel(label);
+        stat.setOverall(overall);
+        stat.setSamples(samples);
+        stat.setErrors(errors);
+        stat.setErrorPct(errors * 100.0 / samples);
+        stat.setTps(tps);
+        stat.setMean((double) pct50);
+        stat.setPct50(pct50);
+        stat.setPct90(pct95);
+        stat.setPct95(pct95);
+        stat.setPct99(pct95);
+        return stat;
+    }
+}